@@ -39,6 +39,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -61,7 +62,6 @@ import de.zbit.kegg.KGMLWriter;
 import de.zbit.kegg.api.KeggInfos;
 import de.zbit.kegg.parser.pathway.Entry;
 import de.zbit.mapper.GeneID2KeggIDMapper;
-import de.zbit.mapper.GeneSymbol2GeneIDMapper;
 import de.zbit.util.ArrayUtils;
 import de.zbit.util.DatabaseIdentifiers;
 import de.zbit.util.DatabaseIdentifiers.IdentifierDatabases;
@@ -85,17 +85,14 @@ public abstract class BioPAX2KGML {
    * default folder name for the KGMLs "pws"
    */
   static String defaultFolderName = "pws";
-  static List<Species> allSpecies = null;
-
-  static {
-    // TODO: Replace this with a flat-text file in resources to support more
-    // organisms.
-    allSpecies = new ArrayList<Species>(4);
-    allSpecies.add(new Species("Homo sapiens", "_HUMAN", "Human", "hsa", 9606));
-    allSpecies.add(new Species("Mus musculus", "_MOUSE", "Mouse", "mmu", 10090));
-    allSpecies.add(new Species("Rattus norvegicus", "_RAT", "Rat", "rno", 10116));
-//    allSpecies.add(new Species("Enterococcus faecalis", "_ENTFA", "Enterococcus", "efa", 226185));
-  }
+  
+  /**
+   * Organisms that are supported by the conversion, i.e., for which all
+   * mapping data is available. These are the same {@link Species} objects as
+   * in {@link SpeciesRegistry#getInstance()}, but this registry does not
+   * require reading the list of all species.
+   */
+  static final SpeciesRegistry allSpecies = new SpeciesRegistry(SpeciesRegistry.DEFAULT_SPECIES);
 
   /**
    * This variable must be set to false for normal biopax2kgml conversion.
@@ -123,7 +120,7 @@ public abstract class BioPAX2KGML {
   /**
    * this variable is used to determine the kegg id of an entry
    */
-  static int keggUnknownNo = 0;
+  static final AtomicInteger keggUnknownNo = new AtomicInteger();
 
   /**
    * this variable is used to determine the kegg reaction id
@@ -142,16 +139,94 @@ public abstract class BioPAX2KGML {
   public static final String keggUnknownName = "unknown";
 
   /**
-   * TODO: If these mappers are static, we must somehow distinguish instances for different !
-   * mapper to map gene symbols to gene ids
+   * Directory for persistent {@link ResolutionStore}s (optional).
+   */
+  private static File resolutionStoreDirectory = null;
+  
+  /**
+   * Maximum number of KGML files, that are written at the same time.
    */
-  protected static GeneSymbol2GeneIDMapper geneSymbolMapper = null;
+  private static int maxOpenFiles = Runtime.getRuntime().availableProcessors();
 
   /**
-   * TODO: If these mappers are static, we must somehow distinguish instances for different species!
-   * mapper to map gene ids to KEGG ids
+   * The mappers and caches of the model, that is converted by the current
+   * thread. {@link PathwayIterator}s install their own state while they
+   * convert (see {@link #enterConversion(ConversionState)}), so that
+   * different models can be converted in parallel. Other callers use one
+   * state per thread.
    */
-  protected static GeneID2KeggIDMapper geneIDKEGGmapper = null;
+  private static final ThreadLocal<ConversionState> conversionState = new ThreadLocal<ConversionState>() {
+    @Override
+    protected ConversionState initialValue() {
+      return new ConversionState();
+    }
+  };
+
+  /**
+   * Mappers for the current species and caches of the current model.
+   */
+  static class ConversionState {
+
+    /**
+     * normalized index to map gene symbols to gene ids, see {@link GeneSymbolIndex}
+     */
+    GeneSymbolIndex geneSymbolIndex = null;
+
+    /**
+     * mapper to map gene ids to KEGG ids
+     */
+    GeneID2KeggIDMapper geneIDKEGGmapper = null;
+
+    /**
+     * remembers gene symbols and gene ids that could not be mapped by the
+     * {@link ConversionState#geneSymbolIndex} or {@link #geneIDKEGGmapper}
+     */
+    MappingMissCache mappingMissCache = null;
+
+    /**
+     * resolutions of previous runs for the current species (may be null)
+     */
+    ResolutionStore resolutionStore = null;
+
+    /**
+     * collects the identifiers of the current model, see
+     * {@link BioPAX2KGML#collectIdentifiers(Model, IdentifierResolver)}
+     */
+    IdentifierResolver identifierResolver = null;
+
+    /**
+     * identifiers of the current model, resolved in one batch for the current
+     * species (may be null)
+     */
+    IdentifierResolver.Resolution resolvedIdentifiers = null;
+
+    /**
+     * Pathway-independent conversions of the entities of the current model.
+     */
+    EntityConversionCache entityConversionCache = null;
+
+    /**
+     * Resolved xrefs of the current model.
+     */
+    XrefCache xrefCache = null;
+
+    /**
+     * @return <code>true</code> if the mappers have been initialized.
+     */
+    boolean hasMappers() {
+      return geneSymbolIndex != null || geneIDKEGGmapper != null;
+    }
+  }
+
+  /**
+   * Enables the persistent cache of gene symbol and gene id resolutions
+   * across runs.
+   * 
+   * @param directory may be <code>null</code> to disable the cache.
+   */
+  public static void setResolutionStoreDirectory(File directory) {
+    resolutionStoreDirectory = directory;
+  }
 
   /**
    * transforms a set to a map. The key is a RDFId and the value the
@@ -178,7 +253,7 @@ public abstract class BioPAX2KGML {
    *         is incremented after this step
    */
   protected static String getKEGGUnkownName() {
-    return keggUnknownName + String.valueOf(++keggUnknownNo);
+    return keggUnknownName + String.valueOf(keggUnknownNo.incrementAndGet());
   }
 
   /**
@@ -199,13 +274,27 @@ public abstract class BioPAX2KGML {
    * @return
    */
   protected static String mapGeneIDToKEGGID(Integer geneID, Species species) {
+    ConversionState state = state();
     String keggName = null;
-    if (geneIDKEGGmapper != null && species!=null && species.isSetKeggAbbr()){
-      try {
-        keggName = geneIDKEGGmapper.map(geneID);
-      } catch (Exception e) {
-        log.log(Level.WARNING, "Could not map geneid: '" + geneID.toString() + "' to a KEGG id, "
-            + "'speciesAbbreviation:geneID will be used instead.", e);
+    if (state.geneIDKEGGmapper != null && species!=null && species.isSetKeggAbbr()){
+      String stored = null;
+      if (state.resolvedIdentifiers!=null && state.resolvedIdentifiers.isResolved(geneID)) {
+        keggName = state.resolvedIdentifiers.getKEGGID(geneID);
+      } else if (state.resolutionStore!=null && (stored = state.resolutionStore.getKEGGID(geneID))!=null) {
+        keggName = stored.length()>0 ? stored : null;
+      } else if (state.mappingMissCache==null || !state.mappingMissCache.isKnownGeneIDMiss(geneID)) {
+        try {
+          keggName = state.geneIDKEGGmapper.map(geneID);
+        } catch (Exception e) {
+          log.log(Level.WARNING, "Could not map geneid: '" + geneID.toString() + "' to a KEGG id, "
+              + "'speciesAbbreviation:geneID will be used instead.", e);
+        }
+        if (keggName == null && state.mappingMissCache!=null) {
+          state.mappingMissCache.addGeneIDMiss(geneID);
+        }
+        if (state.resolutionStore!=null) {
+          state.resolutionStore.putKEGGID(geneID, keggName);
+        }
       }
 
       if (keggName == null) {
@@ -257,34 +346,147 @@ public abstract class BioPAX2KGML {
   }
 
   /**
-   * The {@link #geneSymbolMapper} and
-   * {@link BioPAX2KGML#geneIDKEGGmapper} are initialized for the
+   * The {@link ConversionState#geneSymbolIndex} and
+   * {@link ConversionState#geneIDKEGGmapper} are initialized for the
    * given species
    * 
    * @param species
+   * @throws IllegalStateException if a mapper could not be read.
    */
   public static void initalizeMappers(Species species) {
+    ConversionState state = state();
     if (species != null){
       try {
-        geneSymbolMapper = new GeneSymbol2GeneIDMapper(species.getCommonName());
+        state.geneSymbolIndex = GeneSymbolIndex.getIndex(species);
+        state.mappingMissCache = MappingMissCache.getCache(species);
       } catch (IOException e) {
-        log.log(Level.SEVERE, "Could not initalize mapper for species '" + species.toString() + "'!",
-            e);
-        System.exit(1);
+        throw new IllegalStateException("Could not initalize mapper for species '"
+            + species.toString() + "'!", e);
       }
 
       if (species.getKeggAbbr()!=null){
         try {
-          geneIDKEGGmapper = new GeneID2KeggIDMapper(species);
+          state.geneIDKEGGmapper = MapperCache.getGeneID2KeggIDMapper(species);
         } catch (IOException e) {
-          log.log(Level.SEVERE, "Error while initializing gene id to KEGG ID mapper for species '"
+          throw new IllegalStateException("Error while initializing gene id to KEGG ID mapper for species '"
               + species.toString() + "'.", e);
-          System.exit(1);
         }  
       }
+
+      // Resolutions of previous runs
+      state.resolutionStore = null;
+      if (resolutionStoreDirectory!=null) {
+        String version = state.geneSymbolIndex.getDataVersion();
+        if (species.getKeggAbbr()!=null) {
+          version += "|" + ResolutionStore.getDataVersion(state.geneIDKEGGmapper);
+        }
+        try {
+          state.resolutionStore = ResolutionStore.getStore(resolutionStoreDirectory, species, version);
+        } catch (IOException e) {
+          log.log(Level.WARNING, "Could not open the resolution cache in '" + resolutionStoreDirectory + "'.", e);
+        }
+      }
+
+      // Identifiers of the current model are resolved in one batch
+      state.resolvedIdentifiers = null;
+      if (state.identifierResolver!=null) {
+        state.resolvedIdentifiers = state.identifierResolver.resolve(species, state.geneSymbolIndex,
+          species.getKeggAbbr()!=null ? state.geneIDKEGGmapper : null, state.mappingMissCache, state.resolutionStore);
+      }
+    }
+  }
+
+  /**
+   * Starts the first conversion phase for a model: all gene symbols and
+   * Entrez gene ids of the model's entities are collected by a new
+   * {@link ConversionState#identifierResolver}. They are resolved in one batch, as soon as
+   * the mappers are initialized for a species, see
+   * {@link #initalizeMappers(Species)}.
+   * 
+   * @param m
+   */
+  protected void startIdentifierResolution(Model m) {
+    startIdentifierResolution(m, true);
+  }
+
+  /**
+   * Like {@link #startIdentifierResolution(Model)}, but identifiers are
+   * only collected in advance if <code>collect</code> is set. Otherwise,
+   * each identifier is resolved, when it is converted, e.g., if only few
+   * pathways of a large model are converted.
+   * 
+   * @param m
+   * @param collect
+   */
+  protected void startIdentifierResolution(Model m, boolean collect) {
+    ConversionState state = state();
+    state.identifierResolver = new IdentifierResolver();
+    state.resolvedIdentifiers = null;
+    state.entityConversionCache = new EntityConversionCache();
+    state.xrefCache = new XrefCache();
+    if (collect) {
+      collectIdentifiers(m, state.identifierResolver);
+      log.fine("Collected " + state.identifierResolver.size() + " identifiers for batch resolution.");
     }
   }
 
+  /**
+   * @return the conversion state of the current thread.
+   */
+  static ConversionState state() {
+    return conversionState.get();
+  }
+
+  /**
+   * Installs the given state for the current thread, until
+   * {@link #exitConversion(ConversionState)} is called.
+   *
+   * @param state
+   * @return the previous state, which must be passed to
+   *         {@link #exitConversion(ConversionState)}.
+   */
+  static ConversionState enterConversion(ConversionState state) {
+    ConversionState previous = conversionState.get();
+    conversionState.set(state);
+    return previous;
+  }
+
+  /**
+   * Restores the state, that has been replaced by
+   * {@link #enterConversion(ConversionState)}.
+   *
+   * @param previous
+   */
+  static void exitConversion(ConversionState previous) {
+    conversionState.set(previous);
+  }
+
+  /**
+   * Ends the batch resolution, started with {@link #startIdentifierResolution(Model)}.
+   */
+  protected static void finishIdentifierResolution() {
+    ConversionState state = state();
+    if (state.entityConversionCache!=null) {
+      log.fine(state.entityConversionCache.toString());
+    }
+    if (state.resolutionStore!=null) {
+      state.resolutionStore.flush();
+    }
+    state.identifierResolver = null;
+    state.resolvedIdentifiers = null;
+    state.entityConversionCache = null;
+    state.xrefCache = null;
+  }
+
+  /**
+   * Collects the identifiers of all entities of the given model, which may
+   * be converted to KGML entries.
+   * 
+   * @param m
+   * @param resolver
+   */
+  protected abstract void collectIdentifiers(Model m, IdentifierResolver resolver);
+
   /**
    * @return a unique {@link BioPAXL22KGML#keggEntryID}.
    */
@@ -326,10 +528,9 @@ public abstract class BioPAX2KGML {
   protected static String createDefaultFolder(BioPAXLevel level) {
     String folderName = defaultFolderName + level.toString() + "/";
     if (!new File(folderName).exists()) {
-      boolean success = (new File(folderName)).mkdir();
-      if (success) {
-        log.log(Level.SEVERE, "Could not create directory '" + folderName + "'");
-        System.exit(1);
+      boolean success = (new File(folderName)).mkdirs();
+      if (!success && !new File(folderName).isDirectory()) {
+        throw new IllegalStateException("Could not create directory '" + folderName + "'");
       }
     }
 
@@ -354,36 +555,45 @@ public abstract class BioPAX2KGML {
   }
 
   /**
-   * Maps the entered gene symbol names to a geneID
+   * Maps the entered gene symbol names to a geneID. Each symbol is looked
+   * up in the normalized {@link ConversionState#geneSymbolIndex}, i.e., case, dashes and
+   * blanks are ignored. Symbols that already failed before are skipped
+   * via the {@link ConversionState#mappingMissCache}.
    * 
    * @param set of gene symbols
    * @return the gene id (default value = null)
    */
   protected static Integer getEntrezGeneIDForGeneSymbol(Collection<String> geneSymbols) {
-    log.finest("getGeneIDOverGeneSymbol");
-    Integer geneID = null;
-
-    if (geneSymbolMapper!=null){
+    ConversionState state = state();
+    if (state.geneSymbolIndex!=null){
       for (String symbol : geneSymbols) {
-        try {
-          geneID = geneSymbolMapper.map(symbol);
-        } catch (Exception e) {
-          log.log(Level.WARNING, "Error while mapping name: " + symbol + ".", e);
+        Integer resolved = state.resolvedIdentifiers!=null ? state.resolvedIdentifiers.getGeneID(symbol) : null;
+        if (resolved!=null) {
+          if (resolved.intValue() > 0) {
+            return resolved;
+          }
+          continue;
+        } else if (state.resolutionStore!=null && (resolved = state.resolutionStore.getGeneID(symbol))!=null) {
+          if (resolved.intValue() > 0) {
+            return resolved;
+          }
+          continue;
+        } else if (state.mappingMissCache!=null && state.mappingMissCache.isKnownSymbolMiss(symbol)) {
+          continue;
         }
-
-        if (geneID != null) {
+        int geneID = state.geneSymbolIndex.getEntrezGeneID(symbol);
+        if (state.resolutionStore!=null) {
+          state.resolutionStore.putGeneID(symbol, Math.max(geneID, 0));
+        }
+        if (geneID > 0) {
           return geneID;
-        } else if (symbol.contains("-")) {
-          return getEntrezGeneIDForGeneSymbol(Collections.singleton(symbol.replace("-", "")));
-        } else if (symbol.contains(" ")) {
-          return getEntrezGeneIDForGeneSymbol(Collections.singleton(symbol.replace(" ", "_")));
-        } else {
-          log.log(Level.FINER, "----- not found " + symbol);
+        } else if (state.mappingMissCache!=null) {
+          state.mappingMissCache.addSymbolMiss(symbol);
         }
       }  
     }
     
-    return geneID;
+    return null;
   }
   
   /**
@@ -405,11 +615,22 @@ public abstract class BioPAX2KGML {
    * @return
    */
   public static List<String> getListOfPathways(Model m){
+    return getListOfPathways(m, null);
+  }
+  
+  /**
+   * returns a list of all the pathways in a model, that are accepted by the
+   * filter
+   * @param m
+   * @param filter may be <code>null</code> to list all pathways.
+   * @return
+   */
+  public static List<String> getListOfPathways(Model m, PathwayFilter filter){
     List<String> pathwayList = null;
     if (m.getLevel().equals(BioPAXLevel.L2)){
-      pathwayList = BioPAXL22KGML.getListOfPathways(m);
+      pathwayList = BioPAXL22KGML.getListOfPathways(m, filter);
     } else if (m.getLevel().equals(BioPAXLevel.L3)){
-      pathwayList = BioPAXL32KGML.getListOfPathways(m);
+      pathwayList = BioPAXL32KGML.getListOfPathways(m, filter);
     }
     
     return pathwayList;
@@ -474,9 +695,8 @@ public abstract class BioPAX2KGML {
         keggPW = bp.createPathwayFromBioPaxFile
           (m, comment, FileTools.removeFileExtension(f.getName()), s);
       } else {
-        log.log(Level.SEVERE, "Unkown BioPAX Level '" + m.getLevel().toString()
+        throw new IllegalArgumentException("Unkown BioPAX Level '" + m.getLevel().toString()
             + "' is not supported.");
-        System.exit(1);
       }
       
     } else {
@@ -495,7 +715,120 @@ public abstract class BioPAX2KGML {
     (Model m, String fileName, Species species) {
     Collection<de.zbit.kegg.parser.pathway.Pathway> keggPWs = 
       new ArrayList<de.zbit.kegg.parser.pathway.Pathway>(); 
-       
+    PathwayIterator<?> it = createPathwayIterator(m, fileName, species);
+    try {
+      while (it.hasNext()) {
+        keggPWs.add(it.next());
+      }
+    } finally {
+      it.close();
+    }
+    return keggPWs;
+  }
+  
+  /**
+   * Creates for an entered {@link Model} the corresponding KEGG pathways and
+   * passes each pathway to the <code>handler</code>, as soon as it has been
+   * converted. Thus, converted pathways may already be processed (and
+   * released) while the remaining pathways are converted.
+   * 
+   * @param m
+   * @param fileName
+   * @param species
+   * @param handler
+   * @throws InterruptedException if the handler stops the conversion.
+   * @see #createPathwayIterator(Model, String, Species)
+   */
+  public static void createPathwaysFromModel(Model m, String fileName, Species species,
+    PathwayHandler handler) throws InterruptedException {
+    createPathwaysFromModel(m, fileName, species, null, handler);
+  }
+  
+  /**
+   * Like {@link #createPathwaysFromModel(Model, String, Species, PathwayHandler)},
+   * but pathways that are up to date according to the <code>manifest</code>
+   * are neither converted nor passed to the <code>handler</code>.
+   * 
+   * @param m
+   * @param fileName
+   * @param species
+   * @param manifest may be <code>null</code> to convert all pathways.
+   * @param handler
+   * @throws InterruptedException if the handler stops the conversion.
+   * @see PathwayIterator#setManifest(ConversionManifest)
+   */
+  public static void createPathwaysFromModel(Model m, String fileName, Species species,
+    ConversionManifest manifest, PathwayHandler handler) throws InterruptedException {
+    createPathwaysFromModel(m, fileName, species, manifest, null, handler);
+  }
+  
+  /**
+   * Like {@link #createPathwaysFromModel(Model, String, Species, ConversionManifest, PathwayHandler)},
+   * but each pathway is converted within the budget of the
+   * <code>supervisor</code>. Pathways that fail are reported and skipped.
+   * 
+   * @param m
+   * @param fileName
+   * @param species
+   * @param manifest may be <code>null</code> to convert all pathways.
+   * @param supervisor may be <code>null</code> to pass all failures to the
+   *        caller.
+   * @param handler
+   * @throws InterruptedException if the handler stops the conversion.
+   * @see PathwayIterator#setSupervisor(ConversionSupervisor)
+   */
+  public static void createPathwaysFromModel(Model m, String fileName, Species species,
+    ConversionManifest manifest, ConversionSupervisor supervisor, PathwayHandler handler)
+    throws InterruptedException {
+    PathwayIterator<?> it = createPathwayIterator(m, fileName, species);
+    it.setManifest(manifest);
+    it.setSupervisor(supervisor);
+    try {
+      while (it.hasNext()) {
+        handler.handle(it.next());
+      }
+    } finally {
+      it.close();
+    }
+  }
+  
+  /**
+   * Creates for an entered {@link Model} an iterator over the corresponding
+   * KEGG pathways. Each pathway is only converted, when it is requested.
+   * Empty pathways are dropped, unless the model contains only one
+   * pathway.
+   * 
+   * @param m
+   * @param fileName
+   * @param species
+   * @return the iterator, which must be {@link PathwayIterator#close()}d if
+   *         it is not consumed completely.
+   */
+  public static PathwayIterator<?> createPathwayIterator(final Model m, String fileName, final Species species) {
+    return createPathwayIterator(m, fileName, species, null, true);
+  }
+  
+  /**
+   * Like {@link #createPathwayIterator(Model, String, Species)}, but only
+   * the pathways that are accepted by the <code>filter</code> are
+   * converted. If a filter is set, identifiers are not resolved in one
+   * batch for the whole model, but only for the converted entities.
+   * 
+   * @param m
+   * @param fileName
+   * @param species
+   * @param filter may be <code>null</code> to convert all pathways.
+   * @param split if <code>true</code>, each pathway is converted to a
+   *        separate KGML pathway. Otherwise, all selected pathways (or the
+   *        whole model, if no filter is set) are merged into one pathway.
+   * @return the iterator, which must be {@link PathwayIterator#close()}d if
+   *         it is not consumed completely.
+   */
+  public static PathwayIterator<?> createPathwayIterator(final Model m, String fileName,
+    final Species species, PathwayFilter filter, boolean split) {
+    boolean filtered = filter!=null && !filter.isEmpty();
+    PathwayIterator<?> it = null;
+    int selected = 0;
     if (m!=null){
       File f = null;
       String comment="";
@@ -503,70 +836,122 @@ public abstract class BioPAX2KGML {
         f = new File(fileName);
         comment = getRDFScomment(fileName);
       }
+      final String modelComment = comment;
+      final String modelName = f==null?"Unknown":FileTools.removeFileExtension(f.getName());
       
      
       // BioPax Level 2 
       if (m.getLevel().equals(BioPAXLevel.L2)) {
-        BioPAXL22KGML bp = new BioPAXL22KGML();
-        Set<pathway> pathways = m.getObjects(pathway.class);
-        // if we want to split the incoming file
+        final BioPAXL22KGML bp = new BioPAXL22KGML();
+        Set<pathway> pathways = BioPAXL22KGML.getPathways(m, filter);
+        selected = pathways!=null ? pathways.size() : 0;
         if (pathways!=null && pathways.size()>0) {
-          // Split mode and we have pathway objects
-          keggPWs = bp.createPathways(m, comment, pathways, species);
-        } else {
-          // All modes, but we have NO pathway objects (use the model)
-          de.zbit.kegg.parser.pathway.Pathway keggPW = 
-            bp.createPathwayFromBioPaxFile(m, comment, f==null?"Unknown":FileTools.removeFileExtension(f.getName()), species);
-          keggPWs.add(keggPW);   
+          if (split) {
+            // Split mode and we have pathway objects
+            it = bp.createPathways(m, comment, pathways, species);
+          } else if (filtered) {
+            it = bp.mergePathways(m, comment, modelName, pathways, species);
+          }
+        }
+        if (it==null && !filtered) {
+          // No pathway objects or no split mode (use the model)
+          it = new PathwayIterator<Model>(bp, m, Collections.singleton(m), species) {
+            @Override
+            protected Species determineSpecies(Model model) {
+              return null;
+            }
+            
+            @Override
+            protected de.zbit.kegg.parser.pathway.Pathway convert(Model model, Species s) {
+              return bp.createPathwayFromBioPaxFile(model, modelComment, modelName, s);
+            }
+          };
         }
       } //BioPax Level 3
         else if (m.getLevel().equals(BioPAXLevel.L3)) {
-        BioPAXL32KGML bp = new BioPAXL32KGML();
-        Set<Pathway> pathways = m.getObjects(Pathway.class);
-        // if we want to split the incoming file
+        final BioPAXL32KGML bp = new BioPAXL32KGML();
+        Set<Pathway> pathways = BioPAXL32KGML.getPathways(m, filter);
+        selected = pathways!=null ? pathways.size() : 0;
         if (pathways!=null && pathways.size()>0) {
-          keggPWs = bp.createPathways(m, comment, pathways, species);
-        } else {
-          de.zbit.kegg.parser.pathway.Pathway keggPW = bp.createPathwayFromBioPaxFile
-          (m, comment, FileTools.removeFileExtension(f.getName()), species);
-          keggPWs.add(keggPW);          
+          if (split) {
+            it = bp.createPathways(m, comment, pathways, species);
+          } else if (filtered) {
+            it = bp.mergePathways(m, comment, modelName, pathways, species);
+          }
+        }
+        if (it==null && !filtered) {
+          it = new PathwayIterator<Model>(bp, m, Collections.singleton(m), species) {
+            @Override
+            protected Species determineSpecies(Model model) {
+              return null;
+            }
+            
+            @Override
+            protected de.zbit.kegg.parser.pathway.Pathway convert(Model model, Species s) {
+              return bp.createPathwayFromBioPaxFile(model, modelComment, modelName, s);
+            }
+          };
         }
       } else {
-        log.log(Level.SEVERE, "Unkown BioPAX Level '" + m.getLevel().toString()
+        throw new IllegalArgumentException("Unkown BioPAX Level '" + m.getLevel().toString()
             + "' is not supported.");
-        System.exit(1);
       }
       
+      if (it==null) {
+        log.warning("No pathway of '" + modelName + "' matches " + filter + ".");
+      } else if (filtered) {
+        // Few pathways of a large model, resolve only their identifiers
+        it.setBatchResolution(false);
+        it.setSelectedCount(selected);
+      }
     } else {
       log.log(Level.SEVERE, "Could not continue, because the model is null.");
     }    
     
-    // Remove empty pathways
-    if (keggPWs!=null && keggPWs.size()>1) {
-      Iterator<de.zbit.kegg.parser.pathway.Pathway> it = keggPWs.iterator();
-      while (it.hasNext()) {
-        de.zbit.kegg.parser.pathway.Pathway p = it.next();
-        if (!p.isSetEntries() && !p.isSetReactions() && !p.isSetRelations()) {
-          it.remove();
-        }
-      }
+    if (it!=null) {
+      return it;
     }
-    
-    return keggPWs;
+    return new PathwayIterator<Model>(null, m, null, species) {
+      @Override
+      protected Species determineSpecies(Model model) {
+        return null;
+      }
+      
+      @Override
+      protected de.zbit.kegg.parser.pathway.Pathway convert(Model model, Species s) {
+        return null;
+      }
+    };
   }
   
   /**
    * parses all pathways of the owl file and writes them in the KGML format
    * @param fileName
-   * @param destinationFolder
+   * @param destinationFolder a folder or an archive file (see
+   *        {@link PathwayArchive#isArchive(String)}).
    * @param writeEntryExtended
    */
   public static void writeKGMLsForPathways(String fileName, String destinationFolder,
       boolean writeEntryExtended, Species species) {
     Model m = BioPAX2KGML.getModel(fileName);
-    Collection<de.zbit.kegg.parser.pathway.Pathway> keggPWs = 
-      BioPAX2KGML.createPathwaysFromModel(m, fileName, species);
-    BioPAX2KGML.writeKGMLsForPathways(m, destinationFolder, keggPWs, writeEntryExtended);
+    // Each pathway is converted and written, before the next one is converted
+    PathwayIterator<?> keggPWs = BioPAX2KGML.createPathwayIterator(m, fileName, species);
+    try {
+      if (PathwayArchive.isArchive(destinationFolder)) {
+        PathwayArchive archive = PathwayArchive.create(new File(destinationFolder), PathwayArchive.DEFAULT_LEVEL);
+        try {
+          BioPAX2KGML.writeKGMLsForPathways(archive, keggPWs, writeEntryExtended);
+        } finally {
+          archive.close();
+        }
+      } else {
+        BioPAX2KGML.writeKGMLsForPathways(destinationFolder, keggPWs, writeEntryExtended);
+      }
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "Could not write '" + destinationFolder + "'.", e);
+    } finally {
+      keggPWs.close();
+    }
   }
   
   
@@ -591,14 +976,82 @@ public abstract class BioPAX2KGML {
    */
   public static void writeKGMLsForPathways(Model m, String folder, 
       Collection<de.zbit.kegg.parser.pathway.Pathway> pathways, boolean writeEntryExtended) {
+    writeKGMLsForPathways(folder, pathways.iterator(), writeEntryExtended);
+  }
+  
+  /**
+   * This method creates for each pathway of the iterator a KGML file with
+   * the pathway name. Files are written in parallel by a {@link KGMLFileWriter},
+   * while the next pathways are taken from the iterator. Pathways are not
+   * referenced any more, once they have been written.
+   * 
+   * @param folder
+   * @param pathways
+   * @param writeEntryExtended
+   */
+  public static void writeKGMLsForPathways(String folder, 
+      Iterator<de.zbit.kegg.parser.pathway.Pathway> pathways, boolean writeEntryExtended) {
     log.info("Creating for each pathway a KGML file.");
 
-    for (de.zbit.kegg.parser.pathway.Pathway keggPW : pathways) {
-      String pFile = folder + KGMLWriter.createFileName(keggPW);
-      KGMLWriter.writeKGML(keggPW, pFile, writeEntryExtended);
+    KGMLFileWriter writer = new KGMLFileWriter(maxOpenFiles, writeEntryExtended);
+    try {
+      while (pathways.hasNext()) {
+        de.zbit.kegg.parser.pathway.Pathway keggPW = pathways.next();
+        writer.write(keggPW, new File(folder + KGMLWriter.createFileName(keggPW)));
+      }
+    } finally {
+      finish(writer);
     }
   }
   
+  /**
+   * This method adds for each pathway of the iterator a KGML entry with the
+   * pathway name to the given archive. The {@link KGMLWriter} can only write
+   * to files, so each document is written to a temporary file first. Entries
+   * are written and compressed in parallel.
+   * 
+   * @param archive
+   * @param pathways
+   * @param writeEntryExtended
+   */
+  public static void writeKGMLsForPathways(PathwayArchive archive, 
+      Iterator<de.zbit.kegg.parser.pathway.Pathway> pathways, boolean writeEntryExtended) {
+    log.info("Adding for each pathway a KGML file to '" + archive.getFile() + "'.");
+
+    KGMLFileWriter writer = new KGMLFileWriter(maxOpenFiles, writeEntryExtended);
+    try {
+      while (pathways.hasNext()) {
+        writer.write(pathways.next(), archive);
+      }
+    } finally {
+      finish(writer);
+    }
+  }
+  
+  /**
+   * Waits for all pending writes of the given writer.
+   * 
+   * @param writer
+   */
+  private static void finish(KGMLFileWriter writer) {
+    try {
+      log.fine("Wrote " + writer.finish() + " KGML files.");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.warning("Writing KGML files has been interrupted.");
+    }
+  }
+  
+  /**
+   * Sets the maximum number of KGML files, that are written at the same time
+   * by {@link #writeKGMLsForPathways(String, Iterator, boolean)}.
+   * 
+   * @param files
+   */
+  public static void setMaxOpenFiles(int files) {
+    maxOpenFiles = Math.max(1, files);
+  }
+  
 
   /**
    * In this method the <rdfs:comment rdf:datatype="http://www.w3.org/2001/XMLSchema#string">
@@ -864,13 +1317,38 @@ public abstract class BioPAX2KGML {
       else if (m.getLevel().equals(BioPAXLevel.L3)) {
       return BioPAXL32KGML.getSpecies(m);
     } else {
-      log.log(Level.SEVERE, "Unkown BioPAX Level '" + m.getLevel().toString()
+      throw new IllegalArgumentException("Unkown BioPAX Level '" + m.getLevel().toString()
           + "' is not supported.");
-      System.exit(1);
     }
-    return null;
   }
   
+  /**
+   * @param m
+   * @return all databases that are referenced by any xref in the model.
+   */
+  public static Set<IdentifierDatabases> getXrefDatabases(Model m) {
+    if (m.getLevel().equals(BioPAXLevel.L2)) {
+      return BioPAXL22KGML.getXrefDatabases(m);
+    } else if (m.getLevel().equals(BioPAXLevel.L3)) {
+      return BioPAXL32KGML.getXrefDatabases(m);
+    }
+    log.warning("Unkown BioPAX Level '" + m.getLevel().toString() + "' is not supported.");
+    return new HashSet<IdentifierDatabases>();
+  }
+  
+  
+  /**
+   * Receives converted pathways one by one, see
+   * {@link BioPAX2KGML#createPathwaysFromModel(Model, String, Species, PathwayHandler)}.
+   */
+  public interface PathwayHandler {
+    
+    /**
+     * @param keggPW a converted pathway.
+     * @throws InterruptedException to stop the conversion.
+     */
+    public void handle(de.zbit.kegg.parser.pathway.Pathway keggPW) throws InterruptedException;
+  }
   
   /**
    * @param keggEntry
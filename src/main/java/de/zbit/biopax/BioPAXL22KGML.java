@@ -26,9 +26,11 @@ package de.zbit.biopax;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -45,6 +47,7 @@ import org.biopax.paxtools.model.level2.catalysis;
 import org.biopax.paxtools.model.level2.complex;
 import org.biopax.paxtools.model.level2.complexAssembly;
 import org.biopax.paxtools.model.level2.control;
+import org.biopax.paxtools.model.level2.dataSource;
 import org.biopax.paxtools.model.level2.conversion;
 import org.biopax.paxtools.model.level2.entity;
 import org.biopax.paxtools.model.level2.interaction;
@@ -67,6 +70,8 @@ import org.biopax.paxtools.model.level2.transportWithBiochemicalReaction;
 import org.biopax.paxtools.model.level2.unificationXref;
 import org.biopax.paxtools.model.level2.xref;
 
+import de.zbit.biopax.EntityConversionCache.ConvertedEntity;
+import de.zbit.biopax.XrefCache.ResolvedXref;
 import de.zbit.kegg.parser.pathway.Entry;
 import de.zbit.kegg.parser.pathway.EntryType;
 import de.zbit.kegg.parser.pathway.Graphics;
@@ -79,7 +84,6 @@ import de.zbit.kegg.parser.pathway.RelationType;
 import de.zbit.kegg.parser.pathway.SubType;
 import de.zbit.kegg.parser.pathway.ext.EntryExtended;
 import de.zbit.kegg.parser.pathway.ext.EntryTypeExtended;
-import de.zbit.util.DatabaseIdentifierTools;
 import de.zbit.util.DatabaseIdentifiers;
 import de.zbit.util.DatabaseIdentifiers.IdentifierDatabases;
 import de.zbit.util.SortedArrayList;
@@ -147,32 +151,88 @@ public class BioPAXL22KGML extends BioPAX2KGML {
     }
     return species;
   } 
+
+  /**
+   * @param m
+   * @return all databases that are referenced by any {@link xref} in the
+   *         model.
+   */
+  public static Set<IdentifierDatabases> getXrefDatabases(Model m) {
+    Set<IdentifierDatabases> dbs = new HashSet<IdentifierDatabases>();
+    for (xref x : m.getObjects(xref.class)) {
+      IdentifierDatabases db = XrefCache.getDatabase(x.getDB());
+      if (db != null) {
+        dbs.add(db);
+      }
+    }
+    return dbs;
+  }
   
   /**
-   * this method parses the biopax pathway by firstly determining the pathway species and
-   * then parsing the single pathway
+   * this method parses the biopax pathways lazily, by firstly determining the pathway
+   * species and then parsing the single pathway
    * @param m
+   * @param comment
    * @param pathways
-   * @return
+   * @param species
+   * @return an iterator, that parses each pathway, when it is requested
    */
-  protected Collection<Pathway> createPathways(Model m, String comment, Set<pathway> pathways, 
-      Species species) {    
-    if (species!=null) {
-      initalizeMappers(species);
-    }
-    
-    Collection<Pathway> keggPWs = new ArrayList<Pathway>();
+  protected PathwayIterator<pathway> createPathways(final Model m, final String comment,
+      Set<pathway> pathways, Species species) {
+    return new PathwayIterator<pathway>(this, m, pathways, species) {
+      @Override
+      protected Species determineSpecies(pathway pathway) {
+        return BioPAXL22KGML.determineSpecies(pathway.getORGANISM());
+      }
 
-    for (pathway pathway : pathways) {
-      // determine the pathway organism - it's done here to save time, while initializing the mappers
-      Species newSpecies = determineSpecies(pathway.getORGANISM());
-      if(newSpecies!=null && !newSpecies.equals(species)){
-        initalizeMappers(newSpecies);
-        species = newSpecies;
+      @Override
+      protected Pathway convert(pathway pathway, Species species) {
+        return createPathway(m, comment, pathway, species);
       }
-      keggPWs.add(createPathway(m, comment, pathway, species));
+    };
+  }
+
+  /**
+   * Like {@link #createPathways(Model, String, Set, Species)}, but all
+   * pathways are merged into a single KGML pathway. The species is taken
+   * from the first pathway with a known organism.
+   * 
+   * @param m
+   * @param comment
+   * @param pathwayName name of the merged pathway
+   * @param pathways
+   * @param species
+   * @return an iterator over the merged pathway
+   */
+  protected PathwayIterator<Set<pathway>> mergePathways(final Model m, final String comment,
+      final String pathwayName, Set<pathway> pathways, Species species) {
+    return new PathwayIterator<Set<pathway>>(this, m, Collections.singleton(pathways), species) {
+      @Override
+      protected Species determineSpecies(Set<pathway> pathways) {
+        for (pathway pathway : pathways) {
+          Species s = BioPAXL22KGML.determineSpecies(pathway.getORGANISM());
+          if (s != null) {
+            return s;
+          }
+        }
+        return null;
+      }
+
+      @Override
+      protected Pathway convert(Set<pathway> pathways, Species species) {
+        return createMergedPathway(m, comment, pathwayName, pathways, species);
+      }
+    };
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.biopax.BioPAX2KGML#collectIdentifiers(org.biopax.paxtools.model.Model, de.zbit.biopax.IdentifierResolver)
+   */
+  @Override
+  protected void collectIdentifiers(Model m, IdentifierResolver resolver) {
+    for (physicalEntity entity : m.getObjects(physicalEntity.class)) {
+      resolver.collect(getDatabaseIdentifiers(entity, EntryType.gene, null));
     }
-    return keggPWs;
   }
   
   /**
@@ -188,12 +248,12 @@ public class BioPAXL22KGML extends BioPAX2KGML {
       unificationXref ref = pwOrg.getTAXON_XREF();
       if (ref != null) {
         if (ref.getDB().toLowerCase().equals(DatabaseIdentifiers.IdentifierDatabases.NCBI_Taxonomy.toString().toLowerCase())) {
-          detSpecies = Species.search(allSpecies, ref.getID(), Species.NCBI_TAX_ID);
+          detSpecies = allSpecies.getByTaxonID(ref.getID());
         }
       }
-      if (pwOrg.getNAME() != null) {
+      if (detSpecies == null && pwOrg.getNAME() != null) {
         String newSpecies = pwOrg.getNAME();
-        detSpecies = Species.search(allSpecies, newSpecies, Species.COMMON_NAME);        
+        detSpecies = allSpecies.getByName(newSpecies);
       } 
     } 
 
@@ -214,7 +274,7 @@ public class BioPAXL22KGML extends BioPAX2KGML {
    * @return
    */
   Pathway createPathway(Model m, String comment, pathway pathway, Species species) {
-    if(species!=null && geneSymbolMapper==null && geneIDKEGGmapper==null){
+    if(species!=null && !state().hasMappers()){
       initalizeMappers(species);
     }
     
@@ -230,7 +290,41 @@ public class BioPAXL22KGML extends BioPAX2KGML {
     // but too much databases to be conform for each
 //    addImageLinkToKEGGpathway(species, pathway.getNAME(), keggPW);
     
+    parsePathwayComponents(m, pathway, species, keggPW);
 
+    return keggPW;
+  }
+  
+  /**
+   * parses the given biopax pathways into one KEGG pathway
+   * @param m
+   * @param comment
+   * @param pathwayName
+   * @param pathways
+   * @param species
+   * @return
+   */
+  Pathway createMergedPathway(Model m, String comment, String pathwayName,
+      Collection<pathway> pathways, Species species) {
+    if(species!=null && !state().hasMappers()){
+      initalizeMappers(species);
+    }
+    Pathway keggPW = createPathwayInstance(comment, m, species, pathwayName, null);
+    log.info("Converting " + pathways.size() + " pathways into pathway '" + keggPW.getTitle() + "'.");
+    for (pathway pathway : pathways) {
+      parsePathwayComponents(m, pathway, species, keggPW);
+    }
+    return keggPW;
+  }
+  
+  /**
+   * adds all components of the biopax pathway to the KEGG pathway
+   * @param m
+   * @param pathway
+   * @param species
+   * @param keggPW
+   */
+  private void parsePathwayComponents(Model m, pathway pathway, Species species, Pathway keggPW) {
     for (pathwayComponent pathComp : pathway.getPATHWAY_COMPONENTS()) {
       if (pathwayStep.class.isAssignableFrom(pathComp.getClass())){
         parsePathwayStep((pathwayStep)pathComp, keggPW, m, species);
@@ -243,8 +337,6 @@ public class BioPAXL22KGML extends BioPAX2KGML {
         log.log(Level.SEVERE, "Could not parse: '" + pathComp.getModelInterface() + "'.");
       }      
     }
-
-    return keggPW;
   }
   
   /**
@@ -323,9 +415,20 @@ public class BioPAXL22KGML extends BioPAX2KGML {
    * @return
    */
   public static List<String> getListOfPathways(Model m){
+    return getListOfPathways(m, null);
+  }
+  
+  /**
+   * returns a list of all pathways containing pathway components, that are
+   * accepted by the filter
+   * @param m
+   * @param filter may be <code>null</code> to list all pathways.
+   * @return
+   */
+  public static List<String> getListOfPathways(Model m, PathwayFilter filter){
     List<String> pws = new SortedArrayList<String>();
     
-    Set<pathway> list = m.getObjects(pathway.class);
+    Set<pathway> list = getPathways(m, filter);
     for (pathway pw : list) {
       if (pw.getPATHWAY_COMPONENTS().size()>0)
         pws.add(pw.getNAME());
@@ -334,6 +437,29 @@ public class BioPAXL22KGML extends BioPAX2KGML {
     return pws;
   }
   
+  /**
+   * @param m
+   * @param filter may be <code>null</code> to select all pathways.
+   * @return all pathways of the model, that are accepted by the filter.
+   */
+  public static Set<pathway> getPathways(Model m, PathwayFilter filter) {
+    Set<pathway> list = m.getObjects(pathway.class);
+    if (filter == null || filter.isEmpty()) {
+      return list;
+    }
+    Set<pathway> selected = new LinkedHashSet<pathway>();
+    for (pathway pw : list) {
+      Set<String> sources = new HashSet<String>();
+      for (dataSource source : pw.getDATA_SOURCE()) {
+        sources.addAll(source.getNAME());
+      }
+      if (filter.accepts(pw.getNAME(), pw.getRDFId(), sources)) {
+        selected.add(pw);
+      }
+    }
+    return selected;
+  }
+  
   /**
    * 
    * @param m
@@ -399,7 +525,7 @@ public class BioPAXL22KGML extends BioPAX2KGML {
     selfRelation = 0;
     addedSubTypes = 0;
     Set<pathway> pathways = m.getObjects(pathway.class);
-    Species species = Species.search(allSpecies, p.getOrg(), Species.KEGG_ABBR);
+    Species species = allSpecies.getByKeggAbbr(p.getOrg());
     if(species != null){
       initalizeMappers(species);
       
@@ -448,6 +574,7 @@ public class BioPAXL22KGML extends BioPAX2KGML {
   private EntryExtended parseEntity(entity entity, de.zbit.kegg.parser.pathway.Pathway keggPW,
       Model m, Species species, openControlledVocabulary cv) {
     if (entity==null) return null;
+    ConversionSupervisor.checkBudget();
     EntryExtended keggEntry = null;
     if (physicalEntity.class.isAssignableFrom(entity.getClass())) {
       keggEntry = parsePhysicalEntity((physicalEntity) entity, keggPW, m, species, cv);
@@ -517,6 +644,7 @@ public class BioPAXL22KGML extends BioPAX2KGML {
     List<Integer> components = new ArrayList<Integer>();
 
     for (physicalEntityParticipant physicalEntity : set) {
+      ConversionSupervisor.checkBudget();
       if (physicalEntity.getPHYSICAL_ENTITY()==null) continue;
       EntryExtended keggEntry = parsePhysicalEntity(physicalEntity.getPHYSICAL_ENTITY(), keggPW, m, 
           species, physicalEntity.getCELLULAR_LOCATION());
@@ -548,23 +676,38 @@ public class BioPAXL22KGML extends BioPAX2KGML {
     Map<IdentifierDatabases, Collection<String>> identifiers = null;
     
     if (entity!=null){
-      // get all availabe database identifiers of the entity
-      identifiers = getDatabaseIdentifiers(entity, eType, gType);
-          
-     
-      // determine graph name and gene symbols   
-      entryName = entity.getNAME();
-      if (entryName != null) {      
-        entryName = entryName.trim();
-        entryName = entryName.replace(" ", "_");
-      }
-      
-      if (entity.getSHORT_NAME()!=null && !entity.getSHORT_NAME().isEmpty())
+      // The same entity may be shared by many pathways (the compartment
+      // depends on the participant and is not cached)
+      ConvertedEntity converted = state().entityConversionCache!=null ? 
+          state().entityConversionCache.get(entity.getRDFId(), eType, gType, species) : null;
+      if (converted == null) {
+        // get all availabe database identifiers of the entity
+        identifiers = getDatabaseIdentifiers(entity, eType, gType);
+
+
+        // determine graph name and gene symbols   
+        entryName = entity.getNAME();
+        if (entryName != null) {      
+          entryName = entryName.trim();
+          entryName = entryName.replace(" ", "_");
+        }
+
+        if (entity.getSHORT_NAME()!=null && !entity.getSHORT_NAME().isEmpty())
           graphName = entity.getSHORT_NAME();
-      else 
-        graphName = entryName;
-    
-      keggname = BioPAX2KGML.getKEGGName(identifiers, species);
+        else 
+          graphName = entryName;
+
+        keggname = BioPAX2KGML.getKEGGName(identifiers, species);
+
+        if (state().entityConversionCache!=null) {
+          state().entityConversionCache.put(entity.getRDFId(), eType, gType, species, 
+            new ConvertedEntity(identifiers, keggname, graphName, null));
+        }
+      } else {
+        identifiers = converted.getIdentifiers();
+        keggname = converted.getKEGGName();
+        graphName = converted.getGraphName();
+      }
     } else if (name!=null && !name.isEmpty()){
       graphName = name;
       keggname = getKEGGUnkownName();
@@ -675,33 +818,11 @@ public class BioPAXL22KGML extends BioPAX2KGML {
     if (xrefs.size() != 0) {
       for (xref d : xrefs) {
         if (d!=null){
-          if(d.getDB()!=null && !d.getDB().isEmpty()){
-            IdentifierDatabases dbIdentifier = null;
-            if (!d.getDB().equalsIgnoreCase("kegg")) {
-              dbIdentifier = DatabaseIdentifiers.getDatabase(d.getDB());
-            }
-            if (dbIdentifier != null) {
-              String id = d.getID();
-              if (id!=null && !id.isEmpty()){
-                Utils.addToMapOfSets(map, dbIdentifier, id);
-              }
-            } else if (d.getDB().equalsIgnoreCase("LL")) { // special case in PID database files
-              if (d.getID()!=null) {
-                String id = d.getID();
-                if (!id.isEmpty())
-                  Utils.addToMapOfSets(map, IdentifierDatabases.EntrezGene, id);              
-              }
-            } else if (d.getDB().equalsIgnoreCase("KEGG")) { // Infer correct KEGG db
-              if (d.getID()!=null) {
-                String id = d.getID();
-                if (!id.isEmpty()){
-                  IdentifierDatabases db = DatabaseIdentifierTools.getKEGGdbFromID(id);
-                  if (db!=null) {
-                    Utils.addToMapOfSets(map, db, id);
-                  }
-                }
-              }
-            }
+          // Xrefs are shared among many entities and pathways
+          ResolvedXref resolved = state().xrefCache!=null ? state().xrefCache.resolve(d, d.getDB(), d.getID()) :
+            XrefCache.resolve(d.getDB(), d.getID());
+          if (resolved.isSet()) {
+            Utils.addToMapOfSets(map, resolved.getDatabase(), resolved.getId());
           }
         }
       }
@@ -822,6 +943,7 @@ public class BioPAXL22KGML extends BioPAX2KGML {
 
     if (controllers.size() >= 1) {
       for (physicalEntityParticipant controller : controllers) {
+        ConversionSupervisor.checkBudget();
         if (controller.getPHYSICAL_ENTITY()==null) {
           continue;
         }
@@ -842,6 +964,7 @@ public class BioPAXL22KGML extends BioPAX2KGML {
     
     if (controlleds.size() > 0) {
       for (process process : controlleds) {
+        ConversionSupervisor.checkBudget();
         if (conversion.class.isAssignableFrom(process.getClass())) {
           conversion con = (conversion) process;
           if (biochemicalReaction.class.isAssignableFrom(con.getClass())
@@ -982,6 +1105,7 @@ public class BioPAXL22KGML extends BioPAX2KGML {
     List<InteractionParticipant> participants = Utils.iterableToList(inter.getPARTICIPANTS());
     if (participants.size() > 1) {
       for (int i = 0; i < participants.size(); i++) {
+        ConversionSupervisor.checkBudget();
         if (pathway.class.isAssignableFrom(participants.get(i).getClass())) {
           keggEntry1 = parseEntity(((pathway) participants.get(i)), keggPW, m, species, null);
         } else if (physicalEntityParticipant.class.isAssignableFrom(participants.get(i).getClass())) {
@@ -997,6 +1121,7 @@ public class BioPAXL22KGML extends BioPAX2KGML {
 //          System.exit(1);
         }
         for (int j = 1; j < participants.size(); j++) {
+          ConversionSupervisor.checkBudget();
           EntryExtended keggEntry2 = null;
           if (pathway.class.isAssignableFrom(participants.get(j).getClass())) {
             keggEntry2 = parseEntity(((pathway) participants.get(j)), keggPW, m, species, null);
@@ -1150,12 +1275,14 @@ public class BioPAXL22KGML extends BioPAX2KGML {
     List<Relation> relations = new ArrayList<Relation>();
 
     for (physicalEntityParticipant left : set) {
+      ConversionSupervisor.checkBudget();
       if (left.getPHYSICAL_ENTITY()==null) continue;
       EntryExtended keggEntry1 = parsePhysicalEntity(left.getPHYSICAL_ENTITY(), keggPW, m, 
           species, left.getCELLULAR_LOCATION());
       
       if (keggEntry1 !=null){
         for (physicalEntityParticipant right : set2) {
+          ConversionSupervisor.checkBudget();
           if (right.getPHYSICAL_ENTITY()==null) continue;
           EntryExtended keggEntry2 = parsePhysicalEntity(right.getPHYSICAL_ENTITY(), keggPW, m, 
               species, right.getCELLULAR_LOCATION());
@@ -1197,6 +1324,7 @@ public class BioPAXL22KGML extends BioPAX2KGML {
     // Check if it already exists and only create novel relations.
     if (existingRels.size() > 0) {
       for (Relation rel : existingRels) {
+        ConversionSupervisor.checkBudget();
         boolean relExists = true;
         if ((rel.getEntry1() == keggEntry1Id && rel.getEntry2() == keggEntry2Id)) {
           relExists &= rel.isSetType() == (type != null);
@@ -30,10 +30,12 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -70,6 +72,7 @@ import org.biopax.paxtools.model.level3.PathwayStep;
 import org.biopax.paxtools.model.level3.PhysicalEntity;
 import org.biopax.paxtools.model.level3.Process;
 import org.biopax.paxtools.model.level3.Protein;
+import org.biopax.paxtools.model.level3.Provenance;
 import org.biopax.paxtools.model.level3.RelationshipXref;
 import org.biopax.paxtools.model.level3.Rna;
 import org.biopax.paxtools.model.level3.RnaRegion;
@@ -82,6 +85,8 @@ import org.biopax.paxtools.model.level3.Transport;
 import org.biopax.paxtools.model.level3.TransportWithBiochemicalReaction;
 import org.biopax.paxtools.model.level3.Xref;
 
+import de.zbit.biopax.EntityConversionCache.ConvertedEntity;
+import de.zbit.biopax.XrefCache.ResolvedXref;
 import de.zbit.kegg.parser.pathway.Entry;
 import de.zbit.kegg.parser.pathway.EntryType;
 import de.zbit.kegg.parser.pathway.Graphics;
@@ -93,7 +98,6 @@ import de.zbit.kegg.parser.pathway.RelationType;
 import de.zbit.kegg.parser.pathway.SubType;
 import de.zbit.kegg.parser.pathway.ext.EntryExtended;
 import de.zbit.kegg.parser.pathway.ext.EntryTypeExtended;
-import de.zbit.util.DatabaseIdentifierTools;
 import de.zbit.util.DatabaseIdentifiers;
 import de.zbit.util.DatabaseIdentifiers.IdentifierDatabases;
 import de.zbit.util.SortedArrayList;
@@ -118,31 +122,94 @@ public class BioPAXL32KGML extends BioPAX2KGML {
 //  Map<String, Entity> elementsNotRead = new HashMap<String, Entity>();
 
   /**
-   * this method parses the biopax pathway by firstly determining the pathway species and
-   * then parsing the single pathway
+   * this method parses the biopax pathways lazily, by firstly determining the pathway
+   * species and then parsing the single pathway
    * @param m
+   * @param comment
    * @param pathways
-   * @return
+   * @param species
+   * @return an iterator, that parses each pathway, when it is requested
    */
-  Collection<de.zbit.kegg.parser.pathway.Pathway> createPathways(Model m, 
-      String comment, Set<Pathway> pathways, Species species) {
-    if (species != null)
-      initalizeMappers(species);
+  PathwayIterator<Pathway> createPathways(final Model m, final String comment,
+      Set<Pathway> pathways, Species species) {
+    return new PathwayIterator<Pathway>(this, m, pathways, species) {
+      @Override
+      protected Species determineSpecies(Pathway pathway) {
+        return BioPAXL32KGML.determineSpecies(pathway.getOrganism());
+      }
 
-    Collection<de.zbit.kegg.parser.pathway.Pathway> keggPWs = 
-      new ArrayList<de.zbit.kegg.parser.pathway.Pathway>();
+      @Override
+      protected de.zbit.kegg.parser.pathway.Pathway convert(Pathway pathway, Species species) {
+        return createPathway(m, comment, pathway, species);
+      }
+    };
+  }
 
+  /**
+   * Like {@link #createPathways(Model, String, Set, Species)}, but all
+   * pathways are merged into a single KGML pathway. The species is taken
+   * from the first pathway with a known organism.
+   * 
+   * @param m
+   * @param comment
+   * @param pathwayName name of the merged pathway
+   * @param pathways
+   * @param species
+   * @return an iterator over the merged pathway
+   */
+  PathwayIterator<Set<Pathway>> mergePathways(final Model m, final String comment,
+      final String pathwayName, Set<Pathway> pathways, Species species) {
+    return new PathwayIterator<Set<Pathway>>(this, m, Collections.singleton(pathways), species) {
+      @Override
+      protected Species determineSpecies(Set<Pathway> pathways) {
+        for (Pathway pathway : pathways) {
+          Species s = BioPAXL32KGML.determineSpecies(pathway.getOrganism());
+          if (s != null) {
+            return s;
+          }
+        }
+        return null;
+      }
+
+      @Override
+      protected de.zbit.kegg.parser.pathway.Pathway convert(Set<Pathway> pathways, Species species) {
+        return createMergedPathway(m, comment, pathwayName, pathways, species);
+      }
+    };
+  }
+
+  /**
+   * parses the given biopax pathways into one KEGG pathway
+   * @param m
+   * @param comment
+   * @param pathwayName
+   * @param pathways
+   * @param species
+   * @return
+   */
+  protected de.zbit.kegg.parser.pathway.Pathway createMergedPathway(Model m, String comment,
+      String pathwayName, Collection<Pathway> pathways, Species species) {
+    if(species!=null && !state().hasMappers()){
+      initalizeMappers(species);
+    }
+    de.zbit.kegg.parser.pathway.Pathway keggPW = createPathwayInstance(comment, m, species, pathwayName, null);
+    log.info("Converting " + pathways.size() + " pathways into pathway '" + keggPW.getTitle() + "'.");
     for (Pathway pathway : pathways) {
-      // determine the pathway organism
-      Species newSpecies = determineSpecies(pathway.getOrganism());
-      if(newSpecies!=null && !newSpecies.equals(species)){
-        initalizeMappers(newSpecies);
-        species = newSpecies;
+      parseInnerPathway(m, pathway, species, keggPW);
+    }
+    return keggPW;
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.biopax.BioPAX2KGML#collectIdentifiers(org.biopax.paxtools.model.Model, de.zbit.biopax.IdentifierResolver)
+   */
+  @Override
+  protected void collectIdentifiers(Model m, IdentifierResolver resolver) {
+    for (Entity entity : m.getObjects(Entity.class)) {
+      if (entity instanceof PhysicalEntity || entity instanceof Gene) {
+        resolver.collect(getDatabaseIdentifiers(entity, EntryType.gene, null));
       }
-      keggPWs.add(createPathway(m, comment, pathway, species));
     }
-    
-    return keggPWs;
   }
 
   /**
@@ -160,14 +227,14 @@ public class BioPAXL32KGML extends BioPAX2KGML {
         for (Xref xref : references) {
           if(xref.getDb().toLowerCase().equals(
               DatabaseIdentifiers.IdentifierDatabases.NCBI_Taxonomy.toString().toLowerCase())){
-            detSpecies = Species.search(allSpecies, xref.getId(), Species.NCBI_TAX_ID);
+            detSpecies = allSpecies.getByTaxonID(xref.getId());
           }
         }
       }
       
-      if (pwOrg.getName() != null && pwOrg.getName().size()>0) {
+      if (detSpecies == null && pwOrg.getName() != null && pwOrg.getName().size()>0) {
         String newSpecies = Utils.iterableToList(pwOrg.getName()).get(0);
-        detSpecies = Species.search(allSpecies, newSpecies, Species.COMMON_NAME);
+        detSpecies = allSpecies.getByName(newSpecies);
       } 
     } 
     
@@ -186,9 +253,20 @@ public class BioPAXL32KGML extends BioPAX2KGML {
    * @return
    */
   public static List<String> getListOfPathways(Model m){
+    return getListOfPathways(m, null);
+  }
+  
+  /**
+   * returns a list of all pathways containing pathway components, that are
+   * accepted by the filter
+   * @param m
+   * @param filter may be <code>null</code> to list all pathways.
+   * @return
+   */
+  public static List<String> getListOfPathways(Model m, PathwayFilter filter){
     List<String> pws = new SortedArrayList<String>();
     
-    Set<Pathway> list = m.getObjects(Pathway.class);
+    Set<Pathway> list = getPathways(m, filter);
     for (Pathway pw : list) {
       if(pw.getPathwayComponent().size()>0)
         pws.add(getPathwayName(pw));
@@ -197,6 +275,32 @@ public class BioPAXL32KGML extends BioPAX2KGML {
     return pws;
   }
   
+  /**
+   * @param m
+   * @param filter may be <code>null</code> to select all pathways.
+   * @return all pathways of the model, that are accepted by the filter.
+   */
+  public static Set<Pathway> getPathways(Model m, PathwayFilter filter) {
+    Set<Pathway> list = m.getObjects(Pathway.class);
+    if (filter == null || filter.isEmpty()) {
+      return list;
+    }
+    Set<Pathway> selected = new LinkedHashSet<Pathway>();
+    for (Pathway pw : list) {
+      Set<String> sources = new HashSet<String>();
+      for (Provenance p : pw.getDataSource()) {
+        sources.addAll(p.getName());
+        if (p.getDisplayName()!=null) {
+          sources.add(p.getDisplayName());
+        }
+      }
+      if (filter.accepts(getPathwayName(pw), pw.getRDFId(), sources)) {
+        selected.add(pw);
+      }
+    }
+    return selected;
+  }
+  
   /**
    * 
    * @param m
@@ -225,7 +329,7 @@ public class BioPAXL32KGML extends BioPAX2KGML {
    */
   protected de.zbit.kegg.parser.pathway.Pathway createPathway(Model m, String comment, 
       Pathway pathway, Species species) {
-    if(species!=null && geneSymbolMapper==null && geneIDKEGGmapper==null){
+    if(species!=null && !state().hasMappers()){
       initalizeMappers(species);
     }
     
@@ -296,7 +400,7 @@ public class BioPAXL32KGML extends BioPAX2KGML {
     selfRelation = 0;
     addedSubTypes = 0;
     Set<Pathway> pathways = m.getObjects(Pathway.class);
-    Species species = Species.search(allSpecies, p.getOrg(), Species.KEGG_ABBR);
+    Species species = allSpecies.getByKeggAbbr(p.getOrg());
     if(species != null){
       initalizeMappers(species);
       
@@ -371,6 +475,22 @@ public class BioPAXL32KGML extends BioPAX2KGML {
     return species;
   }
 
+  /**
+   * @param m
+   * @return all databases that are referenced by any {@link Xref} in the
+   *         model.
+   */
+  public static Set<IdentifierDatabases> getXrefDatabases(Model m) {
+    Set<IdentifierDatabases> dbs = new HashSet<IdentifierDatabases>();
+    for (Xref x : m.getObjects(Xref.class)) {
+      IdentifierDatabases db = XrefCache.getDatabase(x.getDb());
+      if (db != null) {
+        dbs.add(db);
+      }
+    }
+    return dbs;
+  }
+
   /**
    * parse a BioPax entity element
    * 
@@ -384,6 +504,7 @@ public class BioPAXL32KGML extends BioPAX2KGML {
   private EntryExtended parseEntity(Entity entity, de.zbit.kegg.parser.pathway.Pathway keggPW,
       Model m, Species species) {
     if (entity==null) return null;
+    ConversionSupervisor.checkBudget();
     EntryExtended keggEntry = null;
     if (PhysicalEntity.class.isAssignableFrom(entity.getClass())) {
       keggEntry = parsePhysicalEntity((PhysicalEntity) entity, keggPW, m, species);
@@ -462,6 +583,7 @@ public class BioPAXL32KGML extends BioPAX2KGML {
     List<Integer> components = new ArrayList<Integer>();
 
     for (PhysicalEntity physicalEntity : complexEntries) {
+      ConversionSupervisor.checkBudget();
       EntryExtended keggEntry = parsePhysicalEntity(physicalEntity, keggPW, m, species);
       if (keggEntry != null)
         components.add(keggEntry.getId());
@@ -635,24 +757,46 @@ public class BioPAXL32KGML extends BioPAX2KGML {
       Model m, Species species, EntryType eType, EntryTypeExtended gType, String graphNameSeparator,
       List<Integer> components, String name) {
     EntryExtended keggEntry;
-    String keggname = "", graphName = "";
+    String keggname = "", graphName = "", compartment = null;
     Map<IdentifierDatabases, Collection<String>> identifiers = null;
         
     if (entity!=null){
-      // get all available database identifiers of the entity
-      identifiers = getDatabaseIdentifiers(entity, eType, gType);
-      
-      // determine graph name and gene symbols   
-      Set<String> names = entity.getName();
-      
-      if (entity.getDisplayName()!=null && entity.getDisplayName().trim().length()>0) {
-        graphName = entity.getDisplayName().trim();
+      // The same entity may be shared by many pathways
+      ConvertedEntity converted = state().entityConversionCache!=null ? 
+          state().entityConversionCache.get(entity.getRDFId(), eType, gType, species) : null;
+      if (converted == null) {
+        // get all available database identifiers of the entity
+        identifiers = getDatabaseIdentifiers(entity, eType, gType);
+
+        // determine graph name and gene symbols   
+        Set<String> names = entity.getName();
+
+        if (entity.getDisplayName()!=null && entity.getDisplayName().trim().length()>0) {
+          graphName = entity.getDisplayName().trim();
+        } else {
+          graphName = BioPAX2KGML.getShortestString(names);
+        }
+
+        keggname = BioPAX2KGML.getKEGGName(identifiers, species);
+
+        CellularLocationVocabulary cl = null;
+        if (entity instanceof PhysicalEntity) {
+          cl = ((PhysicalEntity)entity).getCellularLocation();
+        }
+        if (cl!=null && cl.getTerm().size()>0) {
+          compartment = cl.getTerm().iterator().next();
+        }
+
+        if (state().entityConversionCache!=null) {
+          state().entityConversionCache.put(entity.getRDFId(), eType, gType, species, 
+            new ConvertedEntity(identifiers, keggname, graphName, compartment));
+        }
       } else {
-        graphName = BioPAX2KGML.getShortestString(names);
+        identifiers = converted.getIdentifiers();
+        keggname = converted.getKEGGName();
+        graphName = converted.getGraphName();
+        compartment = converted.getCompartment();
       }
-      
-      keggname = BioPAX2KGML.getKEGGName(identifiers, species);
-
     
     } else if (name!=null && !name.isEmpty()){
       graphName = name;
@@ -686,12 +830,8 @@ public class BioPAXL32KGML extends BioPAX2KGML {
     }
     
     
-    CellularLocationVocabulary cl = null;
-    if (entity instanceof PhysicalEntity) {
-      cl = ((PhysicalEntity)entity).getCellularLocation();
-    }
-    if (cl!=null && cl.getTerm().size()>0) {
-      keggEntry.setCompartment(cl.getTerm().iterator().next());
+    if (compartment!=null) {
+      keggEntry.setCompartment(compartment);
     }
 
     // checking if entry already exists
@@ -794,35 +934,12 @@ public class BioPAXL32KGML extends BioPAX2KGML {
     if (xrefs != null && xrefs.size() > 0) {
       for (Xref x : xrefs) {
         if (x!=null){
-          if(x.getDb()!=null && !x.getDb().isEmpty()) {
-            IdentifierDatabases dbIdentifier = null;
-            if (!x.getDb().equalsIgnoreCase("kegg")) {
-              dbIdentifier = DatabaseIdentifiers.getDatabase(x.getDb());
-            }
-            if (dbIdentifier != null) {
-              if (x.getId()!=null) {
-                String id = x.getId();
-                if (!id.isEmpty())
-                  Utils.addToMapOfSets(map, dbIdentifier, id);
-              }           
-            } else if (x.getDb().equalsIgnoreCase("LL")) {
-              if (x.getId()!=null) {
-                String id = x.getId();
-                if (!id.isEmpty())
-                  Utils.addToMapOfSets(map, IdentifierDatabases.EntrezGene, id);  
-              }
-            } else if (x.getDb().equalsIgnoreCase("KEGG")) { // Infer correct KEGG db
-              if (x.getId()!=null) {
-                String id = x.getId();
-                if (!id.isEmpty()){
-                  IdentifierDatabases db = DatabaseIdentifierTools.getKEGGdbFromID(id);
-                  if (db!=null) {
-                    Utils.addToMapOfSets(map, db, id);
-                  }
-                }
-              }
-            }
-        }          
+          // Xrefs are shared among many entities and pathways
+          ResolvedXref resolved = state().xrefCache!=null ? state().xrefCache.resolve(x, x.getDb(), x.getId()) :
+            XrefCache.resolve(x.getDb(), x.getId());
+          if (resolved.isSet()) {
+            Utils.addToMapOfSets(map, resolved.getDatabase(), resolved.getId());
+          }
         }
       }
     }
@@ -882,6 +999,7 @@ public class BioPAXL32KGML extends BioPAX2KGML {
     List<Entity> participants = Utils.iterableToList(inter.getParticipant());
     if (participants.size() > 1) {
       for (int i = 0; i < participants.size(); i++) {
+        ConversionSupervisor.checkBudget();
         if (Pathway.class.isAssignableFrom(participants.get(i).getClass())) {
           keggEntry1 = parseEntity(((Pathway) participants.get(i)), keggPW, m, species);
         } else if (Entity.class.isAssignableFrom(participants.get(i).getClass())) {
@@ -891,6 +1009,7 @@ public class BioPAXL32KGML extends BioPAX2KGML {
 //          System.exit(1);
         }
         for (int j = 1; j < participants.size(); j++) {
+          ConversionSupervisor.checkBudget();
           EntryExtended keggEntry2 = null;
           if (Pathway.class.isAssignableFrom(participants.get(j).getClass())) {
             keggEntry2 = parseEntity(((Pathway) participants.get(j)), keggPW, m, species);
@@ -998,6 +1117,7 @@ public class BioPAXL32KGML extends BioPAX2KGML {
     } else if (participants.size() > 1) {
       for (int i = 0; i < participants.size() - 1; i++) {
         for (int j = i + 1; j < participants.size(); j++) {
+          ConversionSupervisor.checkBudget();
           EntryExtended keggEntry1 = parsePhysicalEntity((PhysicalEntity)participants.get(i), keggPW, m, species);
           EntryExtended keggEntry2 = parsePhysicalEntity((PhysicalEntity)participants.get(j), keggPW, m, species);
           if (keggEntry1!=null && keggEntry2!=null)
@@ -1022,6 +1142,7 @@ public class BioPAXL32KGML extends BioPAX2KGML {
       de.zbit.kegg.parser.pathway.Pathway keggPW, Model m, Species species, Set<Xref> xrefs) {
     Relation rel = null;
     for (PhysicalEntity product : entity.getProduct()) {
+      ConversionSupervisor.checkBudget();
       // XXX: Not sure if this is completely right to model this as an relation to itself
       EntryExtended keggEntry = parsePhysicalEntity(product, keggPW, m, species);
       
@@ -1269,6 +1390,7 @@ public class BioPAXL32KGML extends BioPAX2KGML {
 
     if (controllers.size() >= 1) {
       for (Controller controller : controllers) {
+        ConversionSupervisor.checkBudget();
         if (PhysicalEntity.class.isAssignableFrom(controller.getClass())) {
           keggEntry1 = parsePhysicalEntity((PhysicalEntity) controller, keggPW, m, species);
           keggEntry1s.add(new ValuePairUncomparable<EntryExtended, RelationType>(keggEntry1, RelationType.PPrel));
@@ -1287,6 +1409,7 @@ public class BioPAXL32KGML extends BioPAX2KGML {
 
     if (controlleds.size() > 0) {
       for (org.biopax.paxtools.model.level3.Process process : controlleds) {
+        ConversionSupervisor.checkBudget();
         if (Conversion.class.isAssignableFrom(process.getClass())) {
           Conversion con = (Conversion) process;
           if (BiochemicalReaction.class.isAssignableFrom(con.getClass())
@@ -1586,9 +1709,11 @@ public class BioPAXL32KGML extends BioPAX2KGML {
     List<Relation> relations = new ArrayList<Relation>();
 
     for (PhysicalEntity left : lefts) {
+      ConversionSupervisor.checkBudget();
       EntryExtended keggEntry1 = parsePhysicalEntity(left, keggPW, m, species);
       if (keggEntry1 !=null){
         for (PhysicalEntity right : rights) {
+          ConversionSupervisor.checkBudget();
           EntryExtended keggEntry2 = parsePhysicalEntity(right, keggPW, m, species);
           if (keggEntry1 !=null){
             Relation r = createKEGGRelation(keggPW, keggEntry1.getId(), keggEntry2.getId(), type, 
@@ -1628,6 +1753,7 @@ public class BioPAXL32KGML extends BioPAX2KGML {
     // Check if it already exists and only create novel relations.
     if (existingRels.size() > 0) {
       for (Relation rel : existingRels) {
+        ConversionSupervisor.checkBudget();
         boolean relExists = true;
         if ((rel.getEntry1() == keggEntry1Id && rel.getEntry2() == keggEntry2Id)) {
           relExists &= rel.isSetType() == (type != null);
@@ -1688,6 +1814,7 @@ public class BioPAXL32KGML extends BioPAX2KGML {
     List<ReactionComponent> substrates = new ArrayList<ReactionComponent>();
 
     for (PhysicalEntity left : lefts) {
+      ConversionSupervisor.checkBudget();
       EntryExtended keggEntry = parsePhysicalEntity(left, keggPW, m, species);
       if (keggEntry != null) {
         ReactionComponent rc = new ReactionComponent(keggEntry.getId(), keggEntry.getName());
@@ -1707,6 +1834,7 @@ public class BioPAXL32KGML extends BioPAX2KGML {
     }
 
     for (PhysicalEntity right : rights) {
+      ConversionSupervisor.checkBudget();
       EntryExtended keggEntry = parsePhysicalEntity(right, keggPW, m, species);
 
       if (keggEntry != null) {
@@ -23,11 +23,15 @@ package de.zbit.biopax;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,10 +41,7 @@ import de.zbit.kegg.parser.pathway.Entry;
 import de.zbit.kegg.parser.pathway.Graphics;
 import de.zbit.kegg.parser.pathway.Pathway;
 import de.zbit.kegg.parser.pathway.ext.EntryExtended;
-import de.zbit.mapper.AbstractMapper;
 import de.zbit.mapper.GeneID2KeggIDMapper;
-import de.zbit.mapper.MappingUtils;
-import de.zbit.mapper.MappingUtils.IdentifierType;
 import de.zbit.util.DatabaseIdentifiers.IdentifierDatabases;
 import de.zbit.util.Species;
 import de.zbit.util.StringUtil;
@@ -56,6 +57,12 @@ import de.zbit.util.progressbar.AbstractProgressBar;
 public class BioPAXpathway {
   public static final transient Logger log = Logger.getLogger(BioPAXpathway.class.getName());
   
+  /**
+   * Number of entries per task, if entries of large pathways are processed
+   * in parallel.
+   */
+  private static final int PARALLEL_CHUNK_SIZE = 500;
+  
   /**
    * The BioPAX model
    */
@@ -100,19 +107,17 @@ public class BioPAXpathway {
    * Get the species for a pathway.
    * 
    * @param p KGML formatted BioPAX pathway (see {@link #getKGMLpathway(String)}).
-   * @param availableOrganisms list of all available organisms (required, will only
-   * return species that are contained in this list).
+   * @param availableOrganisms registry of all available organisms (required,
+   * will only return species that are contained in this registry).
    * @return the species for the pathway or <code>NULL</code> if it could
    * not be determined (or is not in our list).
    */
-  public static Species getSpecies(Pathway p, List<Species> availableOrganisms) {
+  public static Species getSpecies(Pathway p, SpeciesRegistry availableOrganisms) {
     // 1. try to get directly from attribute
     if (p.isSetOrg()) {
-      String keggAbbr = p.getOrg().toLowerCase().trim();
-      for (Species s : availableOrganisms) {
-        if (s.getKeggAbbr().equals(keggAbbr)) {
-          return s;
-        }
+      Species s = availableOrganisms.getByKeggAbbr(p.getOrg());
+      if (s != null) {
+        return s;
       }
     }
     
@@ -120,15 +125,9 @@ public class BioPAXpathway {
     Map<IdentifierDatabases, Collection<String>> dbIDs = p.getDatabaseIdentifiers();
     Collection<String> taxon = dbIDs.get(IdentifierDatabases.NCBI_Taxonomy);
     if (taxon!=null && taxon.size()>0 && taxon.iterator().next().trim().length()>0) {
-      try {
-        int tax = Integer.parseInt(taxon.iterator().next().trim());
-        for (Species s : availableOrganisms) {
-          if (s.getNCBITaxonID().equals(tax)) {
-            return s;
-          }
-        }
-      } catch (Exception e) {
-        log.log(Level.WARNING, "Could not match Taxon ids.", e);
+      Species s = availableOrganisms.getByTaxonID(taxon.iterator().next());
+      if (s != null) {
+        return s;
       }
     }
     
@@ -170,9 +169,34 @@ public class BioPAXpathway {
     return p;
   }
 
+  /**
+   * Starts loading all mappers that {@link #checkForEntrezGeneIDs(Pathway, Species, AbstractProgressBar)}
+   * will require in the background, i.e., while the {@link #model} is still
+   * being converted to KGML. This requires that the model contains no
+   * entrez gene identifiers and that it is annotated with exactly one
+   * species.
+   * 
+   * @return <code>TRUE</code> if any mapper is being loaded.
+   */
+  public boolean preloadMappers() {
+    if (model==null) {
+      return false;
+    }
+    Set<IdentifierDatabases> dbs = BioPAX2KGML.getXrefDatabases(model);
+    if (dbs.contains(IdentifierDatabases.EntrezGene)) {
+      return false;
+    }
+    Collection<Species> species = BioPAX2KGML.getSpecies(model);
+    if (species==null || species.size()!=1) {
+      return false;
+    }
+    return CompositeGeneIDMapper.preload(species.iterator().next(), dbs);
+  }
+
   /**
    * Checks if the current pathway contains entrez gene identifiers. If not, it
-   * automatically tries to map Ensembl or RefSeq identifiers to entrez gene.
+   * automatically tries to map UniProt, Ensembl or RefSeq identifiers to entrez
+   * gene, using all available sources in a single pass over the entries.
    * 
    * @param p KGML pathway, see {@link #getKGMLpathway(String)}.
    * @param species
@@ -188,43 +212,28 @@ public class BioPAXpathway {
     
     // Check availability of identifiers
     boolean containsEntrez = false;
-    boolean containsUniProt = false;
-    boolean containsEnsembl = false;
-    boolean containsRefSeq = false;
+    Set<IdentifierDatabases> sources = new HashSet<IdentifierDatabases>();
     for (Entry e : p.getEntries()) {
       if (e instanceof EntryExtended) {
         EntryExtended ee = (EntryExtended) e;
         containsEntrez |= ee.isSetIdentifierForDatabase(IdentifierDatabases.EntrezGene);
-        containsUniProt |= ee.isSetIdentifierForDatabase(IdentifierDatabases.UniProt_AC);
-        containsEnsembl |= ee.isSetIdentifierForDatabase(IdentifierDatabases.Ensembl);
-        containsRefSeq |= ee.isSetIdentifierForDatabase(IdentifierDatabases.RefSeq);
+        for (IdentifierDatabases db : CompositeGeneIDMapper.SOURCE_DATABASES) {
+          if (ee.isSetIdentifierForDatabase(db)) {
+            sources.add(db);
+          }
+        }
       }
     }
     
     // Try to map to entrez
-    try {
-      if (containsUniProt && !containsEntrez) {
-        log.info("Could not find entrez gene ids. Trying to map UniProt2entrez.");
-        containsEntrez=mapEntryIdentifiersToEntrez(p, IdentifierDatabases.UniProt_AC, species, progress);
-      }
-    } catch (Exception e) {
-      log.log(Level.WARNING, "Could not map UniProt 2 entrez.", e);
-    }
-    try {
-      if (containsEnsembl && !containsEntrez) {
-        log.info("Could not find entrez gene ids. Trying to map ensembl2entrez.");
-        containsEntrez=mapEntryIdentifiersToEntrez(p, IdentifierDatabases.Ensembl, species, progress);
-      }
-    } catch (Exception e) {
-      log.log(Level.WARNING, "Could not map ensembl 2 entrez.", e);
-    }
-    try {
-      if (containsRefSeq && !containsEntrez) {
-        log.info("Could not find entrez gene ids. Trying to map RefSeq2entrez.");
-        containsEntrez=mapEntryIdentifiersToEntrez(p, IdentifierDatabases.RefSeq, species, progress);
+    if (!containsEntrez && sources.size()>0) {
+      log.info("Could not find entrez gene ids. Trying to map " + sources + " 2 entrez.");
+      try {
+        CompositeGeneIDMapper mapper = new CompositeGeneIDMapper(species, sources, progress);
+        containsEntrez = mapEntryIdentifiersToEntrez(p, mapper);
+      } catch (Exception e) {
+        log.log(Level.WARNING, "Could not map " + sources + " 2 entrez.", e);
       }
-    } catch (Exception e) {
-      log.log(Level.WARNING, "Could not map RefSeq 2 entrez.", e);
     }
     
     // Try to revert original KEGG identifiers
@@ -238,97 +247,152 @@ public class BioPAXpathway {
   
   /**
    * Tries to replace invalid entry names (i.e. kegg ids in KGML) with restored
-   * KEGG ids by mapping entrez gene ids to KEGG ids.
+   * KEGG ids by mapping entrez gene ids to KEGG ids. The mapper is taken from
+   * the {@link MapperCache}, large pathways are processed in parallel and all
+   * changes are applied to the pathway at the end.
    * @param p
    * @param species
    */
   private static void mapEntryNamesFromEntrezToKEGG(Pathway p, Species species) {
-    GeneID2KeggIDMapper mapper=null;
+    final GeneID2KeggIDMapper mapper;
     try {
-      mapper = new GeneID2KeggIDMapper(species);
+      mapper = MapperCache.getGeneID2KeggIDMapper(species);
     } catch (IOException e1) {
       log.log(Level.WARNING, "Could not establish GeneID2KeggIDMapper.", e1);
+      return;
+    }
+    if (!mapper.isReady() || !p.isSetEntries()) {
+      return;
     }
     
-    if (mapper!=null && mapper.isReady() && p.isSetEntries()) {
-      for (Entry e : p.getEntries()) {
-        if (e.getName().toLowerCase().startsWith("unknown") && e instanceof EntryExtended) {
-          EntryExtended ee = (EntryExtended) e;
-          if (ee.isSetIdentifierForDatabase(IdentifierDatabases.EntrezGene)) {
-            
-            // We have entrez ids, but not KEGG ids => Try to map them to KEGG ids.
-            Collection<String> ids = ee.getDatabaseIdentifiers().get(IdentifierDatabases.EntrezGene);
-            Set<String> newName = new HashSet<String>();
-            if (ids!=null) {
-              for (String id: ids) {
-                try {
-                  String kegg = mapper.map(Integer.parseInt(id));
-                  if (kegg!=null && kegg.length()>0) {
-                    newName.add(kegg);
-                  }
-                } catch (Exception ex) {
-                  ex.printStackTrace();
-                  // Not really important...
-                  ee.removeDatabaseIdentifier(IdentifierDatabases.EntrezGene, id);
-                }
-              }
-            }
-            
-            // Eventually set the collected KEGG ids as new name
-            if (newName.size()>0) {
-              p.changeNameOfEntry(e, StringUtil.implode(newName, " "));
-            }
-            
+    // We have entrez ids, but not KEGG ids => Try to map them to KEGG ids.
+    final List<EntryExtended> candidates = new ArrayList<EntryExtended>();
+    for (Entry e : p.getEntries()) {
+      if (e.getName().toLowerCase().startsWith("unknown") && e instanceof EntryExtended
+          && ((EntryExtended) e).isSetIdentifierForDatabase(IdentifierDatabases.EntrezGene)) {
+        candidates.add((EntryExtended) e);
+      }
+    }
+    
+    List<EntryRenaming> renamings = new ArrayList<EntryRenaming>(candidates.size());
+    int threads = Math.min(Runtime.getRuntime().availableProcessors(), candidates.size() / PARALLEL_CHUNK_SIZE);
+    if (threads <= 1) {
+      renamings.addAll(getEntryRenamings(candidates, mapper));
+    } else {
+      // Workers on the shared executor of the MapperCache take the next
+      // chunk, until all chunks are mapped
+      final AtomicInteger nextChunk = new AtomicInteger();
+      Callable<List<EntryRenaming>> worker = new Callable<List<EntryRenaming>>() {
+        @Override
+        public List<EntryRenaming> call() {
+          List<EntryRenaming> done = new ArrayList<EntryRenaming>();
+          int from;
+          while ((from = nextChunk.getAndIncrement() * PARALLEL_CHUNK_SIZE) < candidates.size()) {
+            done.addAll(getEntryRenamings(candidates.subList(from,
+              Math.min(candidates.size(), from + PARALLEL_CHUNK_SIZE)), mapper));
           }
+          return done;
         }
+      };
+      List<Future<List<EntryRenaming>>> futures = new ArrayList<Future<List<EntryRenaming>>>();
+      for (int i = 1; i < threads; i++) {
+        futures.add(MapperCache.getExecutor().submit(worker));
+      }
+      try {
+        renamings.addAll(worker.call());
+      } catch (Exception e) {
+        log.log(Level.WARNING, "Could not map entrez gene ids to KEGG ids.", e);
+      }
+      for (Future<List<EntryRenaming>> f : futures) {
+        try {
+          renamings.addAll(f.get());
+        } catch (Exception e) {
+          log.log(Level.WARNING, "Could not map entrez gene ids to KEGG ids.", e);
+        }
+      }
+    }
+    
+    // Apply all changes to the pathway in one batch
+    for (EntryRenaming r : renamings) {
+      for (String id : r.invalidIDs) {
+        r.entry.removeDatabaseIdentifier(IdentifierDatabases.EntrezGene, id);
+      }
+      if (r.newName.size() > 0) {
+        p.changeNameOfEntry(r.entry, StringUtil.implode(r.newName, " "));
+      }
+    }
+  }
+  
+  /**
+   * Maps the entrez gene ids of the given entries to KEGG ids, without
+   * modifying the entries or their pathway.
+   * @param entries
+   * @param mapper
+   * @return the changes for all entries that require one.
+   */
+  private static List<EntryRenaming> getEntryRenamings(List<EntryExtended> entries, GeneID2KeggIDMapper mapper) {
+    List<EntryRenaming> renamings = new ArrayList<EntryRenaming>();
+    for (EntryExtended ee : entries) {
+      Collection<String> ids = ee.getDatabaseIdentifiers().get(IdentifierDatabases.EntrezGene);
+      if (ids == null) {
+        continue;
+      }
+      EntryRenaming r = new EntryRenaming(ee);
+      for (String id: ids) {
+        try {
+          String kegg = mapper.map(Integer.parseInt(id));
+          if (kegg!=null && kegg.length()>0) {
+            r.newName.add(kegg);
+          }
+        } catch (Exception ex) {
+          // Not really important...
+          log.log(Level.FINE, "Invalid entrez gene id '" + id + "'.", ex);
+          r.invalidIDs.add(id);
+        }
+      }
+      if (r.newName.size() > 0 || r.invalidIDs.size() > 0) {
+        renamings.add(r);
       }
     }
+    return renamings;
+  }
+  
+  /**
+   * New KEGG ids and invalid entrez gene ids of an {@link EntryExtended}.
+   */
+  private static class EntryRenaming {
+    final EntryExtended entry;
+    final Set<String> newName = new HashSet<String>();
+    final List<String> invalidIDs = new ArrayList<String>();
+    
+    EntryRenaming(EntryExtended entry) {
+      this.entry = entry;
+    }
   }
 
   /**
-   * Tries to enrich the annotated identifiers of pathway <code>p</code>
-   * {@link Entry}s with EntrezGene idenfiers by mapping contained identifiers
-   * from <code>sourceDB</code> to Entrez gene.
+   * Adds entrez gene identifiers to all entries, for which any identifier
+   * can be mapped by the given composite mapper.
    * 
    * @param p
    *        The pathway to enrich
-   * @param sourceDB
-   *        Source database (either RefSeq or Ensembl).
-   * @param species
-   *        Required: the species
-   * @param progress
-   *        Optional: a progress bar, used only for loading the mapping file
+   * @param mapper
+   *        A mapper from all available source databases to entrez gene
    * @return <code>TRUE</code> if and only if at least one entrez gene
    *         identifier could be added.
-   * @throws Exception
    */
-  private static boolean mapEntryIdentifiersToEntrez(Pathway p, IdentifierDatabases sourceDB, Species species, AbstractProgressBar progress) throws Exception {
+  private static boolean mapEntryIdentifiersToEntrez(Pathway p, CompositeGeneIDMapper mapper) {
     boolean addedEntrez=false;
-    
-    IdentifierType idType;
-    if (sourceDB.toString().startsWith("UniProt")) {
-      idType = MappingUtils.IdentifierType.UniProt;
-    } else {
-      idType = MappingUtils.IdentifierType.valueOf(sourceDB.toString());
+    if (mapper.isEmpty() || !p.isSetEntries()) {
+      return false;
     }
     
-    AbstractMapper<String, Integer> map = MappingUtils.initialize2GeneIDMapper(idType, progress, species);
-    if (map!=null && p.isSetEntries()) {
-      for (Entry e : p.getEntries()) {
-        if (e instanceof EntryExtended) {
-          EntryExtended ee = (EntryExtended) e;
-          if (ee.isSetIdentifierForDatabase(sourceDB)) {
-            Collection<String> ids = ee.getDatabaseIdentifiers().get(sourceDB);
-            if (ids!=null) {
-              for (String id: ids) {
-                Integer entre = map.map(id);
-                if (entre!=null && entre>0) {
-                  ee.addDatabaseIdentifier(IdentifierDatabases.EntrezGene, entre.toString());
-                  addedEntrez=true;
-                }
-              }
-            }
-          }
+    for (Entry e : p.getEntries()) {
+      if (e instanceof EntryExtended) {
+        EntryExtended ee = (EntryExtended) e;
+        for (Integer entrez : mapper.map(ee.getDatabaseIdentifiers())) {
+          ee.addDatabaseIdentifier(IdentifierDatabases.EntrezGene, entrez.toString());
+          addedEntrez=true;
         }
       }
     }
@@ -0,0 +1,174 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.zbit.mapper.Mapper;
+import de.zbit.mapper.MappingUtils.IdentifierType;
+import de.zbit.util.DatabaseIdentifiers.IdentifierDatabases;
+import de.zbit.util.Species;
+import de.zbit.util.progressbar.AbstractProgressBar;
+
+/**
+ * Maps identifiers from any of the {@link #SOURCE_DATABASES} to Entrez gene
+ * ids. The underlying mappers are taken from the {@link MapperCache}, so they
+ * may already have been loaded in the background (see
+ * {@link #preload(Species, Collection)}).
+ *
+ * <p>For each identifier map, the sources are tried in the order of
+ * {@link #SOURCE_DATABASES}. A source serves as fallback for the preceding
+ * ones as long as any of their identifiers could not be mapped, so an entry
+ * loses no gene id that only a less preferred source knows. Thus, all
+ * sources can be applied in a single pass over all entries.
+ *
+ * @version $Rev$
+ */
+public class CompositeGeneIDMapper {
+
+  public static final Logger log = Logger.getLogger(CompositeGeneIDMapper.class.getName());
+
+  /**
+   * All supported source databases, in order of preference.
+   */
+  public static final IdentifierDatabases[] SOURCE_DATABASES = new IdentifierDatabases[] {
+    IdentifierDatabases.UniProt_AC, IdentifierDatabases.Ensembl, IdentifierDatabases.RefSeq
+  };
+
+  /**
+   * Available mappers, in order of preference.
+   */
+  private final Map<IdentifierDatabases, Mapper<String, Integer>> mappers =
+      new LinkedHashMap<IdentifierDatabases, Mapper<String, Integer>>();
+
+  /**
+   * Creates a new composite mapper. Waits for mappers that are currently
+   * loaded in the background. Sources that can not be read are logged and
+   * skipped.
+   *
+   * @param species
+   * @param sources the source databases that are actually required (others
+   *        are ignored).
+   * @param progress optional, used for reading and downloading mapping files
+   *        that are not yet loading.
+   */
+  public CompositeGeneIDMapper(Species species, Collection<IdentifierDatabases> sources,
+      AbstractProgressBar progress) {
+    for (IdentifierDatabases db : SOURCE_DATABASES) {
+      if (!sources.contains(db)) {
+        continue;
+      }
+      try {
+        Mapper<String, Integer> mapper = MapperCache.get2GeneIDMapper(getIdentifierType(db), progress, species);
+        if (mapper != null) {
+          mappers.put(db, mapper);
+        }
+      } catch (Exception e) {
+        log.log(Level.WARNING, "Could not map " + db + " 2 entrez.", e);
+      }
+    }
+  }
+
+  /**
+   * Starts loading all mappers from the given databases to Entrez gene ids
+   * in the background.
+   *
+   * @param species
+   * @param sources databases, for which the mappers should be loaded.
+   *        Unsupported databases are ignored.
+   * @return <code>true</code> if at least one mapper is being loaded.
+   */
+  public static boolean preload(Species species, Collection<IdentifierDatabases> sources) {
+    boolean loading = false;
+    for (IdentifierDatabases db : SOURCE_DATABASES) {
+      if (sources.contains(db)) {
+        MapperCache.load2GeneIDMapper(getIdentifierType(db), null, species);
+        loading = true;
+      }
+    }
+    return loading;
+  }
+
+  /**
+   * @param db
+   * @return the {@link IdentifierType} that is used to read the mapping for
+   *         the given database.
+   */
+  public static IdentifierType getIdentifierType(IdentifierDatabases db) {
+    if (db.toString().startsWith("UniProt")) {
+      return IdentifierType.UniProt;
+    }
+    return IdentifierType.valueOf(db.toString());
+  }
+
+  /**
+   * @return <code>true</code> if no mapper is available.
+   */
+  public boolean isEmpty() {
+    return mappers.isEmpty();
+  }
+
+  /**
+   * @param identifiers identifiers of one entry, by database.
+   * @return the Entrez gene ids of all identifiers that could be mapped. Less
+   *         preferred sources are only consulted if any identifier of the
+   *         preferred sources could not be mapped (may be empty).
+   */
+  public Set<Integer> map(Map<IdentifierDatabases, Collection<String>> identifiers) {
+    Set<Integer> geneIDs = new TreeSet<Integer>();
+    for (Map.Entry<IdentifierDatabases, Mapper<String, Integer>> mapper : mappers.entrySet()) {
+      Collection<String> ids = identifiers.get(mapper.getKey());
+      if (ids == null) {
+        continue;
+      }
+      boolean unmapped = false;
+      for (String id : ids) {
+        Integer geneID = null;
+        try {
+          geneID = mapper.getValue().map(id);
+        } catch (Exception e) {
+          log.log(Level.FINE, "Could not map " + mapper.getKey() + " id " + id + ".", e);
+        }
+        if (geneID != null && geneID.intValue() > 0) {
+          geneIDs.add(geneID);
+        } else {
+          unmapped = true;
+        }
+      }
+      // Fall back to the next source only for identifiers we could not map
+      if (!unmapped && geneIDs.size() > 0) {
+        break;
+      }
+    }
+    return geneIDs;
+  }
+
+}
@@ -0,0 +1,444 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.biopax.paxtools.controller.PropertyEditor;
+import org.biopax.paxtools.controller.SimpleEditorMap;
+import org.biopax.paxtools.controller.Traverser;
+import org.biopax.paxtools.controller.Visitor;
+import org.biopax.paxtools.model.BioPAXElement;
+import org.biopax.paxtools.model.Model;
+
+import de.zbit.kegg.parser.pathway.Pathway;
+
+/**
+ * Remembers, from which content each output file of a multi-pathway
+ * conversion has been created, so that a later conversion of an updated
+ * BioPAX file only converts and translates the pathways that have changed.
+ *
+ * <p>The content of a BioPAX pathway is identified by a hash of all
+ * elements, that can be reached from the pathway, and the conversion
+ * options (see {@link #hash(Model, BioPAXElement)}). The manifest is a
+ * tab-separated text file ({@link #FILE_NAME}) in the output directory, with
+ * one line per pathway: the RDF id, the hash, the name of the output
+ * file and a checksum of the output file. A pathway is
+ * {@link #isUpToDate(String, String) up to date}, if its hash is unchanged
+ * and its output file still exists with the same checksum.
+ *
+ * <p>Converted pathways are {@link #register(Pathway, String, String) registered}
+ * by the {@link PathwayIterator}. As soon as their output has been written
+ * successfully (see {@link #setOutput(Pathway, String)}), a line is appended
+ * to the manifest and synced to disk (behind an incompletely written last
+ * line, which is cut off). Thus, a conversion that has been
+ * aborted (e.g., by a crash) can be resumed, without converting the
+ * completed pathways again. Later lines replace earlier lines of the same
+ * pathway, and {@link #save()} compacts the manifest.
+ *
+ * @version $Rev$
+ */
+public class ConversionManifest {
+
+  public static final Logger log = Logger.getLogger(ConversionManifest.class.getName());
+
+  /**
+   * Name of the manifest in the output directory.
+   */
+  public static final String FILE_NAME = "sbvc.manifest";
+
+  private static final String HEADER = "# SBVC conversion manifest, format 2";
+
+  private final File directory;
+
+  private final File file;
+
+  /**
+   * Conversion options, that are part of every hash.
+   */
+  private final String options;
+
+  /**
+   * Entries of the manifest (RDF id to hash, output file and checksum),
+   * including those of previous conversions.
+   */
+  private final Map<String, String[]> entries = new TreeMap<String, String[]>();
+
+  /**
+   * RDF id and hash of converted, but not yet written pathways.
+   */
+  private final Map<Pathway, String[]> converted = new IdentityHashMap<Pathway, String[]>();
+
+  /**
+   * Number of up to date pathways.
+   */
+  private int skipped = 0;
+
+  /**
+   * Appends completed pathways to the {@link #file}, opened on demand.
+   */
+  private FileOutputStream journal = null;
+
+  /**
+   * Reads the manifest of the given directory, if it exists.
+   *
+   * @param directory the output directory.
+   * @param options all conversion options, that influence the output.
+   *        Pathways are converted again, if the options change.
+   * @throws IOException if an existing manifest could not be read.
+   */
+  public ConversionManifest(File directory, String options) throws IOException {
+    this.directory = directory;
+    this.file = new File(directory, FILE_NAME);
+    this.options = options != null ? options : "";
+    if (file.exists()) {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          String[] cells = line.split("\t");
+          if (line.startsWith("#") || cells.length < 3 || cells.length > 4) {
+            // Comments and incompletely written lines
+            continue;
+          }
+          entries.put(cells[0], new String[] {cells[1], cells[2], cells.length > 3 ? cells[3] : ""});
+        }
+      } finally {
+        in.close();
+      }
+      log.fine("Read " + entries.size() + " entries from '" + file + "'.");
+    }
+  }
+
+  /**
+   * Computes a stable hash of the given pathway. All elements, that can be
+   * reached from the pathway, are visited, and every property value is
+   * written as one line (RDF id, property, value). Referenced elements are
+   * represented by their RDF ids. The lines are sorted, so the hash does
+   * neither depend on the order of the elements in the file, nor on the
+   * order of set-valued properties.
+   *
+   * @param m the model of the pathway.
+   * @param pathway
+   * @return the hash of the pathway and the conversion options.
+   */
+  public String hash(Model m, BioPAXElement pathway) {
+    final List<String> lines = new ArrayList<String>();
+    final Set<BioPAXElement> visited = Collections.newSetFromMap(new IdentityHashMap<BioPAXElement, Boolean>());
+    final LinkedList<BioPAXElement> queue = new LinkedList<BioPAXElement>();
+    Traverser traverser = new Traverser(SimpleEditorMap.get(m.getLevel()), new Visitor() {
+      @Override
+      public void visit(BioPAXElement domain, Object range, Model model, PropertyEditor editor) {
+        String value;
+        if (range instanceof BioPAXElement) {
+          BioPAXElement element = (BioPAXElement) range;
+          value = "@" + element.getRDFId();
+          if (visited.add(element)) {
+            queue.add(element);
+          }
+        } else {
+          value = String.valueOf(range);
+        }
+        lines.add(domain.getRDFId() + '\t' + editor.getProperty() + '\t' + value);
+      }
+    });
+    visited.add(pathway);
+    queue.add(pathway);
+    while (!queue.isEmpty()) {
+      traverser.traverse(queue.removeFirst(), m);
+    }
+    Collections.sort(lines);
+
+    try {
+      MessageDigest digest = newDigest();
+      digest.update(options.getBytes("UTF-8"));
+      for (String line : lines) {
+        digest.update((byte) '\n');
+        digest.update(line.getBytes("UTF-8"));
+      }
+      return toHex(digest.digest());
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param id RDF id of a BioPAX pathway.
+   * @param hash see {@link #hash(Model, BioPAXElement)}.
+   * @return <code>true</code> if the pathway has already been converted
+   *         with the same content and its output file still exists and is
+   *         unchanged.
+   */
+  public synchronized boolean isUpToDate(String id, String hash) {
+    String[] entry = entries.get(id);
+    if (entry == null || !entry[0].equals(hash)) {
+      return false;
+    }
+    File output = new File(directory, entry[1]);
+    try {
+      if (output.exists() && (entry[2].length() == 0 || entry[2].equals(checksum(output)))) {
+        skipped++;
+        return true;
+      }
+    } catch (IOException e) {
+      log.log(Level.FINE, "Could not read '" + output + "'.", e);
+    }
+    return false;
+  }
+
+  /**
+   * Remembers the BioPAX pathway, from which a KGML pathway has been
+   * converted.
+   *
+   * @param keggPW
+   * @param id RDF id of the BioPAX pathway.
+   * @param hash
+   */
+  public synchronized void register(Pathway keggPW, String id, String hash) {
+    converted.put(keggPW, new String[] {id, hash});
+  }
+
+  /**
+   * @param keggPW a {@link #register(Pathway, String, String) registered}
+   *        pathway.
+   * @return the output file name of a previous conversion of the same
+   *         BioPAX pathway or <code>null</code>.
+   */
+  public synchronized String getOutput(Pathway keggPW) {
+    String[] source = converted.get(keggPW);
+    String[] entry = source != null ? entries.get(source[0]) : null;
+    return entry != null ? entry[1] : null;
+  }
+
+  /**
+   * @return the output file names of all pathways in this manifest.
+   */
+  public synchronized Collection<String> getOutputs() {
+    List<String> outputs = new ArrayList<String>(entries.size());
+    for (String[] entry : entries.values()) {
+      outputs.add(entry[1]);
+    }
+    return outputs;
+  }
+
+  /**
+   * Records, that the output of a {@link #register(Pathway, String, String) registered}
+   * pathway has been written successfully. The record is immediately
+   * appended to the manifest file.
+   *
+   * @param keggPW
+   * @param output name of the output file, relative to the output directory.
+   */
+  public synchronized void setOutput(Pathway keggPW, String output) {
+    String[] source = converted.remove(keggPW);
+    if (source == null) {
+      return;
+    }
+    try {
+      String[] entry = new String[] {source[1], output, checksum(new File(directory, output))};
+      entries.put(source[0], entry);
+      if (journal == null) {
+        boolean exists = cutIncompleteLine();
+        journal = new FileOutputStream(file, true);
+        if (!exists) {
+          journal.write((HEADER + '\n').getBytes("UTF-8"));
+        }
+      }
+      journal.write(toLine(source[0], entry).getBytes("UTF-8"));
+      journal.getFD().sync();
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Could not record '" + output + "' in '" + file + "'.", e);
+    }
+  }
+
+  /**
+   * @return the number of pathways, that have been skipped, because they
+   *         are up to date.
+   */
+  public synchronized int getSkippedCount() {
+    return skipped;
+  }
+
+  /**
+   * Writes the manifest, without any replaced lines. The previous manifest
+   * is only replaced, once the new one has been written completely.
+   *
+   * @throws IOException
+   */
+  public synchronized void save() throws IOException {
+    close();
+    File tmp = new File(file.getPath() + ".tmp");
+    FileOutputStream stream = new FileOutputStream(tmp);
+    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+    try {
+      out.write(HEADER + '\n');
+      for (Map.Entry<String, String[]> entry : entries.entrySet()) {
+        out.write(toLine(entry.getKey(), entry.getValue()));
+      }
+      out.flush();
+      stream.getFD().sync();
+    } finally {
+      out.close();
+    }
+    if (!tmp.renameTo(file)) {
+      // Some file systems do not replace existing files
+      if (file.exists() && !file.delete()) {
+        throw new IOException("Could not replace '" + file + "'.");
+      }
+      if (!tmp.renameTo(file)) {
+        throw new IOException("Could not rename '" + tmp + "' to '" + file + "'.");
+      }
+    }
+    log.fine("Wrote " + entries.size() + " entries to '" + file + "'.");
+  }
+
+  /**
+   * Closes the manifest file, if completed pathways have been appended.
+   * Further completed pathways are still recorded.
+   */
+  public synchronized void close() {
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException e) {
+        log.log(Level.FINE, "Could not close '" + file + "'.", e);
+      }
+      journal = null;
+    }
+  }
+
+  /**
+   * Cuts off an incompletely written last line (e.g., of a crashed
+   * conversion), so that the next line starts on a new line.
+   *
+   * @return <code>true</code> if the file still exists with a complete
+   *         header.
+   * @throws IOException
+   */
+  private boolean cutIncompleteLine() throws IOException {
+    if (!file.exists()) {
+      return false;
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      long length = raf.length();
+      byte[] buffer = new byte[4096];
+      while (length > 0) {
+        int n = (int) Math.min(buffer.length, length);
+        raf.seek(length - n);
+        raf.readFully(buffer, 0, n);
+        int i = n - 1;
+        while (i >= 0 && buffer[i] != '\n') {
+          i--;
+        }
+        if (i >= 0) {
+          length -= n - 1 - i;
+          break;
+        }
+        length -= n;
+      }
+      if (length < raf.length()) {
+        log.fine("Cutting off an incomplete line of '" + file + "'.");
+        raf.setLength(length);
+      }
+      return length > 0;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * @return one line of the manifest file.
+   */
+  private static String toLine(String id, String[] entry) {
+    return id + '\t' + entry[0] + '\t' + entry[1] + '\t' + entry[2] + '\n';
+  }
+
+  /**
+   * @param f
+   * @return the SHA-1 checksum of the given file.
+   * @throws IOException
+   */
+  public static String checksum(File f) throws IOException {
+    MessageDigest digest = newDigest();
+    InputStream in = new FileInputStream(f);
+    try {
+      byte[] buffer = new byte[1 << 16];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * @return a new SHA-1 digest.
+   */
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the hexadecimal representation of the given bytes.
+   */
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+}
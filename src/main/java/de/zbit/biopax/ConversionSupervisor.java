@@ -0,0 +1,264 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the conversion of single pathways with a time and allocation budget and
+ * isolates their failures, so that one pathological pathway (e.g., a huge
+ * generic interaction) neither aborts nor stalls the conversion of all
+ * other pathways.
+ *
+ * <p>Budgets are enforced cooperatively: the converters call
+ * {@link #checkBudget()} for every parsed entity and in every loop over
+ * interactions, relations and complex components, which throws a
+ * {@link BudgetExceededException} in the converting thread as soon as the
+ * pathway took too long or allocated too much memory. The allocation budget
+ * limits the bytes that are allocated by the converting thread (if the JVM
+ * supports measuring them). This includes short-lived garbage, so it is not
+ * the memory that is retained by a pathway, but a (much larger) upper bound
+ * of it, which still stops runaway conversions early and deterministically.
+ *
+ * <p>Failed pathways are recorded in a {@link FailureReport} and skipped.
+ *
+ * @version $Rev$
+ */
+public class ConversionSupervisor {
+
+  public static final Logger log = Logger.getLogger(ConversionSupervisor.class.getName());
+
+  /**
+   * Number of {@link #checkBudget()} calls between two measurements of the
+   * allocated memory.
+   */
+  private static final int MEMORY_CHECK_INTERVAL = 64;
+
+  /**
+   * The budget of the pathway, that is currently converted by a thread.
+   */
+  private static final ThreadLocal<Budget> current = new ThreadLocal<Budget>();
+
+  /**
+   * Measures the allocated bytes per thread, <code>null</code> if the JVM
+   * does not support it.
+   */
+  private static final ThreadMXBean allocations = getAllocationMXBean();
+
+  /**
+   * The converted file, used in the {@link #report}.
+   */
+  private final String input;
+
+  /**
+   * Maximum time per pathway in milliseconds, <code>0</code> for no limit.
+   */
+  private final long timeout;
+
+  /**
+   * Maximum allocated bytes per pathway, <code>0</code> for no limit.
+   */
+  private final long allocation;
+
+  private final FailureReport report;
+
+  /**
+   * Number of failures, that have been reported by this supervisor.
+   */
+  private final AtomicInteger failures = new AtomicInteger();
+
+  /**
+   * @param input the converted file, as it should appear in the report.
+   * @param timeout maximum time per pathway in milliseconds, <code>0</code>
+   *        for no limit.
+   * @param allocation maximum allocated bytes per pathway (including
+   *        garbage), <code>0</code> for no limit.
+   * @param report records failed pathways, may be <code>null</code>.
+   */
+  public ConversionSupervisor(String input, long timeout, long allocation, FailureReport report) {
+    this.input = input;
+    this.timeout = Math.max(0, timeout);
+    this.allocation = Math.max(0, allocation);
+    this.report = report;
+    if (this.allocation > 0 && allocations == null) {
+      log.warning("This JVM can not measure allocated memory, the allocation budget is ignored.");
+    }
+  }
+
+  /**
+   * Runs the conversion of a single pathway within the budget of this
+   * supervisor. Failures are logged and recorded in the report.
+   *
+   * @param pathway identifies the pathway in the report.
+   * @param conversion
+   * @return the result of the conversion or <code>null</code>, if it failed.
+   */
+  public <V> V run(String pathway, Callable<V> conversion) {
+    Budget previous = current.get();
+    Budget budget = new Budget(timeout, allocation);
+    current.set(budget);
+    long start = System.currentTimeMillis();
+    String reason;
+    Throwable cause;
+    try {
+      return conversion.call();
+    } catch (BudgetExceededException e) {
+      reason = e.getMessage();
+      cause = null;
+    } catch (OutOfMemoryError e) {
+      reason = "Out of memory.";
+      cause = e;
+    } catch (StackOverflowError e) {
+      reason = "Stack overflow.";
+      cause = e;
+    } catch (Exception e) {
+      reason = e.toString();
+      cause = e;
+    } finally {
+      current.set(previous);
+    }
+    log.log(Level.WARNING, "Skipping pathway '" + pathway + "' of '" + input + "': " + reason, cause);
+    reportFailure(pathway, "conversion", reason, System.currentTimeMillis() - start);
+    return null;
+  }
+
+  /**
+   * Records a failure of the input of this supervisor, e.g., of a later
+   * processing stage.
+   *
+   * @param pathway the failed pathway or output.
+   * @param stage
+   * @param reason
+   * @param millis duration until the failure, negative if it is unknown.
+   */
+  public void reportFailure(String pathway, String stage, String reason, long millis) {
+    failures.incrementAndGet();
+    if (report != null) {
+      report.add(input, pathway, stage, reason, millis);
+    }
+  }
+
+  /**
+   * @return the number of failures, that have been reported by this
+   *         supervisor.
+   */
+  public int getFailureCount() {
+    return failures.get();
+  }
+
+  /**
+   * Must be called regularly by the converters. Does nothing, if the
+   * current thread is not supervised.
+   *
+   * @throws BudgetExceededException if the current pathway exceeded its
+   *         budget.
+   */
+  public static void checkBudget() {
+    Budget budget = current.get();
+    if (budget != null) {
+      budget.check();
+    }
+  }
+
+  /**
+   * @return the allocated bytes of the current thread or <code>-1</code>,
+   *         if they can not be measured.
+   */
+  private static long getAllocatedBytes() {
+    if (allocations != null) {
+      return ((com.sun.management.ThreadMXBean) allocations).getThreadAllocatedBytes(
+        Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /**
+   * @return the {@link ThreadMXBean}, if it can measure the allocated bytes
+   *         per thread.
+   */
+  private static ThreadMXBean getAllocationMXBean() {
+    try {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (bean instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+        if (sun.isThreadAllocatedMemorySupported()) {
+          if (!sun.isThreadAllocatedMemoryEnabled()) {
+            sun.setThreadAllocatedMemoryEnabled(true);
+          }
+          return bean;
+        }
+      }
+    } catch (Throwable e) {
+      log.log(Level.FINE, "Allocated memory can not be measured.", e);
+    }
+    return null;
+  }
+
+  /**
+   * The budget of one pathway.
+   */
+  private static class Budget {
+    final long deadline;
+    final long timeout;
+    final long maxAllocated;
+    final long allocation;
+    int calls = 0;
+
+    Budget(long timeout, long allocation) {
+      this.timeout = timeout;
+      this.deadline = timeout > 0 ? System.nanoTime() + timeout * 1000000L : 0;
+      this.allocation = allocation;
+      long allocated = allocation > 0 ? getAllocatedBytes() : -1;
+      this.maxAllocated = allocated >= 0 ? allocated + allocation : -1;
+    }
+
+    void check() {
+      if (deadline != 0 && System.nanoTime() - deadline > 0) {
+        throw new BudgetExceededException("Exceeded the time budget of " + timeout + " ms.");
+      }
+      if (maxAllocated >= 0 && ++calls % MEMORY_CHECK_INTERVAL == 0
+          && getAllocatedBytes() > maxAllocated) {
+        throw new BudgetExceededException("Exceeded the allocation budget of " + (allocation >> 20) + " MB.");
+      }
+    }
+  }
+
+  /**
+   * Thrown in the converting thread, if a pathway exceeds its budget.
+   */
+  public static class BudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = -3187650718463349874L;
+
+    public BudgetExceededException(String message) {
+      super(message);
+    }
+  }
+
+}
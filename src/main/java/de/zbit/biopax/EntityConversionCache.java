@@ -0,0 +1,196 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.zbit.kegg.parser.pathway.EntryType;
+import de.zbit.kegg.parser.pathway.ext.EntryTypeExtended;
+import de.zbit.util.DatabaseIdentifiers.IdentifierDatabases;
+import de.zbit.util.Species;
+
+/**
+ * Caches the pathway-independent part of the conversion of BioPAX entities
+ * to KGML entries (identifiers, KEGG name, graphics name and compartment),
+ * by RDF ID. In large dumps (e.g., PID or Reactome), the same protein or
+ * complex is referenced by hundreds of pathways, but its xrefs and names
+ * only need to be parsed and mapped once. Entities without a KEGG name get
+ * a new placeholder name for each entry, as without the cache.
+ *
+ * <p>A cache is only valid during the conversion of one model. It may be
+ * used by multiple threads concurrently.
+ *
+ * @version $Rev$
+ */
+public class EntityConversionCache {
+
+  /**
+   * Converted entities, by {@link #getKey(String, EntryType, EntryTypeExtended, Species)}.
+   */
+  private final ConcurrentMap<String, ConvertedEntity> entities = new ConcurrentHashMap<String, ConvertedEntity>();
+
+  /**
+   * Number of conversions that have been answered by this cache.
+   */
+  private final AtomicLong hits = new AtomicLong();
+
+  /**
+   * Number of conversions that had to be computed.
+   */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param rdfID
+   * @param eType
+   * @param gType
+   * @param species
+   * @return the cached conversion or <code>null</code>.
+   */
+  public ConvertedEntity get(String rdfID, EntryType eType, EntryTypeExtended gType, Species species) {
+    ConvertedEntity converted = rdfID != null ? entities.get(getKey(rdfID, eType, gType, species)) : null;
+    (converted != null ? hits : misses).incrementAndGet();
+    return converted;
+  }
+
+  /**
+   * Caches a converted entity. If another thread has already cached the
+   * same entity, this entity is kept.
+   *
+   * @param rdfID
+   * @param eType
+   * @param gType
+   * @param species
+   * @param converted
+   * @return the cached conversion.
+   */
+  public ConvertedEntity put(String rdfID, EntryType eType, EntryTypeExtended gType, Species species,
+      ConvertedEntity converted) {
+    if (rdfID == null) {
+      return converted;
+    }
+    ConvertedEntity previous = entities.putIfAbsent(getKey(rdfID, eType, gType, species), converted);
+    return previous != null ? previous : converted;
+  }
+
+  /**
+   * The KEGG name depends on the species and the identifiers depend on the
+   * entry type, so both are part of the key.
+   */
+  private static String getKey(String rdfID, EntryType eType, EntryTypeExtended gType, Species species) {
+    StringBuilder key = new StringBuilder(rdfID.length() + 32);
+    key.append(rdfID).append('\t').append(eType).append('\t').append(gType).append('\t');
+    key.append(species != null ? species.getKeggAbbr() : null);
+    return key.toString();
+  }
+
+  /**
+   * @return the number of cached entities.
+   */
+  public int size() {
+    return entities.size();
+  }
+
+  /* (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[entities=" + size() + ", hits=" + hits.get()
+        + ", misses=" + misses.get() + "]";
+  }
+
+  /**
+   * The immutable, pathway-independent conversion result of an entity.
+   */
+  public static class ConvertedEntity {
+
+    private final Map<IdentifierDatabases, Collection<String>> identifiers;
+    private final String keggName;
+    private final String graphName;
+    private final String compartment;
+
+    /**
+     * @param identifiers is copied
+     * @param keggName only cached, if it is no placeholder.
+     * @param graphName
+     * @param compartment may be <code>null</code>.
+     */
+    public ConvertedEntity(Map<IdentifierDatabases, Collection<String>> identifiers, String keggName,
+        String graphName, String compartment) {
+      Map<IdentifierDatabases, Collection<String>> copy = new HashMap<IdentifierDatabases, Collection<String>>();
+      if (identifiers != null) {
+        for (Map.Entry<IdentifierDatabases, Collection<String>> e : identifiers.entrySet()) {
+          copy.put(e.getKey(), Collections.unmodifiableCollection(new ArrayList<String>(e.getValue())));
+        }
+      }
+      this.identifiers = Collections.unmodifiableMap(copy);
+      // Placeholders must be unique for each entry, so they are not cached
+      this.keggName = keggName != null && !keggName.startsWith(BioPAX2KGML.keggUnknownName) ? keggName : null;
+      this.graphName = graphName;
+      this.compartment = compartment;
+    }
+
+    /**
+     * @return a new, modifiable copy of the identifiers (entries of
+     *         different pathways must not share them).
+     */
+    public Map<IdentifierDatabases, Collection<String>> getIdentifiers() {
+      Map<IdentifierDatabases, Collection<String>> copy = new HashMap<IdentifierDatabases, Collection<String>>();
+      for (Map.Entry<IdentifierDatabases, Collection<String>> e : identifiers.entrySet()) {
+        copy.put(e.getKey(), new HashSet<String>(e.getValue()));
+      }
+      return copy;
+    }
+
+    /**
+     * @return the resolved KEGG name or a new, unique placeholder (see
+     *         {@link BioPAX2KGML#getKEGGUnkownName()}), if the entity could
+     *         not be mapped.
+     */
+    public String getKEGGName() {
+      return keggName != null ? keggName : BioPAX2KGML.getKEGGUnkownName();
+    }
+
+    public String getGraphName() {
+      return graphName;
+    }
+
+    /**
+     * @return the compartment or <code>null</code>.
+     */
+    public String getCompartment() {
+      return compartment;
+    }
+  }
+
+}
@@ -0,0 +1,149 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records pathways (or whole input files), that could not be converted,
+ * so that a batch conversion can continue and the failures can be
+ * inspected afterwards.
+ *
+ * <p>The report is a tab-separated text file ({@link #FILE_NAME}), that is
+ * only created if a failure occurs. Each failure is appended as a line with
+ * the time, the input file, the pathway, the stage in which it failed
+ * (e.g., "conversion" or "translation"), the duration in milliseconds and
+ * the reason, and is immediately written to disk. Reports of previous runs
+ * are kept.
+ *
+ * @version $Rev$
+ */
+public class FailureReport {
+
+  public static final Logger log = Logger.getLogger(FailureReport.class.getName());
+
+  /**
+   * Default name of the report in the output folder.
+   */
+  public static final String FILE_NAME = "sbvc.failures.tsv";
+
+  private static final String HEADER = "time\tinput\tpathway\tstage\tmillis\treason";
+
+  private final File file;
+
+  /**
+   * Appends failures, opened on demand.
+   */
+  private FileOutputStream out = null;
+
+  /**
+   * Number of failures that have been recorded by this instance.
+   */
+  private int count = 0;
+
+  /**
+   * @param file the report file, created with the first failure.
+   */
+  public FailureReport(File file) {
+    this.file = file;
+  }
+
+  /**
+   * Records a failure.
+   *
+   * @param input the input file, may be <code>null</code>.
+   * @param pathway the failed pathway, may be <code>null</code>, if the
+   *        whole input failed.
+   * @param stage
+   * @param reason
+   * @param millis duration until the failure, negative if it is unknown.
+   */
+  public synchronized void add(String input, String pathway, String stage, String reason, long millis) {
+    count++;
+    String time = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss").format(new Date());
+    String line = time + '\t' + clean(input) + '\t' + clean(pathway) + '\t' + clean(stage) + '\t'
+        + (millis >= 0 ? Long.toString(millis) : "") + '\t' + clean(reason) + '\n';
+    try {
+      if (out == null) {
+        boolean exists = file.exists();
+        if (file.getParentFile() != null) {
+          file.getParentFile().mkdirs();
+        }
+        out = new FileOutputStream(file, true);
+        if (!exists) {
+          out.write((HEADER + '\n').getBytes("UTF-8"));
+        }
+      }
+      out.write(line.getBytes("UTF-8"));
+      out.flush();
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Could not record the failure of '" + pathway + "' in '" + file + "'.", e);
+    }
+  }
+
+  /**
+   * @return the number of failures, that have been recorded by this
+   *         instance.
+   */
+  public synchronized int getCount() {
+    return count;
+  }
+
+  /**
+   * @return the report file.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Closes the report file.
+   */
+  public synchronized void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        log.log(Level.FINE, "Could not close '" + file + "'.", e);
+      }
+      out = null;
+    }
+  }
+
+  /**
+   * @param s
+   * @return <code>s</code> without tabs and line breaks.
+   */
+  private static String clean(String s) {
+    return s == null ? "" : s.replace('\t', ' ').replace('\r', ' ').replace('\n', ' ');
+  }
+
+}
@@ -0,0 +1,315 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.zbit.mapper.GeneSymbol2GeneIDMapper;
+import de.zbit.util.Species;
+
+/**
+ * An immutable, normalized index of gene symbols (including all synonyms
+ * that are provided by the {@link GeneSymbol2GeneIDMapper}) to Entrez gene
+ * identifiers.
+ *
+ * <p>Symbols are normalized by trimming, case folding, dropping dashes and
+ * treating blanks and underscores as equal. Thus, "Bcl-2", "BCL2" and
+ * " bcl2 " all hit the same entry, as do "HLA A" and "hla_a".
+ * Normalization happens on the fly while hashing and comparing, so a
+ * lookup is a single probe into an open-addressing table and never creates
+ * a new {@link String}.
+ *
+ * <p>Indices are built only once per species, see {@link #getIndex(Species)}.
+ *
+ * @version $Rev$
+ */
+public class GeneSymbolIndex {
+
+  public static final Logger log = Logger.getLogger(GeneSymbolIndex.class.getName());
+
+  /**
+   * Already built indices, by {@link Species#getCommonName()}.
+   */
+  private static final Map<String, GeneSymbolIndex> indices = new HashMap<String, GeneSymbolIndex>();
+
+  /**
+   * Normalized symbols. <code>null</code> marks a free slot.
+   */
+  private final String[] keys;
+
+  /**
+   * Entrez gene ids, parallel to {@link #keys}.
+   */
+  private final int[] values;
+
+  /**
+   * {@link #keys}.length-1
+   */
+  private final int mask;
+
+  /**
+   * Number of indexed symbols.
+   */
+  private int size = 0;
+
+  /**
+   * Version of the underlying mapping data.
+   */
+  private final String dataVersion;
+
+  /**
+   * Builds a new index from the complete mapping of the given mapper.
+   * Symbols that are already in normalized form take precedence over
+   * symbols that only collapse to the same normalized form (e.g.,
+   * "ABC1" wins over "ABC-1").
+   *
+   * @param mapper a ready {@link GeneSymbol2GeneIDMapper}
+   */
+  public GeneSymbolIndex(GeneSymbol2GeneIDMapper mapper) {
+    this(mapper.getMapping(), ResolutionStore.getDataVersion(mapper));
+  }
+
+  /**
+   * Builds a new index from the given mapping of gene symbols to Entrez
+   * gene ids.
+   *
+   * @param mapping
+   * @param dataVersion the version of the mapping data.
+   */
+  GeneSymbolIndex(Map<String, Integer> mapping, String dataVersion) {
+    this.dataVersion = dataVersion;
+    int capacity = 16;
+    while (capacity < mapping.size() * 2) {
+      capacity <<= 1;
+    }
+    keys = new String[capacity];
+    values = new int[capacity];
+    mask = capacity - 1;
+
+    // Exact symbols first, aliases that only match after normalization second.
+    for (int pass = 0; pass < 2; pass++) {
+      for (Map.Entry<String, Integer> e : mapping.entrySet()) {
+        if (e.getKey() == null || e.getValue() == null) {
+          continue;
+        }
+        String normalized = normalize(e.getKey());
+        if ((pass == 0) == normalized.equals(e.getKey())) {
+          put(normalized, e.getValue().intValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the index for the given species. The underlying
+   * {@link GeneSymbol2GeneIDMapper} is read only the first time
+   * a species is requested.
+   *
+   * @param species
+   * @return the index for the given species.
+   * @throws IOException if the mapping data could not be read.
+   */
+  public static GeneSymbolIndex getIndex(Species species) throws IOException {
+    String key = species.getCommonName();
+    synchronized (indices) {
+      GeneSymbolIndex index = indices.get(key);
+      if (index == null) {
+        index = new GeneSymbolIndex(new GeneSymbol2GeneIDMapper(key));
+        indices.put(key, index);
+        log.fine("Built gene symbol index with " + index.size() + " symbols for '" + key + "'.");
+      }
+      return index;
+    }
+  }
+
+  /**
+   * @param symbol any gene symbol or synonym, in any case.
+   * @return the Entrez gene id or <code>NULL</code> if the symbol is unknown.
+   */
+  public Integer map(String symbol) {
+    int id = getEntrezGeneID(symbol);
+    return id > 0 ? Integer.valueOf(id) : null;
+  }
+
+  /**
+   * Allocation-free variant of {@link #map(String)}.
+   *
+   * @param symbol any gene symbol or synonym, in any case.
+   * @return the Entrez gene id or <code>0</code> if the symbol is unknown.
+   */
+  public int getEntrezGeneID(CharSequence symbol) {
+    if (symbol == null) {
+      return 0;
+    }
+    int slot = mix(hash(symbol)) & mask;
+    String key;
+    while ((key = keys[slot]) != null) {
+      if (matches(key, symbol)) {
+        return values[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return 0;
+  }
+
+  /**
+   * @return a fingerprint of the mapping data, this index has been built
+   *         from (see {@link ResolutionStore#getDataVersion(de.zbit.mapper.AbstractMapper)}).
+   */
+  public String getDataVersion() {
+    return dataVersion;
+  }
+
+  /**
+   * @return the number of indexed (normalized) symbols.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @param symbol
+   * @return the normalized form of the given symbol, as it is stored in
+   *         this index.
+   */
+  static String normalize(CharSequence symbol) {
+    int start = start(symbol), end = end(symbol, start);
+    StringBuilder sb = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      char c = fold(symbol.charAt(i));
+      if (c != 0) {
+        sb.append(c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param c
+   * @return the normalized form of <code>c</code> or <code>0</code> if the
+   *         character should be ignored.
+   */
+  private static char fold(char c) {
+    if (c == '-') {
+      return 0;
+    } else if (c == ' ' || c == '_') {
+      return '_';
+    }
+    return Character.toUpperCase(c);
+  }
+
+  /**
+   * @return index of the first non-whitespace character.
+   */
+  private static int start(CharSequence s) {
+    int start = 0;
+    while (start < s.length() && Character.isWhitespace(s.charAt(start))) {
+      start++;
+    }
+    return start;
+  }
+
+  /**
+   * @return index behind the last non-whitespace character.
+   */
+  private static int end(CharSequence s, int start) {
+    int end = s.length();
+    while (end > start && Character.isWhitespace(s.charAt(end - 1))) {
+      end--;
+    }
+    return end;
+  }
+
+  /**
+   * Hash of the normalized form of <code>s</code>, identical to
+   * {@link String#hashCode()} of {@link #normalize(CharSequence)}.
+   */
+  static int hash(CharSequence s) {
+    int start = start(s), end = end(s, start);
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      char c = fold(s.charAt(i));
+      if (c != 0) {
+        h = 31 * h + c;
+      }
+    }
+    return h;
+  }
+
+  /**
+   * Spreads the bits of a {@link String#hashCode()}, because gene symbols
+   * share many prefixes.
+   */
+  static int mix(int h) {
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * @return <code>true</code> if the normalized form of <code>s</code>
+   *         equals the already normalized <code>key</code>.
+   */
+  static boolean matches(String key, CharSequence s) {
+    int start = start(s), end = end(s, start);
+    int k = 0;
+    for (int i = start; i < end; i++) {
+      char c = fold(s.charAt(i));
+      if (c == 0) {
+        continue;
+      }
+      if (k >= key.length() || key.charAt(k++) != c) {
+        return false;
+      }
+    }
+    return k == key.length();
+  }
+
+  /**
+   * Adds the normalized <code>key</code>, if it is not yet contained.
+   */
+  private void put(String key, int value) {
+    if (key.length() == 0 || value <= 0) {
+      return;
+    }
+    int slot = mix(key.hashCode()) & mask;
+    while (keys[slot] != null) {
+      if (keys[slot].equals(key)) {
+        if (values[slot] != value && log.isLoggable(Level.FINEST)) {
+          log.finest("Ambiguous gene symbol '" + key + "', keeping " + values[slot] + ".");
+        }
+        return;
+      }
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    size++;
+  }
+
+}
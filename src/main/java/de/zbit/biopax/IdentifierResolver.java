@@ -0,0 +1,320 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.zbit.mapper.GeneID2KeggIDMapper;
+import de.zbit.util.DatabaseIdentifiers.IdentifierDatabases;
+import de.zbit.util.Species;
+import de.zbit.util.Utils;
+
+/**
+ * Resolves the gene symbols and Entrez gene ids of a whole BioPAX model in
+ * one batch, before any KGML entry is created.
+ *
+ * <p>The conversion is split into two phases: first, the gene symbols and
+ * Entrez gene ids (no other identifiers) are {@link #collect(Map)}ed from
+ * the entities. Second, they are deduplicated,
+ * sorted and {@link #resolve(Species, GeneSymbolIndex, GeneID2KeggIDMapper, MappingMissCache, ResolutionStore)}d
+ * against the mapping tables (in parallel for large models). The entries are
+ * then created with {@link BioPAX2KGML#getKEGGName(Map, Species)}, which only
+ * looks up the precomputed {@link Resolution}.
+ *
+ * @version $Rev$
+ */
+public class IdentifierResolver {
+
+  public static final Logger log = Logger.getLogger(IdentifierResolver.class.getName());
+
+  /**
+   * Identifiers per task, when resolving in parallel. Smaller batches are
+   * resolved in the calling thread.
+   */
+  private static final int CHUNK_SIZE = 4096;
+
+  /**
+   * All collected gene symbols (sorted).
+   */
+  private final TreeSet<String> symbols = new TreeSet<String>();
+
+  /**
+   * All collected Entrez gene ids (sorted).
+   */
+  private final TreeSet<Integer> geneIDs = new TreeSet<Integer>();
+
+  /**
+   * Already computed resolutions, by {@link Species#getCommonName()}.
+   */
+  private final Map<String, Resolution> resolutions = new HashMap<String, Resolution>();
+
+  /**
+   * Collects the identifiers, that {@link #resolve(Species, GeneSymbolIndex, GeneID2KeggIDMapper, MappingMissCache, ResolutionStore)}
+   * requires, from an identifier map, as it is created for every KGML
+   * entry. Only {@link IdentifierDatabases#EntrezGene} ids are collected,
+   * and {@link IdentifierDatabases#GeneSymbol}s only if the entry has no
+   * Entrez gene id. All other databases are ignored.
+   *
+   * @param identifiers
+   */
+  public void collect(Map<IdentifierDatabases, Collection<String>> identifiers) {
+    Collection<String> ids = identifiers.get(IdentifierDatabases.EntrezGene);
+    if (ids != null && ids.size() > 0) {
+      for (String id : ids) {
+        if (Utils.isNumber(id, true)) {
+          geneIDs.add(Integer.valueOf(id.trim()));
+        }
+      }
+    } else {
+      // Symbols are only required, if no gene id is available
+      ids = identifiers.get(IdentifierDatabases.GeneSymbol);
+      if (ids != null) {
+        symbols.addAll(ids);
+      }
+    }
+  }
+
+  /**
+   * @return the number of collected identifiers.
+   */
+  public int size() {
+    return symbols.size() + geneIDs.size();
+  }
+
+  /**
+   * Resolves all collected identifiers for the given species. Results are
+   * remembered, i.e., each species is resolved only once.
+   *
+   * @param species
+   * @param index
+   * @param mapper may be <code>null</code>.
+   * @param missCache may be <code>null</code>.
+   * @param store persistent resolutions of previous runs, may be
+   *        <code>null</code>.
+   * @return the resolved identifiers.
+   */
+  public synchronized Resolution resolve(Species species, final GeneSymbolIndex index,
+      final GeneID2KeggIDMapper mapper, final MappingMissCache missCache, final ResolutionStore store) {
+    Resolution resolution = resolutions.get(species.getCommonName());
+    if (resolution != null) {
+      return resolution;
+    }
+    resolution = new Resolution();
+
+    // 1. Gene symbols to entrez gene ids
+    final Map<String, Integer> symbolMap = resolution.geneIDs;
+    List<Map<String, Integer>> symbolResults = runChunked(new ArrayList<String>(symbols),
+        new Resolver<String, Integer>() {
+      @Override
+      public Integer resolve(String symbol) {
+        Integer stored = store != null ? store.getGeneID(symbol) : null;
+        if (stored != null) {
+          return stored;
+        }
+        if (index == null || (missCache != null && missCache.isKnownSymbolMiss(symbol))) {
+          return 0;
+        }
+        int geneID = index.getEntrezGeneID(symbol);
+        if (geneID <= 0 && missCache != null) {
+          missCache.addSymbolMiss(symbol);
+        }
+        if (store != null) {
+          store.putGeneID(symbol, Math.max(geneID, 0));
+        }
+        return geneID;
+      }
+    });
+    TreeSet<Integer> allGeneIDs = new TreeSet<Integer>(geneIDs);
+    for (Map<String, Integer> r : symbolResults) {
+      symbolMap.putAll(r);
+      for (Integer geneID : r.values()) {
+        if (geneID.intValue() > 0) {
+          allGeneIDs.add(geneID);
+        }
+      }
+    }
+
+    // 2. Entrez gene ids to KEGG ids
+    if (mapper != null) {
+      List<Map<Integer, String>> keggResults = runChunked(new ArrayList<Integer>(allGeneIDs),
+          new Resolver<Integer, String>() {
+        @Override
+        public String resolve(Integer geneID) {
+          String stored = store != null ? store.getKEGGID(geneID) : null;
+          if (stored != null) {
+            return stored.length() > 0 ? stored : null;
+          }
+          if (missCache != null && missCache.isKnownGeneIDMiss(geneID)) {
+            return null;
+          }
+          String keggID = null;
+          try {
+            keggID = mapper.map(geneID);
+          } catch (Exception e) {
+            log.log(Level.FINE, "Could not map gene id " + geneID + ".", e);
+          }
+          if (keggID == null && missCache != null) {
+            missCache.addGeneIDMiss(geneID);
+          }
+          if (store != null) {
+            store.putKEGGID(geneID, keggID);
+          }
+          return keggID;
+        }
+      });
+      for (Map<Integer, String> r : keggResults) {
+        resolution.keggIDs.putAll(r);
+      }
+    }
+
+    log.fine("Resolved " + symbolMap.size() + " gene symbols and " + resolution.keggIDs.size()
+        + " gene ids for '" + species.getCommonName() + "'.");
+    resolutions.put(species.getCommonName(), resolution);
+    return resolution;
+  }
+
+  /**
+   * Resolves the given (sorted) keys in chunks of {@link #CHUNK_SIZE}, in
+   * parallel if there is more than one chunk. Chunks are resolved by the
+   * calling thread and by at most one worker per processor of the
+   * {@link MapperCache#getExecutor()}.
+   *
+   * @param keys
+   * @param resolver
+   * @return one result map per chunk.
+   */
+  private static <K, V> List<Map<K, V>> runChunked(final List<K> keys, final Resolver<K, V> resolver) {
+    List<Map<K, V>> results = new ArrayList<Map<K, V>>();
+    int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+        (keys.size() + CHUNK_SIZE - 1) / CHUNK_SIZE);
+    if (threads <= 1) {
+      results.add(resolveChunk(keys, resolver));
+      return results;
+    }
+
+    // Workers take the next chunk, until all chunks are resolved
+    final AtomicInteger nextChunk = new AtomicInteger();
+    Callable<List<Map<K, V>>> worker = new Callable<List<Map<K, V>>>() {
+      @Override
+      public List<Map<K, V>> call() {
+        List<Map<K, V>> done = new ArrayList<Map<K, V>>();
+        int from;
+        while ((from = nextChunk.getAndIncrement() * CHUNK_SIZE) < keys.size()) {
+          done.add(resolveChunk(keys.subList(from, Math.min(keys.size(), from + CHUNK_SIZE)), resolver));
+        }
+        return done;
+      }
+    };
+    List<Future<List<Map<K, V>>>> futures = new ArrayList<Future<List<Map<K, V>>>>();
+    for (int i = 1; i < threads; i++) {
+      futures.add(MapperCache.getExecutor().submit(worker));
+    }
+    try {
+      results.addAll(worker.call());
+    } catch (Exception e) {
+      log.log(Level.WARNING, "Could not resolve identifiers.", e);
+    }
+    for (Future<List<Map<K, V>>> f : futures) {
+      try {
+        results.addAll(f.get());
+      } catch (Exception e) {
+        log.log(Level.WARNING, "Could not resolve identifiers.", e);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * @return a map with the resolved value of each key.
+   */
+  private static <K, V> Map<K, V> resolveChunk(List<K> keys, Resolver<K, V> resolver) {
+    Map<K, V> map = new HashMap<K, V>(keys.size() * 2);
+    for (K key : keys) {
+      map.put(key, resolver.resolve(key));
+    }
+    return map;
+  }
+
+  /**
+   * Resolves a single identifier.
+   */
+  private interface Resolver<K, V> {
+    V resolve(K key);
+  }
+
+  /**
+   * Precomputed identifier mappings for one species.
+   */
+  public static class Resolution {
+
+    /**
+     * Gene symbol to gene id. Contains <code>0</code> for symbols that could
+     * not be mapped.
+     */
+    private final Map<String, Integer> geneIDs = new HashMap<String, Integer>();
+
+    /**
+     * Gene id to KEGG id. Contains <code>null</code> for gene ids that could
+     * not be mapped.
+     */
+    private final Map<Integer, String> keggIDs = new HashMap<Integer, String>();
+
+    /**
+     * @param symbol
+     * @return the Entrez gene id, <code>0</code> if the symbol could not be
+     *         mapped or <code>null</code> if it has not been resolved.
+     */
+    public Integer getGeneID(String symbol) {
+      return geneIDs.get(symbol);
+    }
+
+    /**
+     * @param geneID
+     * @return <code>true</code> if the given gene id has been resolved.
+     */
+    public boolean isResolved(Integer geneID) {
+      return keggIDs.containsKey(geneID);
+    }
+
+    /**
+     * @param geneID
+     * @return the KEGG id or <code>null</code>, if it could not be mapped.
+     */
+    public String getKEGGID(Integer geneID) {
+      return keggIDs.get(geneID);
+    }
+  }
+
+}
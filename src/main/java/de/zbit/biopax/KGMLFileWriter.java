@@ -0,0 +1,236 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.zbit.kegg.KGMLWriter;
+import de.zbit.kegg.parser.pathway.Pathway;
+
+/**
+ * Writes KGML files in parallel, while the calling thread converts the next
+ * pathways.
+ *
+ * <p>At most <code>maxOpenFiles</code> files are written at the same time.
+ * If all writers are busy and as many pathways are waiting, {@link #write(Pathway, File)}
+ * blocks, so that only a bounded number of converted pathways is held in
+ * memory. Each file is first written to a temporary file next to the target
+ * and then renamed, so that no partially written KGML file is ever visible
+ * under the final name. Pathways with the same target are written in the
+ * order of submission, i.e., the last one wins, as with sequential writing.
+ *
+ * @version $Rev$
+ */
+public class KGMLFileWriter {
+
+  public static final Logger log = Logger.getLogger(KGMLFileWriter.class.getName());
+
+  /**
+   * Extension of files that are currently written.
+   */
+  public static final String TEMP_EXTENSION = ".part";
+
+  /**
+   * Buffer size for reading written files into an archive.
+   */
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final ThreadPoolExecutor pool;
+
+  private final boolean writeEntryExtended;
+
+  /**
+   * Latest write to each target file.
+   */
+  private final Map<File, Future<Boolean>> pending = new HashMap<File, Future<Boolean>>();
+
+  /**
+   * All writes, in the order of submission.
+   */
+  private final List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+  /**
+   * @param maxOpenFiles maximum number of files that are written at the same
+   *        time.
+   * @param writeEntryExtended see {@link KGMLWriter#writeKGML(Pathway, String, boolean)}.
+   */
+  public KGMLFileWriter(int maxOpenFiles, boolean writeEntryExtended) {
+    maxOpenFiles = Math.max(1, maxOpenFiles);
+    this.writeEntryExtended = writeEntryExtended;
+    pool = new ThreadPoolExecutor(maxOpenFiles, maxOpenFiles, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(maxOpenFiles), new RejectedExecutionHandler() {
+      @Override
+      public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+        // Wait for a free slot, instead of writing in the calling thread
+        try {
+          executor.getQueue().put(r);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RejectedExecutionException(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes the given pathway to the target file in the background.
+   *
+   * @param keggPW
+   * @param target
+   */
+  public void write(final Pathway keggPW, File target) {
+    final File file = target.getAbsoluteFile();
+    final Future<Boolean> previous = pending.get(file);
+    submit(file, new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        if (previous != null) {
+          // Never write the same file concurrently
+          try {
+            previous.get();
+          } catch (ExecutionException e) {
+            // Reported by finish()
+          }
+        }
+        File tmp = new File(file.getPath() + TEMP_EXTENSION);
+        try {
+          if (!writeTo(keggPW, tmp)) {
+            return false;
+          }
+          if (!tmp.renameTo(file)) {
+            // Some file systems do not replace existing files
+            file.delete();
+            if (!tmp.renameTo(file)) {
+              throw new IOException("Could not rename '" + tmp + "' to '" + file + "'.");
+            }
+          }
+          return true;
+        } finally {
+          tmp.delete();
+        }
+      }
+    });
+  }
+
+  /**
+   * Writes the given pathway in the background to a temporary file and adds
+   * it as new entry to the archive. Thus, entries are also compressed in
+   * parallel.
+   *
+   * @param keggPW
+   * @param archive
+   */
+  public void write(final Pathway keggPW, final PathwayArchive archive) {
+    submit(null, new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        File tmp = File.createTempFile("kgml", ".xml");
+        try {
+          if (!writeTo(keggPW, tmp)) {
+            return false;
+          }
+          byte[] data = new byte[(int) tmp.length()];
+          DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tmp), BUFFER_SIZE));
+          try {
+            in.readFully(data);
+          } finally {
+            in.close();
+          }
+          archive.addEntry(KGMLWriter.createFileName(keggPW), data);
+          return true;
+        } finally {
+          tmp.delete();
+        }
+      }
+    });
+  }
+
+  /**
+   * Waits until all files have been written.
+   *
+   * @return the number of written files.
+   * @throws InterruptedException
+   */
+  public int finish() throws InterruptedException {
+    int written = 0;
+    try {
+      for (Future<Boolean> result : results) {
+        try {
+          if (result.get()) {
+            written++;
+          }
+        } catch (ExecutionException e) {
+          log.log(Level.WARNING, "Could not write KGML file.", e.getCause());
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+      results.clear();
+      pending.clear();
+    }
+    return written;
+  }
+
+  /**
+   * @param file may be <code>null</code>.
+   * @param task
+   */
+  private void submit(File file, Callable<Boolean> task) {
+    Future<Boolean> result = pool.submit(task);
+    results.add(result);
+    if (file != null) {
+      pending.put(file, result);
+    }
+  }
+
+  /**
+   * @return <code>false</code> if the pathway has not been written,
+   *         because it is empty.
+   */
+  private boolean writeTo(Pathway keggPW, File file) {
+    file.delete();
+    KGMLWriter.writeKGML(keggPW, file.getPath(), writeEntryExtended);
+    return file.exists();
+  }
+
+}
@@ -0,0 +1,217 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import de.zbit.mapper.GeneID2KeggIDMapper;
+import de.zbit.mapper.Mapper;
+import de.zbit.mapper.MappingUtils;
+import de.zbit.mapper.MappingUtils.IdentifierType;
+import de.zbit.util.Species;
+import de.zbit.util.progressbar.AbstractProgressBar;
+
+/**
+ * Holds mappers that have already been read, so that each mapping file is
+ * read only once per JVM, no matter how many pathways or files are
+ * converted. All mappers in this cache are only read after initialization
+ * and can thus be shared among threads.
+ *
+ * <p>Mappers to Entrez gene ids may also be loaded in the background, see
+ * {@link #load2GeneIDMapper(IdentifierType, AbstractProgressBar, Species)}.
+ * If a {@link #setMappingStoreDirectory(File) mapping store directory} is
+ * set, these mappings are read from local {@link MappingStore}s, without
+ * any network access.
+ *
+ * @version $Rev$
+ */
+public class MapperCache {
+
+  public static final Logger log = Logger.getLogger(MapperCache.class.getName());
+
+  /**
+   * Already initialized {@link GeneID2KeggIDMapper}s, by
+   * {@link Species#getKeggAbbr()}.
+   */
+  private static final Map<String, GeneID2KeggIDMapper> geneID2KEGG = new HashMap<String, GeneID2KeggIDMapper>();
+
+  /**
+   * Already loaded (or currently loading) mappers from any
+   * {@link IdentifierType} to Entrez gene ids, by type and
+   * {@link Species#getCommonName()}.
+   */
+  private static final Map<String, Future<Mapper<String, Integer>>> toGeneID =
+      new HashMap<String, Future<Mapper<String, Integer>>>();
+
+  /**
+   * Directory with {@link MappingStore}s, may be <code>null</code>.
+   */
+  private static volatile File mappingStoreDirectory = null;
+
+  /**
+   * Loads mappers in the background (and resolves identifiers with them,
+   * see {@link #getExecutor()}). Threads are daemons, so that pending loads
+   * never keep the application alive.
+   */
+  private static final ExecutorService loader = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "MapperCache-loader");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  /**
+   * @return the executor, that loads the mappers in the background. It may
+   *         also be used for other short tasks on the mappers, instead of
+   *         creating a new thread pool for every task.
+   */
+  static ExecutorService getExecutor() {
+    return loader;
+  }
+
+  /**
+   * @param species must have a KEGG abbreviation.
+   * @return a shared {@link GeneID2KeggIDMapper} for the given species.
+   * @throws IOException if the mapping could not be read.
+   */
+  public static GeneID2KeggIDMapper getGeneID2KeggIDMapper(Species species) throws IOException {
+    synchronized (geneID2KEGG) {
+      GeneID2KeggIDMapper mapper = geneID2KEGG.get(species.getKeggAbbr());
+      if (mapper == null) {
+        mapper = new GeneID2KeggIDMapper(species);
+        geneID2KEGG.put(species.getKeggAbbr(), mapper);
+      }
+      return mapper;
+    }
+  }
+
+  /**
+   * Starts loading a mapper from <code>type</code> to Entrez gene ids in
+   * the background, if it has not been loaded yet.
+   * 
+   * @param type source identifier type
+   * @param progress optional, used to display the progress of reading and
+   *        downloading the mapping file.
+   * @param species
+   * @return the future mapper.
+   */
+  public static Future<Mapper<String, Integer>> load2GeneIDMapper(final IdentifierType type,
+      final AbstractProgressBar progress, final Species species) {
+    final String key = type.toString() + ":" + species.getCommonName();
+    synchronized (toGeneID) {
+      Future<Mapper<String, Integer>> mapper = toGeneID.get(key);
+      if (mapper == null) {
+        log.fine("Loading " + key + " to entrez gene mapper in the background.");
+        mapper = loader.submit(new Callable<Mapper<String, Integer>>() {
+          @Override
+          public Mapper<String, Integer> call() throws IOException {
+            try {
+              File dir = mappingStoreDirectory;
+              if (dir != null) {
+                File store = MappingStore.getFile(dir, type, species);
+                if (store.exists()) {
+                  return new MappingStore(store, type);
+                }
+                log.warning("No mapping store '" + store + "' available, trying to download the " + type + " mapping.");
+              }
+              return MappingUtils.initialize2GeneIDMapper(type, progress, species);
+            } catch (IOException e) {
+              // Allow retrying later
+              synchronized (toGeneID) {
+                toGeneID.remove(key);
+              }
+              throw e;
+            }
+          }
+        });
+        toGeneID.put(key, mapper);
+      }
+      return mapper;
+    }
+  }
+
+  /**
+   * Returns a shared mapper from <code>type</code> to Entrez gene ids. If it
+   * is currently loaded in the background, this method waits for it.
+   * 
+   * @param type source identifier type
+   * @param progress optional, used only if the mapper is not yet loading.
+   * @param species
+   * @return the mapper (may be <code>null</code>, if no mapping is
+   *         available for this type).
+   * @throws IOException if the mapping could not be read.
+   */
+  public static Mapper<String, Integer> get2GeneIDMapper(IdentifierType type,
+      AbstractProgressBar progress, Species species) throws IOException {
+    Future<Mapper<String, Integer>> mapper = load2GeneIDMapper(type, progress, species);
+    try {
+      return mapper.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading the " + type + " mapper.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Sets the directory, from which mappings to Entrez gene ids are read (see
+   * {@link MappingStore#getFile(File, IdentifierType, Species)}). Mappers
+   * that have already been loaded are not affected.
+   * 
+   * @param directory may be <code>null</code> to download all mappings.
+   */
+  public static void setMappingStoreDirectory(File directory) {
+    mappingStoreDirectory = directory;
+  }
+
+  /**
+   * Removes all cached mappers, e.g., to release memory.
+   */
+  public static void clear() {
+    synchronized (geneID2KEGG) {
+      geneID2KEGG.clear();
+    }
+    synchronized (toGeneID) {
+      toGeneID.clear();
+    }
+  }
+
+}
@@ -0,0 +1,281 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import de.zbit.util.Species;
+
+/**
+ * A bounded cache of identifiers that could <b>not</b> be mapped, i.e., gene
+ * symbols that are unknown to the {@link GeneSymbolIndex} and Entrez gene
+ * ids that are unknown to the {@link de.zbit.mapper.GeneID2KeggIDMapper}.
+ *
+ * <p>Most names of BioPAX entities (complexes, small molecules, free text)
+ * are no gene symbols and miss in every pathway they appear in. A Bloom
+ * filter answers most "is this a known miss?" questions for unknown keys,
+ * the exact tables below confirm the remaining candidates. Gene symbols are
+ * compared in the normalized form of the {@link GeneSymbolIndex}, so no
+ * query allocates any object.
+ *
+ * <p>If more than {@link #MAX_ENTRIES} misses are recorded, the cache is
+ * cleared and starts over.
+ *
+ * <p>Queries never lock. Writers are serialized and store an entry in the
+ * exact table before its Bloom filter bits, both through atomic arrays.
+ * Thus, a reader that sees the bits also sees the entry, and a miss that
+ * has been recorded completely is never reported as unknown (until the
+ * next reset). A reset publishes a new, empty {@link Table} through a
+ * volatile field, while readers that still hold the old one see its
+ * complete content.
+ *
+ * @version $Rev$
+ */
+public class MappingMissCache {
+
+  /**
+   * Maximum number of remembered misses (per key type), before the cache is
+   * cleared.
+   */
+  public static final int MAX_ENTRIES = 1 << 16;
+
+  /**
+   * Number of bits in the Bloom filter. With three hash functions and
+   * {@link #MAX_ENTRIES} symbols, this gives about 0.5% false positives.
+   */
+  private static final int BLOOM_BITS = 1 << 20;
+
+  /**
+   * Already created caches, by {@link Species#getCommonName()}.
+   */
+  private static final Map<String, MappingMissCache> caches = new HashMap<String, MappingMissCache>();
+
+  /**
+   * The current content. Replaced as a whole when the cache is cleared, so
+   * that readers never need to lock.
+   */
+  private volatile Table table = new Table();
+
+  /**
+   * Number of queries that have been answered by this cache.
+   */
+  private final AtomicLong hits = new AtomicLong();
+
+  /**
+   * Number of queries that had to be passed on to the real mapper.
+   */
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * @param species
+   * @return the miss cache for the given species.
+   */
+  public static MappingMissCache getCache(Species species) {
+    String key = species.getCommonName();
+    synchronized (caches) {
+      MappingMissCache cache = caches.get(key);
+      if (cache == null) {
+        cache = new MappingMissCache();
+        caches.put(key, cache);
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * @param symbol
+   * @return <code>true</code> if the symbol has already been recorded as
+   *         unknown with {@link #addSymbolMiss(CharSequence)}.
+   */
+  public boolean isKnownSymbolMiss(CharSequence symbol) {
+    Table t = table;
+    int h = GeneSymbolIndex.hash(symbol);
+    if (t.mightContain(h)) {
+      AtomicReferenceArray<String> symbols = t.symbols;
+      int slot = GeneSymbolIndex.mix(h) & (symbols.length() - 1);
+      String key;
+      while ((key = symbols.get(slot)) != null) {
+        if (GeneSymbolIndex.matches(key, symbol)) {
+          hits.incrementAndGet();
+          return true;
+        }
+        slot = (slot + 1) & (symbols.length() - 1);
+      }
+    }
+    misses.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * @param geneID
+   * @return <code>true</code> if the gene id has already been recorded as
+   *         unknown with {@link #addGeneIDMiss(int)}.
+   */
+  public boolean isKnownGeneIDMiss(int geneID) {
+    Table t = table;
+    int h = ~geneID;
+    if (geneID != 0 && t.mightContain(h)) {
+      AtomicIntegerArray geneIDs = t.geneIDs;
+      int slot = GeneSymbolIndex.mix(h) & (geneIDs.length() - 1);
+      int key;
+      while ((key = geneIDs.get(slot)) != 0) {
+        if (key == geneID) {
+          hits.incrementAndGet();
+          return true;
+        }
+        slot = (slot + 1) & (geneIDs.length() - 1);
+      }
+    }
+    misses.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * Remembers a gene symbol that could not be mapped.
+   * @param symbol
+   */
+  public synchronized void addSymbolMiss(CharSequence symbol) {
+    Table t = table;
+    if (t.symbolCount >= MAX_ENTRIES) {
+      t = table = new Table();
+    }
+    String normalized = GeneSymbolIndex.normalize(symbol);
+    int h = normalized.hashCode();
+    AtomicReferenceArray<String> symbols = t.symbols;
+    int slot = GeneSymbolIndex.mix(h) & (symbols.length() - 1);
+    String key;
+    while ((key = symbols.get(slot)) != null) {
+      if (key.equals(normalized)) {
+        return;
+      }
+      slot = (slot + 1) & (symbols.length() - 1);
+    }
+    // The entry must be visible before its bits
+    symbols.set(slot, normalized);
+    t.symbolCount++;
+    t.put(h);
+  }
+
+  /**
+   * Remembers an Entrez gene id that could not be mapped.
+   * @param geneID
+   */
+  public synchronized void addGeneIDMiss(int geneID) {
+    if (geneID == 0) {
+      return;
+    }
+    Table t = table;
+    if (t.geneIDCount >= MAX_ENTRIES) {
+      t = table = new Table();
+    }
+    int h = ~geneID;
+    AtomicIntegerArray geneIDs = t.geneIDs;
+    int slot = GeneSymbolIndex.mix(h) & (geneIDs.length() - 1);
+    int key;
+    while ((key = geneIDs.get(slot)) != 0) {
+      if (key == geneID) {
+        return;
+      }
+      slot = (slot + 1) & (geneIDs.length() - 1);
+    }
+    // The entry must be visible before its bits
+    geneIDs.set(slot, geneID);
+    t.geneIDCount++;
+    t.put(h);
+  }
+
+  /**
+   * @return the number of queries that have been answered by this cache.
+   */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of queries that could not be answered by this cache.
+   */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * Removes all remembered misses and resets the counters.
+   */
+  public synchronized void clear() {
+    table = new Table();
+    hits.set(0);
+    misses.set(0);
+  }
+
+  /* (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    Table t = table;
+    return getClass().getSimpleName() + "[symbols=" + t.symbolCount + ", geneIDs="
+        + t.geneIDCount + ", hits=" + getHitCount() + ", misses=" + getMissCount() + "]";
+  }
+
+  /**
+   * Bloom filter and exact tables of one cache generation. The counts are
+   * only accessed by (serialized) writers.
+   */
+  private static class Table {
+    final AtomicLongArray bloom = new AtomicLongArray(BLOOM_BITS / 64);
+    final AtomicReferenceArray<String> symbols = new AtomicReferenceArray<String>(MAX_ENTRIES * 2);
+    final AtomicIntegerArray geneIDs = new AtomicIntegerArray(MAX_ENTRIES * 2);
+    int symbolCount = 0;
+    int geneIDCount = 0;
+
+    /**
+     * Must only be called by serialized writers.
+     */
+    void put(int h) {
+      int h2 = GeneSymbolIndex.mix(h) | 1;
+      for (int i = 0; i < 3; i++) {
+        int bit = (h + i * h2) & (BLOOM_BITS - 1);
+        bloom.set(bit >>> 6, bloom.get(bit >>> 6) | (1L << bit));
+      }
+    }
+
+    boolean mightContain(int h) {
+      int h2 = GeneSymbolIndex.mix(h) | 1;
+      for (int i = 0; i < 3; i++) {
+        int bit = (h + i * h2) & (BLOOM_BITS - 1);
+        if ((bloom.get(bit >>> 6) & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+}
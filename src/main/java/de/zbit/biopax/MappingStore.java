@@ -0,0 +1,518 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import de.zbit.mapper.Mapper;
+import de.zbit.mapper.MappingUtils.IdentifierType;
+import de.zbit.util.Species;
+
+/**
+ * A read-only, file-backed mapping from any identifier (e.g., UniProt,
+ * Ensembl or RefSeq) to Entrez gene ids, that requires no network access.
+ *
+ * <p>Keys are stored sorted, in blocks of {@link #ENTRIES_PER_BLOCK} entries
+ * and every block is compressed on its own. The file is memory-mapped and the
+ * block index (the first key of each block) is binary-searched directly in
+ * the mapped file. Hence, opening a store reads nothing into the heap, and a
+ * lookup only inflates one single block.
+ *
+ * <p>Stores are created with {@link #write(Map, IdentifierType, File)} from
+ * any mapping (e.g., {@link de.zbit.mapper.AbstractMapper#getMapping()}) or
+ * with {@link #importDump(File, IdentifierType, int, int, int, String, File)}
+ * from a local, tab-separated mapping dump. Identifiers are normalized like
+ * the mappers of {@link de.zbit.mapper.MappingUtils} do (see
+ * {@link #normalize(IdentifierType, String)}), so a store accepts the same
+ * identifiers as the corresponding mapper.
+ *
+ * <p>File layout (all integers big-endian):
+ * <pre>
+ * header:  magic, version, blockCount, entryCount, indexOffset, keysOffset
+ * blocks:  deflated (keyLength:short, key:UTF-8, geneID:int)*
+ * index:   (blockOffset, compressedLength, rawLength, firstKeyOffset)*
+ * keys:    (keyLength:short, key:UTF-8)* (the first key of each block)
+ * </pre>
+ *
+ * @version $Rev$
+ */
+public class MappingStore implements Mapper<String, Integer> {
+
+  public static final Logger log = Logger.getLogger(MappingStore.class.getName());
+
+  /**
+   * File extension of mapping stores.
+   */
+  public static final String FILE_EXTENSION = ".map";
+
+  /**
+   * Number of entries that are compressed together.
+   */
+  public static final int ENTRIES_PER_BLOCK = 128;
+
+  private static final int MAGIC = 0x53424d53; // "SBMS"
+  private static final int VERSION = 2;
+  private static final int HEADER_SIZE = 24;
+  private static final int INDEX_ENTRY_SIZE = 16;
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * The mapped file.
+   */
+  private final MappedByteBuffer buffer;
+
+  /**
+   * Name of the mapping (the file name).
+   */
+  private final String name;
+
+  /**
+   * Type of the source identifiers.
+   */
+  private final IdentifierType type;
+
+  private final int blockCount;
+  private final int entryCount;
+  private final int indexOffset;
+
+  /**
+   * Opens an existing store.
+   *
+   * @param file
+   * @param type type of the source identifiers, as the store has been
+   *        written with.
+   * @throws IOException if the file can not be read or is no mapping store.
+   */
+  public MappingStore(File file, IdentifierType type) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      if (raf.length() > Integer.MAX_VALUE) {
+        throw new IOException("Mapping store '" + file + "' is too large.");
+      }
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+    } finally {
+      raf.close();
+    }
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException("'" + file + "' is no mapping store.");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("Unsupported version " + buffer.getInt(4) + " of mapping store '" + file + "'.");
+    }
+    blockCount = buffer.getInt(8);
+    entryCount = buffer.getInt(12);
+    indexOffset = buffer.getInt(16);
+    name = file.getName();
+    this.type = type;
+  }
+
+  /**
+   * @param directory
+   * @param type source identifier type
+   * @param species
+   * @return the file of the store for the given type and species in the
+   *         given directory (the file does not necessarily exist).
+   */
+  public static File getFile(File directory, IdentifierType type, Species species) {
+    return new File(directory, type.toString() + "2GeneID_" + species.getNCBITaxonID() + FILE_EXTENSION);
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.mapper.Mapper#map(java.lang.Object)
+   */
+  @Override
+  public Integer map(String sourceID) throws IOException {
+    if (sourceID == null || blockCount == 0) {
+      return null;
+    }
+    byte[] key = normalize(type, sourceID).getBytes(UTF8);
+
+    // Find the last block whose first key is <= key
+    int low = 0, high = blockCount - 1, block = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int keyOffset = buffer.getInt(indexOffset + mid * INDEX_ENTRY_SIZE + 12);
+      int c = compare(buffer, keyOffset + 2, buffer.getShort(keyOffset) & 0xffff, key, 0, key.length);
+      if (c <= 0) {
+        block = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    if (block < 0) {
+      return null;
+    }
+
+    // Scan the inflated block
+    byte[] raw = readBlock(block);
+    int pos = 0;
+    while (pos < raw.length) {
+      int length = ((raw[pos] & 0xff) << 8) | (raw[pos + 1] & 0xff);
+      int c = compare(raw, pos + 2, length, key);
+      pos += 2 + length;
+      if (c == 0) {
+        return ((raw[pos] & 0xff) << 24) | ((raw[pos + 1] & 0xff) << 16) | ((raw[pos + 2] & 0xff) << 8) | (raw[pos + 3] & 0xff);
+      } else if (c > 0) {
+        break;
+      }
+      pos += 4;
+    }
+    return null;
+  }
+
+  /**
+   * @param block
+   * @return the inflated content of the given block.
+   * @throws IOException
+   */
+  private byte[] readBlock(int block) throws IOException {
+    int entry = indexOffset + block * INDEX_ENTRY_SIZE;
+    int offset = buffer.getInt(entry);
+    byte[] compressed = new byte[buffer.getInt(entry + 4)];
+    byte[] raw = new byte[buffer.getInt(entry + 8)];
+    for (int i = 0; i < compressed.length; i++) {
+      compressed[i] = buffer.get(offset + i);
+    }
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed);
+      if (inflater.inflate(raw) != raw.length) {
+        throw new IOException("Corrupt block " + block + " in mapping store '" + name + "'.");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt block " + block + " in mapping store '" + name + "'.", e);
+    } finally {
+      inflater.end();
+    }
+    return raw;
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.mapper.Mapper#getMappingName()
+   */
+  @Override
+  public String getMappingName() {
+    return name;
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.mapper.Mapper#isReady()
+   */
+  @Override
+  public boolean isReady() {
+    return true;
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.mapper.Mapper#size()
+   */
+  @Override
+  public int size() {
+    return entryCount;
+  }
+
+  /**
+   * Writes a new store that contains the given mapping. Keys are normalized
+   * (see {@link #normalize(IdentifierType, String)}); if two keys collapse
+   * to the same normalized key, an arbitrary one wins. The file is first
+   * written to a temporary file and then renamed.
+   *
+   * @param mapping
+   * @param type type of the source identifiers.
+   * @param file target file
+   * @throws IOException
+   */
+  public static void write(Map<String, Integer> mapping, IdentifierType type, File file) throws IOException {
+    List<byte[]> keys = new ArrayList<byte[]>(mapping.size());
+    Map<String, Integer> normalized = new HashMap<String, Integer>(mapping.size() * 2);
+    for (Map.Entry<String, Integer> e : mapping.entrySet()) {
+      if (e.getKey() == null || e.getValue() == null || e.getValue().intValue() <= 0) {
+        continue;
+      }
+      String key = normalize(type, e.getKey());
+      if (key.length() > 0 && key.length() < 0x4000 && !normalized.containsKey(key)) {
+        normalized.put(key, e.getValue());
+        keys.add(key.getBytes(UTF8));
+      }
+    }
+    Collections.sort(keys, new Comparator<byte[]>() {
+      @Override
+      public int compare(byte[] a, byte[] b) {
+        return MappingStore.compare(a, 0, a.length, b);
+      }
+    });
+
+    File tmp = new File(file.getPath() + ".tmp");
+    int blockCount = (keys.size() + ENTRIES_PER_BLOCK - 1) / ENTRIES_PER_BLOCK;
+    int[] blockOffsets = new int[blockCount];
+    int[] compressedLengths = new int[blockCount];
+    int[] rawLengths = new int[blockCount];
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+    try {
+      out.write(new byte[HEADER_SIZE]);
+
+      // Blocks
+      ByteArrayOutputStream raw = new ByteArrayOutputStream();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      for (int block = 0; block < blockCount; block++) {
+        raw.reset();
+        DataOutputStream rawOut = new DataOutputStream(raw);
+        int end = Math.min(keys.size(), (block + 1) * ENTRIES_PER_BLOCK);
+        for (int i = block * ENTRIES_PER_BLOCK; i < end; i++) {
+          byte[] key = keys.get(i);
+          rawOut.writeShort(key.length);
+          rawOut.write(key);
+          rawOut.writeInt(normalized.get(new String(key, UTF8)).intValue());
+        }
+        rawOut.flush();
+
+        compressed.reset();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        DeflaterOutputStream deflaterOut = new DeflaterOutputStream(compressed, deflater);
+        raw.writeTo(deflaterOut);
+        deflaterOut.finish();
+        deflater.end();
+
+        blockOffsets[block] = out.size();
+        compressedLengths[block] = compressed.size();
+        rawLengths[block] = raw.size();
+        compressed.writeTo(out);
+      }
+
+      // Block index and first keys
+      int indexOffset = out.size();
+      int keyOffset = indexOffset + blockCount * INDEX_ENTRY_SIZE;
+      for (int block = 0; block < blockCount; block++) {
+        out.writeInt(blockOffsets[block]);
+        out.writeInt(compressedLengths[block]);
+        out.writeInt(rawLengths[block]);
+        out.writeInt(keyOffset);
+        keyOffset += 2 + keys.get(block * ENTRIES_PER_BLOCK).length;
+      }
+      int keysOffset = out.size();
+      for (int block = 0; block < blockCount; block++) {
+        byte[] key = keys.get(block * ENTRIES_PER_BLOCK);
+        out.writeShort(key.length);
+        out.write(key);
+      }
+      if (out.size() == Integer.MAX_VALUE) {
+        throw new IOException("Mapping is too large for a single mapping store.");
+      }
+      out.close();
+
+      // Header
+      RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+      try {
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeInt(blockCount);
+        raf.writeInt(keys.size());
+        raf.writeInt(indexOffset);
+        raf.writeInt(keysOffset);
+      } finally {
+        raf.close();
+      }
+    } finally {
+      out.close();
+    }
+
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Could not replace '" + file + "'.");
+    }
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Could not rename '" + tmp + "' to '" + file + "'.");
+    }
+    log.info("Wrote " + keys.size() + " mappings in " + blockCount + " blocks to '" + file + "'.");
+  }
+
+  /**
+   * Creates a new store from a local, tab-separated mapping dump (e.g.,
+   * UniProt's <code>idmapping_selected.tab</code> or NCBI's
+   * <code>gene2ensembl</code> and <code>gene2refseq</code>). Lines starting
+   * with '#' are skipped. Cells may contain multiple identifiers, separated
+   * by ';'. Files ending with ".gz" are read compressed.
+   *
+   * @param dump the mapping dump
+   * @param type type of the source identifiers.
+   * @param sourceColumn column of the source identifiers (0-based)
+   * @param targetColumn column of the Entrez gene ids (0-based)
+   * @param taxonColumn column of the NCBI taxonomy id or <code>-1</code>
+   * @param taxon only lines with this taxonomy id are imported (ignored, if
+   *        <code>taxonColumn</code> is <code>-1</code>).
+   * @param file target file
+   * @throws IOException
+   */
+  public static void importDump(File dump, IdentifierType type, int sourceColumn, int targetColumn,
+      int taxonColumn, String taxon, File file) throws IOException {
+    Map<String, Integer> mapping = new HashMap<String, Integer>();
+    InputStream in = new FileInputStream(dump);
+    if (dump.getName().toLowerCase().endsWith(".gz")) {
+      in = new GZIPInputStream(in);
+    }
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF8));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.length() == 0 || line.charAt(0) == '#') {
+          continue;
+        }
+        String[] cells = line.split("\t", -1);
+        if (cells.length <= Math.max(Math.max(sourceColumn, targetColumn), taxonColumn)
+            || (taxonColumn >= 0 && !cells[taxonColumn].trim().equals(taxon))) {
+          continue;
+        }
+        Integer geneID = null;
+        for (String target : cells[targetColumn].split(";")) {
+          try {
+            geneID = Integer.valueOf(target.trim());
+            break;
+          } catch (NumberFormatException e) {
+            // e.g., '-' or empty cell
+          }
+        }
+        if (geneID == null || geneID.intValue() <= 0) {
+          continue;
+        }
+        for (String source : cells[sourceColumn].split(";")) {
+          source = source.trim();
+          if (source.length() > 0 && !source.equals("-") && !mapping.containsKey(source)) {
+            mapping.put(source, geneID);
+          }
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    write(mapping, type, file);
+  }
+
+  /**
+   * Applies the same normalization as the mapper for the given type (e.g.,
+   * {@link de.zbit.mapper.RefSeq2GeneIDMapper#trimVersionNumberFromRefSeq(String)}
+   * strips version suffixes, like '.5' of 'NM_000546.5') and upper-cases the
+   * result. The rule is repeated here, because loading the RefSeq mapper
+   * class queries the NCBI server, while stores must work offline.
+   *
+   * @param type type of the source identifier, may be <code>null</code>.
+   * @param sourceID
+   * @return the normalized form of <code>sourceID</code>, as it is stored in
+   *         the file.
+   */
+  public static String normalize(IdentifierType type, String sourceID) {
+    String id = sourceID.trim();
+    if (type == IdentifierType.RefSeq) {
+      int version = id.indexOf('.');
+      if (version > 0) {
+        id = id.substring(0, version);
+      }
+    }
+    return id.toUpperCase(Locale.ENGLISH);
+  }
+
+  /**
+   * Compares the mapped bytes with <code>key</code> (unsigned, byte-wise).
+   */
+  private static int compare(MappedByteBuffer buffer, int offset, int length, byte[] key, int keyOffset, int keyLength) {
+    int n = Math.min(length, keyLength);
+    for (int i = 0; i < n; i++) {
+      int c = (buffer.get(offset + i) & 0xff) - (key[keyOffset + i] & 0xff);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return length - keyLength;
+  }
+
+  /**
+   * Compares <code>length</code> bytes from <code>offset</code> in
+   * <code>a</code> with <code>key</code> (unsigned, byte-wise).
+   */
+  private static int compare(byte[] a, int offset, int length, byte[] key) {
+    int n = Math.min(length, key.length);
+    for (int i = 0; i < n; i++) {
+      int c = (a[offset + i] & 0xff) - (key[i] & 0xff);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return length - key.length;
+  }
+
+  /**
+   * Imports a local mapping dump.
+   *
+   * @param args dump file, source identifier type, source column, target
+   *        column, store file and, optionally, taxonomy column and taxonomy
+   *        id.
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    IdentifierType type = null;
+    if (args.length == 5 || args.length == 7) {
+      try {
+        type = IdentifierType.valueOf(args[1]);
+      } catch (IllegalArgumentException e) {
+        log.log(Level.SEVERE, "Unknown identifier type '" + args[1] + "'.", e);
+      }
+    }
+    if (type == null) {
+      log.severe("Usage: MappingStore <dump> <type> <sourceColumn> <targetColumn> <store> "
+        + "[<taxonColumn> <taxonID>], with type one of " + Arrays.toString(IdentifierType.values()) + ".");
+      return;
+    }
+    importDump(new File(args[0]), type, Integer.parseInt(args[2]), Integer.parseInt(args[3]),
+      args.length > 5 ? Integer.parseInt(args[5]) : -1, args.length > 5 ? args[6] : null, new File(args[4]));
+  }
+
+}
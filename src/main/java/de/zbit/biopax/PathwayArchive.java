@@ -0,0 +1,527 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import de.zbit.io.FileTools;
+
+/**
+ * Writes the documents of a multi-pathway conversion directly into a single
+ * zip or tar.gz archive, instead of writing one file per pathway and
+ * packing them afterwards.
+ *
+ * <p>Each entry is compressed completely in the thread that calls
+ * {@link #addEntry(String, byte[])}. Only appending the already compressed
+ * bytes to the archive is serialized. Thus, multiple threads can compress
+ * their entries in parallel. In tar.gz archives, every entry is a separate
+ * gzip member, which is still a valid gzip stream.
+ *
+ * <p>The format is chosen by the file extension, see {@link #isArchive(String)}.
+ *
+ * @version $Rev$
+ */
+public abstract class PathwayArchive implements Closeable {
+
+  public static final Logger log = Logger.getLogger(PathwayArchive.class.getName());
+
+  /**
+   * Default compression level (as for {@link Deflater#setLevel(int)}).
+   */
+  public static final int DEFAULT_LEVEL = 6;
+
+  /**
+   * Size of the output buffer.
+   */
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * The archive file.
+   */
+  private final File file;
+
+  /**
+   * Compression level, from 0 (none) to 9 (best).
+   */
+  protected final int level;
+
+  /**
+   * The (buffered) archive file. Must only be accessed while holding the
+   * lock on this object.
+   */
+  private final OutputStream out;
+
+  /**
+   * Number of bytes written to {@link #out}.
+   */
+  protected long written = 0;
+
+  /**
+   * Lower case names of all entries, to keep them unique.
+   */
+  private final Set<String> names = new HashSet<String>();
+
+  private boolean closed = false;
+
+  /**
+   * @param file
+   * @param level
+   * @throws IOException
+   */
+  protected PathwayArchive(File file, int level) throws IOException {
+    if (level < 0 || level > 9) {
+      throw new IllegalArgumentException("Invalid compression level " + level + ".");
+    }
+    this.file = file;
+    this.level = level;
+    if (file.getParentFile() != null) {
+      file.getParentFile().mkdirs();
+    }
+    out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+  }
+
+  /**
+   * @param fileName
+   * @return <code>true</code> if the given file name ends with ".zip",
+   *         ".tar.gz" or ".tgz" (case insensitive).
+   */
+  public static boolean isArchive(String fileName) {
+    if (fileName == null) {
+      return false;
+    }
+    String name = fileName.toLowerCase();
+    return name.endsWith(".zip") || name.endsWith(".tar.gz") || name.endsWith(".tgz");
+  }
+
+  /**
+   * Creates a new, empty archive. An existing file is overwritten.
+   *
+   * @param file must end with an extension, that is accepted by
+   *        {@link #isArchive(String)}.
+   * @param level compression level, from 0 (none) to 9 (best).
+   * @return the archive.
+   * @throws IOException if the file could not be created.
+   */
+  public static PathwayArchive create(File file, int level) throws IOException {
+    String name = file.getName().toLowerCase();
+    if (name.endsWith(".zip")) {
+      return new Zip(file, level);
+    } else if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+      return new TarGz(file, level);
+    }
+    throw new IOException("Unknown archive format of '" + file + "'.");
+  }
+
+  /**
+   * Compresses the given data in the calling thread and appends it as a new
+   * entry. If an entry with the same name (ignoring case) has already been
+   * added, a suffix is appended to the file name ("_2", "_3", ...).
+   *
+   * @param name path of the entry in the archive.
+   * @param data the uncompressed content.
+   * @return the actual name of the entry.
+   * @throws IOException
+   */
+  public String addEntry(String name, byte[] data) throws IOException {
+    String unique = reserveName(name);
+    byte[] compressed = compress(unique, data);
+    synchronized (this) {
+      if (closed) {
+        throw new IOException("Archive '" + file + "' has already been closed.");
+      }
+      append(unique, data, compressed);
+    }
+    return unique;
+  }
+
+  /**
+   * @param name
+   * @return <code>name</code> or, if it is already in use, <code>name</code>
+   *         with a suffix.
+   */
+  private String reserveName(String name) {
+    synchronized (names) {
+      String unique = name;
+      for (int i = 2; !names.add(unique.toLowerCase()); i++) {
+        String extension = FileTools.getExtension(name);
+        unique = FileTools.removeFileExtension(name) + "_" + i
+            + (extension != null && extension.length() > 0 ? "." + extension : "");
+      }
+      return unique;
+    }
+  }
+
+  /**
+   * Writes the remaining archive structures and closes the file.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+    log.fine("Wrote " + names.size() + " entries to '" + file + "'.");
+  }
+
+  /**
+   * @return the archive file.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Compresses one entry. Called without any lock.
+   *
+   * @param name
+   * @param data
+   * @return the bytes, that are later passed to
+   *         {@link #append(String, byte[], byte[])}.
+   * @throws IOException
+   */
+  protected abstract byte[] compress(String name, byte[] data) throws IOException;
+
+  /**
+   * Appends a compressed entry. Called while holding the lock on this archive.
+   *
+   * @param name
+   * @param data the uncompressed data.
+   * @param compressed the result of {@link #compress(String, byte[])}.
+   * @throws IOException
+   */
+  protected abstract void append(String name, byte[] data, byte[] compressed) throws IOException;
+
+  /**
+   * Writes everything that follows the last entry. Called while holding the
+   * lock on this archive.
+   *
+   * @throws IOException
+   */
+  protected abstract void finish() throws IOException;
+
+  /**
+   * Writes to the archive file. Must only be called while holding the lock
+   * on this archive.
+   */
+  protected void write(byte[] b) throws IOException {
+    out.write(b);
+    written += b.length;
+  }
+
+  /**
+   * Zip archive with deflated entries. Sizes and checksums are known before
+   * an entry is written, so no data descriptors are required. Archives are
+   * limited to 65535 entries and 4 GB (no Zip64).
+   */
+  private static class Zip extends PathwayArchive {
+
+    /**
+     * Central directory record of one entry.
+     */
+    private static class Record {
+      byte[] name;
+      long crc, compressedSize, size, offset;
+    }
+
+    /**
+     * General purpose flag, that marks UTF-8 encoded names.
+     */
+    private static final int UTF8 = 1 << 11;
+
+    /**
+     * Deflate.
+     */
+    private static final int METHOD = 8;
+
+    private final List<Record> records = new ArrayList<Record>();
+
+    /**
+     * Modification time of all entries, in MS-DOS format.
+     */
+    private final int dosTime, dosDate;
+
+    Zip(File file, int level) throws IOException {
+      super(file, level);
+      Calendar c = Calendar.getInstance();
+      dosTime = (c.get(Calendar.HOUR_OF_DAY) << 11) | (c.get(Calendar.MINUTE) << 5)
+          | (c.get(Calendar.SECOND) >> 1);
+      dosDate = ((Math.max(c.get(Calendar.YEAR), 1980) - 1980) << 9)
+          | ((c.get(Calendar.MONTH) + 1) << 5) | c.get(Calendar.DAY_OF_MONTH);
+    }
+
+    @Override
+    protected byte[] compress(String name, byte[] data) throws IOException {
+      Deflater deflater = new Deflater(level, true);
+      try {
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (!deflater.finished()) {
+          int n = deflater.deflate(buffer);
+          bytes.write(buffer, 0, n);
+        }
+        return bytes.toByteArray();
+      } finally {
+        deflater.end();
+      }
+    }
+
+    @Override
+    protected void append(String name, byte[] data, byte[] compressed) throws IOException {
+      if (records.size() >= 0xFFFF || written + compressed.length >= 0xFFFFFFFFL) {
+        throw new IOException("Too many or too large entries for a zip archive.");
+      }
+      Record r = new Record();
+      r.name = name.getBytes("UTF-8");
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      r.crc = crc.getValue();
+      r.compressedSize = compressed.length;
+      r.size = data.length;
+      r.offset = written;
+
+      LittleEndian header = new LittleEndian(30 + r.name.length);
+      header.putInt(0x04034b50);
+      header.putShort(20);
+      header.putShort(UTF8);
+      header.putShort(METHOD);
+      header.putShort(dosTime);
+      header.putShort(dosDate);
+      header.putInt(r.crc);
+      header.putInt(r.compressedSize);
+      header.putInt(r.size);
+      header.putShort(r.name.length);
+      header.putShort(0);
+      header.put(r.name);
+      write(header.bytes);
+      write(compressed);
+      records.add(r);
+    }
+
+    @Override
+    protected void finish() throws IOException {
+      long start = written;
+      for (Record r : records) {
+        LittleEndian entry = new LittleEndian(46 + r.name.length);
+        entry.putInt(0x02014b50);
+        entry.putShort(20);
+        entry.putShort(20);
+        entry.putShort(UTF8);
+        entry.putShort(METHOD);
+        entry.putShort(dosTime);
+        entry.putShort(dosDate);
+        entry.putInt(r.crc);
+        entry.putInt(r.compressedSize);
+        entry.putInt(r.size);
+        entry.putShort(r.name.length);
+        entry.putShort(0); // extra field
+        entry.putShort(0); // comment
+        entry.putShort(0); // disk
+        entry.putShort(0); // internal attributes
+        entry.putInt(0); // external attributes
+        entry.putInt(r.offset);
+        entry.put(r.name);
+        write(entry.bytes);
+      }
+      if (written >= 0xFFFFFFFFL) {
+        throw new IOException("Too large central directory for a zip archive.");
+      }
+      LittleEndian end = new LittleEndian(22);
+      end.putInt(0x06054b50);
+      end.putShort(0);
+      end.putShort(0);
+      end.putShort(records.size());
+      end.putShort(records.size());
+      end.putInt(written - start);
+      end.putInt(start);
+      end.putShort(0);
+      write(end.bytes);
+    }
+  }
+
+  /**
+   * Gzip compressed tar archive (GNU format, for long names).
+   */
+  private static class TarGz extends PathwayArchive {
+
+    private static final int BLOCK = 512;
+
+    /**
+     * Modification time of all entries, in seconds.
+     */
+    private final long mtime = System.currentTimeMillis() / 1000;
+
+    TarGz(File file, int level) throws IOException {
+      super(file, level);
+    }
+
+    @Override
+    protected byte[] compress(String name, byte[] data) throws IOException {
+      byte[] utf8 = name.getBytes("UTF-8");
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+      GZIPOutputStream gzip = gzip(bytes);
+      if (utf8.length > 100) {
+        // GNU extension: the name is the content of a preceding pseudo entry
+        byte[] longName = new byte[utf8.length + 1];
+        System.arraycopy(utf8, 0, longName, 0, utf8.length);
+        writeEntry(gzip, header("././@LongLink".getBytes("UTF-8"), longName.length, 'L'), longName);
+      }
+      writeEntry(gzip, header(utf8, data.length, '0'), data);
+      gzip.close();
+      return bytes.toByteArray();
+    }
+
+    @Override
+    protected void append(String name, byte[] data, byte[] compressed) throws IOException {
+      write(compressed);
+    }
+
+    @Override
+    protected void finish() throws IOException {
+      // Two empty blocks mark the end of the archive
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      GZIPOutputStream gzip = gzip(bytes);
+      gzip.write(new byte[2 * BLOCK]);
+      gzip.close();
+      write(bytes.toByteArray());
+    }
+
+    /**
+     * @return a gzip stream with the compression level of this archive.
+     */
+    private GZIPOutputStream gzip(OutputStream out) throws IOException {
+      return new GZIPOutputStream(out, BUFFER_SIZE) {
+        {
+          def.setLevel(level);
+        }
+      };
+    }
+
+    /**
+     * Writes the header, the data and the padding to the next block.
+     */
+    private static void writeEntry(OutputStream out, byte[] header, byte[] data) throws IOException {
+      out.write(header);
+      out.write(data);
+      int padding = (BLOCK - data.length % BLOCK) % BLOCK;
+      out.write(new byte[padding]);
+    }
+
+    /**
+     * @param name at most the first 100 bytes are used.
+     * @param size
+     * @param type
+     * @return a tar header block for a regular file.
+     */
+    private byte[] header(byte[] name, long size, char type) throws IOException {
+      byte[] header = new byte[BLOCK];
+      System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+      octal(header, 100, 8, 0644);
+      octal(header, 108, 8, 0);
+      octal(header, 116, 8, 0);
+      octal(header, 124, 12, size);
+      octal(header, 136, 12, mtime);
+      header[156] = (byte) type;
+      byte[] magic = "ustar  ".getBytes("US-ASCII");
+      System.arraycopy(magic, 0, header, 257, magic.length);
+
+      // The checksum is computed with blanks in the checksum field
+      for (int i = 148; i < 156; i++) {
+        header[i] = ' ';
+      }
+      long checksum = 0;
+      for (byte b : header) {
+        checksum += b & 0xFF;
+      }
+      octal(header, 148, 7, checksum);
+      return header;
+    }
+
+    /**
+     * Writes <code>value</code> as zero padded octal number of
+     * <code>length - 1</code> digits, followed by a NUL byte.
+     */
+    private static void octal(byte[] header, int offset, int length, long value) throws IOException {
+      String s = Long.toOctalString(value);
+      if (s.length() > length - 1) {
+        throw new IOException("Entry too large for a tar archive.");
+      }
+      for (int i = 0; i < length - 1; i++) {
+        int j = i - (length - 1 - s.length());
+        header[offset + i] = (byte) (j < 0 ? '0' : s.charAt(j));
+      }
+      header[offset + length - 1] = 0;
+    }
+  }
+
+  /**
+   * Fixed size buffer for little endian zip structures.
+   */
+  private static class LittleEndian {
+    final byte[] bytes;
+    int pos = 0;
+
+    LittleEndian(int size) {
+      bytes = new byte[size];
+    }
+
+    void putShort(int v) {
+      bytes[pos++] = (byte) v;
+      bytes[pos++] = (byte) (v >>> 8);
+    }
+
+    void putInt(long v) {
+      putShort((int) (v & 0xFFFF));
+      putShort((int) ((v >>> 16) & 0xFFFF));
+    }
+
+    void put(byte[] b) {
+      System.arraycopy(b, 0, bytes, pos, b.length);
+      pos += b.length;
+    }
+  }
+
+}
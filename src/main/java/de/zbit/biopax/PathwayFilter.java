@@ -0,0 +1,176 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the BioPAX pathways that should be converted, by name, RDF id,
+ * data source or a regular expression. Pathways are selected before any
+ * conversion work is done (see
+ * {@link BioPAX2KGML#getListOfPathways(org.biopax.paxtools.model.Model, PathwayFilter)}),
+ * so that only few pathways of large files can be converted quickly.
+ *
+ * <p>A pathway is accepted if it matches all criteria that are set:
+ * <ul>
+ * <li>its name (ignoring case) or its RDF id (or the local part of it,
+ * behind '#') is one of the given pathways,</li>
+ * <li>the name of one of its data sources contains one of the given data
+ * sources (ignoring case) and</li>
+ * <li>the pattern is found in its name or RDF id.</li>
+ * </ul>
+ *
+ * @version $Rev$
+ */
+public class PathwayFilter {
+
+  /**
+   * Separates multiple values in {@link #split(String)}.
+   */
+  public static final String SEPARATOR = ";";
+
+  /**
+   * Names and RDF ids (lower case).
+   */
+  private final Set<String> pathways = new HashSet<String>();
+
+  /**
+   * Data source names (lower case).
+   */
+  private final Set<String> dataSources = new HashSet<String>();
+
+  private final Pattern pattern;
+
+  /**
+   * @param pathways names or RDF ids, may be <code>null</code>.
+   * @param dataSources data source names, may be <code>null</code>.
+   * @param regex a regular expression for names and RDF ids, may be
+   *        <code>null</code>.
+   * @throws java.util.regex.PatternSyntaxException if the regular expression
+   *         is invalid.
+   */
+  public PathwayFilter(Collection<String> pathways, Collection<String> dataSources, String regex) {
+    addAll(this.pathways, pathways);
+    addAll(this.dataSources, dataSources);
+    this.pattern = regex != null && regex.length() > 0 ? Pattern.compile(regex) : null;
+  }
+
+  /**
+   * @param values multiple values, separated by {@link #SEPARATOR}, may be
+   *        <code>null</code>.
+   * @return the trimmed, non-empty values.
+   */
+  public static Set<String> split(String values) {
+    Set<String> set = new HashSet<String>();
+    if (values != null) {
+      for (String value : values.split(SEPARATOR)) {
+        if (value.trim().length() > 0) {
+          set.add(value.trim());
+        }
+      }
+    }
+    return set;
+  }
+
+  /**
+   * @return <code>true</code> if no criterion is set, i.e., all pathways are
+   *         accepted.
+   */
+  public boolean isEmpty() {
+    return pathways.isEmpty() && dataSources.isEmpty() && pattern == null;
+  }
+
+  /**
+   * @param name the name of the pathway, may be <code>null</code>.
+   * @param rdfId the RDF id of the pathway, may be <code>null</code>.
+   * @param sources the names of all data sources of the pathway, may be
+   *        <code>null</code>.
+   * @return <code>true</code> if the pathway matches all criteria.
+   */
+  public boolean accepts(String name, String rdfId, Collection<String> sources) {
+    if (!pathways.isEmpty()) {
+      String local = rdfId != null && rdfId.indexOf('#') >= 0 ? rdfId.substring(rdfId.lastIndexOf('#') + 1) : null;
+      if (!contains(pathways, name) && !contains(pathways, rdfId) && !contains(pathways, local)) {
+        return false;
+      }
+    }
+    if (!dataSources.isEmpty() && !matchesDataSource(sources)) {
+      return false;
+    }
+    if (pattern != null && !(name != null && pattern.matcher(name).find())
+        && !(rdfId != null && pattern.matcher(rdfId).find())) {
+      return false;
+    }
+    return true;
+  }
+
+  /* (non-Javadoc)
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "[pathways=" + pathways + ", dataSources=" + dataSources
+        + ", pattern=" + pattern + "]";
+  }
+
+  /**
+   * @return <code>true</code> if the name of any source contains any
+   *         {@link #dataSources}.
+   */
+  private boolean matchesDataSource(Collection<String> sources) {
+    if (sources != null) {
+      for (String source : sources) {
+        if (source != null) {
+          String s = source.toLowerCase(Locale.ENGLISH);
+          for (String dataSource : dataSources) {
+            if (s.contains(dataSource)) {
+              return true;
+            }
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean contains(Set<String> set, String value) {
+    return value != null && set.contains(value.trim().toLowerCase(Locale.ENGLISH));
+  }
+
+  private static void addAll(Set<String> set, Collection<String> values) {
+    if (values != null) {
+      for (String value : values) {
+        if (value != null && value.trim().length() > 0) {
+          set.add(value.trim().toLowerCase(Locale.ENGLISH));
+        }
+      }
+    }
+  }
+
+}
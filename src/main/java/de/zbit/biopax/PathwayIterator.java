@@ -0,0 +1,330 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+
+import org.biopax.paxtools.model.BioPAXElement;
+import org.biopax.paxtools.model.Model;
+
+import de.zbit.kegg.parser.pathway.Pathway;
+import de.zbit.util.Species;
+
+/**
+ * Converts BioPAX pathways to KGML on demand, i.e., each call of
+ * {@link #next()} converts only as many BioPAX pathways as necessary to
+ * return the next non-empty KGML pathway. Callers may thus process and
+ * release each pathway, before the next one is converted.
+ *
+ * <p>Empty pathways are dropped, unless there is only one pathway. The batch
+ * identifier resolution (see {@link BioPAX2KGML#startIdentifierResolution(Model)})
+ * is started with the first conversion and finished as soon as all
+ * pathways have been converted or the iterator is {@link #close()}d. The
+ * mappers and caches of the model belong to this iterator and are only
+ * installed for the current thread while a pathway is converted (see
+ * {@link BioPAX2KGML#enterConversion(BioPAX2KGML.ConversionState)}). Thus,
+ * different models can be converted in parallel and an iterator, that is
+ * not consumed completely, never blocks other conversions.
+ *
+ * <p>If a {@link ConversionManifest} is {@link #setManifest(ConversionManifest) set},
+ * pathways that are up to date are skipped without any conversion.
+ *
+ * <p>If a {@link ConversionSupervisor} is {@link #setSupervisor(ConversionSupervisor) set},
+ * each pathway is converted within its budget. Pathways that fail or
+ * exceed their budget are reported and skipped.
+ *
+ * @param <T> the BioPAX pathway class.
+ * @version $Rev$
+ */
+public abstract class PathwayIterator<T> implements Iterator<Pathway> {
+
+  private final BioPAX2KGML converter;
+  private final Model m;
+  private final Iterator<T> sources;
+
+  /**
+   * Mappers and caches of the model.
+   */
+  private final BioPAX2KGML.ConversionState state = new BioPAX2KGML.ConversionState();
+
+  /**
+   * The species of the last converted pathway (or the default species).
+   */
+  private Species species;
+
+  private boolean started = false;
+  private boolean finished = false;
+
+  /**
+   * Number of converted BioPAX pathways.
+   */
+  private int count = 0;
+
+  /**
+   * Number of BioPAX pathways, that have been selected by a filter.
+   */
+  private int selectedCount = 0;
+
+  /**
+   * The next non-empty pathway, if it has already been converted.
+   */
+  private Pathway next = null;
+
+  /**
+   * The first pathway, if it is empty. It is only returned, if there is no
+   * other pathway.
+   */
+  private Pathway firstEmpty = null;
+
+  /**
+   * Skips pathways that are up to date, may be <code>null</code>.
+   */
+  private ConversionManifest manifest = null;
+
+  /**
+   * Isolates failing pathways, may be <code>null</code>.
+   */
+  private ConversionSupervisor supervisor = null;
+
+  /**
+   * If <code>false</code>, identifiers are resolved one by one, instead of
+   * one batch for the whole model.
+   */
+  private boolean batchResolution = true;
+
+  /**
+   * @param converter
+   * @param m
+   * @param pathways the BioPAX pathways to convert.
+   * @param species default species, may be <code>null</code>.
+   */
+  protected PathwayIterator(BioPAX2KGML converter, Model m, Collection<T> pathways, Species species) {
+    this.converter = converter;
+    this.m = m;
+    this.sources = pathways != null ? pathways.iterator() : Collections.<T>emptySet().iterator();
+    this.species = species;
+  }
+
+  /**
+   * Enables the incremental conversion. Each BioPAX pathway, that is up to
+   * date according to the manifest, is skipped. All other pathways are
+   * {@link ConversionManifest#register(Pathway, String, String) registered}
+   * after their conversion. Must be called before the iteration starts.
+   *
+   * @param manifest may be <code>null</code> to convert all pathways.
+   */
+  public void setManifest(ConversionManifest manifest) {
+    this.manifest = manifest;
+  }
+
+  /**
+   * Enables the supervised conversion. Each pathway is converted with the
+   * budget of the supervisor, failures are reported and the pathway is
+   * skipped. Must be called before the iteration starts.
+   *
+   * @param supervisor may be <code>null</code> to pass all failures to the
+   *        caller.
+   */
+  public void setSupervisor(ConversionSupervisor supervisor) {
+    this.supervisor = supervisor;
+  }
+
+  /**
+   * @param batchResolution if <code>false</code>, identifiers are not
+   *        collected for the whole model in advance (see
+   *        {@link BioPAX2KGML#startIdentifierResolution(Model, boolean)}).
+   *        Must be called before the iteration starts.
+   */
+  void setBatchResolution(boolean batchResolution) {
+    this.batchResolution = batchResolution;
+  }
+
+  /**
+   * @param selectedCount the number of BioPAX pathways, that have been
+   *        selected by a filter.
+   */
+  void setSelectedCount(int selectedCount) {
+    this.selectedCount = selectedCount;
+  }
+
+  /**
+   * @return the number of BioPAX pathways, that have been selected by the
+   *         filter of {@link BioPAX2KGML#createPathwayIterator(Model, String, Species, PathwayFilter, boolean)}
+   *         (<code>0</code> if no filter has been applied). In contrast to
+   *         {@link BioPAX2KGML#getListOfPathways(Model, PathwayFilter)}, the
+   *         model is not filtered again.
+   */
+  public int getSelectedCount() {
+    return selectedCount;
+  }
+
+  /**
+   * @param pathway
+   * @return the species of the given pathway or <code>null</code>, if it can
+   *         not be determined.
+   */
+  protected abstract Species determineSpecies(T pathway);
+
+  /**
+   * @param pathway
+   * @param species
+   * @return the KGML pathway for the given BioPAX pathway.
+   */
+  protected abstract Pathway convert(T pathway, Species species);
+
+  /* (non-Javadoc)
+   * @see java.util.Iterator#hasNext()
+   */
+  @Override
+  public boolean hasNext() {
+    BioPAX2KGML.ConversionState previous = BioPAX2KGML.enterConversion(state);
+    try {
+      while (next == null && !finished) {
+        if (sources.hasNext()) {
+          final T source = sources.next();
+          String id = null, hash = null;
+          if (manifest != null && source instanceof BioPAXElement) {
+            id = ((BioPAXElement) source).getRDFId();
+            hash = manifest.hash(m, (BioPAXElement) source);
+            if (manifest.isUpToDate(id, hash)) {
+              continue;
+            }
+          }
+          if (!started) {
+            started = true;
+            // all identifiers are collected first and resolved with the mappers
+            converter.startIdentifierResolution(m, batchResolution);
+            if (species != null) {
+              BioPAX2KGML.initalizeMappers(species);
+            }
+          }
+          Pathway keggPW;
+          if (supervisor != null) {
+            String name = source instanceof BioPAXElement ? ((BioPAXElement) source).getRDFId() : null;
+            keggPW = supervisor.run(name, new Callable<Pathway>() {
+              @Override
+              public Pathway call() {
+                return convertWithSpecies(source);
+              }
+            });
+            if (keggPW == null) {
+              continue;
+            }
+          } else {
+            keggPW = convertWithSpecies(source);
+          }
+          count++;
+          if (hash != null && keggPW != null) {
+            manifest.register(keggPW, id, hash);
+          }
+          if (!isEmpty(keggPW)) {
+            next = keggPW;
+          }
+          firstEmpty = (count == 1 && next == null) ? keggPW : null;
+        } else {
+          close();
+          if (count == 1) {
+            next = firstEmpty;
+          }
+          firstEmpty = null;
+        }
+      }
+    } finally {
+      BioPAX2KGML.exitConversion(previous);
+    }
+    return next != null;
+  }
+
+  /**
+   * Determines the species of the given pathway, initializes the mappers
+   * if it changed and converts the pathway.
+   *
+   * @param source
+   * @return the KGML pathway.
+   */
+  private Pathway convertWithSpecies(T source) {
+    Species newSpecies = determineSpecies(source);
+    if (newSpecies != null && !newSpecies.equals(species)) {
+      BioPAX2KGML.initalizeMappers(newSpecies);
+      species = newSpecies;
+    }
+    return convert(source, species);
+  }
+
+  /* (non-Javadoc)
+   * @see java.util.Iterator#next()
+   */
+  @Override
+  public Pathway next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Pathway keggPW = next;
+    next = null;
+    return keggPW;
+  }
+
+  /* (non-Javadoc)
+   * @see java.util.Iterator#remove()
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stops the conversion and finishes the identifier resolution, e.g.,
+   * flushes the {@link ResolutionStore}. Should be called, if the iterator
+   * is not consumed completely.
+   */
+  public void close() {
+    if (!finished) {
+      finished = true;
+      if (started) {
+        BioPAX2KGML.ConversionState previous = BioPAX2KGML.enterConversion(state);
+        try {
+          BioPAX2KGML.finishIdentifierResolution();
+        } finally {
+          BioPAX2KGML.exitConversion(previous);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param keggPW
+   * @return <code>true</code> if the pathway has neither entries, nor
+   *         reactions, nor relations.
+   */
+  private static boolean isEmpty(Pathway keggPW) {
+    return keggPW == null
+        || (!keggPW.isSetEntries() && !keggPW.isSetReactions() && !keggPW.isSetRelations());
+  }
+
+}
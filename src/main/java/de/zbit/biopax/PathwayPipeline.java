@@ -0,0 +1,288 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.biopax.paxtools.model.Model;
+
+import de.zbit.kegg.parser.pathway.Pathway;
+import de.zbit.util.Species;
+
+/**
+ * Converts the pathways of a BioPAX {@link Model} to KGML in a background
+ * thread, while the calling thread consumes the converted pathways, e.g.,
+ * translates and writes them to SBML. Thus, the conversion of the next
+ * pathways overlaps with the processing of the previous ones.
+ *
+ * <p>Converted pathways are passed through a bounded queue. If the consumer
+ * is slower than the conversion, the conversion waits, so that at most
+ * <code>capacity</code> converted, but not yet consumed pathways are held
+ * in memory.
+ *
+ * <p>Pathways are returned in the same order, as by
+ * {@link BioPAX2KGML#createPathwaysFromModel(Model, String, Species)}.
+ * Pipelines must be {@link #close()}d, if they are not consumed completely.
+ *
+ * @version $Rev$
+ */
+public class PathwayPipeline implements Iterator<Pathway> {
+
+  public static final Logger log = Logger.getLogger(PathwayPipeline.class.getName());
+
+  /**
+   * Default number of converted pathways, that may wait for the consumer.
+   */
+  public static final int DEFAULT_CAPACITY = 16;
+
+  /**
+   * Marks the end of the conversion in the {@link #queue}.
+   */
+  private static final Object END = new Object();
+
+  /**
+   * Converted pathways, followed by {@link #END}.
+   */
+  private final BlockingQueue<Object> queue;
+
+  private final Thread producer;
+
+  /**
+   * The next element of the {@link #queue}, if it has already been taken.
+   */
+  private Object next = null;
+
+  /**
+   * Set, if the conversion failed.
+   */
+  private volatile Throwable failure = null;
+
+  private volatile boolean closed = false;
+
+  /**
+   * Starts converting the pathways of the given model.
+   *
+   * @param m
+   * @param fileName the BioPAX file, may be <code>null</code>.
+   * @param species default species, may be <code>null</code>.
+   * @param capacity maximum number of converted pathways, that may wait for
+   *        the consumer.
+   */
+  public PathwayPipeline(Model m, String fileName, Species species, int capacity) {
+    this(m, fileName, species, null, capacity);
+  }
+
+  /**
+   * Starts converting the pathways of the given model, that are not up to
+   * date according to the <code>manifest</code>.
+   *
+   * @param m
+   * @param fileName the BioPAX file, may be <code>null</code>.
+   * @param species default species, may be <code>null</code>.
+   * @param manifest may be <code>null</code> to convert all pathways.
+   * @param capacity maximum number of converted pathways, that may wait for
+   *        the consumer.
+   */
+  public PathwayPipeline(Model m, String fileName, Species species, ConversionManifest manifest,
+    int capacity) {
+    this(m, fileName, species, manifest, null, capacity);
+  }
+
+  /**
+   * Starts converting the pathways of the given model, that are not up to
+   * date according to the <code>manifest</code>. Each pathway is converted
+   * within the budget of the <code>supervisor</code>, failing pathways are
+   * skipped.
+   *
+   * @param m
+   * @param fileName the BioPAX file, may be <code>null</code>.
+   * @param species default species, may be <code>null</code>.
+   * @param manifest may be <code>null</code> to convert all pathways.
+   * @param supervisor may be <code>null</code> to pass all failures to the
+   *        consumer.
+   * @param capacity maximum number of converted pathways, that may wait for
+   *        the consumer.
+   */
+  public PathwayPipeline(Model m, String fileName, Species species, ConversionManifest manifest,
+    ConversionSupervisor supervisor, int capacity) {
+    this(createIterator(m, fileName, species, manifest, supervisor), fileName, capacity);
+  }
+
+  /**
+   * Starts converting the pathways of the given iterator, e.g., a selection
+   * of pathways (see
+   * {@link BioPAX2KGML#createPathwayIterator(Model, String, Species, PathwayFilter, boolean)}).
+   * The iterator is closed, when the conversion ends.
+   *
+   * @param pathways
+   * @param name names the converting thread, may be <code>null</code>.
+   * @param capacity maximum number of converted pathways, that may wait for
+   *        the consumer.
+   */
+  public PathwayPipeline(final PathwayIterator<?> pathways, String name, int capacity) {
+    queue = new ArrayBlockingQueue<Object>(Math.max(1, capacity));
+    producer = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          try {
+            while (pathways.hasNext()) {
+              Pathway keggPW = pathways.next();
+              if (closed) {
+                throw new InterruptedException();
+              }
+              queue.put(keggPW);
+            }
+          } finally {
+            pathways.close();
+          }
+        } catch (InterruptedException e) {
+          // closed by the consumer
+        } catch (Throwable e) {
+          failure = e;
+        } finally {
+          if (!closed) {
+            try {
+              queue.put(END);
+            } catch (InterruptedException e) {
+              // closed by the consumer
+            }
+          }
+        }
+      }
+    }, "PathwayPipeline-" + (name != null ? name : "model"));
+    producer.setDaemon(true);
+    producer.start();
+  }
+
+  /**
+   * @return an iterator over all pathways of the model, that are not up to
+   *         date according to the <code>manifest</code>.
+   */
+  private static PathwayIterator<?> createIterator(Model m, String fileName, Species species,
+    ConversionManifest manifest, ConversionSupervisor supervisor) {
+    PathwayIterator<?> it = BioPAX2KGML.createPathwayIterator(m, fileName, species);
+    it.setManifest(manifest);
+    it.setSupervisor(supervisor);
+    return it;
+  }
+
+  /* (non-Javadoc)
+   * @see java.util.Iterator#hasNext()
+   */
+  @Override
+  public boolean hasNext() {
+    if (next == null && !closed) {
+      try {
+        next = queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        close();
+      }
+    }
+    if (next == END && failure != null) {
+      Throwable t = failure;
+      failure = null;
+      if (t instanceof RuntimeException) {
+        throw (RuntimeException) t;
+      } else if (t instanceof Error) {
+        throw (Error) t;
+      }
+      throw new IllegalStateException(t);
+    }
+    return next != null && next != END;
+  }
+
+  /* (non-Javadoc)
+   * @see java.util.Iterator#next()
+   */
+  @Override
+  public Pathway next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Pathway p = (Pathway) next;
+    next = null;
+    return p;
+  }
+
+  /**
+   * Moves all pathways, that have already been converted, to the given
+   * collection, without waiting for further pathways.
+   *
+   * @param c
+   * @param maxElements
+   * @return the number of moved pathways.
+   */
+  public int drainTo(Collection<Pathway> c, int maxElements) {
+    int count = 0;
+    while (count < maxElements && !closed) {
+      if (next == null) {
+        next = queue.poll();
+      }
+      if (next == null || next == END) {
+        break;
+      }
+      c.add((Pathway) next);
+      next = null;
+      count++;
+    }
+    return count;
+  }
+
+  /* (non-Javadoc)
+   * @see java.util.Iterator#remove()
+   */
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Stops the conversion and releases all pathways, that have not yet been
+   * consumed.
+   */
+  public void close() {
+    if (!closed) {
+      closed = true;
+      producer.interrupt();
+      queue.clear();
+      next = null;
+      try {
+        producer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        log.log(Level.FINE, "Interrupted while stopping the conversion.", e);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,679 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.zbit.mapper.AbstractMapper;
+import de.zbit.util.Species;
+
+/**
+ * A persistent cache of gene symbol to Entrez gene id and Entrez gene id to
+ * KEGG id resolutions (including identifiers that could not be resolved),
+ * that survives across runs.
+ *
+ * <p>There is one append-only file per species and version of the mapping
+ * data (see {@link #getDataVersion(AbstractMapper)}). The name of the file
+ * contains a hash of the version and its header the version itself, so a
+ * new file is used as soon as the version changes. On opening, the file is
+ * memory-mapped and only an index of record offsets is built; identifiers
+ * and KEGG ids are read from the mapped file on demand. New resolutions are
+ * appended at the end of the file.
+ *
+ * <p>Like the {@link de.zbit.sbvc.io.KeggInfoStore}, one file may be shared
+ * by several processes: records are buffered in memory and only appended
+ * while holding an exclusive {@link FileLock}, so records of different
+ * processes never interleave. An incomplete record of an aborted run is
+ * cut off, while opening the file, before it is mapped (a mapped file can
+ * not be truncated on all platforms). Files, that other processes may have
+ * mapped, are never truncated below their last complete record or
+ * replaced: if a file has an invalid header (e.g., it is corrupt or written
+ * for another version with the same hash), it is left alone and the next
+ * free name (with a suffix "_2", "_3", ...) is used instead. Files of
+ * previous versions may be deleted, once no process uses them.
+ *
+ * @version $Rev$
+ */
+public class ResolutionStore {
+
+  public static final Logger log = Logger.getLogger(ResolutionStore.class.getName());
+
+  private static final int MAGIC = 0x53425253; // "SBRS"
+  private static final int FORMAT = 1;
+  private static final byte SYMBOL_RECORD = 1;
+  private static final byte GENE_ID_RECORD = 2;
+
+  /**
+   * Number of file names, that are tried for one version.
+   */
+  private static final int MAX_CANDIDATES = 10;
+
+  /**
+   * Already opened stores, by directory and species.
+   */
+  private static final Map<File, ResolutionStore> stores = new HashMap<File, ResolutionStore>();
+
+  static {
+    // Pending resolutions must not get lost
+    Runtime.getRuntime().addShutdownHook(new Thread("ResolutionStore-flush") {
+      @Override
+      public void run() {
+        synchronized (stores) {
+          for (ResolutionStore store : stores.values()) {
+            store.close();
+          }
+        }
+      }
+    });
+  }
+
+  private final File file;
+  private final String dataVersion;
+
+  /**
+   * The content of the file, when it was opened (may be <code>null</code>).
+   */
+  private MappedByteBuffer buffer = null;
+
+  /**
+   * Records are flushed, as soon as this many bytes are pending.
+   */
+  private static final int FLUSH_THRESHOLD = 8192;
+
+  /**
+   * Offsets of symbol records in {@link #buffer} (behind the record type,
+   * so never <code>0</code>), by hash.
+   */
+  private int[] symbolIndex = new int[0];
+
+  /**
+   * Offsets of gene id records in {@link #buffer} (behind the record type),
+   * by hash.
+   */
+  private int[] geneIDIndex = new int[0];
+
+  /**
+   * Resolutions that have been added since the file was opened.
+   */
+  private final ConcurrentMap<String, Integer> newGeneIDs = new ConcurrentHashMap<String, Integer>();
+  private final ConcurrentMap<Integer, String> newKEGGIDs = new ConcurrentHashMap<Integer, String>();
+
+  /**
+   * Records that have not yet been appended to {@link #file}.
+   */
+  private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+  /**
+   * Serializes records to {@link #pending}, <code>null</code> if the file
+   * is no longer updated.
+   */
+  private DataOutputStream out;
+
+  /**
+   * Appends {@link #pending} records to {@link #file}.
+   */
+  private FileOutputStream append;
+
+  /**
+   * Opens (or creates) a store.
+   *
+   * @param directory
+   * @param name the name of the file for the data version, without
+   *        extension.
+   * @param dataVersion the version of the mapping data. Files, that have
+   *        been written for another version, are skipped.
+   * @throws IOException if no file could be opened.
+   */
+  private ResolutionStore(File directory, String name, String dataVersion) throws IOException {
+    this.dataVersion = dataVersion;
+    File file = null;
+    for (int i = 1; file == null; i++) {
+      if (i > MAX_CANDIDATES) {
+        throw new IOException("No valid resolution cache for '" + name + "' in '" + directory + "'.");
+      }
+      File candidate = new File(directory, name + (i > 1 ? "_" + i : "") + ".dat");
+      if (open(candidate)) {
+        file = candidate;
+      } else {
+        log.info("Skipping invalid resolution cache '" + candidate + "'.");
+      }
+    }
+    this.file = file;
+    log.fine("Read " + count(symbolIndex) + " symbol and " + count(geneIDIndex) + " gene id resolutions from '"
+        + file + "'.");
+    append = new FileOutputStream(file, true);
+    out = new DataOutputStream(pending);
+  }
+
+  /**
+   * Maps the file and builds the indices, while holding an exclusive lock.
+   * A new file is initialized with a header.
+   *
+   * @param file
+   * @return <code>false</code> if the file is not valid for the
+   *         {@link #dataVersion}. It is not modified in this case.
+   * @throws IOException
+   */
+  private boolean open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      FileLock lock = raf.getChannel().lock();
+      try {
+        long length = raf.length();
+        if (length == 0) {
+          raf.writeInt(MAGIC);
+          raf.writeInt(FORMAT);
+          raf.writeUTF(dataVersion);
+          return true;
+        } else if (length > Integer.MAX_VALUE) {
+          return false;
+        }
+        Offsets offsets = readOffsets(raf);
+        if (offsets == null) {
+          return false;
+        }
+        if (offsets.end < length) {
+          // e.g., an incomplete record of an aborted run. No other process
+          // is appending and none has mapped more than the complete records.
+          raf.setLength(offsets.end);
+        }
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, offsets.end);
+        buildIndices(offsets);
+        return true;
+      } finally {
+        if (lock.isValid()) {
+          lock.release();
+        }
+      }
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Returns the store for the given species. Stores are opened only once
+   * per JVM (or if the data version changes).
+   *
+   * @param directory
+   * @param species
+   * @param dataVersion the version of the mapping data, e.g., a combination
+   *        of {@link #getDataVersion(AbstractMapper)} of all mappers.
+   * @return the store.
+   * @throws IOException
+   */
+  public static ResolutionStore getStore(File directory, Species species, String dataVersion) throws IOException {
+    String name = "resolutions_" + species.getNCBITaxonID();
+    File key = new File(directory, name);
+    synchronized (stores) {
+      ResolutionStore store = stores.get(key);
+      if (store == null || !store.dataVersion.equals(dataVersion)) {
+        if (store != null) {
+          store.close();
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+          throw new IOException("Could not create directory '" + directory + "'.");
+        }
+        store = new ResolutionStore(directory, name + '_' + Integer.toHexString(dataVersion.hashCode()), dataVersion);
+        stores.put(key, store);
+      }
+      return store;
+    }
+  }
+
+  /**
+   * @param mapper
+   * @return a fingerprint of the given mapper and its local mapping files.
+   */
+  public static String getDataVersion(AbstractMapper<?, ?> mapper) {
+    StringBuilder version = new StringBuilder(mapper.getClass().getName());
+    version.append(':').append(mapper.size());
+    String[] files = mapper.getLocalFiles();
+    if (files == null) {
+      files = new String[] {mapper.getLocalFile()};
+    }
+    for (String f : files) {
+      if (f != null) {
+        File local = new File(f);
+        version.append(':').append(f);
+        if (local.exists()) {
+          version.append(':').append(local.length()).append(':').append(local.lastModified());
+        }
+      }
+    }
+    return version.toString();
+  }
+
+  /**
+   * @param symbol
+   * @return the Entrez gene id, <code>0</code> if the symbol could not be
+   *         resolved or <code>null</code> if it is unknown to this store.
+   */
+  public Integer getGeneID(CharSequence symbol) {
+    String key = GeneSymbolIndex.normalize(symbol);
+    Integer geneID = newGeneIDs.get(key);
+    if (geneID == null && symbolIndex.length > 0) {
+      int mask = symbolIndex.length - 1;
+      int slot = GeneSymbolIndex.mix(key.hashCode()) & mask;
+      int offset;
+      while ((offset = symbolIndex[slot]) != 0) {
+        if (symbolEquals(offset, key)) {
+          int length = buffer.getShort(offset) & 0xffff;
+          return buffer.getInt(offset + 2 + length * 2);
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+    return geneID;
+  }
+
+  /**
+   * @param geneID
+   * @return the KEGG id, an empty string if the gene id could not be
+   *         resolved or <code>null</code> if it is unknown to this store.
+   */
+  public String getKEGGID(int geneID) {
+    String keggID = newKEGGIDs.get(geneID);
+    if (keggID == null && geneIDIndex.length > 0) {
+      int mask = geneIDIndex.length - 1;
+      int slot = GeneSymbolIndex.mix(geneID) & mask;
+      int offset;
+      while ((offset = geneIDIndex[slot]) != 0) {
+        if (buffer.getInt(offset) == geneID) {
+          return readString(offset + 4);
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+    return keggID;
+  }
+
+  /**
+   * Remembers a resolved gene symbol.
+   *
+   * @param symbol
+   * @param geneID <code>0</code> if the symbol could not be resolved.
+   */
+  public void putGeneID(CharSequence symbol, int geneID) {
+    String key = GeneSymbolIndex.normalize(symbol);
+    if (key.length() == 0 || key.length() > 0xffff || getGeneID(key) != null) {
+      return;
+    }
+    synchronized (this) {
+      if (newGeneIDs.putIfAbsent(key, geneID) == null && out != null) {
+        try {
+          out.writeByte(SYMBOL_RECORD);
+          out.writeShort(key.length());
+          out.writeChars(key);
+          out.writeInt(geneID);
+          if (pending.size() >= FLUSH_THRESHOLD) {
+            appendPending();
+          }
+        } catch (IOException e) {
+          disable(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Remembers a resolved gene id.
+   *
+   * @param geneID
+   * @param keggID <code>null</code> if the gene id could not be resolved.
+   */
+  public void putKEGGID(int geneID, String keggID) {
+    if (keggID == null) {
+      keggID = "";
+    }
+    if (keggID.length() > 0xffff || getKEGGID(geneID) != null) {
+      return;
+    }
+    synchronized (this) {
+      if (newKEGGIDs.putIfAbsent(geneID, keggID) == null && out != null) {
+        try {
+          out.writeByte(GENE_ID_RECORD);
+          out.writeInt(geneID);
+          out.writeShort(keggID.length());
+          out.writeChars(keggID);
+          if (pending.size() >= FLUSH_THRESHOLD) {
+            appendPending();
+          }
+        } catch (IOException e) {
+          disable(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes all pending resolutions to the file.
+   */
+  public synchronized void flush() {
+    if (out != null) {
+      try {
+        appendPending();
+      } catch (IOException e) {
+        disable(e);
+      }
+    }
+  }
+
+  /**
+   * Appends all {@link #pending} records to the file, while holding an
+   * exclusive lock on it.
+   *
+   * @throws IOException
+   */
+  private void appendPending() throws IOException {
+    if (pending.size() == 0) {
+      return;
+    }
+    FileLock lock = append.getChannel().lock();
+    try {
+      pending.writeTo(append);
+    } finally {
+      lock.release();
+    }
+    pending.reset();
+  }
+
+  /**
+   * Flushes and closes the file. Resolutions are still answered from
+   * memory, but no longer written.
+   */
+  public synchronized void close() {
+    if (out != null) {
+      try {
+        appendPending();
+        append.close();
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Could not close resolution cache '" + file + "'.", e);
+      }
+      out = null;
+    }
+  }
+
+  /**
+   * @return the file of this store.
+   */
+  File getFile() {
+    return file;
+  }
+
+  /**
+   * @return the number of resolutions in this store.
+   */
+  public int size() {
+    return newGeneIDs.size() + newKEGGIDs.size() + count(symbolIndex) + count(geneIDIndex);
+  }
+
+  /**
+   * Stops writing to the file after an error.
+   */
+  private void disable(IOException e) {
+    log.log(Level.WARNING, "Could not write resolution cache '" + file + "', it is no longer updated.", e);
+    try {
+      append.close();
+    } catch (IOException e1) {
+      // already broken
+    }
+    out = null;
+    pending.reset();
+  }
+
+  /**
+   * Validates the header and collects the offsets of all complete records.
+   * The file is read sequentially (not mapped), so that an incomplete last
+   * record can still be cut off.
+   *
+   * @return the record offsets or <code>null</code> if the file is not
+   *         valid for the current {@link #dataVersion}.
+   * @throws IOException
+   */
+  private Offsets readOffsets(RandomAccessFile raf) throws IOException {
+    raf.seek(0);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel())));
+    Offsets offsets = new Offsets();
+    int pos;
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+        return null;
+      }
+      byte[] version = new byte[in.readUnsignedShort()];
+      in.readFully(version);
+      if (!Arrays.equals(version, utf(dataVersion))) {
+        return null;
+      }
+      pos = 10 + version.length;
+    } catch (EOFException e) {
+      return null;
+    }
+    offsets.end = pos;
+
+    try {
+      while (true) {
+        int type = in.read();
+        if (type == SYMBOL_RECORD) {
+          int length = in.readUnsignedShort();
+          skipFully(in, length * 2 + 4);
+          offsets.addSymbol(pos + 1);
+          pos += 3 + length * 2 + 4;
+        } else if (type == GENE_ID_RECORD) {
+          skipFully(in, 4);
+          int length = in.readUnsignedShort();
+          skipFully(in, length * 2);
+          offsets.addGeneID(pos + 1);
+          pos += 7 + length * 2;
+        } else {
+          // End of file or an invalid record
+          break;
+        }
+        offsets.end = pos;
+      }
+    } catch (EOFException e) {
+      // Incomplete last record
+    }
+    return offsets;
+  }
+
+  /**
+   * Builds the indices of the mapped file.
+   *
+   * @param offsets offsets of all records in the mapped file.
+   */
+  private void buildIndices(Offsets offsets) {
+    int[] symbols = offsets.symbols, geneIDs = offsets.geneIDs;
+    int symbolCount = offsets.symbolCount, geneIDCount = offsets.geneIDCount;
+
+    // Build the indices (later records win)
+    symbolIndex = new int[capacity(symbolCount)];
+    for (int i = 0; i < symbolCount; i++) {
+      int offset = symbols[i];
+      int slot = GeneSymbolIndex.mix(hashString(offset)) & (symbolIndex.length - 1);
+      while (symbolIndex[slot] != 0 && !sameSymbol(symbolIndex[slot], offset)) {
+        slot = (slot + 1) & (symbolIndex.length - 1);
+      }
+      symbolIndex[slot] = offset;
+    }
+    geneIDIndex = new int[capacity(geneIDCount)];
+    for (int i = 0; i < geneIDCount; i++) {
+      int offset = geneIDs[i];
+      int geneID = buffer.getInt(offset);
+      int slot = GeneSymbolIndex.mix(geneID) & (geneIDIndex.length - 1);
+      while (geneIDIndex[slot] != 0 && buffer.getInt(geneIDIndex[slot]) != geneID) {
+        slot = (slot + 1) & (geneIDIndex.length - 1);
+      }
+      geneIDIndex[slot] = offset;
+    }
+  }
+
+  private static void skipFully(DataInputStream in, int n) throws IOException {
+    while (n > 0) {
+      int skipped = in.skipBytes(n);
+      if (skipped <= 0) {
+        if (in.read() < 0) {
+          throw new EOFException();
+        }
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the string at <code>offset</code> equals
+   *         <code>key</code>.
+   */
+  private boolean symbolEquals(int offset, String key) {
+    int length = buffer.getShort(offset) & 0xffff;
+    if (length != key.length()) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (buffer.getChar(offset + 2 + i * 2) != key.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return <code>true</code> if the strings at both offsets are equal.
+   */
+  private boolean sameSymbol(int offset1, int offset2) {
+    int length = buffer.getShort(offset1) & 0xffff;
+    if (length != (buffer.getShort(offset2) & 0xffff)) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (buffer.getChar(offset1 + 2 + i * 2) != buffer.getChar(offset2 + 2 + i * 2)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return {@link String#hashCode()} of the string at <code>offset</code>.
+   */
+  private int hashString(int offset) {
+    int length = buffer.getShort(offset) & 0xffff;
+    int h = 0;
+    for (int i = 0; i < length; i++) {
+      h = 31 * h + buffer.getChar(offset + 2 + i * 2);
+    }
+    return h;
+  }
+
+  private String readString(int offset) {
+    char[] chars = new char[buffer.getShort(offset) & 0xffff];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = buffer.getChar(offset + 2 + i * 2);
+    }
+    return new String(chars);
+  }
+
+  private static int capacity(int count) {
+    if (count == 0) {
+      return 0;
+    }
+    int capacity = 16;
+    while (capacity < count * 2) {
+      capacity <<= 1;
+    }
+    return capacity;
+  }
+
+  private static int count(int[] index) {
+    int count = 0;
+    for (int offset : index) {
+      if (offset != 0) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return the modified UTF-8 encoding of <code>s</code>, as written by
+   *         {@link DataOutputStream#writeUTF(String)} (without length).
+   */
+  private static byte[] utf(String s) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      new DataOutputStream(bytes).writeUTF(s);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+    return Arrays.copyOfRange(bytes.toByteArray(), 2, bytes.size());
+  }
+
+  /**
+   * Offsets of all complete records of a file (behind the record type).
+   */
+  private static class Offsets {
+    int[] symbols = new int[64], geneIDs = new int[64];
+    int symbolCount = 0, geneIDCount = 0;
+
+    /**
+     * End of the last complete record.
+     */
+    int end;
+
+    void addSymbol(int offset) {
+      if (symbolCount == symbols.length) {
+        symbols = Arrays.copyOf(symbols, symbolCount * 2);
+      }
+      symbols[symbolCount++] = offset;
+    }
+
+    void addGeneID(int offset) {
+      if (geneIDCount == geneIDs.length) {
+        geneIDs = Arrays.copyOf(geneIDs, geneIDCount * 2);
+      }
+      geneIDs[geneIDCount++] = offset;
+    }
+  }
+
+}
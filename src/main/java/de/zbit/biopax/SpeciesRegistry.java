@@ -0,0 +1,224 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.zbit.util.Species;
+
+/**
+ * An immutable registry of {@link Species}, with hash indices by NCBI
+ * taxonomy id, scientific name, common name (and synonyms) and KEGG
+ * abbreviation. All names are compared case-insensitively.
+ *
+ * <p>The list of all known species is read only once per JVM, see
+ * {@link #getInstance()}. The {@link #DEFAULT_SPECIES} are always
+ * contained, even if this list can not be read.
+ *
+ * @version $Rev$
+ */
+public final class SpeciesRegistry {
+
+  public static final Logger log = Logger.getLogger(SpeciesRegistry.class.getName());
+
+  /**
+   * Species that are always available. They take precedence over other
+   * species with the same identifiers.
+   */
+  public static final List<Species> DEFAULT_SPECIES = Collections.unmodifiableList(Arrays.asList(
+    new Species("Homo sapiens", "_HUMAN", "Human", "hsa", 9606),
+    new Species("Mus musculus", "_MOUSE", "Mouse", "mmu", 10090),
+    new Species("Rattus norvegicus", "_RAT", "Rat", "rno", 10116)));
+
+  /**
+   * The registry of all known species.
+   */
+  private static SpeciesRegistry instance = null;
+
+  private final List<Species> species;
+  private final Map<Integer, Species> byTaxonID = new HashMap<Integer, Species>();
+  private final Map<String, Species> byScientificName = new HashMap<String, Species>();
+  private final Map<String, Species> byCommonName = new HashMap<String, Species>();
+  private final Map<String, Species> byKeggAbbr = new HashMap<String, Species>();
+
+  /**
+   * Creates a new registry. If multiple species share an identifier, the
+   * first one wins.
+   *
+   * @param species
+   */
+  public SpeciesRegistry(Collection<Species> species) {
+    List<Species> list = new ArrayList<Species>(species.size());
+    for (Species s : species) {
+      if (s == null || (s.getNCBITaxonID() != null && byTaxonID.containsKey(s.getNCBITaxonID()))) {
+        continue;
+      }
+      list.add(s);
+      if (s.getNCBITaxonID() != null) {
+        byTaxonID.put(s.getNCBITaxonID(), s);
+      }
+      put(byScientificName, s.getScientificName(), s);
+      put(byCommonName, s.getCommonName(), s);
+      if (s.getSynonyms() != null) {
+        for (String synonym : s.getSynonyms()) {
+          put(byCommonName, synonym, s);
+        }
+      }
+      put(byKeggAbbr, s.getKeggAbbr(), s);
+    }
+    this.species = Collections.unmodifiableList(list);
+  }
+
+  /**
+   * Returns the registry of all known species. The species list is read
+   * only the first time this method is called.
+   *
+   * @return the registry of all known species.
+   */
+  public static synchronized SpeciesRegistry getInstance() {
+    if (instance == null) {
+      List<Species> all = new ArrayList<Species>(DEFAULT_SPECIES);
+      try {
+        all.addAll(Species.generateSpeciesDataStructure());
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Could not read the list of species, only the default species are available.", e);
+      } catch (RuntimeException e) {
+        // e.g., the list is missing from the class path
+        log.log(Level.WARNING, "Could not read the list of species, only the default species are available.", e);
+      }
+      instance = new SpeciesRegistry(all);
+      log.fine("Registered " + instance.size() + " species.");
+    }
+    return instance;
+  }
+
+  /**
+   * @param taxonID
+   * @return the species or <code>null</code>.
+   */
+  public Species getByTaxonID(Integer taxonID) {
+    return taxonID != null ? byTaxonID.get(taxonID) : null;
+  }
+
+  /**
+   * @param taxonID the NCBI taxonomy id as string
+   * @return the species or <code>null</code>.
+   */
+  public Species getByTaxonID(String taxonID) {
+    if (taxonID == null) {
+      return null;
+    }
+    try {
+      return getByTaxonID(Integer.valueOf(taxonID.trim()));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param name
+   * @return the species or <code>null</code>.
+   */
+  public Species getByScientificName(String name) {
+    return get(byScientificName, name);
+  }
+
+  /**
+   * @param name common name or any synonym.
+   * @return the species or <code>null</code>.
+   */
+  public Species getByCommonName(String name) {
+    return get(byCommonName, name);
+  }
+
+  /**
+   * @param keggAbbr e.g., "hsa".
+   * @return the species or <code>null</code>.
+   */
+  public Species getByKeggAbbr(String keggAbbr) {
+    return get(byKeggAbbr, keggAbbr);
+  }
+
+  /**
+   * @param name scientific name, common name, synonym or KEGG abbreviation.
+   * @return the species or <code>null</code>.
+   */
+  public Species getByName(String name) {
+    Species s = getByScientificName(name);
+    if (s == null) {
+      s = getByCommonName(name);
+    }
+    if (s == null) {
+      s = getByKeggAbbr(name);
+    }
+    return s;
+  }
+
+  /**
+   * @param s
+   * @return <code>true</code> if this registry contains the given species.
+   */
+  public boolean contains(Species s) {
+    return s != null && s.getNCBITaxonID() != null && byTaxonID.get(s.getNCBITaxonID()) == s;
+  }
+
+  /**
+   * @return all registered species (unmodifiable).
+   */
+  public List<Species> getSpecies() {
+    return species;
+  }
+
+  /**
+   * @return the number of registered species.
+   */
+  public int size() {
+    return species.size();
+  }
+
+  private static void put(Map<String, Species> index, String key, Species s) {
+    if (key != null && key.trim().length() > 0) {
+      key = key.trim().toLowerCase(Locale.ENGLISH);
+      if (!index.containsKey(key)) {
+        index.put(key, s);
+      }
+    }
+  }
+
+  private static Species get(Map<String, Species> index, String key) {
+    return key != null ? index.get(key.trim().toLowerCase(Locale.ENGLISH)) : null;
+  }
+
+}
@@ -0,0 +1,193 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import de.zbit.util.DatabaseIdentifierTools;
+import de.zbit.util.DatabaseIdentifiers;
+import de.zbit.util.DatabaseIdentifiers.IdentifierDatabases;
+
+/**
+ * Memoizes the resolution of BioPAX xrefs to {@link IdentifierDatabases}
+ * and identifiers.
+ *
+ * <p>There are only a few dozen distinct database names in a BioPAX file,
+ * so their resolution is cached globally. Xref objects are shared among
+ * many entities and pathways, so an instance of this class caches the
+ * resolution per xref object, for the duration of one model conversion.
+ * All methods may be called concurrently.
+ *
+ * @version $Rev$
+ */
+public class XrefCache {
+
+  /**
+   * Maximum number of cached database names (in case of broken files with
+   * arbitrary database names).
+   */
+  private static final int MAX_DATABASE_NAMES = 1024;
+
+  /**
+   * Database name (as given in the xref) to resolution.
+   */
+  private static final ConcurrentMap<String, DatabaseName> databaseNames = new ConcurrentHashMap<String, DatabaseName>();
+
+  /**
+   * Xref object to resolution.
+   */
+  private final ConcurrentMap<Object, ResolvedXref> xrefs = new ConcurrentHashMap<Object, ResolvedXref>();
+
+  /**
+   * Resolves an xref object, using the cache.
+   *
+   * @param xref the BioPAX xref object (any level)
+   * @param db the database name of the xref
+   * @param id the identifier of the xref
+   * @return the resolution (never <code>null</code>, see
+   *         {@link ResolvedXref#isSet()}).
+   */
+  public ResolvedXref resolve(Object xref, String db, String id) {
+    ResolvedXref resolved = xrefs.get(xref);
+    if (resolved == null) {
+      resolved = resolve(db, id);
+      xrefs.putIfAbsent(xref, resolved);
+    }
+    return resolved;
+  }
+
+  /**
+   * Resolves a database name and identifier, without caching the xref.
+   * Names of the form "LL" (PID) are treated as Entrez gene and the KEGG
+   * database of "KEGG" xrefs is inferred from the identifier.
+   *
+   * @param db
+   * @param id
+   * @return the resolution (never <code>null</code>, see
+   *         {@link ResolvedXref#isSet()}).
+   */
+  public static ResolvedXref resolve(String db, String id) {
+    if (id == null || id.isEmpty()) {
+      return ResolvedXref.NONE;
+    }
+    DatabaseName name = getDatabaseName(db);
+    if (name.database != null) {
+      return new ResolvedXref(name.database, id);
+    } else if (name.kegg) {
+      IdentifierDatabases keggDB = DatabaseIdentifierTools.getKEGGdbFromID(id);
+      if (keggDB != null) {
+        return new ResolvedXref(keggDB, id);
+      }
+    }
+    return ResolvedXref.NONE;
+  }
+
+  /**
+   * @param db a database name, as given in an xref.
+   * @return the database or <code>null</code> if the name is unknown or
+   *         does not unambiguously define a database (e.g., "KEGG").
+   */
+  public static IdentifierDatabases getDatabase(String db) {
+    return getDatabaseName(db).database;
+  }
+
+  private static DatabaseName getDatabaseName(String db) {
+    if (db == null || db.isEmpty()) {
+      return DatabaseName.UNKNOWN;
+    }
+    DatabaseName name = databaseNames.get(db);
+    if (name == null) {
+      IdentifierDatabases database = null;
+      boolean kegg = db.equalsIgnoreCase("kegg");
+      if (!kegg) {
+        database = DatabaseIdentifiers.getDatabase(db);
+        if (database == null && db.equalsIgnoreCase("LL")) {
+          // special case in PID database files
+          database = IdentifierDatabases.EntrezGene;
+        }
+      }
+      name = new DatabaseName(database, kegg);
+      if (databaseNames.size() < MAX_DATABASE_NAMES) {
+        databaseNames.putIfAbsent(db, name);
+      }
+    }
+    return name;
+  }
+
+  /**
+   * Resolution of a database name.
+   */
+  private static class DatabaseName {
+    static final DatabaseName UNKNOWN = new DatabaseName(null, false);
+
+    final IdentifierDatabases database;
+
+    /**
+     * The KEGG database must be inferred from the identifier.
+     */
+    final boolean kegg;
+
+    DatabaseName(IdentifierDatabases database, boolean kegg) {
+      this.database = database;
+      this.kegg = kegg;
+    }
+  }
+
+  /**
+   * The immutable resolution of an xref.
+   */
+  public static class ResolvedXref {
+
+    /**
+     * Xrefs that can not be resolved.
+     */
+    public static final ResolvedXref NONE = new ResolvedXref(null, null);
+
+    private final IdentifierDatabases database;
+    private final String id;
+
+    private ResolvedXref(IdentifierDatabases database, String id) {
+      this.database = database;
+      this.id = id;
+    }
+
+    /**
+     * @return <code>true</code> if the xref could be resolved.
+     */
+    public boolean isSet() {
+      return database != null;
+    }
+
+    public IdentifierDatabases getDatabase() {
+      return database;
+    }
+
+    public String getId() {
+      return id;
+    }
+  }
+
+}
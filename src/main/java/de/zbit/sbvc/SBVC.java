@@ -27,22 +27,48 @@ package de.zbit.sbvc;
 import static de.zbit.util.Utils.getMessage;
 
 import java.awt.Window;
-import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.PatternSyntaxException;
+
+import org.biopax.paxtools.model.Model;
+import org.sbml.jsbml.SBMLDocument;
+import org.sbml.jsbml.TidySBMLWriter;
 
 import de.zbit.AppConf;
 import de.zbit.Launcher;
 import de.zbit.biopax.BioPAX2KGML;
-import de.zbit.cache.InfoManagement;
+import de.zbit.biopax.ConversionManifest;
+import de.zbit.biopax.ConversionSupervisor;
+import de.zbit.biopax.FailureReport;
+import de.zbit.biopax.MapperCache;
+import de.zbit.biopax.PathwayArchive;
+import de.zbit.biopax.PathwayFilter;
+import de.zbit.biopax.PathwayIterator;
+import de.zbit.biopax.PathwayPipeline;
+import de.zbit.biopax.SpeciesRegistry;
 import de.zbit.gui.GUIOptions;
 import de.zbit.io.FileTools;
 import de.zbit.kegg.KEGGtranslatorOptions;
@@ -53,8 +79,13 @@ import de.zbit.kegg.api.cache.KeggInfoManagement;
 import de.zbit.kegg.gui.TranslatorUI;
 import de.zbit.kegg.io.AbstractKEGGtranslator;
 import de.zbit.kegg.io.KEGG2SBMLqual;
-import de.zbit.resources.Resource;
 import de.zbit.sbvc.gui.SBVCUI;
+import de.zbit.sbvc.io.BatchProgress;
+import de.zbit.sbvc.io.ConversionScheduler;
+import de.zbit.sbvc.io.ConversionServer;
+import de.zbit.sbvc.io.IncrementalKeggInfoManagement;
+import de.zbit.sbvc.io.InputFiles;
+import de.zbit.sbvc.io.KeggInfoStore;
 import de.zbit.sbvc.io.SBVCIOOptions;
 import de.zbit.util.Species;
 import de.zbit.util.Utils;
@@ -79,6 +110,89 @@ public class SBVC extends Launcher{
 	 */
 	private static final transient Logger log = Logger.getLogger(Translator.class.getName());
 
+	/**
+	 * Shared KEGG informations of all conversions, see {@link #getKeggInfoManager()}.
+	 */
+	private static IncrementalKeggInfoManagement keggInfoManager = null;
+
+	/**
+	 * File of the {@link KeggInfoStore}, may be shared with other processes.
+	 */
+	private static File keggInfoStoreFile = new File(KeggInfoStore.DEFAULT_FILE_NAME);
+
+	/**
+	 * Translates the pathways of all conversions in this JVM, i.e., of all
+	 * batch workers and server jobs, so that the number of translating
+	 * threads does not grow with the number of concurrent inputs. If all
+	 * threads are busy, the submitting thread translates itself.
+	 */
+	private static final ExecutorService translationPool = createTranslationPool();
+
+	/**
+	 * One translator per translating thread, see {@link #translationPool}.
+	 */
+	private static final ThreadLocal<KEGG2SBMLqual> translators = new ThreadLocal<KEGG2SBMLqual>() {
+		@Override
+		protected KEGG2SBMLqual initialValue() {
+			return createSBMLqualTranslator(getKeggInfoManager());
+		}
+	};
+
+	/**
+	 * Maximum number of converted pathways, that wait for their translation.
+	 */
+	private static int pathwayQueueSize = PathwayPipeline.DEFAULT_CAPACITY;
+
+	/**
+	 * Compression level of archive outputs.
+	 */
+	private static int compressionLevel = PathwayArchive.DEFAULT_LEVEL;
+
+	/**
+	 * If {@code true}, only pathways that have changed since the last
+	 * conversion into the same folder are translated.
+	 */
+	private static boolean incremental = false;
+
+	/**
+	 * Number of input files, that are converted at the same time in batch
+	 * mode.
+	 */
+	private static int workers = 2;
+
+	/**
+	 * Maximum time per pathway in seconds, 0 for no limit.
+	 */
+	private static int pathwayTimeout = 0;
+
+	/**
+	 * Maximum allocated memory (including garbage) per pathway in MB, 0 for
+	 * no limit.
+	 */
+	private static int pathwayAllocation = 0;
+
+	/**
+	 * Maximum number of waiting requests of the conversion server.
+	 */
+	private static int serverQueueSize = 16;
+
+	/**
+	 * Memory in MB, that may be reserved by running server jobs, 0 for a
+	 * default budget.
+	 */
+	private static int serverMemory = 0;
+
+	/**
+	 * Selects the pathways to convert, {@code null} to convert all pathways.
+	 */
+	private static PathwayFilter pathwayFilter = null;
+
+	/**
+	 * If {@code false}, all (selected) pathways of an input are merged into
+	 * one output.
+	 */
+	private static boolean splitMode = true;
+
 	public SBVC() {
 		// this(new String[0]);
 	}
@@ -90,21 +204,48 @@ public class SBVC extends Launcher{
 	@Override
 	public void commandLineMode(AppConf appConf) {
 		SBProperties props = appConf.getCmdArgs();
-		String folderName = SBVCIOOptions.OUTPUT.getValue(props).getPath();
-		String input = SBVCIOOptions.INPUT.getValue(props).getPath();
 		Integer speciesInput = SBVCIOOptions.SPECIES.getValue(props);
+		MapperCache.setMappingStoreDirectory(SBVCIOOptions.MAPPING_STORE.getValue(props));
+		BioPAX2KGML.setResolutionStoreDirectory(SBVCIOOptions.RESOLUTION_CACHE.getValue(props));
+		if (SBVCIOOptions.KEGG_CACHE.getValue(props) != null) {
+			keggInfoStoreFile = SBVCIOOptions.KEGG_CACHE.getValue(props);
+		}
+		KeggInfoManagement.offlineMode = SBVCIOOptions.KEGG_OFFLINE.getValue(props);
+		if (SBVCIOOptions.PATHWAY_QUEUE_SIZE.getValue(props) != null) {
+			pathwayQueueSize = SBVCIOOptions.PATHWAY_QUEUE_SIZE.getValue(props);
+		}
+		if (SBVCIOOptions.COMPRESSION_LEVEL.getValue(props) != null) {
+			compressionLevel = SBVCIOOptions.COMPRESSION_LEVEL.getValue(props);
+		}
+		incremental = SBVCIOOptions.INCREMENTAL.getValue(props);
+		if (SBVCIOOptions.WORKERS.getValue(props) != null) {
+			workers = SBVCIOOptions.WORKERS.getValue(props);
+		}
+		if (SBVCIOOptions.PATHWAY_TIMEOUT.getValue(props) != null) {
+			pathwayTimeout = SBVCIOOptions.PATHWAY_TIMEOUT.getValue(props);
+		}
+		if (SBVCIOOptions.PATHWAY_ALLOCATION.getValue(props) != null) {
+			pathwayAllocation = SBVCIOOptions.PATHWAY_ALLOCATION.getValue(props);
+		}
+		if (SBVCIOOptions.SERVER_QUEUE_SIZE.getValue(props) != null) {
+			serverQueueSize = SBVCIOOptions.SERVER_QUEUE_SIZE.getValue(props);
+		}
+		if (SBVCIOOptions.SERVER_MEMORY.getValue(props) != null) {
+			serverMemory = SBVCIOOptions.SERVER_MEMORY.getValue(props);
+		}
+		try {
+			pathwayFilter = new PathwayFilter(PathwayFilter.split(SBVCIOOptions.PATHWAYS.getValue(props)),
+				PathwayFilter.split(SBVCIOOptions.DATA_SOURCE.getValue(props)),
+				SBVCIOOptions.PATHWAY_PATTERN.getValue(props));
+		} catch (PatternSyntaxException e) {
+			log.severe("Invalid pathway pattern: " + e.getMessage());
+			return;
+		}
+		splitMode = SBVCIOOptions.SPLIT_MODE.getValue(props);
 
 		Species species = null;
 		if (speciesInput != null) {
-			int tax = speciesInput.intValue();
-			if (tax == 9606) {
-				species = new Species("Homo sapiens", "_HUMAN", "human", "hsa",9606);
-			} else if (tax == 10090) {
-				species = new Species("Mus musculus", "_MOUSE", "mouse", "mmu", 10090);
-			} else {
-				species = Species.getSpeciesWithTaxonomyIDInList(speciesInput, new BufferedReader(
-						new InputStreamReader(Resource.class.getResourceAsStream("speclist.txt"))), false);
-			}
+			species = SpeciesRegistry.getInstance().getByTaxonID(speciesInput);
 		}
 
 		if(species == null){
@@ -113,36 +254,472 @@ public class SBVC extends Launcher{
 			log.info("Entered species '" + species.getCommonName() + "' was identified.");
 		}
 
-		convertBioPAXToSBML(input, folderName, species);
+		if (SBVCIOOptions.SERVER_PORT.getValue(props) != null) {
+			serve(SBVCIOOptions.SERVER_PORT.getValue(props), species);
+			return;
+		}
+
+		String folderName = SBVCIOOptions.OUTPUT.getValue(props).getPath();
+		String input = SBVCIOOptions.INPUT.getValue(props).getPath();
+		File inputFile = new File(input);
+		if (InputFiles.isBatch(inputFile)) {
+			try {
+				convertBioPAXToSBML(InputFiles.resolve(inputFile), new File(folderName), species, workers);
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Could not determine the input files of '" + input + "'.", e);
+			}
+		} else {
+			convertBioPAXToSBML(input, folderName, species);
+		}
+	}
+
+	/**
+	 * Runs a {@link ConversionServer} until the JVM is terminated. All
+	 * requests are converted in this JVM, so that mappers, KEGG informations
+	 * and compiled code are reused. The current options (e.g., pathway
+	 * filters and budgets) apply to all requests. Up to {@link #workers}
+	 * requests are converted at the same time, further requests wait in a
+	 * {@link ConversionScheduler} or are rejected.
+	 * 
+	 * @param port
+	 * @param defaultSpecies used for requests without a species, may be
+	 * {@code null}.
+	 */
+	public void serve(int port, final Species defaultSpecies) {
+		final ConversionServer server;
+		ConversionScheduler scheduler = null;
+		try {
+			scheduler = new ConversionScheduler(new ConversionServer.Converter() {
+				@Override
+				public int convert(File input, File outputFolder, Species species) {
+					return convertBioPAXToSBML(input.getPath(), outputFolder.getPath(),
+						species != null ? species : defaultSpecies);
+				}
+			}, workers, serverQueueSize, ((long) serverMemory) << 20);
+			server = new ConversionServer(port, scheduler);
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Could not start the conversion server on port " + port + ".", e);
+			scheduler.stop();
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.stop();
+			}
+		}, "ConversionServer-shutdown"));
+		server.start();
+		try {
+			server.awaitShutdown();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			server.stop();
+		}
+	}
+
+	/**
+	 * Converts all given files within this JVM, so that the mappers and caches
+	 * are loaded only once. Each file is converted into its own subfolder of
+	 * <code>outputFolder</code>, named like the file. Up to <code>workers</code>
+	 * files are processed at the same time: while one model is converted to
+	 * KGML, the others are read or translated (see
+	 * {@link PathwayIterator}). A failure only affects the file, in which it
+	 * occurs. A summary of the throughput is logged at the end.
+	 * 
+	 * <p>The progress is recorded durably in the output folder (see
+	 * {@link BatchProgress}). If the batch is started again after it has been
+	 * aborted, completed files are skipped. Files that have been converted
+	 * partially continue with their first pathway, that has not been written
+	 * completely (see {@link ConversionManifest}).
+	 * 
+	 * <p>Each pathway is converted with the configured time and allocation budget
+	 * (see {@link ConversionSupervisor}). Pathways and files that fail are
+	 * recorded in a {@link FailureReport} in the output folder, and the batch
+	 * continues with the next ones.
+	 * 
+	 * @param inputs <code>BioPAX</code> files.
+	 * @param outputFolder
+	 * @param species
+	 * @param workers number of files, that are processed at the same time.
+	 * @return the number of files that could not be converted.
+	 */
+	public int convertBioPAXToSBML(List<File> inputs, File outputFolder, final Species species, int workers) {
+		long start = System.currentTimeMillis();
+		log.info("Converting " + inputs.size() + " files with " + workers + " workers.");
+		outputFolder.mkdirs();
+		final BatchProgress progress;
+		try {
+			progress = new BatchProgress(outputFolder);
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Could not read the batch progress in '" + outputFolder + "'.", e);
+			return inputs.size();
+		}
+		final FailureReport report = new FailureReport(new File(outputFolder, FailureReport.FILE_NAME));
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(workers, inputs.size())));
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		Set<String> usedNames = new HashSet<String>();
+		long bytes = 0;
+		int skipped = 0, pathways = 0;
+		for (final File input : inputs) {
+			// Inputs with the same name (in different folders) get a suffix
+			String name = FileTools.removeFileExtension(input.getName());
+			String unique = name;
+			for (int i = 2; !usedNames.add(unique.toLowerCase()); i++) {
+				unique = name + "_" + i;
+			}
+			final File output = new File(outputFolder, unique);
+			try {
+				if (progress.isCompleted(input, output)) {
+					skipped++;
+					pathways += progress.getPathwayCount(input);
+					results.add(null);
+					continue;
+				}
+			} catch (IOException e) {
+				log.log(Level.FINE, "Could not determine the progress of '" + input + "'.", e);
+			}
+			bytes += input.length();
+			results.add(pool.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() {
+					output.mkdirs();
+					// Pathways that have already been written are skipped
+					ConversionSupervisor supervisor = createSupervisor(input.getPath(), report);
+					int written = convertBioPAXToSBML(input.getPath(), output.getPath(), species, true, supervisor);
+					if (supervisor.getFailureCount() == 0) {
+						// Otherwise, failed pathways are tried again, if the batch is restarted
+						progress.setCompleted(input, output, written);
+					}
+					return written;
+				}
+			}));
+		}
+		pool.shutdown();
+		if (skipped > 0) {
+			log.info("Skipping " + skipped + " files, that have already been converted.");
+		}
+
+		int failed = 0;
+		for (int i = 0; i < inputs.size(); i++) {
+			if (results.get(i) == null) {
+				continue;
+			}
+			try {
+				pathways += results.get(i).get();
+			} catch (ExecutionException e) {
+				failed++;
+				log.log(Level.SEVERE, "Could not convert '" + inputs.get(i) + "'.", e.getCause());
+				report.add(inputs.get(i).getPath(), null, "input", e.getCause().toString(), -1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				pool.shutdownNow();
+				progress.close();
+				report.close();
+				log.warning("Batch conversion has been interrupted.");
+				return inputs.size() - i;
+			}
+		}
+		progress.close();
+		report.close();
+		if (report.getCount() > 0) {
+			log.warning(report.getCount() + " failures have been recorded in '" + report.getFile() + "'.");
+		}
+
+		double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000d;
+		int converted = inputs.size() - skipped - failed;
+		log.info(String.format("Converted %d of %d files (%.1f MB, %d skipped) to %d pathways in %.1f s: " +
+				"%.2f files/s, %.2f MB/s.", converted, inputs.size() - skipped, bytes / 1048576d, skipped,
+				pathways, seconds, converted / seconds, bytes / 1048576d / seconds));
+		return failed;
 	}
 
 	/**
 	 * 
 	 * @param input <code>BioPAX</code> file.
 	 * @param outputFolderName Result folder in which the created file should be put.
-	 * @param splitMode {@code true} if separate files for each pathway should
-	 * be created. {@code false} to create a single output file.
-	 */
-	public void convertBioPAXToSBML(String input, String outputFolderName, Species species) {
-		// getting the KEGG Pathways of the model
-		Collection<de.zbit.kegg.parser.pathway.Pathway> keggPWs =
-				BioPAX2KGML.createPathwaysFromModel(input, species);
-
-		// translation to sbml
-		KEGG2SBMLqual k2s = null;
-		if (new File(Translator.cacheFileName).exists()
-				&& new File(Translator.cacheFileName).length() > 1) {
-			KeggInfoManagement manager = null;
+	 * If it ends with an archive extension (see {@link PathwayArchive#isArchive(String)}),
+	 * all pathways are written into this archive. If it is a folder and the
+	 * incremental mode is enabled, pathways whose content has not changed
+	 * since the last conversion are skipped (see {@link ConversionManifest}).
+	 * Only the pathways that are accepted by the pathway filter are converted,
+	 * each into a separate file, unless the split mode is disabled.
+	 * @return the number of written pathways.
+	 */
+	public int convertBioPAXToSBML(String input, String outputFolderName, Species species) {
+		FailureReport report = null;
+		if (pathwayTimeout > 0 || pathwayAllocation > 0) {
+			// Next to the output file, folder or archive
+			File output = new File(outputFolderName);
+			File folder = output.isDirectory() ? output : output.getAbsoluteFile().getParentFile();
+			report = new FailureReport(new File(folder, FailureReport.FILE_NAME));
+		}
+		try {
+			return convertBioPAXToSBML(input, outputFolderName, species, incremental,
+				report != null ? createSupervisor(input, report) : null);
+		} finally {
+			if (report != null) {
+				report.close();
+				if (report.getCount() > 0) {
+					log.warning(report.getCount() + " failures have been recorded in '" + report.getFile() + "'.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param input
+	 * @param report
+	 * @return a supervisor with the configured time and allocation budget per
+	 * pathway.
+	 */
+	private static ConversionSupervisor createSupervisor(String input, FailureReport report) {
+		return new ConversionSupervisor(input, pathwayTimeout * 1000L, ((long) pathwayAllocation) << 20, report);
+	}
+
+	/**
+	 * @param input <code>BioPAX</code> file.
+	 * @param outputFolderName
+	 * @param species
+	 * @param incremental if {@code true} and <code>outputFolderName</code> is
+	 * a folder, pathways that have already been written with the same content
+	 * are skipped.
+	 * @param supervisor converts each pathway within its budget and reports
+	 * failing pathways and translations, may be {@code null}.
+	 * @return the number of written pathways, including skipped pathways.
+	 * @see #convertBioPAXToSBML(String, String, Species)
+	 */
+	private int convertBioPAXToSBML(String input, String outputFolderName, Species species,
+		boolean incremental, ConversionSupervisor supervisor) {
+		ConversionManifest manifest = null;
+		if (incremental && new File(outputFolderName).isDirectory()) {
 			try {
-				manager = (KeggInfoManagement) InfoManagement.loadFromFilesystem(Translator.cacheFileName);
-				k2s = new KEGG2SBMLqual(manager);
+				manifest = new ConversionManifest(new File(outputFolderName), "SBML_QUAL " + getVersionNumber()
+					+ " species=" + (species != null ? species.getKeggAbbr() : ""));
 			} catch (IOException e) {
-				k2s = new KEGG2SBMLqual();
+				log.log(Level.WARNING, "Could not read the conversion manifest, converting all pathways.", e);
 			}
-		} else {
-			k2s = new KEGG2SBMLqual();
 		}
 
+		// Select the pathways, before anything is converted
+		Model m = BioPAX2KGML.getModel(input);
+		PathwayIterator<?> pathways = BioPAX2KGML.createPathwayIterator(m, input, species, pathwayFilter, splitMode);
+		if (pathwayFilter != null && !pathwayFilter.isEmpty()) {
+			log.info("Selected " + pathways.getSelectedCount() + " pathways of '" + input + "'.");
+		}
+		pathways.setManifest(manifest);
+		pathways.setSupervisor(supervisor);
+
+		// getting the KEGG Pathways of the model, while the previous ones are translated
+		PathwayPipeline keggPWs = new PathwayPipeline(pathways, input, pathwayQueueSize);
+		IncrementalKeggInfoManagement manager = getKeggInfoManager();
+		int written = 0;
+		try {
+			if (!keggPWs.hasNext()) {
+				if (manifest != null && manifest.getSkippedCount() > 0) {
+					log.info("All " + manifest.getSkippedCount() + " pathways of '" + input + "' are up to date.");
+					return manifest.getSkippedCount();
+				}
+				log.warning("No pathways to translate in '" + input + "'.");
+				return 0;
+			}
+			de.zbit.kegg.parser.pathway.Pathway first = keggPWs.next();
+
+			// Translate and write output
+			boolean archive = PathwayArchive.isArchive(outputFolderName);
+			if (!keggPWs.hasNext() && !archive && !new File(outputFolderName).isDirectory()) {
+				// Single in and single out file, no split mode.
+				String title = FileTools.removeFileExtension(outputFolderName);
+				if (title.toLowerCase().endsWith(".sbml")) {
+					title = title.substring(0, title.length()-5);
+				}
+				first.setTitle(title);
+				if (manager != null) {
+					manager.prefetch(Collections.singletonList(first), null);
+				}
+				written = createSBMLqualTranslator(manager).translate(first, outputFolderName) ? 1 : 0;
+
+			} else if (archive) {
+				// One entry per model, compressed by the translating threads
+				try {
+					PathwayArchive out = PathwayArchive.create(new File(outputFolderName), compressionLevel);
+					try {
+						written = translateToSBMLqual(first, keggPWs, null, out, null, supervisor, manager);
+					} finally {
+						out.close();
+					}
+				} catch (IOException e) {
+					log.log(Level.SEVERE, "Could not write '" + outputFolderName + "'.", e);
+				}
+
+			} else {
+				// We had multiple biopax pathway objects in input
+				// SBML does not permit multiple models => write one file per model
+				written = translateToSBMLqual(first, keggPWs, outputFolderName, null, manifest, supervisor, manager);
+				if (manifest != null) {
+					log.info("Skipped " + manifest.getSkippedCount() + " pathways that are up to date.");
+					written += manifest.getSkippedCount();
+					try {
+						manifest.save();
+					} catch (IOException e) {
+						log.log(Level.WARNING, "Could not write the conversion manifest.", e);
+					}
+				}
+			}
+		} finally {
+			keggPWs.close();
+			if (manifest != null) {
+				manifest.close();
+			}
+		}
+
+		// Remember already queried objects (save cache)
+		if (manager != null) {
+			manager.save();
+		} else if (AbstractKEGGtranslator.getKeggInfoManager().hasChanged()) {
+			KeggInfoManagement.saveToFilesystem(Translator.cacheFileName, AbstractKEGGtranslator.getKeggInfoManager());
+		}
+		return written;
+	}
+
+	/**
+	 * Translates each pathway to a separate SBML file in the given folder or
+	 * archive.
+	 * Pathways are translated in parallel by the {@link #translationPool},
+	 * using one translator per thread, as soon as they have been converted.
+	 * If all threads are busy, the calling thread translates, too, so that
+	 * no more converted pathways are taken from the pipeline. File names are assigned in the order of
+	 * the pathways, so they do not depend on the scheduling.
+	 * 
+	 * @param first the first pathway, already taken from <code>keggPWs</code>.
+	 * @param keggPWs
+	 * @param outputFolderName ignored, if an <code>archive</code> is given.
+	 * @param archive if not {@code null}, documents are serialized in memory
+	 * and compressed into this archive by the translating threads.
+	 * @param manifest records the output files of the pathways, may be {@code null}.
+	 * @param supervisor reports failing translations, may be {@code null}.
+	 * @param manager shared KEGG informations, may be {@code null}.
+	 * @return the number of written pathways.
+	 */
+	private int translateToSBMLqual(de.zbit.kegg.parser.pathway.Pathway first, PathwayPipeline keggPWs,
+		String outputFolderName, final PathwayArchive archive, final ConversionManifest manifest,
+		ConversionSupervisor supervisor, IncrementalKeggInfoManagement manager) {
+		Set<String> usedNames = new HashSet<String>();
+		if (manifest != null) {
+			// Never overwrite the outputs of skipped pathways
+			for (String output : manifest.getOutputs()) {
+				usedNames.add(output.toLowerCase());
+			}
+		}
+		Map<String, Future<Boolean>> results = new LinkedHashMap<String, Future<Boolean>>();
+		List<de.zbit.kegg.parser.pathway.Pathway> batch = new ArrayList<de.zbit.kegg.parser.pathway.Pathway>();
+		batch.add(first);
+		int written = 0;
+		try {
+			while (batch.size() > 0 || keggPWs.hasNext()) {
+				if (batch.isEmpty()) {
+					batch.add(keggPWs.next());
+				}
+				// All pathways that are already converted share one KEGG query
+				keggPWs.drainTo(batch, Integer.MAX_VALUE);
+				if (manager != null) {
+					manager.prefetch(batch, null);
+				}
+
+				for (final de.zbit.kegg.parser.pathway.Pathway p : batch) {
+					// Assign unique file names (later pathways with the same name get a suffix)
+					String unique = manifest != null ? manifest.getOutput(p) : null;
+					if (unique != null) {
+						// Replace the output of the previous conversion
+						usedNames.add(unique.toLowerCase());
+					} else {
+						String name = KGMLWriter.createFileName(p);
+						unique = name;
+						for (int i = 2; !usedNames.add(unique.toLowerCase()); i++) {
+							String extension = FileTools.getExtension(name);
+							unique = FileTools.removeFileExtension(name) + "_" + i
+									+ (extension != null && extension.length() > 0 ? "." + extension : "");
+						}
+					}
+					final String output = unique;
+					final String fileName = archive != null ? unique : Utils.ensureSlash(outputFolderName) + unique;
+					results.put(fileName, translationPool.submit(new Callable<Boolean>() {
+						@Override
+						public Boolean call() throws Exception {
+							if (archive == null) {
+								boolean written = translators.get().translate(p, fileName);
+								if (written && manifest != null) {
+									manifest.setOutput(p, output);
+								}
+								return written;
+							}
+							SBMLDocument doc = translators.get().translate(p);
+							if (doc == null) {
+								return false;
+							}
+							ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+							TidySBMLWriter.write(doc, bytes, System.getProperty("app.name"),
+								System.getProperty("app.version"));
+							archive.addEntry(fileName, bytes.toByteArray());
+							return true;
+						}
+					}));
+				}
+				batch.clear();
+			}
+			for (Map.Entry<String, Future<Boolean>> result : results.entrySet()) {
+				try {
+					if (result.getValue().get()) {
+						written++;
+					} else {
+						log.warning("Could not write '" + result.getKey() + "'.");
+						if (supervisor != null) {
+							supervisor.reportFailure(result.getKey(), "translation", "No output written.", -1);
+						}
+					}
+				} catch (ExecutionException e) {
+					log.log(Level.WARNING, "Could not translate '" + result.getKey() + "'.", e.getCause());
+					if (supervisor != null) {
+						supervisor.reportFailure(result.getKey(), "translation", e.getCause().toString(), -1);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.warning("Translation has been interrupted.");
+			// The pool is shared, only abort the translations of this input
+			for (Future<Boolean> result : results.values()) {
+				result.cancel(true);
+			}
+		}
+		return written;
+	}
+
+	/**
+	 * @return a pool with one daemon thread per core and a queue of the same
+	 * size, see {@link #translationPool}.
+	 */
+	private static ExecutorService createTranslationPool() {
+		int threads = Runtime.getRuntime().availableProcessors();
+		return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(threads), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "SBVC-translator-" + count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+	}
+
+	/**
+	 * @param manager may be {@code null} to use the default KEGG informations.
+	 * @return a new translator to SBML-qual, configured for BioPAX pathways.
+	 */
+	private static KEGG2SBMLqual createSBMLqualTranslator(KeggInfoManagement manager) {
+		KEGG2SBMLqual k2s = manager != null ? new KEGG2SBMLqual(manager) : new KEGG2SBMLqual();
+
 		//    // original version
 		//    // necessary that both reactions and relations are written to the file
 		//    k2s.setConsiderReactions(true);
@@ -168,31 +745,31 @@ public class SBVC extends Launcher{
 		k2s.setAddLayoutExtension(false);
 		k2s.setUseGroupsExtension(false);
 		k2s.setCheckAtomBalance(false);
+		return k2s;
+	}
 
-		// Translate and write output
-		if (keggPWs.size()==1 && !new File(outputFolderName).isDirectory()) {
-			// Single in and single out file, no split mode.
-			de.zbit.kegg.parser.pathway.Pathway p = keggPWs.iterator().next();
-			String title = FileTools.removeFileExtension(outputFolderName);
-			if (title.toLowerCase().endsWith(".sbml")) {
-				title = title.substring(0, title.length()-5);
-			}
-			p.setTitle(title);
-			k2s.translate(p, outputFolderName);
-
-		} else {
-			// We had multiple biopax pathway objects in input
-			// SBML does not permit multiple models => write one file per model
-			for (de.zbit.kegg.parser.pathway.Pathway p : keggPWs) {
-				k2s.translate(p, Utils.ensureSlash(outputFolderName) + KGMLWriter.createFileName(p));
+	/**
+	 * Opens the {@link KeggInfoStore} only once per JVM. Informations are read
+	 * from the store on demand, instead of deserializing the whole
+	 * {@link Translator#cacheFileName} for every conversion. An empty store
+	 * takes over the content of the {@link Translator#cacheFileName} first.
+	 * 
+	 * @return the shared manager or {@code null} if the store could not be
+	 * opened.
+	 */
+	private static synchronized IncrementalKeggInfoManagement getKeggInfoManager() {
+		if (keggInfoManager == null) {
+			try {
+				KeggInfoStore store = KeggInfoStore.getStore(keggInfoStoreFile);
+				if (store.size() == 0) {
+					store.importCache(new File(Translator.cacheFileName));
+				}
+				keggInfoManager = new IncrementalKeggInfoManagement(10000, store);
+			} catch (IOException e) {
+				log.log(Level.WARNING, "Could not open the KEGG info cache.", e);
 			}
-
-		}
-
-		// Remember already queried objects (save cache)
-		if (AbstractKEGGtranslator.getKeggInfoManager().hasChanged()) {
-			KeggInfoManagement.saveToFilesystem(Translator.cacheFileName, AbstractKEGGtranslator.getKeggInfoManager());
 		}
+		return keggInfoManager;
 	}
 
 	@Override
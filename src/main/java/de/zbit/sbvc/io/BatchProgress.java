@@ -0,0 +1,215 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.sbvc.io;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the input files of a batch conversion, that have been converted
+ * completely, so that a restarted batch (with the same output folder)
+ * continues where it stopped.
+ *
+ * <p>The progress is a tab-separated text file ({@link #FILE_NAME}) in the
+ * output folder. For each completed input, a line with the canonical path,
+ * length and modification time of the input, the output folder and the
+ * number of written pathways is appended and synced to disk. An
+ * incompletely written last line of a crashed batch is cut off, before new
+ * lines are appended. An input is {@link #isCompleted(File, File) completed},
+ * if it has not been modified since and its output folder still exists.
+ * Inputs that have only been
+ * converted partially are resumed by their
+ * {@link de.zbit.biopax.ConversionManifest}.
+ *
+ * @version $Rev$
+ */
+public class BatchProgress {
+
+  public static final Logger log = Logger.getLogger(BatchProgress.class.getName());
+
+  /**
+   * Name of the progress file in the output folder.
+   */
+  public static final String FILE_NAME = "sbvc.progress";
+
+  private static final String HEADER = "# SBVC batch progress, format 1";
+
+  private final File file;
+
+  /**
+   * Completed inputs: canonical path to length, modification time, output
+   * folder and number of pathways.
+   */
+  private final Map<String, String[]> completed = new HashMap<String, String[]>();
+
+  /**
+   * Appends completed inputs, opened on demand.
+   */
+  private FileOutputStream out = null;
+
+  /**
+   * Reads the progress of a previous batch in the given output folder, if
+   * there is one.
+   *
+   * @param outputFolder
+   * @throws IOException if an existing progress file could not be read.
+   */
+  public BatchProgress(File outputFolder) throws IOException {
+    file = new File(outputFolder, FILE_NAME);
+    if (file.exists()) {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          String[] cells = line.split("\t");
+          if (line.startsWith("#") || cells.length != 5) {
+            // Comments and incompletely written lines
+            continue;
+          }
+          completed.put(cells[0], new String[] {cells[1], cells[2], cells[3], cells[4]});
+        }
+      } finally {
+        in.close();
+      }
+      log.info("Resuming batch, " + completed.size() + " inputs have already been converted.");
+    }
+  }
+
+  /**
+   * @param input
+   * @param output
+   * @return <code>true</code> if the input has already been converted into
+   *         the given output folder and has not been modified since.
+   * @throws IOException
+   */
+  public synchronized boolean isCompleted(File input, File output) throws IOException {
+    String[] entry = completed.get(input.getCanonicalPath());
+    return entry != null && entry[0].equals(Long.toString(input.length()))
+        && entry[1].equals(Long.toString(input.lastModified()))
+        && entry[2].equals(output.getName()) && output.isDirectory();
+  }
+
+  /**
+   * @param input a {@link #isCompleted(File, File) completed} input.
+   * @return the number of pathways, that have been written for the input.
+   * @throws IOException
+   */
+  public synchronized int getPathwayCount(File input) throws IOException {
+    String[] entry = completed.get(input.getCanonicalPath());
+    return entry != null ? Integer.parseInt(entry[3]) : 0;
+  }
+
+  /**
+   * Records, that the input has been converted completely. The record is
+   * immediately synced to disk.
+   *
+   * @param input
+   * @param output the output folder of this input.
+   * @param pathways number of written pathways.
+   */
+  public synchronized void setCompleted(File input, File output, int pathways) {
+    try {
+      String path = input.getCanonicalPath();
+      String[] entry = new String[] {Long.toString(input.length()), Long.toString(input.lastModified()),
+          output.getName(), Integer.toString(pathways)};
+      completed.put(path, entry);
+      if (out == null) {
+        boolean exists = cutIncompleteLine();
+        out = new FileOutputStream(file, true);
+        if (!exists) {
+          out.write((HEADER + '\n').getBytes("UTF-8"));
+        }
+      }
+      out.write((path + '\t' + entry[0] + '\t' + entry[1] + '\t' + entry[2] + '\t' + entry[3] + '\n').getBytes("UTF-8"));
+      out.getFD().sync();
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Could not record the progress of '" + input + "'.", e);
+    }
+  }
+
+  /**
+   * Cuts off an incompletely written last line (e.g., of a crashed batch),
+   * so that the next record starts on a new line.
+   *
+   * @return <code>true</code> if the file still exists with a complete
+   *         header.
+   * @throws IOException
+   */
+  private boolean cutIncompleteLine() throws IOException {
+    if (!file.exists()) {
+      return false;
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      long length = raf.length();
+      byte[] buffer = new byte[4096];
+      while (length > 0) {
+        int n = (int) Math.min(buffer.length, length);
+        raf.seek(length - n);
+        raf.readFully(buffer, 0, n);
+        int i = n - 1;
+        while (i >= 0 && buffer[i] != '\n') {
+          i--;
+        }
+        if (i >= 0) {
+          length -= n - 1 - i;
+          break;
+        }
+        length -= n;
+      }
+      if (length < raf.length()) {
+        log.fine("Cutting off an incomplete line of '" + file + "'.");
+        raf.setLength(length);
+      }
+      return length > 0;
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Closes the progress file.
+   */
+  public synchronized void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        log.log(Level.FINE, "Could not close '" + file + "'.", e);
+      }
+      out = null;
+    }
+  }
+
+}
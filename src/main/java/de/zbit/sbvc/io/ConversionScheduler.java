@@ -0,0 +1,622 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.sbvc.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import de.zbit.util.Species;
+
+/**
+ * Schedules the conversions of a {@link ConversionServer}, so that
+ * concurrent uploads of large BioPAX files can not exhaust the heap.
+ *
+ * <ul>
+ * <li>At most <code>concurrency</code> jobs are converted at the same
+ * time.</li>
+ * <li>Waiting jobs are kept in a bounded priority queue. Jobs with a higher
+ * priority are started first, jobs with the same priority in the order of
+ * their submission.</li>
+ * <li>The memory of each job is estimated from its input size (see
+ * {@link #estimateMemory(long)}). A job is only started, if its estimate
+ * fits into the memory budget, that is not reserved by running jobs. The
+ * head of the queue is never overtaken, so large jobs do not starve.</li>
+ * <li>Jobs are {@link #submit(long, int, Species) admitted} before their
+ * input is uploaded. If the queue is full, they are rejected with a hint,
+ * when to retry. Jobs, that would never fit into the memory budget, are
+ * rejected permanently.</li>
+ * </ul>
+ *
+ * <p>Results of finished jobs are kept for {@link #RESULT_TTL} milliseconds,
+ * so that asynchronously submitted jobs can be polled and fetched later.
+ *
+ * @version $Rev$
+ */
+public class ConversionScheduler {
+
+  public static final Logger log = Logger.getLogger(ConversionScheduler.class.getName());
+
+  /**
+   * Time in milliseconds, results of finished jobs are kept.
+   */
+  public static final long RESULT_TTL = 60 * 60 * 1000L;
+
+  /**
+   * Estimated heap per byte of BioPAX input. The paxtools model, the KGML
+   * pathways and the SBML documents take several times the size of the
+   * RDF/XML file.
+   */
+  private static final int MEMORY_PER_INPUT_BYTE = 8;
+
+  /**
+   * Estimated heap of a job, independent of its input size.
+   */
+  private static final long MEMORY_PER_JOB = 32L << 20;
+
+  /**
+   * Initial estimate of the duration of a job in milliseconds, before any
+   * job has finished.
+   */
+  private static final long INITIAL_DURATION = 10000;
+
+  /**
+   * State of a {@link Job}.
+   */
+  public static enum State {
+    /**
+     * Admitted, the input is being uploaded.
+     */
+    UPLOADING,
+    /**
+     * Waiting for a worker and memory.
+     */
+    QUEUED,
+    RUNNING,
+    DONE,
+    FAILED,
+    CANCELLED;
+
+    /**
+     * @return <code>true</code> if the job will not change any more.
+     */
+    public boolean isFinished() {
+      return this == DONE || this == FAILED || this == CANCELLED;
+    }
+  }
+
+  /**
+   * Thrown, if a job is not admitted.
+   */
+  public static class RejectedException extends Exception {
+    private static final long serialVersionUID = 6218830512617403127L;
+
+    private final long retryAfter;
+
+    /**
+     * @param message
+     * @param retryAfter seconds, after which the job may be submitted again,
+     *        <code>-1</code> if it will never be admitted.
+     */
+    public RejectedException(String message, long retryAfter) {
+      super(message);
+      this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return seconds, after which the job may be submitted again,
+     *         <code>-1</code> if it will never be admitted.
+     */
+    public long getRetryAfter() {
+      return retryAfter;
+    }
+  }
+
+  /**
+   * A conversion job. All files of a job are kept in its own temporary
+   * folder.
+   */
+  public class Job {
+    private final String id = UUID.randomUUID().toString();
+    private final long sequence;
+    private final int priority;
+    private final long inputSize;
+    private final long memory;
+    private final Species species;
+    private final File folder;
+    private final long submitted = System.currentTimeMillis();
+    private State state = State.UPLOADING;
+    private long started = 0;
+    private long finished = 0;
+    private int pathways = 0;
+    private File result = null;
+    private String error = null;
+
+    Job(long sequence, int priority, long inputSize, Species species) throws IOException {
+      this.sequence = sequence;
+      this.priority = priority;
+      this.inputSize = inputSize;
+      this.memory = estimateMemory(inputSize);
+      this.species = species;
+      folder = File.createTempFile("sbvc-job", "");
+      if (!folder.delete() || !folder.mkdir()) {
+        throw new IOException("Could not create temporary folder '" + folder + "'.");
+      }
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * @return the file, to which the input must be uploaded.
+     */
+    public File getInput() {
+      return new File(folder, "input.owl");
+    }
+
+    public synchronized State getState() {
+      return state;
+    }
+
+    /**
+     * @return the SBML file or a zip archive with several SBML files, if the
+     *         job is {@link State#DONE}.
+     */
+    public synchronized File getResult() {
+      return result;
+    }
+
+    /**
+     * @return the reason, why the job failed, or <code>null</code> if it did
+     *         not fail or only no pathway could be converted.
+     */
+    public synchronized String getError() {
+      return error;
+    }
+
+    /**
+     * Blocks, until the job is finished.
+     *
+     * @throws InterruptedException
+     */
+    public synchronized void awaitCompletion() throws InterruptedException {
+      while (!state.isFinished()) {
+        wait();
+      }
+    }
+
+    /**
+     * @return the status of this job, one property per line.
+     */
+    public String getStatus() {
+      StringBuilder sb = new StringBuilder();
+      synchronized (this) {
+        sb.append("id=").append(id).append('\n');
+        sb.append("state=").append(state).append('\n');
+        sb.append("priority=").append(priority).append('\n');
+        sb.append("inputBytes=").append(inputSize).append('\n');
+        sb.append("estimatedMemoryMB=").append(memory >> 20).append('\n');
+        sb.append("waitedMillis=").append((started > 0 ? started : System.currentTimeMillis()) - submitted).append('\n');
+        if (started > 0) {
+          sb.append("runMillis=").append((finished > 0 ? finished : System.currentTimeMillis()) - started).append('\n');
+        }
+        if (state == State.DONE || (state == State.FAILED && error == null)) {
+          sb.append("pathways=").append(pathways).append('\n');
+        }
+        if (error != null) {
+          sb.append("error=").append(error.replace('\n', ' ')).append('\n');
+        }
+      }
+      if (getState() == State.QUEUED) {
+        sb.append("position=").append(getPosition(this)).append('\n');
+      }
+      return sb.toString();
+    }
+
+    private synchronized void setState(State state) {
+      this.state = state;
+      if (state == State.RUNNING) {
+        started = System.currentTimeMillis();
+      } else if (state.isFinished()) {
+        finished = System.currentTimeMillis();
+        notifyAll();
+      }
+    }
+
+    private synchronized long getFinished() {
+      return finished;
+    }
+  }
+
+  private final ConversionServer.Converter converter;
+
+  private final int concurrency;
+
+  private final int queueSize;
+
+  /**
+   * Heap in bytes, that may be reserved by running jobs.
+   */
+  private final long memoryBudget;
+
+  /**
+   * Queued jobs, by priority and sequence.
+   */
+  private final PriorityQueue<Job> queue = new PriorityQueue<Job>(11, new Comparator<Job>() {
+    @Override
+    public int compare(Job a, Job b) {
+      if (a.priority != b.priority) {
+        return a.priority > b.priority ? -1 : 1;
+      }
+      return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+    }
+  });
+
+  /**
+   * All jobs that have not yet been removed, by id.
+   */
+  private final Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+
+  private final List<Thread> workers = new ArrayList<Thread>();
+
+  private long sequence = 0;
+
+  /**
+   * Jobs that are uploading or queued.
+   */
+  private int waiting = 0;
+
+  private int running = 0;
+
+  private long reservedMemory = 0;
+
+  /**
+   * Moving average of the duration of finished jobs in milliseconds.
+   */
+  private long averageDuration = INITIAL_DURATION;
+
+  private long rejected = 0;
+
+  private boolean stopped = false;
+
+  /**
+   * @param converter
+   * @param concurrency maximum number of jobs, that are converted at the
+   *        same time.
+   * @param queueSize maximum number of jobs, that wait for their
+   *        conversion (including jobs, that are still uploading).
+   * @param memoryBudget heap in bytes, that may be reserved by running jobs,
+   *        <code>0</code> for three quarters of the maximum heap.
+   */
+  public ConversionScheduler(ConversionServer.Converter converter, int concurrency, int queueSize, long memoryBudget) {
+    this.converter = converter;
+    this.concurrency = Math.max(1, concurrency);
+    this.queueSize = Math.max(0, queueSize);
+    this.memoryBudget = memoryBudget > 0 ? memoryBudget : Runtime.getRuntime().maxMemory() / 4 * 3;
+    for (int i = 0; i < this.concurrency; i++) {
+      Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          work();
+        }
+      }, "ConversionScheduler-" + (i + 1));
+      workers.add(worker);
+      worker.start();
+    }
+    log.info("Scheduling " + this.concurrency + " concurrent conversions with a memory budget of "
+        + (this.memoryBudget >> 20) + " MB and up to " + this.queueSize + " waiting jobs.");
+  }
+
+  /**
+   * @param inputSize bytes of the BioPAX input.
+   * @return the estimated heap in bytes, that is needed to convert it.
+   */
+  public static long estimateMemory(long inputSize) {
+    return MEMORY_PER_JOB + inputSize * MEMORY_PER_INPUT_BYTE;
+  }
+
+  /**
+   * Admits a new job. Its input must then be written to
+   * {@link Job#getInput()}, before it is {@link #enqueue(Job)}d.
+   *
+   * @param inputSize bytes of the input.
+   * @param priority higher priorities are converted first.
+   * @param species default species, may be <code>null</code>.
+   * @return the admitted job.
+   * @throws RejectedException if the queue is full or the input is too
+   *         large.
+   * @throws IOException if the job folder can not be created.
+   */
+  public synchronized Job submit(long inputSize, int priority, Species species)
+      throws RejectedException, IOException {
+    purge();
+    if (stopped) {
+      throw new RejectedException("The conversion service is shutting down.", -1);
+    }
+    if (estimateMemory(inputSize) > memoryBudget) {
+      rejected++;
+      throw new RejectedException("The input of " + (inputSize >> 20) + " MB is too large for the memory budget of "
+          + (memoryBudget >> 20) + " MB.", -1);
+    }
+    if (waiting >= queueSize && running + waiting >= concurrency) {
+      rejected++;
+      throw new RejectedException("Too many waiting conversions.", getRetryAfter());
+    }
+    Job job = new Job(++sequence, priority, inputSize, species);
+    jobs.put(job.getId(), job);
+    waiting++;
+    return job;
+  }
+
+  /**
+   * Queues a job, whose input has been uploaded completely. If the
+   * scheduler has been stopped meanwhile, the job is cancelled.
+   *
+   * @param job
+   */
+  public synchronized void enqueue(Job job) {
+    if (job.getState() != State.UPLOADING) {
+      return;
+    } else if (stopped) {
+      cancel(job);
+      return;
+    }
+    job.setState(State.QUEUED);
+    queue.add(job);
+    notifyAll();
+  }
+
+  /**
+   * Cancels a job, that has not been started yet, and removes it with all
+   * files. Running jobs are finished, but removed afterwards.
+   *
+   * @param job
+   */
+  public synchronized void cancel(Job job) {
+    State state = job.getState();
+    if (state == State.UPLOADING || state == State.QUEUED) {
+      queue.remove(job);
+      waiting--;
+      job.setState(State.CANCELLED);
+      notifyAll();
+    }
+    jobs.remove(job.getId());
+    if (state != State.RUNNING) {
+      ConversionServer.delete(job.folder);
+    }
+  }
+
+  /**
+   * @param id
+   * @return the job or <code>null</code>, if it is unknown or has been
+   *         removed.
+   */
+  public synchronized Job getJob(String id) {
+    purge();
+    return jobs.get(id);
+  }
+
+  /**
+   * @return seconds, after which a rejected job should be submitted again.
+   */
+  public synchronized long getRetryAfter() {
+    long millis = averageDuration * (waiting + running + 1) / concurrency;
+    return Math.max(1, (millis + 999) / 1000);
+  }
+
+  /**
+   * @return some statistics, one property per line.
+   */
+  public synchronized String getStatus() {
+    return "running=" + running + "\nwaiting=" + waiting + "\nconcurrency=" + concurrency
+        + "\nqueueSize=" + queueSize + "\nreservedMemoryMB=" + (reservedMemory >> 20)
+        + "\nmemoryBudgetMB=" + (memoryBudget >> 20) + "\naverageDurationMillis=" + averageDuration
+        + "\nrejected=" + rejected + "\njobs=" + jobs.size() + "\n";
+  }
+
+  /**
+   * Rejects new jobs, cancels all queued jobs and waits (up to one minute)
+   * for the running jobs. Afterwards, all jobs and their files are removed.
+   */
+  public void stop() {
+    synchronized (this) {
+      if (stopped) {
+        return;
+      }
+      stopped = true;
+      for (Job job : new ArrayList<Job>(queue)) {
+        cancel(job);
+      }
+      notifyAll();
+    }
+    long deadline = System.currentTimeMillis() + 60000;
+    for (Thread worker : workers) {
+      try {
+        worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    // Results, that have not been fetched, are lost anyway
+    synchronized (this) {
+      for (Job job : new ArrayList<Job>(jobs.values())) {
+        cancel(job);
+      }
+    }
+  }
+
+  /**
+   * @return the number of jobs, that will be started before the given job.
+   */
+  private synchronized int getPosition(Job job) {
+    int position = 0;
+    for (Job other : queue) {
+      if (other != job && queue.comparator().compare(other, job) < 0) {
+        position++;
+      }
+    }
+    return position;
+  }
+
+  /**
+   * Converts queued jobs, until the scheduler is stopped.
+   */
+  private void work() {
+    while (true) {
+      Job job;
+      synchronized (this) {
+        while (!stopped && !canStart(queue.peek())) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (stopped) {
+          return;
+        }
+        job = queue.poll();
+        waiting--;
+        running++;
+        reservedMemory += job.memory;
+        job.setState(State.RUNNING);
+      }
+      run(job);
+      synchronized (this) {
+        running--;
+        reservedMemory -= job.memory;
+        averageDuration = (averageDuration * 3 + (job.getFinished() - job.started)) / 4;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the job fits into the unreserved memory.
+   *         If no job is running, any admitted job may be started.
+   */
+  private boolean canStart(Job job) {
+    return job != null && (running == 0 || reservedMemory + job.memory <= memoryBudget);
+  }
+
+  /**
+   * Converts the job and creates its result.
+   */
+  private void run(Job job) {
+    File output = new File(job.folder, "output");
+    try {
+      output.mkdir();
+      int pathways = converter.convert(job.getInput(), output, job.species);
+      File[] results = ConversionServer.listResults(output);
+      File result = null;
+      if (results.length == 1) {
+        result = results[0];
+      } else if (results.length > 1) {
+        result = new File(job.folder, "pathways.zip");
+        zip(results, result);
+      }
+      synchronized (job) {
+        job.pathways = pathways;
+        job.result = result;
+        job.setState(result != null ? State.DONE : State.FAILED);
+      }
+    } catch (Throwable e) {
+      log.log(Level.WARNING, "Conversion job " + job.getId() + " failed.", e);
+      synchronized (job) {
+        job.error = e.toString();
+        job.setState(State.FAILED);
+      }
+    } finally {
+      // The input is not needed any more
+      job.getInput().delete();
+      synchronized (this) {
+        if (!jobs.containsKey(job.getId())) {
+          // Cancelled while running
+          ConversionServer.delete(job.folder);
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes finished jobs, whose results have been kept for
+   * {@link #RESULT_TTL}.
+   */
+  private synchronized void purge() {
+    long now = System.currentTimeMillis();
+    Iterator<Job> it = jobs.values().iterator();
+    while (it.hasNext()) {
+      Job job = it.next();
+      if (job.getState().isFinished() && now - job.getFinished() > RESULT_TTL) {
+        it.remove();
+        ConversionServer.delete(job.folder);
+      }
+    }
+  }
+
+  /**
+   * Writes all files into a new zip archive.
+   */
+  private static void zip(File[] files, File target) throws IOException {
+    ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(target));
+    try {
+      byte[] buffer = new byte[1 << 16];
+      Arrays.sort(files);
+      for (File file : files) {
+        zip.putNextEntry(new ZipEntry(file.getName()));
+        InputStream in = new FileInputStream(file);
+        try {
+          int n;
+          while ((n = in.read(buffer)) > 0) {
+            zip.write(buffer, 0, n);
+          }
+        } finally {
+          in.close();
+        }
+        zip.closeEntry();
+      }
+    } finally {
+      zip.close();
+    }
+  }
+
+}
@@ -0,0 +1,544 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.sbvc.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import de.zbit.biopax.SpeciesRegistry;
+import de.zbit.sbvc.io.ConversionScheduler.Job;
+import de.zbit.sbvc.io.ConversionScheduler.RejectedException;
+import de.zbit.sbvc.io.ConversionScheduler.State;
+import de.zbit.util.Species;
+
+/**
+ * A local HTTP endpoint, that converts BioPAX files within one long-running
+ * JVM. Mappers, KEGG informations and JIT-compiled code are thus shared by
+ * all requests, instead of starting a new JVM for each file.
+ *
+ * <p>The server only listens on the loopback interface and offers
+ * <ul>
+ * <li><code>POST {@value #CONVERT_PATH}</code> with the BioPAX file as
+ * request body. The response body is the SBML file or, if the input
+ * contains several pathways, a zip archive with one SBML file per
+ * pathway.</li>
+ * <li><code>POST {@value #JOBS_PATH}</code> with the BioPAX file as request
+ * body, which returns <code>202 Accepted</code> immediately. The
+ * <code>Location</code> header points to
+ * <code>{@value #JOBS_PATH}/&lt;id&gt;</code>, which can be polled
+ * (<code>GET</code>) for the state of the job and cancelled
+ * (<code>DELETE</code>). Once the job is <code>DONE</code>, its result is
+ * available at <code>{@value #JOBS_PATH}/&lt;id&gt;/result</code>.</li>
+ * <li><code>GET {@value #STATUS_PATH}</code>, which returns some
+ * statistics as plain text.</li>
+ * </ul>
+ *
+ * <p>Both kinds of conversion requests accept the optional query parameters
+ * <code>species</code> (taxonomy id of the default species) and
+ * <code>priority</code> (an integer, higher priorities are converted
+ * first). They must declare a <code>Content-Length</code>, so that the
+ * {@link ConversionScheduler} can reject them before the upload, if the
+ * queue is full (<code>429 Too Many Requests</code> with a
+ * <code>Retry-After</code> header) or the input is too large for the memory
+ * budget (<code>413 Payload Too Large</code>).
+ *
+ * <p>Request bodies are streamed to temporary files, which are deleted
+ * after the response has been sent or, for asynchronous jobs, after
+ * {@link ConversionScheduler#RESULT_TTL}.
+ *
+ * @version $Rev$
+ */
+public class ConversionServer {
+
+  public static final Logger log = Logger.getLogger(ConversionServer.class.getName());
+
+  /**
+   * Path of conversion requests.
+   */
+  public static final String CONVERT_PATH = "/convert";
+
+  /**
+   * Path of asynchronous conversion jobs.
+   */
+  public static final String JOBS_PATH = "/jobs";
+
+  /**
+   * Path of status requests.
+   */
+  public static final String STATUS_PATH = "/status";
+
+  /**
+   * Files in the output folder with this prefix are no conversion results
+   * (e.g., the {@link de.zbit.biopax.FailureReport}).
+   */
+  private static final String INTERNAL_PREFIX = "sbvc.";
+
+  private static final String RESULT_SUFFIX = "/result";
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  /**
+   * Converts a single BioPAX file.
+   */
+  public interface Converter {
+
+    /**
+     * @param input the BioPAX file.
+     * @param outputFolder an empty folder for the SBML files.
+     * @param species default species, may be <code>null</code>.
+     * @return the number of written pathways.
+     * @throws Exception
+     */
+    public int convert(File input, File outputFolder, Species species) throws Exception;
+  }
+
+  private final HttpServer server;
+
+  /**
+   * Handles the HTTP exchanges. Conversions are run by the
+   * {@link #scheduler}, so the number of threads is bounded by the admitted
+   * jobs.
+   */
+  private final ExecutorService executor;
+
+  private final ConversionScheduler scheduler;
+
+  private final CountDownLatch stopped = new CountDownLatch(1);
+
+  private final long startTime = System.currentTimeMillis();
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicInteger active = new AtomicInteger();
+
+  /**
+   * Creates a server on the loopback interface. It is not started yet.
+   *
+   * @param port <code>0</code> for any free port.
+   * @param scheduler runs the conversions.
+   * @throws IOException if the port can not be bound.
+   */
+  public ConversionServer(int port, ConversionScheduler scheduler) throws IOException {
+    this.scheduler = scheduler;
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(null), port), 0);
+    executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable r) {
+        return new Thread(r, "ConversionServer-" + count.incrementAndGet());
+      }
+    });
+    server.setExecutor(executor);
+    server.createContext(CONVERT_PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleConvert(exchange);
+      }
+    });
+    server.createContext(JOBS_PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleJobs(exchange);
+      }
+    });
+    server.createContext(STATUS_PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleStatus(exchange);
+      }
+    });
+  }
+
+  /**
+   * Starts accepting requests.
+   */
+  public void start() {
+    server.start();
+    log.info("Accepting conversion requests on http://localhost:" + getPort() + CONVERT_PATH + ".");
+  }
+
+  /**
+   * Stops accepting requests and waits (up to one minute) for the running
+   * conversions.
+   */
+  public void stop() {
+    if (stopped.getCount() > 0) {
+      log.info("Stopping conversion server.");
+      server.stop(0);
+      scheduler.stop();
+      executor.shutdown();
+      try {
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      stopped.countDown();
+    }
+  }
+
+  /**
+   * Blocks, until the server has been {@link #stop()}ped.
+   *
+   * @throws InterruptedException
+   */
+  public void awaitShutdown() throws InterruptedException {
+    stopped.await();
+  }
+
+  /**
+   * @return the port, this server listens on.
+   */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Converts the request body and sends the result.
+   */
+  private void handleConvert(HttpExchange exchange) throws IOException {
+    if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+      exchange.getResponseHeaders().set("Allow", "POST");
+      sendText(exchange, 405, "Please POST a BioPAX file.");
+      return;
+    }
+    requests.incrementAndGet();
+    active.incrementAndGet();
+    long start = System.currentTimeMillis();
+    Job job = null;
+    try {
+      job = submit(exchange);
+      if (job == null) {
+        return;
+      }
+      job.awaitCompletion();
+      log.info(String.format("Converted job %s in %d ms.", job.getId(), System.currentTimeMillis() - start));
+      sendResult(exchange, job);
+    } catch (Exception e) {
+      failures.incrementAndGet();
+      log.log(Level.WARNING, "Could not process conversion request.", e);
+      sendError(exchange, e);
+    } finally {
+      active.decrementAndGet();
+      exchange.close();
+      if (job != null) {
+        scheduler.cancel(job);
+      }
+    }
+  }
+
+  /**
+   * Submits, polls, fetches and cancels asynchronous jobs.
+   */
+  private void handleJobs(HttpExchange exchange) throws IOException {
+    try {
+      String method = exchange.getRequestMethod();
+      String path = exchange.getRequestURI().getPath().substring(JOBS_PATH.length());
+      if (path.length() <= 1) {
+        if (!"POST".equalsIgnoreCase(method)) {
+          exchange.getResponseHeaders().set("Allow", "POST");
+          sendText(exchange, 405, "Please POST a BioPAX file.");
+          return;
+        }
+        requests.incrementAndGet();
+        Job job = submit(exchange);
+        if (job != null) {
+          exchange.getResponseHeaders().set("Location", JOBS_PATH + '/' + job.getId());
+          sendText(exchange, 202, job.getStatus());
+        }
+        return;
+      }
+
+      boolean result = path.endsWith(RESULT_SUFFIX);
+      String id = path.substring(1, result ? path.length() - RESULT_SUFFIX.length() : path.length());
+      Job job = scheduler.getJob(id);
+      if (job == null) {
+        sendText(exchange, 404, "Unknown job '" + id + "'.");
+      } else if ("DELETE".equalsIgnoreCase(method) && !result) {
+        scheduler.cancel(job);
+        sendText(exchange, 200, job.getStatus());
+      } else if (!"GET".equalsIgnoreCase(method)) {
+        exchange.getResponseHeaders().set("Allow", result ? "GET" : "GET, DELETE");
+        sendText(exchange, 405, "Method not allowed.");
+      } else if (!result) {
+        sendText(exchange, 200, job.getStatus());
+      } else if (!job.getState().isFinished()) {
+        exchange.getResponseHeaders().set("Retry-After", Long.toString(scheduler.getRetryAfter()));
+        sendText(exchange, 409, job.getStatus());
+      } else {
+        sendResult(exchange, job);
+      }
+    } catch (Exception e) {
+      failures.incrementAndGet();
+      log.log(Level.WARNING, "Could not process job request.", e);
+      sendError(exchange, e);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Admits a new job, uploads the request body and queues the job. If the
+   * job is not admitted, the error response is sent.
+   *
+   * @return the queued job or <code>null</code>, if the response has
+   *         already been sent.
+   */
+  private Job submit(HttpExchange exchange) throws IOException {
+    Map<String, String> query = getQuery(exchange);
+    Species species = null;
+    String taxonID = query.get("species");
+    if (taxonID != null) {
+      species = SpeciesRegistry.getInstance().getByTaxonID(taxonID);
+      if (species == null) {
+        failures.incrementAndGet();
+        sendText(exchange, 400, "Unknown taxonomy id '" + taxonID + "'.");
+        return null;
+      }
+    }
+    int priority = 0;
+    try {
+      if (query.containsKey("priority")) {
+        priority = Integer.parseInt(query.get("priority").trim());
+      }
+    } catch (NumberFormatException e) {
+      failures.incrementAndGet();
+      sendText(exchange, 400, "Invalid priority '" + query.get("priority") + "'.");
+      return null;
+    }
+    long length = -1;
+    try {
+      String header = exchange.getRequestHeaders().getFirst("Content-Length");
+      if (header != null) {
+        length = Long.parseLong(header.trim());
+      }
+    } catch (NumberFormatException e) {
+      length = -1;
+    }
+    if (length < 0) {
+      failures.incrementAndGet();
+      sendText(exchange, 411, "Please declare the Content-Length of the BioPAX file.");
+      return null;
+    }
+
+    Job job;
+    try {
+      job = scheduler.submit(length, priority, species);
+    } catch (RejectedException e) {
+      rejected.incrementAndGet();
+      log.fine("Rejected conversion request: " + e.getMessage());
+      if (e.getRetryAfter() < 0) {
+        sendText(exchange, 413, e.getMessage());
+      } else {
+        exchange.getResponseHeaders().set("Retry-After", Long.toString(e.getRetryAfter()));
+        sendText(exchange, 429, e.getMessage());
+      }
+      return null;
+    }
+    try {
+      copy(exchange.getRequestBody(), job.getInput());
+    } catch (IOException e) {
+      scheduler.cancel(job);
+      throw e;
+    }
+    scheduler.enqueue(job);
+    return job;
+  }
+
+  /**
+   * Sends the result of a finished job.
+   */
+  private void sendResult(HttpExchange exchange, Job job) throws IOException {
+    File result = job.getResult();
+    if (job.getState() == State.DONE && result != null) {
+      sendFile(exchange, result, result.getName().endsWith(".zip") ? "application/zip" : "application/xml");
+    } else if (job.getState() == State.CANCELLED) {
+      sendText(exchange, 410, job.getStatus());
+    } else {
+      failures.incrementAndGet();
+      // Conversion errors are internal, inputs without any pathway are not
+      sendText(exchange, job.getError() != null ? 500 : 422, job.getStatus());
+    }
+  }
+
+  /**
+   * Sends an internal error, if the response has not been started yet.
+   */
+  private static void sendError(HttpExchange exchange, Exception e) {
+    try {
+      sendText(exchange, 500, "Conversion failed: " + e);
+    } catch (IOException e2) {
+      // The response has already been started
+      log.log(Level.FINE, "Could not send the error response.", e2);
+    }
+  }
+
+  /**
+   * Sends some statistics.
+   */
+  private void handleStatus(HttpExchange exchange) throws IOException {
+    try {
+      Runtime rt = Runtime.getRuntime();
+      sendText(exchange, 200, "requests=" + requests.get() + "\nfailures=" + failures.get()
+          + "\nrejectedRequests=" + rejected.get()
+          + "\nactive=" + active.get() + "\nuptime=" + (System.currentTimeMillis() - startTime) / 1000
+          + "\nheapUsedMB=" + ((rt.totalMemory() - rt.freeMemory()) >> 20)
+          + "\nheapMaxMB=" + (rt.maxMemory() >> 20) + "\n" + scheduler.getStatus());
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * @return the decoded query parameters of the request.
+   */
+  static Map<String, String> getQuery(HttpExchange exchange) throws UnsupportedEncodingException {
+    Map<String, String> params = new HashMap<String, String>();
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query != null) {
+      for (String param : query.split("&")) {
+        int i = param.indexOf('=');
+        if (i > 0) {
+          params.put(URLDecoder.decode(param.substring(0, i), "UTF-8"),
+            URLDecoder.decode(param.substring(i + 1), "UTF-8"));
+        } else if (param.length() > 0) {
+          params.put(URLDecoder.decode(param, "UTF-8"), "");
+        }
+      }
+    }
+    return params;
+  }
+
+  /**
+   * @return all result files, sorted by name.
+   */
+  static File[] listResults(File folder) {
+    List<File> results = new ArrayList<File>();
+    File[] files = folder.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        if (f.isFile() && !f.getName().startsWith(INTERNAL_PREFIX)) {
+          results.add(f);
+        }
+      }
+    }
+    File[] sorted = results.toArray(new File[results.size()]);
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+    byte[] bytes = text.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static void sendFile(HttpExchange exchange, File file, String contentType) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + file.getName() + "\"");
+    exchange.sendResponseHeaders(200, file.length());
+    OutputStream out = exchange.getResponseBody();
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+          out.write(buffer, 0, n);
+        }
+      } finally {
+        in.close();
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * @return the number of copied bytes.
+   */
+  static long copy(InputStream in, File target) throws IOException {
+    long bytes = 0;
+    OutputStream out = new FileOutputStream(target);
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+        bytes += n;
+      }
+    } finally {
+      out.close();
+      in.close();
+    }
+    return bytes;
+  }
+
+  /**
+   * Deletes a file or folder recursively.
+   */
+  static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    if (!file.delete() && file.exists()) {
+      log.fine("Could not delete '" + file + "'.");
+    }
+  }
+
+}
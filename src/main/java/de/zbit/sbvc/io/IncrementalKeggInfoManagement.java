@@ -0,0 +1,417 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.sbvc.io;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.zbit.exception.UnsuccessfulRetrieveException;
+import de.zbit.kegg.api.KeggInfos;
+import de.zbit.kegg.api.cache.KeggInfoManagement;
+import de.zbit.kegg.parser.pathway.Entry;
+import de.zbit.kegg.parser.pathway.Pathway;
+import de.zbit.kegg.parser.pathway.Reaction;
+import de.zbit.util.progressbar.AbstractProgressBar;
+
+/**
+ * A {@link KeggInfoManagement}, that is backed by a {@link KeggInfoStore}
+ * instead of being serialized as a whole. Informations are read from the
+ * store when they are requested for the first time and only requested from
+ * KEGG if the store does not contain them. Newly retrieved informations
+ * are appended to the store with {@link #save()}.
+ *
+ * <p>In {@link KeggInfoManagement#offlineMode}, the store is the only source
+ * of informations. Thus, a store that has been filled on another machine
+ * can stand in for KEGG on machines without internet access.
+ *
+ * <p>In contrast to {@link KeggInfoManagement}, one instance may be shared
+ * by translators in multiple threads. Informations are kept in a concurrent
+ * map and no accessor holds a lock for the whole manager; only fetching the
+ * same id is serialized. Informations should be {@link #prefetch(Collection, AbstractProgressBar)}ed
+ * before, to keep KEGG queries out of the concurrent part.
+ *
+ * @version $Rev$
+ */
+public class IncrementalKeggInfoManagement extends KeggInfoManagement {
+
+  private static final long serialVersionUID = -4021458364120539841L;
+
+  public static final transient Logger log = Logger.getLogger(IncrementalKeggInfoManagement.class.getName());
+
+  /**
+   * Number of locks, that guard fetching single ids (a power of two).
+   */
+  private static final int LOCKS = 64;
+
+  private final transient KeggInfoStore store;
+
+  /**
+   * Informations in memory, by id. The map of the super class is not used,
+   * because its accessors are not thread-safe.
+   */
+  private final transient ConcurrentHashMap<String, KeggInfos> infos = new ConcurrentHashMap<String, KeggInfos>();
+
+  /**
+   * Striped locks, so that an id is fetched only once at a time, see
+   * {@link #lock(String)}.
+   */
+  private final transient Object[] locks = new Object[LOCKS];
+
+  /**
+   * Maximum number of informations in {@link #infos}.
+   */
+  private final int maxCachedInfos;
+
+  /**
+   * @param maxCachedInfos number of informations that are kept in memory.
+   * @param store
+   */
+  public IncrementalKeggInfoManagement(int maxCachedInfos, KeggInfoStore store) {
+    super(maxCachedInfos);
+    this.store = store;
+    this.maxCachedInfos = Math.max(1, maxCachedInfos);
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.kegg.api.cache.KeggInfoManagement#fetchInformation(java.lang.String)
+   */
+  @Override
+  protected KeggInfos fetchInformation(String id) throws TimeoutException, UnsuccessfulRetrieveException {
+    KeggInfos info = store.get(id);
+    if (info != null) {
+      return info;
+    } else if (store.isUnretrievable(id)) {
+      throw new UnsuccessfulRetrieveException(id);
+    }
+    try {
+      info = super.fetchInformation(id);
+    } catch (UnsuccessfulRetrieveException e) {
+      store.put(id, null);
+      throw e;
+    }
+    if (info != null) {
+      store.put(id, info);
+    }
+    return info;
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.kegg.api.cache.KeggInfoManagement#fetchMultipleInformations(java.lang.String[])
+   */
+  @Override
+  protected KeggInfos[] fetchMultipleInformations(String[] ids) throws TimeoutException, UnsuccessfulRetrieveException {
+    return fetchMultipleInformations(ids, null);
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.kegg.api.cache.KeggInfoManagement#fetchMultipleInformations(java.lang.String[], de.zbit.util.progressbar.AbstractProgressBar)
+   */
+  @Override
+  protected KeggInfos[] fetchMultipleInformations(String[] ids, AbstractProgressBar progress)
+      throws TimeoutException, UnsuccessfulRetrieveException {
+    KeggInfos[] infos = new KeggInfos[ids.length];
+    List<Integer> missing = new ArrayList<Integer>();
+    // Once for the whole batch, instead of on every miss
+    store.refresh();
+    for (int i = 0; i < ids.length; i++) {
+      infos[i] = store.get(ids[i]);
+      if (infos[i] == null && !store.isUnretrievable(ids[i])) {
+        missing.add(i);
+      }
+    }
+    if (missing.isEmpty() || offlineMode) {
+      return infos;
+    }
+
+    // Only query KEGG for ids that are unknown to the store
+    String[] query = new String[missing.size()];
+    for (int i = 0; i < query.length; i++) {
+      query[i] = ids[missing.get(i)];
+    }
+    KeggInfos[] fetched = super.fetchMultipleInformations(query, progress);
+    for (int i = 0; fetched != null && i < fetched.length && i < query.length; i++) {
+      if (fetched[i] != null) {
+        infos[missing.get(i)] = fetched[i];
+        store.put(query[i], fetched[i]);
+      }
+    }
+    return infos;
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.cache.InfoManagement#getInformation(java.lang.Comparable)
+   */
+  @Override
+  public KeggInfos getInformation(String id) {
+    if (id == null) {
+      return null;
+    }
+    KeggInfos info = infos.get(id);
+    if (info != null) {
+      return info;
+    }
+    // Only one thread fetches the same id, other ids are fetched concurrently
+    synchronized (locks[lock(id)]) {
+      info = infos.get(id);
+      if (info == null) {
+        try {
+          info = fetchInformation(id);
+        } catch (UnsuccessfulRetrieveException e) {
+          log.finer("Could not retrieve '" + id + "' from KEGG.");
+        } catch (TimeoutException e) {
+          log.log(Level.FINE, "Timeout while retrieving '" + id + "' from KEGG.", e);
+        }
+        if (info != null) {
+          remember(id, info);
+        }
+      }
+    }
+    return info;
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.cache.InfoManagement#getInformations(IDtype[], de.zbit.util.progressbar.AbstractProgressBar)
+   */
+  @Override
+  public KeggInfos[] getInformations(String[] ids, AbstractProgressBar progress) {
+    KeggInfos[] result = new KeggInfos[ids.length];
+    List<Integer> missing = new ArrayList<Integer>();
+    for (int i = 0; i < ids.length; i++) {
+      if (ids[i] != null) {
+        result[i] = infos.get(ids[i]);
+        if (result[i] == null) {
+          missing.add(i);
+        }
+      }
+    }
+    if (missing.isEmpty()) {
+      return result;
+    }
+
+    /*
+     * No lock is held while querying KEGG. Concurrent batches may thus query
+     * the same id twice, but the store keeps only one record per id.
+     */
+    String[] query = new String[missing.size()];
+    for (int i = 0; i < query.length; i++) {
+      query[i] = ids[missing.get(i)];
+    }
+    KeggInfos[] fetched = null;
+    try {
+      fetched = fetchMultipleInformations(query, progress);
+    } catch (UnsuccessfulRetrieveException e) {
+      log.log(Level.FINE, "Could not retrieve " + query.length + " ids from KEGG.", e);
+    } catch (TimeoutException e) {
+      log.log(Level.FINE, "Timeout while retrieving " + query.length + " ids from KEGG.", e);
+    }
+    for (int i = 0; fetched != null && i < fetched.length && i < query.length; i++) {
+      if (fetched[i] != null) {
+        result[missing.get(i)] = fetched[i];
+        remember(query[i], fetched[i]);
+      }
+    }
+    return result;
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.cache.InfoManagement#getInformations(IDtype[])
+   */
+  @Override
+  public KeggInfos[] getInformations(String[] ids) {
+    return getInformations(ids, null);
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.cache.InfoManagement#precacheIDs(IDtype[], de.zbit.util.progressbar.AbstractProgressBar)
+   */
+  @Override
+  public void precacheIDs(String[] ids, AbstractProgressBar progress) {
+    getInformations(ids, progress);
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.cache.InfoManagement#precacheIDs(IDtype[])
+   */
+  @Override
+  public void precacheIDs(String[] ids) {
+    getInformations(ids, null);
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.cache.InfoManagement#addInformation(java.lang.Comparable, java.io.Serializable)
+   */
+  @Override
+  public void addInformation(String id, KeggInfos info) {
+    if (id != null && info != null) {
+      remember(id, info);
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.cache.InfoManagement#removeInformation(java.lang.Comparable)
+   */
+  @Override
+  public boolean removeInformation(String id) {
+    return id != null && infos.remove(id) != null;
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.cache.InfoManagement#clearCache()
+   */
+  @Override
+  public void clearCache() {
+    super.clearCache();
+    infos.clear();
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.cache.InfoManagement#getNumberOfCachedInfos()
+   */
+  @Override
+  public int getNumberOfCachedInfos() {
+    return infos.size();
+  }
+
+  /**
+   * Keeps an information in memory. If more than {@link #maxCachedInfos}
+   * informations are kept, arbitrary ones are dropped. They can be read
+   * from the store again.
+   *
+   * @param id
+   * @param info
+   */
+  private void remember(String id, KeggInfos info) {
+    infos.put(id, info);
+    if (infos.size() > maxCachedInfos) {
+      int target = maxCachedInfos - maxCachedInfos / 10;
+      Iterator<String> it = infos.keySet().iterator();
+      while (it.hasNext() && infos.size() > target) {
+        it.next();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @param id
+   * @return the index of the lock in {@link #locks}, that guards fetching
+   *         the given id.
+   */
+  private static int lock(String id) {
+    int h = id.hashCode();
+    return (h ^ (h >>> 16)) & (LOCKS - 1);
+  }
+
+  /**
+   * Retrieves the informations for all KEGG ids of the given pathways at
+   * once, before any of them is translated. These are the same ids, that
+   * {@link de.zbit.kegg.KeggTools#preFetchInformation(Pathway, KeggInfoManagement, boolean, AbstractProgressBar)}
+   * would fetch for each single pathway, i.e., organisms, pathways, entries
+   * and reactions. Ids that are shared by multiple pathways are fetched only
+   * once.
+   *
+   * @param pathways
+   * @param progress may be <code>null</code>.
+   * @return the number of distinct ids.
+   */
+  public int prefetch(Collection<Pathway> pathways, AbstractProgressBar progress) {
+    // Sorted, so that ids of the same kind end up in the same batch
+    TreeSet<String> ids = new TreeSet<String>();
+    for (Pathway p : pathways) {
+      if (p.getOrg() != null && p.getOrg().length() > 0) {
+        ids.add("gn:" + p.getOrg());
+      }
+      if (p.getName() != null && p.getName().contains(":")) {
+        ids.add(p.getName());
+      }
+      for (Entry e : p.getEntries()) {
+        addIDs(e.getName(), ids);
+      }
+      for (Reaction r : p.getReactions()) {
+        addIDs(r.getName(), ids);
+      }
+    }
+    if (ids.size() > 0) {
+      log.info("Prefetching KEGG informations for " + ids.size() + " identifiers of "
+          + pathways.size() + " pathways.");
+      precacheIDs(ids.toArray(new String[ids.size()]), progress);
+    }
+    return ids.size();
+  }
+
+  /**
+   * Adds all KEGG ids of a space separated list.
+   *
+   * @param names
+   * @param ids
+   */
+  private static void addIDs(String names, Collection<String> ids) {
+    if (names == null) {
+      return;
+    }
+    for (String id : names.split(" ")) {
+      id = id.trim();
+      if (id.contains(":") && !id.toLowerCase().startsWith("unknown")) {
+        ids.add(id);
+      }
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see de.zbit.kegg.api.cache.KeggInfoManagement#hasChanged()
+   */
+  @Override
+  public boolean hasChanged() {
+    return store.hasChanged();
+  }
+
+  /**
+   * Appends all informations, that have been retrieved from KEGG, to the
+   * underlying store.
+   *
+   * @return <code>true</code> if the informations could be saved.
+   */
+  public boolean save() {
+    return store.save();
+  }
+
+  /**
+   * @return the underlying store.
+   */
+  public KeggInfoStore getStore() {
+    return store;
+  }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.sbvc.io;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the {@link SBVCIOOptions#INPUT} of a batch conversion to a list
+ * of BioPAX files. The input may be
+ * <ul>
+ * <li>a single file,</li>
+ * <li>a directory, of which all BioPAX files (see {@link #isBioPAXFile(File)})
+ * are converted, including those in subdirectories,</li>
+ * <li>a glob pattern in the last path component, e.g., "dumps/*.owl",</li>
+ * <li>or a list file ({@link #LIST_EXTENSION}) with one path per line. Empty
+ * lines and lines starting with '#' are ignored, relative paths are resolved
+ * against the directory of the list file. Missing files are skipped.</li>
+ * </ul>
+ *
+ * @version $Rev$
+ */
+public class InputFiles {
+
+  public static final Logger log = Logger.getLogger(InputFiles.class.getName());
+
+  /**
+   * Extension of list files.
+   */
+  public static final String LIST_EXTENSION = ".list";
+
+  /**
+   * Extensions of files, that are converted if a directory is given.
+   */
+  private static final String[] BIOPAX_EXTENSIONS = {".owl", ".rdf", ".biopax", ".xml"};
+
+  /**
+   * @param input
+   * @return <code>true</code> if the input denotes more than a single file,
+   *         i.e., it is a directory, a glob pattern or a list file.
+   */
+  public static boolean isBatch(File input) {
+    return input.isDirectory() || isGlob(input) || input.getName().toLowerCase().endsWith(LIST_EXTENSION);
+  }
+
+  /**
+   * @param input
+   * @return all input files, in a stable order.
+   * @throws IOException if the input or the directory of a glob pattern
+   *         does not exist.
+   */
+  public static List<File> resolve(File input) throws IOException {
+    List<File> files = new ArrayList<File>();
+    if (input.isDirectory()) {
+      addDirectory(input, files);
+    } else if (isGlob(input)) {
+      File dir = input.getAbsoluteFile().getParentFile();
+      if (dir == null || !dir.isDirectory()) {
+        throw new FileNotFoundException("No directory for '" + input + "'.");
+      }
+      Pattern pattern = toPattern(input.getName());
+      File[] children = dir.listFiles();
+      Arrays.sort(children);
+      for (File f : children) {
+        if (f.isFile() && pattern.matcher(f.getName()).matches()) {
+          files.add(f);
+        }
+      }
+    } else if (input.getName().toLowerCase().endsWith(LIST_EXTENSION)) {
+      File dir = input.getAbsoluteFile().getParentFile();
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(input), "UTF-8"));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          line = line.trim();
+          if (line.length() == 0 || line.startsWith("#")) {
+            continue;
+          }
+          File f = new File(line);
+          if (!f.isAbsolute()) {
+            f = new File(dir, line);
+          }
+          if (f.isFile()) {
+            files.add(f);
+          } else {
+            log.warning("Skipping listed input '" + f + "', which does not exist.");
+          }
+        }
+      } finally {
+        in.close();
+      }
+    } else if (input.isFile()) {
+      files.add(input);
+    } else {
+      throw new FileNotFoundException("Input '" + input + "' does not exist.");
+    }
+    return files;
+  }
+
+  /**
+   * @param f
+   * @return <code>true</code> if the file has a typical BioPAX extension.
+   */
+  public static boolean isBioPAXFile(File f) {
+    String name = f.getName().toLowerCase();
+    for (String extension : BIOPAX_EXTENSIONS) {
+      if (name.endsWith(extension)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Adds all BioPAX files of the directory and its subdirectories.
+   */
+  private static void addDirectory(File dir, List<File> files) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    Arrays.sort(children);
+    for (File f : children) {
+      if (f.isDirectory()) {
+        addDirectory(f, files);
+      } else if (isBioPAXFile(f)) {
+        files.add(f);
+      }
+    }
+  }
+
+  /**
+   * @return <code>true</code> if the file name contains '*' or '?'.
+   */
+  private static boolean isGlob(File input) {
+    return input.getName().indexOf('*') >= 0 || input.getName().indexOf('?') >= 0;
+  }
+
+  /**
+   * @param glob a file name with '*' and '?' wildcards.
+   * @return the corresponding regular expression.
+   */
+  private static Pattern toPattern(String glob) {
+    StringBuilder regex = new StringBuilder();
+    int start = 0;
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      if (c == '*' || c == '?') {
+        regex.append(Pattern.quote(glob.substring(start, i)));
+        regex.append(c == '*' ? ".*" : ".");
+        start = i + 1;
+      }
+    }
+    regex.append(Pattern.quote(glob.substring(start)));
+    return Pattern.compile(regex.toString());
+  }
+
+}
@@ -0,0 +1,734 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.sbvc.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.zbit.cache.InfoManagement;
+import de.zbit.cache.ObjectAndTimestamp;
+import de.zbit.kegg.api.KeggInfos;
+
+/**
+ * An indexed, append-only file of {@link KeggInfos}, by KEGG id.
+ *
+ * <p>In contrast to the serialized {@link de.zbit.kegg.api.cache.KeggInfoManagement}
+ * (see {@link de.zbit.kegg.Translator#cacheFileName}), opening this store
+ * only reads the ids and positions of all records. A record is deserialized
+ * when it is requested for the first time. New records are kept in memory
+ * until {@link #save()}, which appends them to the end of the file, without
+ * rewriting any existing record.
+ *
+ * <p>Each record consists of the id (short length and UTF-8 bytes), the
+ * length of the serialized {@link KeggInfos} and the serialized object. A
+ * length of <code>-1</code> marks ids that could not be retrieved from KEGG.
+ * Records are addressed by <code>long</code> positions and the index is
+ * read through a small window, so the file may grow beyond 2 GB. The file
+ * is never memory-mapped, thus an incomplete last record can always be cut
+ * off. A file with an invalid header is never truncated, but renamed (with
+ * the extension ".invalid") and replaced by a new file.
+ *
+ * <p>The informations of the serialized cache can be taken over with
+ * {@link #importCache(File)}.
+ *
+ * <p>One file may be shared by several processes. Records are only appended
+ * while holding an exclusive {@link FileLock}, after the records of other
+ * processes have been merged into the index. Ids that are unknown to the
+ * index are looked up again in records that other processes have appended
+ * in the meantime. The length of the file is checked at most once per
+ * {@link #REFRESH_INTERVAL} (or explicitly with {@link #refresh()}, e.g.,
+ * before a batch of lookups), not on every miss. Within one JVM, the index is split into
+ * {@link #STRIPES} independently locked stripes, so that concurrent
+ * lookups of different ids do not block each other.
+ *
+ * @version $Rev$
+ */
+public class KeggInfoStore {
+
+  public static final Logger log = Logger.getLogger(KeggInfoStore.class.getName());
+
+  /**
+   * Default file name of the store, in the current working directory.
+   */
+  public static final String DEFAULT_FILE_NAME = "keggdb.store";
+
+  private static final int MAGIC = 0x53424b49; // "SBKI"
+  private static final int FORMAT = 1;
+  private static final int HEADER_LENGTH = 8;
+  private static final int UNRETRIEVABLE = -1;
+
+  /**
+   * Size of the window, through which the index is read. Must be larger
+   * than {@link #MAX_RECORD_HEADER}.
+   */
+  private static final int WINDOW = 1 << 20;
+
+  /**
+   * Maximum length of the id and length fields of a record.
+   */
+  private static final int MAX_RECORD_HEADER = 2 + 0xffff + 4;
+
+  /**
+   * Minimum time in nanoseconds between two checks for records of other
+   * processes on misses, so that a batch of misses checks only once.
+   */
+  private static final long REFRESH_INTERVAL = 1000000000L;
+
+  /**
+   * Number of independently locked parts of the index (a power of two).
+   */
+  private static final int STRIPES = 16;
+
+  /**
+   * Already opened stores, by canonical file. {@link FileLock}s are held by
+   * the whole JVM, so each file must only be opened once.
+   */
+  private static final Map<File, KeggInfoStore> stores = new HashMap<File, KeggInfoStore>();
+
+  static {
+    // Retrieved informations must not get lost
+    Runtime.getRuntime().addShutdownHook(new Thread("KeggInfoStore-save") {
+      @Override
+      public void run() {
+        synchronized (stores) {
+          for (KeggInfoStore store : stores.values()) {
+            store.close();
+          }
+        }
+      }
+    });
+  }
+
+  private final File file;
+
+  /**
+   * Open for reading and appending, as long as the store is open. All
+   * modifications of the file and of {@link #indexedLength} are guarded by
+   * {@link #fileMonitor}.
+   */
+  private volatile RandomAccessFile raf;
+
+  private final Object fileMonitor = new Object();
+
+  /**
+   * Length of the file, up to which all records are contained in the index.
+   */
+  private volatile long indexedLength = 0;
+
+  /**
+   * {@link System#nanoTime()} of the last {@link #refresh()}.
+   */
+  private volatile long lastRefresh = System.nanoTime();
+
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  /**
+   * Opens (or creates) a store.
+   *
+   * @param file
+   * @throws IOException if the file can not be opened.
+   */
+  private KeggInfoStore(File file) throws IOException {
+    this.file = file;
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new Stripe();
+    }
+    while (!open()) {
+      moveAside();
+    }
+    log.fine("Opened KEGG info cache '" + file + "' with " + size() + " records.");
+  }
+
+  /**
+   * Opens the file and reads the index, while holding an exclusive lock. A
+   * new, empty file is initialized with a header.
+   *
+   * @return <code>false</code> if the file is invalid. It is closed and not
+   *         modified in this case.
+   * @throws IOException if the file can not be opened.
+   */
+  private boolean open() throws IOException {
+    raf = new RandomAccessFile(file, "rw");
+    FileLock lock = raf.getChannel().lock();
+    try {
+      long length = raf.length();
+      if (length == 0) {
+        raf.writeInt(MAGIC);
+        raf.writeInt(FORMAT);
+        indexedLength = HEADER_LENGTH;
+      } else if (!isValid(length)) {
+        raf.close();
+        raf = null;
+        return false;
+      } else {
+        indexedLength = readIndex(HEADER_LENGTH, length);
+        if (indexedLength < length) {
+          // No other process is writing, i.e., an incomplete record of an aborted run
+          raf.setLength(indexedLength);
+        }
+      }
+      return true;
+    } catch (IOException e) {
+      raf.close();
+      raf = null;
+      throw e;
+    } finally {
+      if (lock.isValid()) {
+        lock.release();
+      }
+    }
+  }
+
+  /**
+   * Renames an invalid file (to the same name with the extension
+   * ".invalid"), so that a new file can be created. Other processes may
+   * still read or append to the invalid file, so it is never truncated. If
+   * another process has already replaced the file, nothing is done.
+   *
+   * @throws IOException if the file can not be renamed.
+   */
+  private void moveAside() throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    RandomAccessFile current = new RandomAccessFile(file, "r");
+    try {
+      long length = current.length();
+      if (length == 0 || (length >= HEADER_LENGTH && current.readInt() == MAGIC && current.readInt() == FORMAT)) {
+        return;
+      }
+    } finally {
+      current.close();
+    }
+    File invalid = new File(file.getPath() + ".invalid");
+    log.info("Moving invalid KEGG info cache '" + file + "' to '" + invalid + "'.");
+    if ((invalid.exists() && !invalid.delete()) || !file.renameTo(invalid)) {
+      throw new IOException("Could not move invalid KEGG info cache '" + file + "' to '" + invalid + "'.");
+    }
+  }
+
+  /**
+   * Returns the store for the given file. Each file is opened only once per
+   * JVM.
+   *
+   * @param file
+   * @return the store.
+   * @throws IOException if the file can not be opened.
+   */
+  public static KeggInfoStore getStore(File file) throws IOException {
+    File key = file.getCanonicalFile();
+    synchronized (stores) {
+      KeggInfoStore store = stores.get(key);
+      if (store == null || store.raf == null) {
+        store = new KeggInfoStore(key);
+        stores.put(key, store);
+      }
+      return store;
+    }
+  }
+
+  /**
+   * @param length
+   * @return <code>true</code> if the file starts with a valid header.
+   * @throws IOException
+   */
+  private boolean isValid(long length) throws IOException {
+    if (length < HEADER_LENGTH) {
+      return false;
+    }
+    ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+    read(header, 0);
+    return header.getInt(0) == MAGIC && header.getInt(4) == FORMAT;
+  }
+
+  /**
+   * Adds all complete records between <code>from</code> and
+   * <code>length</code> to the index.
+   *
+   * @param from start of the first record.
+   * @param length current length of the file.
+   * @return the end of the last complete record.
+   * @throws IOException
+   */
+  private long readIndex(long from, long length) throws IOException {
+    ByteBuffer window = ByteBuffer.allocate(WINDOW);
+    window.limit(0);
+    long windowStart = from;
+    long pos = from;
+    while (pos + 2 <= length) {
+      long windowEnd = windowStart + window.limit();
+      if (pos + MAX_RECORD_HEADER > windowEnd && windowEnd < length) {
+        // Move the window to the current record
+        windowStart = pos;
+        window.clear();
+        window.limit((int) Math.min(WINDOW, length - pos));
+        read(window, pos);
+      }
+      int offset = (int) (pos - windowStart);
+      int limit = window.limit();
+      if (offset + 2 > limit) {
+        break;
+      }
+      int keyLength = window.getShort(offset) & 0xffff;
+      int lengthOffset = offset + 2 + keyLength;
+      if (lengthOffset + 4 > limit) {
+        break;
+      }
+      long lengthPos = pos + 2 + keyLength;
+      long end = lengthPos + 4 + Math.max(window.getInt(lengthOffset), 0);
+      if (end > length) {
+        break;
+      }
+      String id = new String(window.array(), offset + 2, keyLength, "UTF-8");
+      Stripe stripe = stripe(id);
+      synchronized (stripe) {
+        // Later records win
+        stripe.index.put(id, Long.valueOf(lengthPos));
+      }
+      pos = end;
+    }
+    return pos;
+  }
+
+  /**
+   * Indexes records that other processes have appended since the last
+   * call.
+   *
+   * @return <code>true</code> if new records have been found.
+   */
+  public boolean refresh() {
+    lastRefresh = System.nanoTime();
+    try {
+      RandomAccessFile raf = this.raf;
+      if (raf == null || raf.length() <= indexedLength) {
+        return false;
+      }
+    } catch (IOException e) {
+      return false;
+    }
+    synchronized (fileMonitor) {
+      RandomAccessFile raf = this.raf;
+      if (raf == null) {
+        return false;
+      }
+      try {
+        FileLock lock = raf.getChannel().lock(0, Long.MAX_VALUE, true);
+        try {
+          long before = indexedLength;
+          indexedLength = readIndex(before, raf.length());
+          return indexedLength > before;
+        } finally {
+          lock.release();
+        }
+      } catch (IOException e) {
+        log.log(Level.FINE, "Could not read KEGG info cache '" + file + "'.", e);
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @param id
+   * @return the {@link Stripe} responsible for the given id.
+   */
+  private Stripe stripe(String id) {
+    int h = id.hashCode();
+    return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+  }
+
+  /**
+   * @param id
+   * @return the position of the length field of the record for the given
+   *         id or <code>null</code> if the file does not contain the id.
+   *         Records of other processes are only indexed on a miss, if the
+   *         last {@link #refresh()} is older than {@link #REFRESH_INTERVAL}.
+   */
+  private Long position(String id) {
+    Stripe stripe = stripe(id);
+    synchronized (stripe) {
+      Long pos = stripe.index.get(id);
+      if (pos != null) {
+        return pos;
+      }
+    }
+    if (System.nanoTime() - lastRefresh >= REFRESH_INTERVAL && refresh()) {
+      synchronized (stripe) {
+        return stripe.index.get(id);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @param id
+   * @return <code>true</code> if this store contains a record for the given
+   *         id (which may also be {@link #isUnretrievable(String)}).
+   */
+  public boolean contains(String id) {
+    Stripe stripe = stripe(id);
+    synchronized (stripe) {
+      if (stripe.pending.containsKey(id)) {
+        return true;
+      }
+    }
+    return position(id) != null;
+  }
+
+  /**
+   * @param id
+   * @return <code>true</code> if the given id has been recorded as not
+   *         retrievable from KEGG.
+   */
+  public boolean isUnretrievable(String id) {
+    Stripe stripe = stripe(id);
+    synchronized (stripe) {
+      if (stripe.pending.containsKey(id)) {
+        return stripe.pending.get(id) == null;
+      }
+    }
+    Long pos = position(id);
+    if (pos == null) {
+      return false;
+    }
+    try {
+      return readInt(pos.longValue()) == UNRETRIEVABLE;
+    } catch (IOException e) {
+      log.log(Level.FINE, "Could not read KEGG info cache '" + file + "'.", e);
+      return false;
+    }
+  }
+
+  /**
+   * Reads the record for the given id from the file.
+   *
+   * @param id
+   * @return the stored information or <code>null</code> if this store does
+   *         not contain the id or it is {@link #isUnretrievable(String)}.
+   */
+  public KeggInfos get(String id) {
+    Stripe stripe = stripe(id);
+    synchronized (stripe) {
+      if (stripe.pending.containsKey(id)) {
+        return stripe.pending.get(id);
+      }
+    }
+    Long pos = position(id);
+    if (pos == null) {
+      return null;
+    }
+    try {
+      int length = readInt(pos.longValue());
+      if (length <= 0) {
+        return null;
+      }
+      ByteBuffer data = ByteBuffer.allocate(length);
+      read(data, pos.longValue() + 4);
+      ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data.array()));
+      try {
+        return (KeggInfos) in.readObject();
+      } finally {
+        in.close();
+      }
+    } catch (Exception e) {
+      log.log(Level.FINE, "Could not read '" + id + "' from KEGG info cache '" + file + "'.", e);
+      return null;
+    }
+  }
+
+  /**
+   * Remembers the information for an id. It is written to the file with
+   * the next {@link #save()}.
+   *
+   * @param id
+   * @param info <code>null</code> if the id could not be retrieved.
+   */
+  public void put(String id, KeggInfos info) {
+    if (id != null) {
+      Stripe stripe = stripe(id);
+      synchronized (stripe) {
+        stripe.pending.put(id, info);
+      }
+    }
+  }
+
+  /**
+   * @return <code>true</code> if there are records that have not yet been
+   *         saved.
+   */
+  public boolean hasChanged() {
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        if (stripe.pending.size() > 0) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Appends all new records to the file. Records, that other processes
+   * have saved in the meantime, are merged into the index first and ids
+   * that they already contain are not written again.
+   *
+   * @return <code>true</code> if all records could be saved.
+   */
+  public boolean save() {
+    synchronized (fileMonitor) {
+      if (!hasChanged()) {
+        return true;
+      }
+      RandomAccessFile raf = this.raf;
+      if (raf == null) {
+        return false;
+      }
+      try {
+        FileLock lock = raf.getChannel().lock();
+        try {
+          // Merge records of other processes
+          long length = raf.length();
+          indexedLength = readIndex(indexedLength, length);
+          if (indexedLength < length) {
+            raf.setLength(indexedLength);
+          }
+
+          // Serialize all new records
+          ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+          DataOutputStream out = new DataOutputStream(bytes);
+          List<Map<String, Long>> positions = new ArrayList<Map<String, Long>>(STRIPES);
+          List<List<String>> done = new ArrayList<List<String>>(STRIPES);
+          int count = 0;
+          for (Stripe stripe : stripes) {
+            Map<String, Long> saved = new HashMap<String, Long>();
+            List<String> ids = new ArrayList<String>();
+            synchronized (stripe) {
+              for (Map.Entry<String, KeggInfos> e : stripe.pending.entrySet()) {
+                ids.add(e.getKey());
+                byte[] key = e.getKey().getBytes("UTF-8");
+                if (key.length > 0xffff || stripe.index.containsKey(e.getKey())) {
+                  continue;
+                }
+                out.writeShort(key.length);
+                out.write(key);
+                saved.put(e.getKey(), Long.valueOf(indexedLength + out.size()));
+                if (e.getValue() == null) {
+                  out.writeInt(UNRETRIEVABLE);
+                } else {
+                  byte[] data = serialize(e.getValue());
+                  out.writeInt(data.length);
+                  out.write(data);
+                }
+              }
+            }
+            positions.add(saved);
+            done.add(ids);
+            count += saved.size();
+          }
+          out.close();
+
+          // Append and make them visible
+          raf.seek(indexedLength);
+          raf.write(bytes.toByteArray());
+          indexedLength += bytes.size();
+          for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+              stripes[i].index.putAll(positions.get(i));
+              // Records that have been put in the meantime are saved next time
+              for (String id : done.get(i)) {
+                stripes[i].pending.remove(id);
+              }
+            }
+          }
+          log.fine("Appended " + count + " records to KEGG info cache '" + file + "'.");
+          return true;
+        } finally {
+          lock.release();
+        }
+      } catch (IOException e) {
+        log.log(Level.WARNING, "Could not save KEGG info cache '" + file + "'.", e);
+        return false;
+      }
+    }
+  }
+
+  /**
+   * {@link #save()}s and closes the file.
+   */
+  public void close() {
+    synchronized (fileMonitor) {
+      save();
+      if (raf != null) {
+        try {
+          raf.close();
+        } catch (IOException e) {
+          log.log(Level.WARNING, "Could not close KEGG info cache '" + file + "'.", e);
+        }
+        raf = null;
+      }
+    }
+  }
+
+  /**
+   * @return the number of records in this store.
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.index.size();
+        for (String id : stripe.pending.keySet()) {
+          if (!stripe.index.containsKey(id)) {
+            size++;
+          }
+        }
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Takes over all informations of a serialized {@link de.zbit.kegg.api.cache.KeggInfoManagement}
+   * (see {@link de.zbit.kegg.Translator#cacheFileName}), that this store
+   * does not yet contain, and {@link #save()}s them.
+   *
+   * @param cacheFile
+   * @return the number of imported records.
+   */
+  public int importCache(File cacheFile) {
+    if (!cacheFile.isFile() || cacheFile.length() <= 1) {
+      return 0;
+    }
+    int count = 0;
+    try {
+      InfoManagement<?, ?> cache = InfoManagement.loadFromFilesystem(cacheFile);
+      // InfoManagement does not expose its content
+      for (Map.Entry<?, ?> e : ((Map<?, ?>) getField(cache, "rememberedInfos")).entrySet()) {
+        Object info = ((ObjectAndTimestamp<?>) e.getValue()).getInformation();
+        String id = e.getKey().toString();
+        if (info instanceof KeggInfos && !contains(id)) {
+          put(id, (KeggInfos) info);
+          count++;
+        }
+      }
+      for (Object id : (Collection<?>) getField(cache, "unsuccessfulQueries")) {
+        if (!contains(id.toString())) {
+          put(id.toString(), null);
+          count++;
+        }
+      }
+    } catch (Exception e) {
+      log.log(Level.WARNING, "Could not import KEGG info cache '" + cacheFile + "'.", e);
+    }
+    if (count > 0) {
+      save();
+      log.info("Imported " + count + " records from '" + cacheFile + "' into '" + file + "'.");
+    }
+    return count;
+  }
+
+  private static Object getField(InfoManagement<?, ?> cache, String name) throws Exception {
+    Field field = InfoManagement.class.getDeclaredField(name);
+    field.setAccessible(true);
+    return field.get(cache);
+  }
+
+  /**
+   * @return the underlying file.
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * @return the serialized form of the given object.
+   * @throws IOException
+   */
+  private static byte[] serialize(KeggInfos info) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(info);
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  private int readInt(long pos) throws IOException {
+    ByteBuffer data = ByteBuffer.allocate(4);
+    read(data, pos);
+    return data.getInt(0);
+  }
+
+  /**
+   * Fills <code>data</code> from the given file position. Positional reads
+   * do not interfere with concurrent readers or with appending.
+   */
+  private void read(ByteBuffer data, long pos) throws IOException {
+    RandomAccessFile raf = this.raf;
+    if (raf == null) {
+      throw new IOException("KEGG info cache '" + file + "' has been closed.");
+    }
+    FileChannel channel = raf.getChannel();
+    while (data.hasRemaining()) {
+      if (channel.read(data, pos + data.position()) < 0) {
+        throw new IOException("Unexpected end of KEGG info cache '" + file + "'.");
+      }
+    }
+  }
+
+  /**
+   * One independently locked part of the index.
+   */
+  private static class Stripe {
+
+    /**
+     * Positions of the length field of all indexed records, by id.
+     */
+    final Map<String, Long> index = new HashMap<String, Long>();
+
+    /**
+     * Records that have not yet been saved. <code>null</code> values mark
+     * unretrievable ids.
+     */
+    final Map<String, KeggInfos> pending = new LinkedHashMap<String, KeggInfos>();
+  }
+
+}
@@ -26,6 +26,10 @@ package de.zbit.sbvc.io;
 
 import java.io.File;
 
+import de.zbit.biopax.FailureReport;
+import de.zbit.biopax.PathwayArchive;
+import de.zbit.biopax.PathwayFilter;
+import de.zbit.biopax.PathwayPipeline;
 import de.zbit.io.filefilter.SBFileFilter;
 import de.zbit.kegg.io.KEGGtranslatorIOOptions.Format;
 import de.zbit.util.prefs.KeyProvider;
@@ -52,7 +56,8 @@ public interface SBVCIOOptions  extends KeyProvider{
    */
   public static final Option<File> INPUT = new Option<File>("INPUT",
       File.class,
-      "Path and name of the source, OWL formatted, XML-file.",
+      "Path and name of the source, OWL formatted, XML-file. May also be a directory, " +
+      "a glob pattern or a list file, to convert multiple files (see WORKERS).",
 //      TODO: Create range that accepts multiple file filter
 //      KGML, SBML, PID XML, BioPAX      
       new Range<File>(File.class, SBFileFilter.createAllFileFilter()), (short) 2, "-i" );
@@ -63,7 +68,8 @@ public interface SBVCIOOptions  extends KeyProvider{
    */
   public static final Option<File> OUTPUT = new Option<File>("OUTPUT",
       File.class,
-      "Path and name, where the translated file should be put.",
+      "Path and name, where the translated file should be put. If the name ends " +
+      "with .zip, .tar.gz or .tgz, all pathways are written into this archive.",
       (short) 2, "-o" );//, new File(System.getProperty("user.dir")));
 
   /**
@@ -84,14 +90,170 @@ public interface SBVCIOOptions  extends KeyProvider{
 //               "{\"hsa\", \"mmu\"}"),
       (short) 2, "-s ", null);
   
-//  /**
-//   * if the file should be splitted
-//   */
-//  public static final Option<Boolean> SPLIT_MODE = new Option<Boolean>("SPLIT_MODE",
-//      Boolean.class, "If this option is set true and the input file consists of several " +
-//      		"pathways, for each pathway a result file is created. These files are returned " +
-//      		"in one ZIP file.",
-//      (short) 2, "-s", false);
+  /**
+   * Directory with local identifier mapping stores.
+   */
+  public static final Option<File> MAPPING_STORE = new Option<File>("MAPPING_STORE",
+      File.class,
+      "Directory with local identifier mapping stores (see MappingStore). If set, " +
+      "UniProt, Ensembl and RefSeq identifiers are mapped to Entrez gene ids without " +
+      "downloading any mapping file.",
+      (short) 2, "-m", null);
+  
+  /**
+   * Directory for the persistent identifier resolution cache.
+   */
+  public static final Option<File> RESOLUTION_CACHE = new Option<File>("RESOLUTION_CACHE",
+      File.class,
+      "Directory, in which gene symbol and gene id resolutions are cached across runs. " +
+      "The cache is discarded automatically, if the mapping data changes.",
+      (short) 2, "-c", null);
+  
+  /**
+   * File of the KEGG information cache, that may be shared by several
+   * processes.
+   */
+  public static final Option<File> KEGG_CACHE = new Option<File>("KEGG_CACHE",
+      File.class,
+      "File, in which informations retrieved from KEGG are cached across runs. " +
+      "Several processes may share one cache file, their additions are merged.",
+      (short) 2, "-k", new File(KeggInfoStore.DEFAULT_FILE_NAME));
+  
+  /**
+   * Use only the KEGG information cache, e.g., on nodes without internet
+   * access.
+   */
+  public static final Option<Boolean> KEGG_OFFLINE = new Option<Boolean>("KEGG_OFFLINE",
+      Boolean.class,
+      "If true, KEGG is not queried and all informations are taken from the KEGG " +
+      "information cache (see KEGG_CACHE), e.g., a copy that has been filled on another machine.",
+      (short) 2, "-n", Boolean.FALSE);
+  
+  /**
+   * Bounds the memory of the conversion.
+   */
+  public static final Option<Integer> PATHWAY_QUEUE_SIZE = new Option<Integer>("PATHWAY_QUEUE_SIZE",
+      Integer.class,
+      "Maximum number of converted pathways, that are held in memory while waiting " +
+      "for their translation and output.",
+      (short) 2, "-q", PathwayPipeline.DEFAULT_CAPACITY);
+  
+  /**
+   * Compression of archive outputs.
+   */
+  public static final Option<Integer> COMPRESSION_LEVEL = new Option<Integer>("COMPRESSION_LEVEL",
+      Integer.class,
+      "Compression level from 0 (fastest) to 9 (smallest), if the output is a zip or " +
+      "tar.gz archive.",
+      (short) 2, "-z", PathwayArchive.DEFAULT_LEVEL);
+  
+  /**
+   * Skips unchanged pathways.
+   */
+  public static final Option<Boolean> INCREMENTAL = new Option<Boolean>("INCREMENTAL",
+      Boolean.class,
+      "If true and OUTPUT is a folder, only pathways whose BioPAX content or conversion " +
+      "options changed since the last conversion into this folder are translated again.",
+      (short) 2, "-u", Boolean.FALSE);
+  
+  /**
+   * Parallel conversion of multiple input files.
+   */
+  public static final Option<Integer> WORKERS = new Option<Integer>("WORKERS",
+      Integer.class,
+      "Number of input files, that are converted at the same time, if INPUT is a " +
+      "directory, a glob pattern (e.g., 'dumps/*.owl') or a list file (" + InputFiles.LIST_EXTENSION +
+      ") with one input file per line. Each file is converted into a subfolder of OUTPUT.",
+      (short) 2, "-w", 2);
+  
+  /**
+   * Time budget of a single pathway.
+   */
+  public static final Option<Integer> PATHWAY_TIMEOUT = new Option<Integer>("PATHWAY_TIMEOUT",
+      Integer.class,
+      "Maximum time in seconds for the conversion of a single pathway (0 for no limit). " +
+      "Pathways that take longer are skipped and recorded in the failure report " +
+      "(" + FailureReport.FILE_NAME + ") of the output folder.",
+      (short) 2, "-t", 0);
+  
+  /**
+   * Allocation budget of a single pathway.
+   */
+  public static final Option<Integer> PATHWAY_ALLOCATION = new Option<Integer>("PATHWAY_ALLOCATION",
+      Integer.class,
+      "Maximum memory in MB, that may be allocated for the conversion of a single pathway " +
+      "(0 for no limit). This counts all allocations, including short-lived garbage, not the " +
+      "memory that is retained. Pathways that allocate more are skipped and recorded in the " +
+      "failure report.",
+      (short) 2, "-b", 0);
+  
+  /**
+   * Runs a local conversion server.
+   */
+  public static final Option<Integer> SERVER_PORT = new Option<Integer>("SERVER_PORT",
+      Integer.class,
+      "If set, SBVC keeps running and converts BioPAX files that are posted to " +
+      "http://localhost:<port>" + ConversionServer.CONVERT_PATH + " (optionally with " +
+      "?species=<taxonomy id>&priority=<n>). The SBML result is returned as response. Long " +
+      "conversions can be posted to " + ConversionServer.JOBS_PATH + " and polled asynchronously. " +
+      "Up to WORKERS requests are converted at the same time.",
+      (short) 2, "-l", null);
+  
+  /**
+   * Number of jobs, that may wait in the queue of the conversion server.
+   */
+  public static final Option<Integer> SERVER_QUEUE_SIZE = new Option<Integer>("SERVER_QUEUE_SIZE",
+      Integer.class,
+      "Maximum number of conversion requests, that may wait for a worker of the conversion " +
+      "server (see SERVER_PORT). Further requests are rejected with 429 and a Retry-After hint.",
+      (short) 2, "-j", 16);
+  
+  /**
+   * Heap of the conversion server, that may be used by running jobs.
+   */
+  public static final Option<Integer> SERVER_MEMORY = new Option<Integer>("SERVER_MEMORY",
+      Integer.class,
+      "Memory in MB, that may be reserved by the running jobs of the conversion server " +
+      "(0 for three quarters of the maximum heap). The memory of each job is estimated " +
+      "from its input size. Jobs wait, until their estimate fits, and inputs that never " +
+      "fit are rejected.",
+      (short) 2, "-g", 0);
+  
+  /**
+   * Names or RDF ids of the pathways to convert.
+   */
+  public static final Option<String> PATHWAYS = new Option<String>("PATHWAYS",
+      String.class,
+      "Names or RDF ids of the pathways that should be converted, separated by '" +
+      PathwayFilter.SEPARATOR + "'. All other pathways of the input are ignored.",
+      (short) 2, "-p", null);
+  
+  /**
+   * Data sources of the pathways to convert.
+   */
+  public static final Option<String> DATA_SOURCE = new Option<String>("DATA_SOURCE",
+      String.class,
+      "Only pathways from one of these data sources (e.g., 'Reactome'), separated by '" +
+      PathwayFilter.SEPARATOR + "', are converted.",
+      (short) 2, "-d", null);
+  
+  /**
+   * Regular expression for the pathways to convert.
+   */
+  public static final Option<String> PATHWAY_PATTERN = new Option<String>("PATHWAY_PATTERN",
+      String.class,
+      "Only pathways whose name or RDF id contains a match of this regular expression " +
+      "are converted.",
+      (short) 2, "-r", null);
+  
+  /**
+   * if the file should be splitted
+   */
+  public static final Option<Boolean> SPLIT_MODE = new Option<Boolean>("SPLIT_MODE",
+      Boolean.class, "If this option is set true and the input file consists of several " +
+      		"pathways, for each pathway a result file is created. Otherwise, all (selected) " +
+      		"pathways are merged into a single result file.",
+      (short) 2, "-e", Boolean.TRUE);
 
   /**
    * Define the default input/ output files and the default output format.
@@ -100,6 +262,9 @@ public interface SBVCIOOptions  extends KeyProvider{
   public static final OptionGroup<Object> BASE_OPTIONS = new OptionGroup<Object>(
       "Base options",
       "Define the default input/ output files and the conversion option.",
-      INPUT, OUTPUT, FORMAT, SPECIES);
+      INPUT, OUTPUT, FORMAT, SPECIES, MAPPING_STORE, RESOLUTION_CACHE, KEGG_CACHE, KEGG_OFFLINE,
+      PATHWAY_QUEUE_SIZE, COMPRESSION_LEVEL, INCREMENTAL, WORKERS, PATHWAY_TIMEOUT, PATHWAY_ALLOCATION,
+      PATHWAYS, DATA_SOURCE, PATHWAY_PATTERN, SPLIT_MODE, SERVER_PORT,
+      SERVER_QUEUE_SIZE, SERVER_MEMORY);
   
 }
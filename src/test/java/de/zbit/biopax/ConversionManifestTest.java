@@ -0,0 +1,260 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+import org.biopax.paxtools.model.BioPAXLevel;
+import org.biopax.paxtools.model.Model;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.zbit.kegg.parser.pathway.Pathway;
+
+/**
+ * Tests resuming conversions and the stability of the pathway hashes of
+ * the {@link ConversionManifest}.
+ *
+ * @version $Rev$
+ */
+public class ConversionManifestTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("ConversionManifestTest", "");
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    for (File f : directory.listFiles()) {
+      f.delete();
+    }
+    directory.delete();
+  }
+
+  private void write(String name, String content) throws IOException {
+    FileOutputStream out = new FileOutputStream(new File(directory, name));
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  private void append(String content) throws IOException {
+    FileOutputStream out = new FileOutputStream(new File(directory, ConversionManifest.FILE_NAME), true);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  private int countLines() throws IOException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(
+      new FileInputStream(new File(directory, ConversionManifest.FILE_NAME)), "UTF-8"));
+    try {
+      int lines = 0;
+      while (in.readLine() != null) {
+        lines++;
+      }
+      return lines;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Converts a pathway, as the {@link PathwayIterator} and the writer do.
+   */
+  private void convert(ConversionManifest manifest, String id, String hash, String output) throws IOException {
+    Pathway keggPW = new Pathway(id, "Test pathway", 1);
+    manifest.register(keggPW, id, hash);
+    write(output, id + '\t' + hash);
+    manifest.setOutput(keggPW, output);
+  }
+
+  @Test
+  public void testResumeWithoutSave() throws IOException {
+    ConversionManifest manifest = new ConversionManifest(directory, "options");
+    convert(manifest, "pw1", "hash1", "pw1.xml");
+    convert(manifest, "pw2", "hash2", "pw2.xml");
+    // Aborted, before the manifest has been saved
+    manifest.close();
+
+    manifest = new ConversionManifest(directory, "options");
+    assertTrue(manifest.isUpToDate("pw1", "hash1"));
+    assertTrue(manifest.isUpToDate("pw2", "hash2"));
+    assertFalse(manifest.isUpToDate("pw1", "hash2"));
+    assertFalse(manifest.isUpToDate("pw3", "hash1"));
+    assertEquals(2, manifest.getSkippedCount());
+    assertEquals(Arrays.asList("pw1.xml", "pw2.xml"), manifest.getOutputs());
+  }
+
+  @Test
+  public void testIncompleteLineIsIgnored() throws IOException {
+    ConversionManifest manifest = new ConversionManifest(directory, "options");
+    convert(manifest, "pw1", "hash1", "pw1.xml");
+    manifest.close();
+    append("pw2\thash2");
+
+    manifest = new ConversionManifest(directory, "options");
+    assertTrue(manifest.isUpToDate("pw1", "hash1"));
+    assertFalse(manifest.isUpToDate("pw2", "hash2"));
+    assertEquals(Arrays.asList("pw1.xml"), manifest.getOutputs());
+  }
+
+  @Test
+  public void testResumeAfterIncompleteLine() throws IOException {
+    ConversionManifest manifest = new ConversionManifest(directory, "options");
+    convert(manifest, "pw1", "hash1", "pw1.xml");
+    manifest.close();
+    append("pw2\thash2");
+
+    manifest = new ConversionManifest(directory, "options");
+    convert(manifest, "pw3", "hash3", "pw3.xml");
+    manifest.close();
+    assertEquals(3, countLines());
+    manifest = new ConversionManifest(directory, "options");
+    assertTrue(manifest.isUpToDate("pw1", "hash1"));
+    assertTrue(manifest.isUpToDate("pw3", "hash3"));
+  }
+
+  @Test
+  public void testChangedOrMissingOutputIsNotUpToDate() throws IOException {
+    ConversionManifest manifest = new ConversionManifest(directory, "options");
+    convert(manifest, "pw1", "hash1", "pw1.xml");
+    convert(manifest, "pw2", "hash2", "pw2.xml");
+    manifest.save();
+
+    write("pw1.xml", "edited");
+    new File(directory, "pw2.xml").delete();
+    manifest = new ConversionManifest(directory, "options");
+    assertFalse(manifest.isUpToDate("pw1", "hash1"));
+    assertFalse(manifest.isUpToDate("pw2", "hash2"));
+    assertEquals(0, manifest.getSkippedCount());
+  }
+
+  @Test
+  public void testSaveCompacts() throws IOException {
+    ConversionManifest manifest = new ConversionManifest(directory, "options");
+    convert(manifest, "pw1", "hash1", "pw1.xml");
+    convert(manifest, "pw1", "hash2", "pw1.xml");
+    convert(manifest, "pw2", "hash3", "pw2.xml");
+    manifest.close();
+    assertEquals(4, countLines());
+
+    manifest.save();
+    assertEquals(3, countLines());
+    assertFalse(new File(directory, ConversionManifest.FILE_NAME + ".tmp").exists());
+    manifest = new ConversionManifest(directory, "options");
+    assertFalse(manifest.isUpToDate("pw1", "hash1"));
+    assertTrue(manifest.isUpToDate("pw1", "hash2"));
+  }
+
+  @Test
+  public void testOutputOfPreviousConversion() throws IOException {
+    ConversionManifest manifest = new ConversionManifest(directory, "options");
+    convert(manifest, "pw1", "hash1", "previous.xml");
+    manifest.save();
+
+    manifest = new ConversionManifest(directory, "options");
+    Pathway changed = new Pathway("pw1", "Test pathway", 1);
+    manifest.register(changed, "pw1", "hash2");
+    assertEquals("previous.xml", manifest.getOutput(changed));
+    Pathway added = new Pathway("pw2", "Test pathway", 1);
+    manifest.register(added, "pw2", "hash3");
+    assertNull(manifest.getOutput(added));
+
+    // Outputs of unregistered pathways are not recorded
+    manifest.setOutput(new Pathway("pw3", "Test pathway", 1), "previous.xml");
+    manifest.close();
+    assertEquals(2, countLines());
+  }
+
+  private static Model createModel(boolean reversed, String name) {
+    Model m = BioPAXLevel.L3.getDefaultFactory().createModel();
+    org.biopax.paxtools.model.level3.Pathway pw;
+    if (reversed) {
+      org.biopax.paxtools.model.level3.Pathway b = m.addNew(org.biopax.paxtools.model.level3.Pathway.class, "b");
+      org.biopax.paxtools.model.level3.Pathway a = m.addNew(org.biopax.paxtools.model.level3.Pathway.class, "a");
+      pw = m.addNew(org.biopax.paxtools.model.level3.Pathway.class, "pw");
+      pw.addPathwayComponent(b);
+      pw.addPathwayComponent(a);
+      b.setDisplayName("B");
+      a.setDisplayName(name);
+    } else {
+      pw = m.addNew(org.biopax.paxtools.model.level3.Pathway.class, "pw");
+      org.biopax.paxtools.model.level3.Pathway a = m.addNew(org.biopax.paxtools.model.level3.Pathway.class, "a");
+      org.biopax.paxtools.model.level3.Pathway b = m.addNew(org.biopax.paxtools.model.level3.Pathway.class, "b");
+      a.setDisplayName(name);
+      b.setDisplayName("B");
+      pw.addPathwayComponent(a);
+      pw.addPathwayComponent(b);
+    }
+    pw.setDisplayName("Pathway");
+    return m;
+  }
+
+  private static String hash(ConversionManifest manifest, Model m) {
+    return manifest.hash(m, m.getByID("pw"));
+  }
+
+  @Test
+  public void testHashIsStable() throws IOException {
+    ConversionManifest manifest = new ConversionManifest(directory, "options");
+    String hash = hash(manifest, createModel(false, "A"));
+    assertEquals(hash, hash(manifest, createModel(false, "A")));
+    assertEquals(hash, hash(manifest, createModel(true, "A")));
+    assertEquals(hash, hash(new ConversionManifest(directory, "options"), createModel(true, "A")));
+  }
+
+  @Test
+  public void testHashChanges() throws IOException {
+    ConversionManifest manifest = new ConversionManifest(directory, "options");
+    String hash = hash(manifest, createModel(false, "A"));
+    // Content of a referenced element
+    assertFalse(hash.equals(hash(manifest, createModel(false, "A2"))));
+    // Conversion options
+    assertFalse(hash.equals(hash(new ConversionManifest(directory, "other options"), createModel(false, "A"))));
+  }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests the normalization and the open-addressing table of the
+ * {@link GeneSymbolIndex}.
+ *
+ * @version $Rev$
+ */
+public class GeneSymbolIndexTest {
+
+  @Test
+  public void testNormalize() {
+    assertEquals("BCL2", GeneSymbolIndex.normalize("Bcl-2"));
+    assertEquals("BCL2", GeneSymbolIndex.normalize("  bcl2\t"));
+    assertEquals("HLA_A", GeneSymbolIndex.normalize("hla a"));
+    assertEquals("HLA_A", GeneSymbolIndex.normalize("HLA_A"));
+    assertEquals("", GeneSymbolIndex.normalize(" - "));
+  }
+
+  @Test
+  public void testHashEqualsHashOfNormalizedForm() {
+    for (String s : new String[] {"Bcl-2", " tp53 ", "hla a", "", "-", "Ab-C_d e"}) {
+      assertEquals(s, GeneSymbolIndex.normalize(s).hashCode(), GeneSymbolIndex.hash(s));
+    }
+  }
+
+  @Test
+  public void testMatches() {
+    assertTrue(GeneSymbolIndex.matches("BCL2", "bcl-2"));
+    assertTrue(GeneSymbolIndex.matches("BCL2", new StringBuilder(" Bcl2 ")));
+    assertFalse(GeneSymbolIndex.matches("BCL2", "BCL21"));
+    assertFalse(GeneSymbolIndex.matches("BCL21", "BCL2"));
+    assertFalse(GeneSymbolIndex.matches("BCL_2", "BCL2"));
+  }
+
+  @Test
+  public void testLookupIsNormalized() {
+    Map<String, Integer> mapping = new HashMap<String, Integer>();
+    mapping.put("BCL2", 596);
+    mapping.put("HLA-A", 3105);
+    GeneSymbolIndex index = new GeneSymbolIndex(mapping, "test");
+
+    assertEquals(596, index.getEntrezGeneID("bcl-2"));
+    assertEquals(596, index.getEntrezGeneID(new StringBuilder(" Bcl2 ")));
+    assertEquals(Integer.valueOf(3105), index.map("hla-a"));
+    assertEquals(2, index.size());
+    assertEquals("test", index.getDataVersion());
+  }
+
+  @Test
+  public void testUnknownSymbols() {
+    Map<String, Integer> mapping = new HashMap<String, Integer>();
+    mapping.put("TP53", 7157);
+    mapping.put("EMPTY", 0);
+    mapping.put("-", 1);
+    GeneSymbolIndex index = new GeneSymbolIndex(mapping, "test");
+
+    assertEquals(0, index.getEntrezGeneID(null));
+    assertEquals(0, index.getEntrezGeneID("TP5"));
+    assertEquals(0, index.getEntrezGeneID("TP533"));
+    assertNull(index.map("EMPTY"));
+    assertNull(index.map(""));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void testExactSymbolWinsOverCollapsedAlias() {
+    // Insertion order must not matter
+    Map<String, Integer> mapping = new LinkedHashMap<String, Integer>();
+    mapping.put("ABC-1", 2);
+    mapping.put("abc1", 3);
+    mapping.put("ABC1", 1);
+    GeneSymbolIndex index = new GeneSymbolIndex(mapping, "test");
+
+    assertEquals(1, index.getEntrezGeneID("abc-1"));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void testCollidingSlots() {
+    // Many symbols with common prefixes share probe sequences
+    Map<String, Integer> mapping = new HashMap<String, Integer>();
+    for (int i = 1; i <= 20000; i++) {
+      mapping.put("GENE" + i, i);
+    }
+    GeneSymbolIndex index = new GeneSymbolIndex(mapping, "test");
+
+    assertEquals(20000, index.size());
+    for (int i = 1; i <= 20000; i++) {
+      assertEquals(i, index.getEntrezGeneID("gene-" + i));
+    }
+    assertEquals(0, index.getEntrezGeneID("GENE0"));
+    assertEquals(0, index.getEntrezGeneID("GENE20001"));
+  }
+
+}
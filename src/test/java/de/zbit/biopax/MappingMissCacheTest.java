@@ -0,0 +1,143 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.zbit.util.Species;
+
+/**
+ * Tests the {@link MappingMissCache}.
+ *
+ * @version $Rev$
+ */
+public class MappingMissCacheTest {
+
+  @Test
+  public void testSymbolMisses() {
+    MappingMissCache cache = new MappingMissCache();
+    assertFalse(cache.isKnownSymbolMiss("ATP"));
+    cache.addSymbolMiss("ATP");
+    cache.addSymbolMiss("ATP");
+    assertTrue(cache.isKnownSymbolMiss("ATP"));
+    // Compared in the normalized form of the gene symbol index
+    assertTrue(cache.isKnownSymbolMiss(" atp "));
+    assertTrue(cache.isKnownSymbolMiss(new StringBuilder("A-TP")));
+    assertFalse(cache.isKnownSymbolMiss("ADP"));
+    assertEquals(3, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test
+  public void testGeneIDMisses() {
+    MappingMissCache cache = new MappingMissCache();
+    cache.addGeneIDMiss(7157);
+    cache.addGeneIDMiss(-1);
+    cache.addGeneIDMiss(0);
+    assertTrue(cache.isKnownGeneIDMiss(7157));
+    assertTrue(cache.isKnownGeneIDMiss(-1));
+    assertFalse(cache.isKnownGeneIDMiss(0));
+    assertFalse(cache.isKnownGeneIDMiss(7158));
+    // Gene ids and symbols are independent
+    assertFalse(cache.isKnownSymbolMiss("7157"));
+  }
+
+  @Test
+  public void testClear() {
+    MappingMissCache cache = new MappingMissCache();
+    cache.addSymbolMiss("ATP");
+    cache.addGeneIDMiss(1);
+    assertTrue(cache.isKnownSymbolMiss("ATP"));
+    cache.clear();
+    assertEquals(0, cache.getHitCount());
+    assertFalse(cache.isKnownSymbolMiss("ATP"));
+    assertFalse(cache.isKnownGeneIDMiss(1));
+  }
+
+  @Test
+  public void testResetWhenFull() {
+    MappingMissCache cache = new MappingMissCache();
+    for (int i = 1; i <= MappingMissCache.MAX_ENTRIES; i++) {
+      cache.addGeneIDMiss(i);
+    }
+    assertTrue(cache.isKnownGeneIDMiss(1));
+    assertTrue(cache.isKnownGeneIDMiss(MappingMissCache.MAX_ENTRIES));
+
+    // One more starts over
+    cache.addGeneIDMiss(-5);
+    assertTrue(cache.isKnownGeneIDMiss(-5));
+    assertFalse(cache.isKnownGeneIDMiss(1));
+  }
+
+  @Test
+  public void testCachePerSpecies() {
+    Species human = new Species("Homo sapiens", "_HUMAN", "human", "hsa", 9606);
+    Species mouse = new Species("Mus musculus", "_MOUSE", "mouse", "mmu", 10090);
+    assertSame(MappingMissCache.getCache(human), MappingMissCache.getCache(human));
+    assertFalse(MappingMissCache.getCache(human) == MappingMissCache.getCache(mouse));
+  }
+
+  @Test
+  public void testConcurrentReadersSeeAllRecordedMisses() throws InterruptedException {
+    final MappingMissCache cache = new MappingMissCache();
+    final int count = 50000;
+    final AtomicInteger recorded = new AtomicInteger();
+    final AtomicInteger falseMisses = new AtomicInteger();
+    Thread[] readers = new Thread[4];
+    for (int i = 0; i < readers.length; i++) {
+      readers[i] = new Thread() {
+        @Override
+        public void run() {
+          int last;
+          while ((last = recorded.get()) < count) {
+            for (int id = Math.max(1, last - 64); id <= last; id++) {
+              if (!cache.isKnownGeneIDMiss(id) || !cache.isKnownSymbolMiss("S" + id)) {
+                falseMisses.incrementAndGet();
+              }
+            }
+          }
+        }
+      };
+      readers[i].start();
+    }
+    for (int id = 1; id <= count; id++) {
+      cache.addGeneIDMiss(id);
+      cache.addSymbolMiss("S" + id);
+      recorded.set(id);
+    }
+    for (Thread reader : readers) {
+      reader.join();
+    }
+    assertEquals(0, falseMisses.get());
+  }
+
+}
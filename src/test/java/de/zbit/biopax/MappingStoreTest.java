@@ -0,0 +1,182 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.zbit.mapper.MappingUtils.IdentifierType;
+
+/**
+ * Tests writing, importing and looking up {@link MappingStore}s, especially
+ * at block boundaries.
+ *
+ * @version $Rev$
+ */
+public class MappingStoreTest {
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("MappingStoreTest", "");
+    dir.delete();
+    dir.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    for (File f : dir.listFiles()) {
+      f.delete();
+    }
+    dir.delete();
+  }
+
+  /**
+   * @return a store with keys "K00000", "K00001", ... mapping to their
+   *         number plus one.
+   */
+  private MappingStore createStore(int size) throws IOException {
+    Map<String, Integer> mapping = new HashMap<String, Integer>();
+    for (int i = 0; i < size; i++) {
+      mapping.put(key(i), i + 1);
+    }
+    File file = new File(dir, "test" + MappingStore.FILE_EXTENSION);
+    MappingStore.write(mapping, IdentifierType.UniProt, file);
+    return new MappingStore(file, IdentifierType.UniProt);
+  }
+
+  private static String key(int i) {
+    return String.format("K%05d", i);
+  }
+
+  @Test
+  public void testEmptyStore() throws IOException {
+    MappingStore store = createStore(0);
+    assertEquals(0, store.size());
+    assertNull(store.map("K00000"));
+    assertNull(store.map(null));
+  }
+
+  @Test
+  public void testSingleBlock() throws IOException {
+    MappingStore store = createStore(3);
+    assertEquals(Integer.valueOf(1), store.map("K00000"));
+    assertEquals(Integer.valueOf(3), store.map("K00002"));
+    assertNull(store.map("K00003"));
+    assertNull(store.map("A"));
+  }
+
+  @Test
+  public void testBlockBoundaries() throws IOException {
+    int n = MappingStore.ENTRIES_PER_BLOCK;
+    for (int size : new int[] {n - 1, n, n + 1, 3 * n, 3 * n + 1}) {
+      MappingStore store = createStore(size);
+      assertEquals(size, store.size());
+      // Every key, including the first and last key of each block
+      for (int i = 0; i < size; i++) {
+        assertEquals(key(i), Integer.valueOf(i + 1), store.map(key(i)));
+      }
+      // Before the first, between two and behind the last key
+      assertNull(store.map("K"));
+      assertNull(store.map(key(n - 1) + "0"));
+      assertNull(store.map(key(size)));
+      assertNull(store.map("Z"));
+    }
+  }
+
+  @Test
+  public void testNormalizedKeys() throws IOException {
+    Map<String, Integer> mapping = new HashMap<String, Integer>();
+    mapping.put(" nm_000546.5 ", 7157);
+    mapping.put("NM_000123", 0);
+    mapping.put("NM_000124", -1);
+    File file = new File(dir, "refseq" + MappingStore.FILE_EXTENSION);
+    MappingStore.write(mapping, IdentifierType.RefSeq, file);
+    MappingStore store = new MappingStore(file, IdentifierType.RefSeq);
+
+    assertEquals(1, store.size());
+    assertEquals(Integer.valueOf(7157), store.map("NM_000546"));
+    assertEquals(Integer.valueOf(7157), store.map("nm_000546.3"));
+    assertNull(store.map("NM_000123"));
+    assertEquals("NM_000546", MappingStore.normalize(IdentifierType.RefSeq, " nm_000546.5"));
+    assertEquals("ENSG0001.5", MappingStore.normalize(IdentifierType.Ensembl, "ensg0001.5"));
+  }
+
+  @Test
+  public void testImportDump() throws IOException {
+    File dump = new File(dir, "dump.tab");
+    Writer out = new OutputStreamWriter(new FileOutputStream(dump), "UTF-8");
+    try {
+      out.write("#tax\tgene\tacc\n");
+      out.write("9606\t7157\tP04637; Q53GA5\n");
+      out.write("10090\t22059\tP02340\n");
+      out.write("9606\t-\tP99999\n");
+      out.write("9606\t596\t-\n");
+      out.write("9606\t672;675\tP38398\n");
+      out.write("short line\n");
+    } finally {
+      out.close();
+    }
+    File file = new File(dir, "uniprot" + MappingStore.FILE_EXTENSION);
+    MappingStore.importDump(dump, IdentifierType.UniProt, 2, 1, 0, "9606", file);
+    MappingStore store = new MappingStore(file, IdentifierType.UniProt);
+
+    assertEquals(3, store.size());
+    assertEquals(Integer.valueOf(7157), store.map("P04637"));
+    assertEquals(Integer.valueOf(7157), store.map("q53ga5"));
+    assertEquals(Integer.valueOf(672), store.map("P38398"));
+    assertNull(store.map("P02340"));
+    assertNull(store.map("P99999"));
+  }
+
+  @Test
+  public void testInvalidFile() throws IOException {
+    File file = new File(dir, "invalid" + MappingStore.FILE_EXTENSION);
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[64]);
+    out.close();
+    try {
+      new MappingStore(file, IdentifierType.UniProt);
+      fail("Expected an IOException");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+}
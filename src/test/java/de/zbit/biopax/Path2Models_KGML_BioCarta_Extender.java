@@ -148,14 +148,12 @@ public class Path2Models_KGML_BioCarta_Extender {
             }
           }  
         } else {
-          log.severe("Pathways are null, application exits.");
-          System.exit(1);
+          log.severe("Pathways of '" + pw + "' are null, skipping this file.");
         }
             
       }  
     } else {
       log.log(Level.SEVERE, "Could not continue, because the model is null.");
-      System.exit(1);
     }
   }
 
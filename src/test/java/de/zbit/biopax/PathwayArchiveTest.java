@@ -0,0 +1,326 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes zip and tar.gz archives with the {@link PathwayArchive} and reads
+ * them back with {@link ZipFile} and {@link GZIPInputStream}.
+ *
+ * @version $Rev$
+ */
+public class PathwayArchiveTest {
+
+  /**
+   * A name of more than 100 bytes, which needs a GNU LongLink entry in tar
+   * archives.
+   */
+  private static final String LONG_NAME;
+  static {
+    StringBuilder name = new StringBuilder("pathways/");
+    while (name.length() < 150) {
+      name.append("long_pathway_name_");
+    }
+    LONG_NAME = name.append("\u00e4.sbml.xml").toString();
+  }
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("PathwayArchiveTest", "");
+    directory.delete();
+    directory.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    for (File f : directory.listFiles()) {
+      f.delete();
+    }
+    directory.delete();
+  }
+
+  private static byte[] content(int length) {
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) ("<sbml/>".charAt(i % 7) + i / 1000);
+    }
+    return data;
+  }
+
+  /**
+   * Adds the same entries to an archive of the given type.
+   *
+   * @return the expected content of the archive, by name.
+   */
+  private static Map<String, byte[]> addEntries(PathwayArchive archive) throws IOException {
+    Map<String, byte[]> expected = new LinkedHashMap<String, byte[]>();
+    expected.put(archive.addEntry("a.sbml.xml", content(100000)), content(100000));
+    expected.put(archive.addEntry("empty.sbml.xml", new byte[0]), new byte[0]);
+    assertEquals("A.sbml_2.xml", archive.addEntry("A.sbml.xml", content(10)));
+    expected.put("A.sbml_2.xml", content(10));
+    assertEquals("a.sbml_3.xml", archive.addEntry("a.sbml.xml", content(20)));
+    expected.put("a.sbml_3.xml", content(20));
+    assertEquals(LONG_NAME, archive.addEntry(LONG_NAME, content(512)));
+    expected.put(LONG_NAME, content(512));
+    return expected;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      bytes.write(buffer, 0, n);
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @return the content of all entries of a zip archive, by name.
+   */
+  private static Map<String, byte[]> readZip(File file) throws IOException {
+    Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+    ZipFile zip = new ZipFile(file);
+    try {
+      for (ZipEntry entry : Collections.list(zip.entries())) {
+        InputStream in = zip.getInputStream(entry);
+        try {
+          entries.put(entry.getName(), readFully(in));
+        } finally {
+          in.close();
+        }
+      }
+    } finally {
+      zip.close();
+    }
+    return entries;
+  }
+
+  /**
+   * Reads a tar.gz archive, including GNU LongLink names, and validates the
+   * checksums of all headers.
+   *
+   * @return the content of all entries, by name.
+   */
+  private static Map<String, byte[]> readTarGz(File file) throws IOException {
+    Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+    DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)));
+    try {
+      String longName = null;
+      byte[] header = new byte[512];
+      while (true) {
+        in.readFully(header);
+        if (header[0] == 0) {
+          // End of archive
+          in.readFully(header);
+          assertEquals(0, header[0]);
+          break;
+        }
+        long checksum = 0;
+        for (int i = 0; i < header.length; i++) {
+          checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        }
+        assertEquals(checksum, Long.parseLong(string(header, 148, 7), 8));
+        assertEquals("ustar  ", new String(header, 257, 7, "US-ASCII"));
+        int size = Integer.parseInt(string(header, 124, 12), 8);
+        byte[] data = new byte[size];
+        in.readFully(data);
+        in.readFully(new byte[(512 - size % 512) % 512]);
+        if (header[156] == 'L') {
+          longName = new String(data, 0, size - 1, "UTF-8");
+        } else {
+          assertEquals('0', header[156]);
+          String name = longName != null ? longName : string(header, 0, 100);
+          entries.put(name, data);
+          longName = null;
+        }
+      }
+      assertEquals(-1, in.read());
+    } catch (EOFException e) {
+      fail("Truncated tar archive.");
+    } finally {
+      in.close();
+    }
+    return entries;
+  }
+
+  /**
+   * @return the NUL terminated UTF-8 string in the header.
+   */
+  private static String string(byte[] header, int offset, int length) throws IOException {
+    int end = offset;
+    while (end < offset + length && header[end] != 0) {
+      end++;
+    }
+    return new String(header, offset, end - offset, "UTF-8");
+  }
+
+  private static void assertEntries(Map<String, byte[]> expected, Map<String, byte[]> actual) {
+    assertEquals(new ArrayList<String>(expected.keySet()), new ArrayList<String>(actual.keySet()));
+    for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+      assertArrayEquals(entry.getKey(), entry.getValue(), actual.get(entry.getKey()));
+    }
+  }
+
+  @Test
+  public void testIsArchive() {
+    assertTrue(PathwayArchive.isArchive("pathways.ZIP"));
+    assertTrue(PathwayArchive.isArchive("pathways.tar.gz"));
+    assertTrue(PathwayArchive.isArchive("pathways.tgz"));
+    assertFalse(PathwayArchive.isArchive("pathways.sbml.xml"));
+    assertFalse(PathwayArchive.isArchive(null));
+  }
+
+  @Test(expected = IOException.class)
+  public void testUnknownFormat() throws IOException {
+    PathwayArchive.create(new File(directory, "pathways.rar"), PathwayArchive.DEFAULT_LEVEL);
+  }
+
+  @Test
+  public void testZip() throws IOException {
+    PathwayArchive archive = PathwayArchive.create(new File(directory, "pathways.zip"), PathwayArchive.DEFAULT_LEVEL);
+    Map<String, byte[]> expected = addEntries(archive);
+    archive.close();
+    assertEntries(expected, readZip(archive.getFile()));
+  }
+
+  @Test
+  public void testTarGz() throws IOException {
+    PathwayArchive archive = PathwayArchive.create(new File(directory, "pathways.tar.gz"), PathwayArchive.DEFAULT_LEVEL);
+    Map<String, byte[]> expected = addEntries(archive);
+    archive.close();
+    assertEntries(expected, readTarGz(archive.getFile()));
+  }
+
+  @Test
+  public void testEmptyArchives() throws IOException {
+    PathwayArchive zip = PathwayArchive.create(new File(directory, "empty.zip"), 0);
+    zip.close();
+    assertTrue(readZip(zip.getFile()).isEmpty());
+    PathwayArchive tar = PathwayArchive.create(new File(directory, "empty.tgz"), 9);
+    tar.close();
+    assertTrue(readTarGz(tar.getFile()).isEmpty());
+  }
+
+  @Test
+  public void testParallelEntries() throws Exception {
+    for (String name : Arrays.asList("parallel.zip", "parallel.tgz")) {
+      final PathwayArchive archive = PathwayArchive.create(new File(directory, name), PathwayArchive.DEFAULT_LEVEL);
+      List<Thread> threads = new ArrayList<Thread>();
+      final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+      for (int t = 0; t < 4; t++) {
+        threads.add(new Thread() {
+          @Override
+          public void run() {
+            try {
+              for (int i = 0; i < 50; i++) {
+                archive.addEntry("pathway.sbml.xml", content(5000 + i));
+              }
+            } catch (IOException e) {
+              errors.add(e);
+            }
+          }
+        });
+      }
+      for (Thread thread : threads) {
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      archive.close();
+      assertTrue(errors.isEmpty());
+      Map<String, byte[]> entries = name.endsWith(".zip") ? readZip(archive.getFile()) : readTarGz(archive.getFile());
+      assertEquals(200, entries.size());
+      assertTrue(entries.containsKey("pathway.sbml.xml"));
+      assertTrue(entries.containsKey("pathway.sbml_200.xml"));
+    }
+  }
+
+  @Test
+  public void testClosedArchive() throws IOException {
+    PathwayArchive archive = PathwayArchive.create(new File(directory, "closed.zip"), PathwayArchive.DEFAULT_LEVEL);
+    archive.close();
+    archive.close();
+    try {
+      archive.addEntry("a.sbml.xml", content(10));
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testZipEntryLimit() throws IOException {
+    PathwayArchive archive = PathwayArchive.create(new File(directory, "limit.zip"), 0);
+    for (int i = 0; i < 0xFFFF; i++) {
+      archive.addEntry(i + ".xml", new byte[0]);
+    }
+    try {
+      archive.addEntry("0xFFFF.xml", new byte[0]);
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+    archive.close();
+
+    ZipFile zip = new ZipFile(archive.getFile());
+    try {
+      assertEquals(0xFFFF, zip.size());
+      assertEquals(0, zip.getEntry("65534.xml").getSize());
+    } finally {
+      zip.close();
+    }
+  }
+
+}
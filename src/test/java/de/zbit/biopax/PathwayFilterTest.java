@@ -0,0 +1,106 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the selection of pathways by the {@link PathwayFilter}.
+ *
+ * @version $Rev$
+ */
+public class PathwayFilterTest {
+
+  private static final String ID = "http://pid.nci.nih.gov/biopaxpid_9717";
+
+  private static final List<String> SOURCES = Arrays.asList("NCI Nature Pathway Interaction Database: BioCarta");
+
+  @Test
+  public void testEmptyFilterAcceptsAll() {
+    PathwayFilter filter = new PathwayFilter(null, Collections.<String>emptyList(), "");
+    assertTrue(filter.isEmpty());
+    assertTrue(filter.accepts(null, null, null));
+    assertTrue(filter.accepts("Apoptosis", ID, SOURCES));
+  }
+
+  @Test
+  public void testPathways() {
+    PathwayFilter filter = new PathwayFilter(Arrays.asList(" apoptosis ", "pid_42", "  "), null, null);
+    assertFalse(filter.isEmpty());
+    assertTrue(filter.accepts("Apoptosis", ID, SOURCES));
+    assertTrue(filter.accepts("Other", "http://pid.nci.nih.gov/biopax#PID_42", SOURCES));
+    assertTrue(filter.accepts(null, "pid_42", null));
+    assertFalse(filter.accepts("Apoptosis signaling", ID, SOURCES));
+    assertFalse(filter.accepts(null, null, null));
+  }
+
+  @Test
+  public void testDataSources() {
+    PathwayFilter filter = new PathwayFilter(null, Arrays.asList("biocarta"), null);
+    assertTrue(filter.accepts("Apoptosis", ID, SOURCES));
+    assertFalse(filter.accepts("Apoptosis", ID, Arrays.asList("Reactome")));
+    assertFalse(filter.accepts("Apoptosis", ID, Arrays.asList((String) null)));
+    assertFalse(filter.accepts("Apoptosis", ID, null));
+  }
+
+  @Test
+  public void testPattern() {
+    PathwayFilter filter = new PathwayFilter(null, null, "^Apop|9717$");
+    assertTrue(filter.accepts("Apoptosis", null, null));
+    assertTrue(filter.accepts("Other", ID, null));
+    assertFalse(filter.accepts("apoptosis", "pid_42", null));
+    assertFalse(filter.accepts(null, null, null));
+  }
+
+  @Test
+  public void testAllCriteria() {
+    PathwayFilter filter = new PathwayFilter(Arrays.asList("Apoptosis", "Other"), Arrays.asList("BioCarta"), "^A");
+    assertTrue(filter.accepts("Apoptosis", ID, SOURCES));
+    assertFalse(filter.accepts("Other", ID, SOURCES));
+    assertFalse(filter.accepts("Apoptosis", ID, Arrays.asList("Reactome")));
+    assertFalse(filter.accepts("Activation", ID, SOURCES));
+  }
+
+  @Test(expected = java.util.regex.PatternSyntaxException.class)
+  public void testInvalidPattern() {
+    new PathwayFilter(null, null, "(");
+  }
+
+  @Test
+  public void testSplit() {
+    assertEquals(new HashSet<String>(Arrays.asList("a", "b c")), PathwayFilter.split(" a;;b c ; "));
+    assertTrue(PathwayFilter.split(null).isEmpty());
+  }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.biopax;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.zbit.util.Species;
+
+/**
+ * Tests persisting and reopening {@link ResolutionStore}s.
+ *
+ * @version $Rev$
+ */
+public class ResolutionStoreTest {
+
+  private static final Species HUMAN = new Species("Homo sapiens", "_HUMAN", "human", "hsa", 9606);
+
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = File.createTempFile("ResolutionStoreTest", "");
+    dir.delete();
+    dir.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    delete(dir);
+  }
+
+  private static void delete(File file) {
+    File[] files = file.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        delete(f);
+      }
+    }
+    file.delete();
+  }
+
+  /**
+   * Stores are opened only once per file and JVM, so a copy of the file in
+   * another directory is used to read it again.
+   *
+   * @param store is closed before its file is copied.
+   * @return the directory of the copy.
+   */
+  private File copy(ResolutionStore store, String name) throws IOException {
+    store.close();
+    File target = new File(dir, name);
+    target.mkdirs();
+    InputStream in = new FileInputStream(store.getFile());
+    OutputStream out = new FileOutputStream(new File(target, store.getFile().getName()));
+    try {
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+      out.close();
+    }
+    return target;
+  }
+
+  @Test
+  public void testResolutionsInMemory() throws IOException {
+    ResolutionStore store = ResolutionStore.getStore(dir, HUMAN, "v1");
+    assertSame(store, ResolutionStore.getStore(dir, HUMAN, "v1"));
+    assertNull(store.getGeneID("TP53"));
+    store.putGeneID("TP53", 7157);
+    store.putGeneID("ATP", 0);
+    store.putKEGGID(7157, "hsa:7157");
+    store.putKEGGID(1, null);
+
+    assertEquals(Integer.valueOf(7157), store.getGeneID("tp-53"));
+    assertEquals(Integer.valueOf(0), store.getGeneID("ATP"));
+    assertEquals("hsa:7157", store.getKEGGID(7157));
+    assertEquals("", store.getKEGGID(1));
+    assertNull(store.getKEGGID(2));
+    assertEquals(4, store.size());
+    store.close();
+  }
+
+  @Test
+  public void testReopen() throws IOException {
+    ResolutionStore store = ResolutionStore.getStore(dir, HUMAN, "v1");
+    for (int i = 1; i <= 1000; i++) {
+      store.putGeneID("GENE" + i, i);
+      store.putKEGGID(i, i % 2 == 0 ? "hsa:" + i : null);
+    }
+    // The first resolution wins
+    store.putGeneID("GENE1", 5);
+
+    ResolutionStore reopened = ResolutionStore.getStore(copy(store, "copy"), HUMAN, "v1");
+    assertEquals(2000, reopened.size());
+    assertEquals(Integer.valueOf(1), reopened.getGeneID("gene1"));
+    assertEquals(Integer.valueOf(1000), reopened.getGeneID("GENE1000"));
+    assertEquals("hsa:2", reopened.getKEGGID(2));
+    assertEquals("", reopened.getKEGGID(3));
+    assertNull(reopened.getGeneID("GENE1001"));
+    reopened.close();
+  }
+
+  @Test
+  public void testIncompleteRecordIsCutOff() throws IOException {
+    ResolutionStore store = ResolutionStore.getStore(dir, HUMAN, "v1");
+    store.putGeneID("TP53", 7157);
+    File target = copy(store, "torn");
+    File file = new File(target, store.getFile().getName());
+    long length = file.length();
+
+    // A symbol record of an aborted run, without its gene id
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(length);
+    raf.write(new byte[] {1, 0, 3, 0, 'A', 0, 'B'});
+    raf.close();
+
+    ResolutionStore reopened = ResolutionStore.getStore(target, HUMAN, "v1");
+    assertEquals(file, reopened.getFile());
+    assertEquals(length, file.length());
+    assertEquals(Integer.valueOf(7157), reopened.getGeneID("TP53"));
+    reopened.putGeneID("BRCA1", 672);
+
+    ResolutionStore again = ResolutionStore.getStore(copy(reopened, "again"), HUMAN, "v1");
+    assertEquals(Integer.valueOf(672), again.getGeneID("BRCA1"));
+    assertEquals(2, again.size());
+    again.close();
+  }
+
+  @Test
+  public void testOtherDataVersionUsesAnotherFile() throws IOException {
+    ResolutionStore store = ResolutionStore.getStore(dir, HUMAN, "v1");
+    store.putGeneID("TP53", 7157);
+    store.flush();
+    long length = store.getFile().length();
+
+    ResolutionStore other = ResolutionStore.getStore(dir, HUMAN, "v2");
+    assertFalse(store.getFile().equals(other.getFile()));
+    assertEquals(0, other.size());
+    assertNull(other.getGeneID("TP53"));
+    other.putGeneID("TP53", 1);
+    other.close();
+
+    // The file of the first version is neither truncated nor overwritten
+    assertEquals(length, store.getFile().length());
+    assertEquals(Integer.valueOf(7157), store.getGeneID("TP53"));
+    ResolutionStore reopened = ResolutionStore.getStore(copy(store, "v1"), HUMAN, "v1");
+    assertEquals(Integer.valueOf(7157), reopened.getGeneID("TP53"));
+    reopened.close();
+  }
+
+  @Test
+  public void testInvalidFileIsLeftAlone() throws IOException {
+    ResolutionStore store = ResolutionStore.getStore(dir, HUMAN, "v1");
+    File target = new File(dir, "invalid");
+    target.mkdirs();
+    File invalid = new File(target, store.getFile().getName());
+    store.close();
+    OutputStream out = new FileOutputStream(invalid);
+    try {
+      out.write(new byte[100]);
+    } finally {
+      out.close();
+    }
+
+    ResolutionStore other = ResolutionStore.getStore(target, HUMAN, "v1");
+    assertFalse(invalid.equals(other.getFile()));
+    assertEquals(100, invalid.length());
+    assertTrue(other.getFile().getName().endsWith("_2.dat"));
+    other.putGeneID("TP53", 7157);
+    other.close();
+
+    // Opening another version in between reopens the file of this version
+    ResolutionStore.getStore(target, HUMAN, "v2").close();
+    ResolutionStore reopened = ResolutionStore.getStore(target, HUMAN, "v1");
+    assertEquals(other.getFile(), reopened.getFile());
+    assertEquals(Integer.valueOf(7157), reopened.getGeneID("TP53"));
+    reopened.close();
+  }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.sbvc.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests resuming a batch with the {@link BatchProgress}.
+ *
+ * @version $Rev$
+ */
+public class BatchProgressTest {
+
+  private File directory;
+
+  private File input;
+
+  private File output;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("BatchProgressTest", "");
+    directory.delete();
+    directory.mkdirs();
+    input = new File(directory, "input.owl");
+    write(input, "<rdf:RDF/>", false);
+    output = new File(directory, "input");
+    output.mkdirs();
+  }
+
+  @After
+  public void tearDown() {
+    output.delete();
+    for (File f : directory.listFiles()) {
+      f.delete();
+    }
+    directory.delete();
+  }
+
+  private static void write(File f, String content, boolean append) throws IOException {
+    FileOutputStream out = new FileOutputStream(f, append);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  @Test
+  public void testResume() throws IOException {
+    BatchProgress progress = new BatchProgress(directory);
+    assertFalse(progress.isCompleted(input, output));
+    progress.setCompleted(input, output, 3);
+    assertTrue(progress.isCompleted(input, output));
+    progress.close();
+
+    progress = new BatchProgress(directory);
+    assertTrue(progress.isCompleted(input, output));
+    assertEquals(3, progress.getPathwayCount(input));
+    assertFalse(progress.isCompleted(input, new File(directory, "other")));
+    progress.close();
+  }
+
+  @Test
+  public void testModifiedInputIsNotCompleted() throws IOException {
+    BatchProgress progress = new BatchProgress(directory);
+    progress.setCompleted(input, output, 3);
+    progress.close();
+
+    write(input, "<!-- changed -->", true);
+    progress = new BatchProgress(directory);
+    assertFalse(progress.isCompleted(input, output));
+  }
+
+  @Test
+  public void testMissingOutputIsNotCompleted() throws IOException {
+    BatchProgress progress = new BatchProgress(directory);
+    progress.setCompleted(input, output, 3);
+    progress.close();
+
+    output.delete();
+    progress = new BatchProgress(directory);
+    assertFalse(progress.isCompleted(input, output));
+  }
+
+  @Test
+  public void testIncompleteLineIsIgnored() throws IOException {
+    BatchProgress progress = new BatchProgress(directory);
+    progress.setCompleted(input, output, 3);
+    progress.close();
+    write(new File(directory, BatchProgress.FILE_NAME), input.getCanonicalPath() + "\t1\t2", true);
+
+    progress = new BatchProgress(directory);
+    assertTrue(progress.isCompleted(input, output));
+    assertEquals(3, progress.getPathwayCount(input));
+  }
+
+  @Test
+  public void testRecordAfterIncompleteLine() throws IOException {
+    BatchProgress progress = new BatchProgress(directory);
+    progress.setCompleted(input, output, 3);
+    progress.close();
+    write(new File(directory, BatchProgress.FILE_NAME), input.getCanonicalPath() + "\t1\t2", true);
+
+    File other = new File(directory, "other.owl");
+    write(other, "<rdf:RDF/>", false);
+    File otherOutput = new File(directory, "other");
+    otherOutput.mkdirs();
+    try {
+      progress = new BatchProgress(directory);
+      progress.setCompleted(other, otherOutput, 1);
+      progress.close();
+
+      progress = new BatchProgress(directory);
+      assertTrue(progress.isCompleted(input, output));
+      assertTrue(progress.isCompleted(other, otherOutput));
+      assertEquals(1, progress.getPathwayCount(other));
+    } finally {
+      otherOutput.delete();
+    }
+  }
+
+  @Test
+  public void testIncompleteHeader() throws IOException {
+    write(new File(directory, BatchProgress.FILE_NAME), "# SBVC", false);
+    BatchProgress progress = new BatchProgress(directory);
+    progress.setCompleted(input, output, 3);
+    progress.close();
+
+    progress = new BatchProgress(directory);
+    assertTrue(progress.isCompleted(input, output));
+  }
+
+  @Test
+  public void testUnknownInput() throws IOException {
+    BatchProgress progress = new BatchProgress(directory);
+    assertFalse(progress.isCompleted(new File(directory, "unknown.owl"), output));
+    assertEquals(0, progress.getPathwayCount(new File(directory, "unknown.owl")));
+  }
+
+}
@@ -0,0 +1,290 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.sbvc.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.zbit.sbvc.io.ConversionScheduler.Job;
+import de.zbit.sbvc.io.ConversionScheduler.RejectedException;
+import de.zbit.sbvc.io.ConversionScheduler.State;
+import de.zbit.util.Species;
+
+/**
+ * Tests admission, ordering and cancellation of jobs by the
+ * {@link ConversionScheduler}, with a converter, that writes one empty
+ * output file per pathway named in its input.
+ *
+ * @version $Rev$
+ */
+public class ConversionSchedulerTest {
+
+  /**
+   * Inputs, in the order of their conversion.
+   */
+  private final List<String> converted = new ArrayList<String>();
+
+  /**
+   * Blocks the conversion of the input "block".
+   */
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private ConversionScheduler scheduler;
+
+  private final ConversionServer.Converter converter = new ConversionServer.Converter() {
+    @Override
+    public int convert(File input, File outputFolder, Species species) throws Exception {
+      String content = read(input);
+      synchronized (converted) {
+        converted.add(content);
+      }
+      if (content.equals("block")) {
+        release.await();
+      } else if (content.equals("fail")) {
+        throw new IllegalStateException("Conversion failed.");
+      }
+      String[] pathways = content.length() > 0 ? content.split(" ") : new String[0];
+      for (String pathway : pathways) {
+        new FileOutputStream(new File(outputFolder, pathway + ".sbml.xml")).close();
+      }
+      return pathways.length;
+    }
+  };
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    if (scheduler != null) {
+      scheduler.stop();
+    }
+  }
+
+  private static String read(File f) throws IOException {
+    byte[] content = new byte[(int) f.length()];
+    FileInputStream in = new FileInputStream(f);
+    try {
+      int offset = 0;
+      while (offset < content.length) {
+        offset += in.read(content, offset, content.length - offset);
+      }
+    } finally {
+      in.close();
+    }
+    return new String(content, "UTF-8");
+  }
+
+  /**
+   * Submits and uploads a job.
+   */
+  private Job upload(String content, int priority) throws RejectedException, IOException {
+    Job job = scheduler.submit(content.length(), priority, null);
+    assertSame(State.UPLOADING, job.getState());
+    FileOutputStream out = new FileOutputStream(job.getInput());
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    return job;
+  }
+
+  private Job convert(String content) throws Exception {
+    Job job = upload(content, 0);
+    scheduler.enqueue(job);
+    job.awaitCompletion();
+    return job;
+  }
+
+  /**
+   * Waits, until the blocking job has been started.
+   */
+  private void awaitRunning(Job job) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (job.getState() != State.RUNNING) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testResults() throws Exception {
+    scheduler = new ConversionScheduler(converter, 2, 10, 0);
+
+    Job single = convert("a");
+    assertSame(State.DONE, single.getState());
+    assertEquals("a.sbml.xml", single.getResult().getName());
+    assertTrue(single.getStatus().contains("pathways=1\n"));
+
+    Job multiple = convert("b a");
+    assertSame(State.DONE, multiple.getState());
+    List<String> entries = new ArrayList<String>();
+    ZipInputStream zip = new ZipInputStream(new FileInputStream(multiple.getResult()));
+    try {
+      ZipEntry entry;
+      while ((entry = zip.getNextEntry()) != null) {
+        entries.add(entry.getName());
+      }
+    } finally {
+      zip.close();
+    }
+    assertEquals(Arrays.asList("a.sbml.xml", "b.sbml.xml"), entries);
+
+    Job none = convert("");
+    assertSame(State.FAILED, none.getState());
+    assertNull(none.getResult());
+    assertNull(none.getError());
+
+    Job failed = convert("fail");
+    assertSame(State.FAILED, failed.getState());
+    assertTrue(failed.getError().contains("Conversion failed."));
+
+    assertSame(single, scheduler.getJob(single.getId()));
+    assertNull(scheduler.getJob("unknown"));
+  }
+
+  @Test
+  public void testInputTooLarge() throws Exception {
+    scheduler = new ConversionScheduler(converter, 1, 10, ConversionScheduler.estimateMemory(1000));
+    assertNotNull(scheduler.submit(1000, 0, null));
+    try {
+      scheduler.submit(1001, 0, null);
+      fail();
+    } catch (RejectedException e) {
+      assertEquals(-1, e.getRetryAfter());
+    }
+  }
+
+  @Test
+  public void testQueueFull() throws Exception {
+    scheduler = new ConversionScheduler(converter, 1, 1, 0);
+    Job blocking = upload("block", 0);
+    scheduler.enqueue(blocking);
+    awaitRunning(blocking);
+    Job waiting = upload("a", 0);
+    try {
+      scheduler.submit(1, 0, null);
+      fail();
+    } catch (RejectedException e) {
+      assertTrue(e.getRetryAfter() >= 1);
+    }
+    assertTrue(scheduler.getStatus().contains("rejected=1\n"));
+
+    // Cancelling the waiting job admits a new one
+    scheduler.cancel(waiting);
+    assertNotNull(scheduler.submit(1, 0, null));
+  }
+
+  @Test
+  public void testPriorityOrder() throws Exception {
+    scheduler = new ConversionScheduler(converter, 1, 10, 0);
+    Job blocking = upload("block", 0);
+    scheduler.enqueue(blocking);
+    awaitRunning(blocking);
+
+    Job first = upload("first", 0);
+    Job urgent = upload("urgent", 5);
+    Job second = upload("second", 0);
+    scheduler.enqueue(second);
+    scheduler.enqueue(first);
+    scheduler.enqueue(urgent);
+    assertTrue(urgent.getStatus().contains("position=0\n"));
+    assertTrue(first.getStatus().contains("position=1\n"));
+    assertTrue(second.getStatus().contains("position=2\n"));
+
+    release.countDown();
+    second.awaitCompletion();
+    assertEquals(Arrays.asList("block", "urgent", "first", "second"), converted);
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    scheduler = new ConversionScheduler(converter, 1, 10, 0);
+    Job blocking = upload("block", 0);
+    scheduler.enqueue(blocking);
+    awaitRunning(blocking);
+
+    Job queued = upload("queued", 0);
+    scheduler.enqueue(queued);
+    Job uploading = upload("uploading", 0);
+    File folder = queued.getInput().getParentFile();
+    scheduler.cancel(queued);
+    scheduler.cancel(uploading);
+    assertSame(State.CANCELLED, queued.getState());
+    assertSame(State.CANCELLED, uploading.getState());
+    assertNull(scheduler.getJob(queued.getId()));
+    assertFalse(folder.exists());
+    // An upload, that completes after cancellation, is not converted
+    scheduler.enqueue(uploading);
+    assertSame(State.CANCELLED, uploading.getState());
+
+    // A running job is finished, but removed with its files afterwards
+    folder = blocking.getInput().getParentFile();
+    scheduler.cancel(blocking);
+    assertNull(scheduler.getJob(blocking.getId()));
+    release.countDown();
+    blocking.awaitCompletion();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (folder.exists()) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+    assertEquals(Arrays.asList("block"), converted);
+  }
+
+  @Test
+  public void testStop() throws Exception {
+    scheduler = new ConversionScheduler(converter, 1, 10, 0);
+    Job queued = upload("a", 0);
+    scheduler.stop();
+    scheduler.enqueue(queued);
+    assertSame(State.CANCELLED, queued.getState());
+    try {
+      scheduler.submit(1, 0, null);
+      fail();
+    } catch (RejectedException e) {
+      assertEquals(-1, e.getRetryAfter());
+    }
+  }
+
+}
@@ -0,0 +1,298 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.sbvc.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.zbit.util.Species;
+
+/**
+ * Tests the HTTP responses of the {@link ConversionServer}, with a
+ * converter, that writes one output file per pathway named in its input.
+ *
+ * @version $Rev$
+ */
+public class ConversionServerTest {
+
+  /**
+   * Blocks the conversion of the input "block".
+   */
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private ConversionScheduler scheduler;
+
+  private ConversionServer server;
+
+  private final ConversionServer.Converter converter = new ConversionServer.Converter() {
+    @Override
+    public int convert(File input, File outputFolder, Species species) throws Exception {
+      String content = new String(readFully(new FileInputStream(input)), "UTF-8");
+      if (content.equals("block")) {
+        release.await();
+      } else if (content.equals("fail")) {
+        throw new IllegalStateException("Conversion failed.");
+      } else if (content.equals("species")) {
+        content = species != null ? Integer.toString(species.getNCBITaxonID()) : "none";
+      }
+      String[] pathways = content.length() > 0 ? content.split(" ") : new String[0];
+      for (String pathway : pathways) {
+        OutputStream out = new FileOutputStream(new File(outputFolder, pathway + ".sbml.xml"));
+        out.write(pathway.getBytes("UTF-8"));
+        out.close();
+      }
+      return pathways.length;
+    }
+  };
+
+  /**
+   * A response of the server.
+   */
+  private static class Response {
+    int code;
+    String contentType, location, retryAfter, body;
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    if (server != null) {
+      server.stop();
+    }
+  }
+
+  private void start(int concurrency, int queueSize, long memoryBudget) throws IOException {
+    scheduler = new ConversionScheduler(converter, concurrency, queueSize, memoryBudget);
+    server = new ConversionServer(0, scheduler);
+    server.start();
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        bytes.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * @param body <code>null</code> for requests without body.
+   * @param chunked if <code>true</code>, the body is sent without
+   *        Content-Length.
+   */
+  private Response request(String method, String path, String body, boolean chunked) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path)
+        .openConnection();
+    try {
+      connection.setRequestMethod(method);
+      if (body != null) {
+        byte[] bytes = body.getBytes("UTF-8");
+        connection.setDoOutput(true);
+        if (chunked) {
+          connection.setChunkedStreamingMode(1024);
+        } else {
+          connection.setFixedLengthStreamingMode(bytes.length);
+        }
+        OutputStream out = connection.getOutputStream();
+        out.write(bytes);
+        out.close();
+      }
+      Response response = new Response();
+      response.code = connection.getResponseCode();
+      response.contentType = connection.getContentType();
+      response.location = connection.getHeaderField("Location");
+      response.retryAfter = connection.getHeaderField("Retry-After");
+      InputStream in = response.code < 400 ? connection.getInputStream() : connection.getErrorStream();
+      response.body = in != null ? new String(readFully(in), "UTF-8") : "";
+      return response;
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private Response request(String method, String path, String body) throws IOException {
+    return request(method, path, body, false);
+  }
+
+  /**
+   * Polls the job, until it is in the given state.
+   */
+  private void awaitState(String location, String state) throws Exception {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!request("GET", location, null).body.contains("state=" + state + "\n")) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+  }
+
+  @Test
+  public void testConvert() throws IOException {
+    start(2, 10, 0);
+    Response single = request("POST", ConversionServer.CONVERT_PATH, "a");
+    assertEquals(200, single.code);
+    assertEquals("application/xml", single.contentType);
+    assertEquals("a", single.body);
+
+    Response multiple = request("POST", ConversionServer.CONVERT_PATH, "a b");
+    assertEquals(200, multiple.code);
+    assertEquals("application/zip", multiple.contentType);
+
+    Response species = request("POST", ConversionServer.CONVERT_PATH + "?species=9606&priority=3", "species");
+    assertEquals(200, species.code);
+    assertEquals("9606", species.body);
+
+    assertEquals(405, request("GET", ConversionServer.CONVERT_PATH, null).code);
+    assertTrue(request("GET", ConversionServer.STATUS_PATH, null).body.contains("requests=3\n"));
+  }
+
+  @Test
+  public void testConversionErrors() throws IOException {
+    start(2, 10, 0);
+    Response none = request("POST", ConversionServer.CONVERT_PATH, "");
+    assertEquals(422, none.code);
+    assertTrue(none.body.contains("state=FAILED\n"));
+    Response failed = request("POST", ConversionServer.CONVERT_PATH, "fail");
+    assertEquals(500, failed.code);
+    assertTrue(failed.body.contains("Conversion failed."));
+  }
+
+  @Test
+  public void testInvalidRequests() throws IOException {
+    start(2, 10, 0);
+    assertEquals(411, request("POST", ConversionServer.CONVERT_PATH, "a", true).code);
+    assertEquals(411, request("POST", ConversionServer.JOBS_PATH, "a", true).code);
+    assertEquals(400, request("POST", ConversionServer.CONVERT_PATH + "?species=unknown", "a").code);
+    assertEquals(400, request("POST", ConversionServer.JOBS_PATH + "?priority=high", "a").code);
+    assertEquals(404, request("GET", ConversionServer.JOBS_PATH + "/unknown", null).code);
+    assertEquals(404, request("DELETE", ConversionServer.JOBS_PATH + "/unknown", null).code);
+    assertEquals(405, request("GET", ConversionServer.JOBS_PATH, null).code);
+  }
+
+  @Test
+  public void testInputTooLarge() throws IOException {
+    start(1, 10, ConversionScheduler.estimateMemory(10));
+    assertEquals(200, request("POST", ConversionServer.CONVERT_PATH, "a").code);
+    Response response = request("POST", ConversionServer.CONVERT_PATH, "a b c d e f");
+    assertEquals(413, response.code);
+    assertNull(response.retryAfter);
+  }
+
+  @Test
+  public void testJobs() throws Exception {
+    start(1, 1, 0);
+    Response blocking = request("POST", ConversionServer.JOBS_PATH + "?priority=1", "block");
+    assertEquals(202, blocking.code);
+    assertTrue(blocking.location.startsWith(ConversionServer.JOBS_PATH + '/'));
+    awaitState(blocking.location, "RUNNING");
+
+    Response result = request("GET", blocking.location + "/result", null);
+    assertEquals(409, result.code);
+    assertNotNull(result.retryAfter);
+    assertEquals(405, request("DELETE", blocking.location + "/result", null).code);
+
+    Response waiting = request("POST", ConversionServer.JOBS_PATH, "a");
+    assertEquals(202, waiting.code);
+    Response rejected = request("POST", ConversionServer.JOBS_PATH, "b");
+    assertEquals(429, rejected.code);
+    assertTrue(Long.parseLong(rejected.retryAfter) >= 1);
+    assertTrue(request("GET", ConversionServer.STATUS_PATH, null).body.contains("rejectedRequests=1\n"));
+
+    // Cancelling the waiting job
+    Response cancelled = request("DELETE", waiting.location, null);
+    assertEquals(200, cancelled.code);
+    assertTrue(cancelled.body.contains("state=CANCELLED\n"));
+    assertEquals(404, request("GET", waiting.location, null).code);
+
+    release.countDown();
+    awaitState(blocking.location, "DONE");
+    result = request("GET", blocking.location + "/result", null);
+    assertEquals(200, result.code);
+    assertEquals("block", result.body);
+  }
+
+  @Test
+  public void testCancelledConversion() throws Exception {
+    start(1, 10, 0);
+    Response blocking = request("POST", ConversionServer.JOBS_PATH, "block");
+    awaitState(blocking.location, "RUNNING");
+
+    // A synchronous conversion, that waits for the blocking job
+    final Response[] response = new Response[1];
+    Thread client = new Thread() {
+      @Override
+      public void run() {
+        try {
+          response[0] = request("POST", ConversionServer.CONVERT_PATH, "a");
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    client.start();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (!scheduler.getStatus().contains("waiting=1\n")) {
+      assertTrue(System.currentTimeMillis() < deadline);
+      Thread.sleep(10);
+    }
+
+    // Stopping the scheduler cancels the admitted job, whether it is still
+    // uploading or already queued
+    Thread stop = new Thread() {
+      @Override
+      public void run() {
+        scheduler.stop();
+      }
+    };
+    stop.start();
+    client.join(10000);
+    assertEquals(410, response[0].code);
+    assertTrue(response[0].body.contains("state=CANCELLED\n"));
+    release.countDown();
+    stop.join();
+  }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.sbvc.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests resolving directories, glob patterns and list files with
+ * {@link InputFiles}.
+ *
+ * @version $Rev$
+ */
+public class InputFilesTest {
+
+  private File directory;
+
+  private File sub;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("InputFilesTest", "");
+    directory.delete();
+    sub = new File(directory, "sub");
+    sub.mkdirs();
+    for (String name : new String[] {"b.owl", "a.owl", "c.rdf", "notes.txt"}) {
+      write(new File(directory, name), "");
+    }
+    write(new File(sub, "d.xml"), "");
+  }
+
+  @After
+  public void tearDown() {
+    delete(directory);
+  }
+
+  private static void delete(File f) {
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    f.delete();
+  }
+
+  private static void write(File f, String content) throws IOException {
+    FileOutputStream out = new FileOutputStream(f);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  private File file(String name) {
+    return new File(directory, name);
+  }
+
+  @Test
+  public void testSingleFile() throws IOException {
+    assertFalse(InputFiles.isBatch(file("a.owl")));
+    assertEquals(Arrays.asList(file("a.owl")), InputFiles.resolve(file("a.owl")));
+  }
+
+  @Test(expected = FileNotFoundException.class)
+  public void testMissingFile() throws IOException {
+    InputFiles.resolve(file("missing.owl"));
+  }
+
+  @Test
+  public void testDirectory() throws IOException {
+    assertTrue(InputFiles.isBatch(directory));
+    assertEquals(Arrays.asList(file("a.owl"), file("b.owl"), file("c.rdf"), new File(sub, "d.xml")),
+      InputFiles.resolve(directory));
+  }
+
+  @Test
+  public void testGlob() throws IOException {
+    assertTrue(InputFiles.isBatch(file("*.owl")));
+    assertEquals(Arrays.asList(file("a.owl"), file("b.owl")), InputFiles.resolve(file("*.owl")));
+    assertEquals(Arrays.asList(file("c.rdf")), InputFiles.resolve(file("?.rdf")));
+    assertEquals(Arrays.asList(file("notes.txt")), InputFiles.resolve(file("*.txt")));
+    assertEquals(0, InputFiles.resolve(file("*.biopax")).size());
+  }
+
+  @Test
+  public void testGlobDoesNotInterpretRegularExpressions() throws IOException {
+    write(file("a+b.owl"), "");
+    assertEquals(Arrays.asList(file("a+b.owl")), InputFiles.resolve(file("a+b.*")));
+  }
+
+  @Test(expected = FileNotFoundException.class)
+  public void testGlobInMissingDirectory() throws IOException {
+    InputFiles.resolve(new File(file("missing"), "*.owl"));
+  }
+
+  @Test
+  public void testList() throws IOException {
+    File list = file("inputs.list");
+    write(list, "# inputs\n\nb.owl\n  sub/d.xml  \nmissing.owl\n" + file("c.rdf").getAbsolutePath() + "\n");
+    assertTrue(InputFiles.isBatch(list));
+    assertEquals(Arrays.asList(file("b.owl"), new File(directory, "sub/d.xml"), file("c.rdf").getAbsoluteFile()),
+      InputFiles.resolve(list));
+  }
+
+  @Test
+  public void testIsBioPAXFile() {
+    assertTrue(InputFiles.isBioPAXFile(new File("x.OWL")));
+    assertTrue(InputFiles.isBioPAXFile(new File("x.biopax")));
+    assertFalse(InputFiles.isBioPAXFile(new File("x.txt")));
+  }
+
+}
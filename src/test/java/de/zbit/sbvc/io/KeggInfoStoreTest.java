@@ -0,0 +1,199 @@
+/*
+ * $Id$
+ * $URL$
+ * ---------------------------------------------------------------------
+ * This file is part of SBVC, the systems biology visualizer and
+ * converter. This tools is able to read a plethora of systems biology
+ * file formats and convert them to an internal data structure.
+ * These files can then be visualized, either using a simple graph
+ * (KEGG-style) or using the SBGN-PD layout and rendering constraints.
+ * Some currently supported IO formats are SBML (+qual, +layout), KGML,
+ * BioPAX, SBGN, etc. Please visit the project homepage at
+ * <http://www.cogsys.cs.uni-tuebingen.de/software/SBVC> to obtain the
+ * latest version of SBVC.
+ *
+ * Copyright (C) 2012-2014 by the University of Tuebingen, Germany.
+ *
+ * SBVC is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation. A copy of the license
+ * agreement is provided in the file named "LICENSE.txt" included with
+ * this software distribution and also available online as
+ * <http://www.gnu.org/licenses/lgpl-3.0-standalone.html>.
+ * ---------------------------------------------------------------------
+ */
+package de.zbit.sbvc.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.zbit.kegg.api.KeggInfos;
+import de.zbit.kegg.api.cache.KeggInfoManagement;
+
+/**
+ * Tests saving, reopening and recovering {@link KeggInfoStore}s.
+ *
+ * @version $Rev$
+ */
+public class KeggInfoStoreTest {
+
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("KeggInfoStoreTest", ".store");
+    file.delete();
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    KeggInfoStore.getStore(file).close();
+    file.delete();
+    new File(file.getPath() + ".invalid").delete();
+  }
+
+  private static KeggInfos info(String id) {
+    return new KeggInfos(id, "ENTRY       " + id + "\nNAME        " + id.toUpperCase() + "\n///");
+  }
+
+  @Test
+  public void testPendingAndSavedRecords() throws IOException {
+    KeggInfoStore store = KeggInfoStore.getStore(file);
+    assertSame(store, KeggInfoStore.getStore(file));
+    store.put("hsa:7157", info("hsa:7157"));
+    store.put("hsa:0", null);
+    assertTrue(store.hasChanged());
+    assertTrue(store.contains("hsa:7157"));
+    assertTrue(store.isUnretrievable("hsa:0"));
+    assertEquals(2, store.size());
+
+    assertTrue(store.save());
+    assertFalse(store.hasChanged());
+    assertNotNull(store.get("hsa:7157"));
+    assertTrue(store.isUnretrievable("hsa:0"));
+    assertNull(store.get("hsa:0"));
+    assertFalse(store.contains("hsa:1"));
+  }
+
+  @Test
+  public void testReopen() throws IOException {
+    KeggInfoStore store = KeggInfoStore.getStore(file);
+    for (int i = 0; i < 1000; i++) {
+      store.put("hsa:" + i, info("hsa:" + i));
+    }
+    store.put("hsa:unknown", null);
+    store.close();
+
+    store = KeggInfoStore.getStore(file);
+    assertEquals(1001, store.size());
+    assertFalse(store.hasChanged());
+    assertEquals("HSA:999", store.get("hsa:999").getName());
+    assertTrue(store.isUnretrievable("hsa:unknown"));
+    assertFalse(store.isUnretrievable("hsa:1"));
+  }
+
+  @Test
+  public void testRecoveryAfterTornAppend() throws IOException {
+    KeggInfoStore store = KeggInfoStore.getStore(file);
+    store.put("hsa:1", info("hsa:1"));
+    store.close();
+    long length = file.length();
+
+    // A record of an aborted run: complete id, but incomplete data
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.seek(length);
+    raf.writeShort(5);
+    raf.write("hsa:2".getBytes("UTF-8"));
+    raf.writeInt(1000);
+    raf.write(new byte[10]);
+    raf.close();
+
+    store = KeggInfoStore.getStore(file);
+    assertEquals(length, file.length());
+    assertEquals(1, store.size());
+    assertFalse(store.contains("hsa:2"));
+
+    // Appending continues behind the last complete record
+    store.put("hsa:3", info("hsa:3"));
+    store.close();
+    store = KeggInfoStore.getStore(file);
+    assertEquals(2, store.size());
+    assertEquals("HSA:1", store.get("hsa:1").getName());
+    assertEquals("HSA:3", store.get("hsa:3").getName());
+  }
+
+  @Test
+  public void testInvalidFileIsMovedAside() throws IOException {
+    // Another process still has the invalid file open
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.write(new byte[100]);
+
+      KeggInfoStore store = KeggInfoStore.getStore(file);
+      assertEquals(0, store.size());
+      store.put("hsa:1", info("hsa:1"));
+      assertTrue(store.save());
+      assertNotNull(store.get("hsa:1"));
+      assertEquals(100, raf.length());
+      assertEquals(100, new File(file.getPath() + ".invalid").length());
+
+      store.close();
+      store = KeggInfoStore.getStore(file);
+      assertEquals(1, store.size());
+    } finally {
+      raf.close();
+    }
+  }
+
+  @Test
+  public void testRecordsLargerThanTheIndexWindow() throws IOException {
+    StringBuilder large = new StringBuilder();
+    while (large.length() < 3 << 20) {
+      large.append("DEFINITION  a very long description\n");
+    }
+    KeggInfoStore store = KeggInfoStore.getStore(file);
+    store.put("hsa:1", info("hsa:1"));
+    store.put("hsa:large", new KeggInfos("hsa:large", large.toString()));
+    store.put("hsa:2", info("hsa:2"));
+    store.close();
+
+    store = KeggInfoStore.getStore(file);
+    assertEquals(3, store.size());
+    assertEquals("HSA:2", store.get("hsa:2").getName());
+    assertNotNull(store.get("hsa:large"));
+  }
+
+  @Test
+  public void testImportCache() throws IOException {
+    File cacheFile = File.createTempFile("KeggInfoStoreTest", ".dat");
+    try {
+      KeggInfoManagement cache = new KeggInfoManagement(100);
+      cache.addInformation("hsa:1", info("hsa:1"));
+      cache.addInformation("hsa:2", info("hsa:2"));
+      assertTrue(KeggInfoManagement.saveToFilesystem(cacheFile.getPath(), cache));
+
+      KeggInfoStore store = KeggInfoStore.getStore(file);
+      store.put("hsa:2", info("hsa:2"));
+      assertEquals(1, store.importCache(cacheFile));
+      assertFalse(store.hasChanged());
+      assertEquals("HSA:1", store.get("hsa:1").getName());
+      assertEquals(0, store.importCache(cacheFile));
+      assertEquals(0, store.importCache(new File(cacheFile.getPath() + ".missing")));
+    } finally {
+      cacheFile.delete();
+    }
+  }
+
+}